@@ -0,0 +1,125 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.SegwitAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.Random;
+
+/**
+ * Deterministic test data shared by the benchmarks. Everything is generated from a fixed seed, so runs can be
+ * compared with each other.
+ */
+final class BenchmarkData {
+    static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BenchmarkData() {
+    }
+
+    /** Makes sure the calling thread has a {@link Context}, as required by the wallet and the chain code. */
+    static void propagateContext() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    static Sha256Hash randomHash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    /**
+     * Creates a transaction that spends random outpoints with dummy but well-formed signatures and pays to random
+     * P2PKH or P2WPKH addresses. The transaction does not verify, it is only good for parsing and hashing.
+     */
+    static Transaction createTransaction(Random random, int numInputs, int numOutputs, boolean segwit) {
+        Transaction tx = new Transaction(PARAMS);
+        byte[] signature = new byte[72];
+        byte[] pubKey = new byte[33];
+        for (int i = 0; i < numInputs; i++) {
+            random.nextBytes(signature);
+            random.nextBytes(pubKey);
+            TransactionOutPoint outPoint = new TransactionOutPoint(PARAMS, random.nextInt(4), randomHash(random));
+            if (segwit) {
+                TransactionInput input = new TransactionInput(PARAMS, tx, new byte[0], outPoint);
+                TransactionWitness witness = new TransactionWitness(2);
+                witness.setPush(0, signature.clone());
+                witness.setPush(1, pubKey.clone());
+                input.setWitness(witness);
+                tx.addInput(input);
+            } else {
+                tx.addInput(new TransactionInput(PARAMS, tx, Script.createInputScript(signature, pubKey), outPoint));
+            }
+        }
+        byte[] hash160 = new byte[20];
+        for (int i = 0; i < numOutputs; i++) {
+            random.nextBytes(hash160);
+            Address address = segwit ? SegwitAddress.fromHash(PARAMS, hash160)
+                    : LegacyAddress.fromPubKeyHash(PARAMS, hash160);
+            tx.addOutput(Coin.valueOf(1 + random.nextInt(1000000)), address);
+        }
+        return tx;
+    }
+
+    /** Creates a block with a coinbase and the given number of two-in, two-out transactions. */
+    static Block createBlock(Random random, int numTransactions, boolean segwit) {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(null);
+        for (int i = 0; i < numTransactions; i++)
+            block.addTransaction(createTransaction(random, 2, 2, segwit));
+        return block;
+    }
+
+    /**
+     * Creates a deterministic wallet that received the given number of outputs, each in its own transaction and
+     * confirmed in the same block.
+     */
+    static Wallet createFundedWallet(Random random, int outputs) {
+        propagateContext();
+        Wallet wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        Address address = wallet.currentReceiveAddress();
+        Block genesis = PARAMS.getGenesisBlock();
+        StoredBlock block = new StoredBlock(genesis.createNextBlock(null).cloneAsHeader(), genesis.getWork(), 1);
+        byte[] signature = new byte[72];
+        byte[] pubKey = new byte[33];
+        for (int i = 0; i < outputs; i++) {
+            Transaction tx = new Transaction(PARAMS);
+            random.nextBytes(signature);
+            random.nextBytes(pubKey);
+            tx.addInput(new TransactionInput(PARAMS, tx, Script.createInputScript(signature, pubKey),
+                    new TransactionOutPoint(PARAMS, 0, randomHash(random))));
+            tx.addOutput(Coin.valueOf(100000 + random.nextInt(10000000)), address);
+            wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+        }
+        wallet.notifyNewBestBlock(block);
+        return wallet;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.BloomFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BloomFilter#contains(byte[])} on a filter sized like a wallet filter, for inserted and for random elements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BloomFilterBenchmark {
+    private static final int PROBES = 1024;
+
+    @Param({"1000", "100000"})
+    public int elements;
+
+    private BloomFilter filter;
+    private byte[][] inserted;
+    private byte[][] random;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        filter = new BloomFilter(elements, 0.0001, rnd.nextInt() & 0xFFFFFFFFL);
+        inserted = new byte[PROBES][];
+        for (int i = 0; i < elements; i++) {
+            byte[] element = new byte[20];
+            rnd.nextBytes(element);
+            filter.insert(element);
+            if (i < PROBES)
+                inserted[i % PROBES] = element;
+        }
+        random = new byte[PROBES][];
+        for (int i = 0; i < PROBES; i++) {
+            random[i] = new byte[32];
+            rnd.nextBytes(random[i]);
+            if (inserted[i] == null)
+                inserted[i] = inserted[i % elements];
+        }
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return filter.contains(inserted[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return filter.contains(random[next++ & (PROBES - 1)]);
+    }
+}
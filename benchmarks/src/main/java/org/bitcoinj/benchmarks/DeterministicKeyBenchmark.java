@@ -0,0 +1,80 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DeterministicKey} child derivation, from a private parent as done when signing and from a watching
+ * (public only) parent as done for lookahead keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeterministicKeyBenchmark {
+    private DeterministicKey privateParent;
+    private DeterministicKey publicParent;
+    private int childNumber;
+
+    @Setup
+    public void setup() {
+        byte[] seed = new byte[32];
+        new Random(42).nextBytes(seed);
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(seed);
+        DeterministicKey account = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        privateParent = HDKeyDerivation.deriveChildKey(account, ChildNumber.ZERO);
+        publicParent = privateParent.dropPrivateBytes().dropParent();
+    }
+
+    @Benchmark
+    public DeterministicKey deriveFromPrivate() {
+        return HDKeyDerivation.deriveChildKey(privateParent, nextChild());
+    }
+
+    @Benchmark
+    public DeterministicKey deriveFromPublic() {
+        return HDKeyDerivation.deriveChildKey(publicParent, nextChild());
+    }
+
+    @Benchmark
+    public DeterministicKey deriveHardened() {
+        return HDKeyDerivation.deriveChildKey(privateParent, new ChildNumber(nextChild(), true));
+    }
+
+    private int nextChild() {
+        childNumber = (childNumber + 1) & 0xFFFFF;
+        return childNumber;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ECDSA signing and verification with Bouncy Castle and with {@link NativeSecp256k1}, which {@link ECKey} picks when
+ * libsecp256k1 can be loaded. The native variant fails in setup if the library is not on the
+ * {@code java.library.path}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EcdsaBenchmark {
+    @Param({"bouncycastle", "native"})
+    public String implementation;
+
+    private boolean nativeImpl;
+    private byte[] hash;
+    private BigInteger privKey;
+    private byte[] privKeyBytes;
+    private byte[] pubKey;
+    private ECKey.ECDSASignature signature;
+    private byte[] derSignature;
+    private ECPrivateKeyParameters privKeyParams;
+    private ECPublicKeyParameters pubKeyParams;
+
+    @Setup
+    public void setup() throws Exception {
+        nativeImpl = implementation.equals("native");
+        if (nativeImpl && !Secp256k1Context.isEnabled())
+            throw new IllegalStateException("libsecp256k1 could not be loaded, check java.library.path");
+        Random random = new Random(42);
+        ECKey key = ECKey.fromPrivate(BenchmarkData.randomHash(random).getBytes());
+        hash = BenchmarkData.randomHash(random).getBytes();
+        privKey = key.getPrivKey();
+        privKeyBytes = key.getPrivKeyBytes();
+        pubKey = key.getPubKey();
+        privKeyParams = new ECPrivateKeyParameters(privKey, ECKey.CURVE);
+        pubKeyParams = new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pubKey), ECKey.CURVE);
+        signature = key.sign(Sha256Hash.wrap(hash));
+        derSignature = signature.encodeToDER();
+        if (!verify())
+            throw new IllegalStateException("Signature does not verify");
+    }
+
+    @Benchmark
+    public Object sign() throws NativeSecp256k1Util.AssertFailException {
+        if (nativeImpl)
+            return NativeSecp256k1.sign(hash, privKeyBytes);
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+        signer.init(true, privKeyParams);
+        return signer.generateSignature(hash);
+    }
+
+    @Benchmark
+    public boolean verify() throws NativeSecp256k1Util.AssertFailException {
+        if (nativeImpl)
+            return NativeSecp256k1.verify(hash, derSignature, pubKey);
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, pubKeyParams);
+        return signer.verifySignature(hash, signature.r, signature.s);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.wallet.DeterministicKeyChain;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Derivation of a lookahead zone, in keys per second: one key at a time as it used to be done, in bulk with
+ * {@link HDKeyDerivation#deriveChildKeysFromPublic(DeterministicKey, int, int)}, and through
+ * {@link DeterministicKeyChain#maybeLookAhead()}, which also inserts the keys into the chain.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookaheadDerivationBenchmark {
+    private static final int KEYS = 5000;
+
+    private byte[] entropy;
+    private DeterministicKey parent;
+    private DeterministicKeyChain chain;
+
+    @Setup
+    public void setup() {
+        entropy = new byte[16];
+        new Random(42).nextBytes(entropy);
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(entropy);
+        DeterministicKey account = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        parent = HDKeyDerivation.deriveChildKey(account, ChildNumber.ZERO);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupChain() {
+        chain = DeterministicKeyChain.builder().entropy(entropy, 0).build();
+        chain.setLookaheadSize(KEYS);
+        // Without a threshold, exactly KEYS keys are derived per chain.
+        chain.setLookaheadThreshold(0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public List<DeterministicKey> oneByOne() {
+        return HDKeyDerivation.generate(parent, 0)
+                .limit(KEYS)
+                .map(DeterministicKey::dropPrivateBytes)
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public List<DeterministicKey> bulk() {
+        return HDKeyDerivation.deriveChildKeysFromPublic(parent, 0, KEYS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * KEYS)
+    public DeterministicKeyChain chainLookahead() {
+        // Fills the external and the internal chain.
+        chain.maybeLookAhead();
+        return chain;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SPVBlockStore#get(Sha256Hash)} on a full store, for headers in the store and for unknown hashes. Misses
+ * are what peers cause most, e.g. when announcing blocks we have not seen yet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SPVBlockStoreBenchmark {
+    private static final int PROBES = 4096;
+
+    @Param({"10000", "100000", "1000000"})
+    public int capacity;
+
+    private File file;
+    private SPVBlockStore store;
+    private Sha256Hash[] stored;
+    private Sha256Hash[] unknown;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException, BlockStoreException {
+        Random random = new Random(42);
+        file = File.createTempFile("spvblockstore", null);
+        file.delete();
+        store = new SPVBlockStore(BenchmarkData.PARAMS, file, capacity, false);
+        // Fill the ring with a chain of (unsolved) headers, remembering a random sample to look up later.
+        stored = new Sha256Hash[PROBES];
+        Block genesis = BenchmarkData.PARAMS.getGenesisBlock();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < capacity; i++) {
+            Block header = new Block(BenchmarkData.PARAMS, Block.BLOCK_VERSION_BIP66, prev.getHeader().getHash(),
+                    BenchmarkData.randomHash(random), prev.getHeader().getTimeSeconds() + 600,
+                    genesis.getDifficultyTarget(), random.nextInt() & 0xFFFFFFFFL, Collections.emptyList());
+            prev = new StoredBlock(header, prev.getChainWork().add(BigInteger.ONE), prev.getHeight() + 1);
+            store.put(prev);
+            int slot = i < PROBES ? i : random.nextInt(i + 1);
+            if (slot < PROBES)
+                stored[slot] = prev.getHeader().getHash();
+        }
+        store.setChainHead(prev);
+        unknown = new Sha256Hash[PROBES];
+        for (int i = 0; i < PROBES; i++)
+            unknown[i] = BenchmarkData.randomHash(random);
+    }
+
+    @TearDown
+    public void tearDown() throws BlockStoreException {
+        store.close();
+        file.delete();
+        new File(file.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).delete();
+    }
+
+    @Benchmark
+    public StoredBlock getHit() throws BlockStoreException {
+        return store.get(stored[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public StoredBlock getMiss() throws BlockStoreException {
+        return store.get(unknown[next++ & (PROBES - 1)]);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification of a single input via {@link Script#correctlySpends(Transaction, int, TransactionWitness, Coin, Script,
+ * java.util.Set)}, for the most common output types. P2PKH and P2WPKH have a fast path that skips the interpreter,
+ * {@link #p2pkhInterpreted()} runs the same input through the script interpreter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptVerificationBenchmark {
+    private static final EnumSet<Script.VerifyFlag> FLAGS = EnumSet.of(Script.VerifyFlag.P2SH,
+            Script.VerifyFlag.STRICTENC, Script.VerifyFlag.DERSIG, Script.VerifyFlag.NULLDUMMY,
+            Script.VerifyFlag.CHECKLOCKTIMEVERIFY, Script.VerifyFlag.CHECKSEQUENCEVERIFY);
+    private static final Coin VALUE = Coin.COIN;
+
+    private Transaction p2pkhTx;
+    private Script p2pkhScriptPubKey;
+    private Transaction multiSigTx;
+    private Script multiSigScriptPubKey;
+    private Transaction p2wpkhTx;
+    private Script p2wpkhScriptPubKey;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        ECKey key = ECKey.fromPrivate(BenchmarkData.randomHash(random).getBytes());
+
+        p2pkhScriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        p2pkhTx = createSpendingTransaction(random);
+        TransactionSignature p2pkhSig = p2pkhTx.calculateSignature(0, key, p2pkhScriptPubKey,
+                Transaction.SigHash.ALL, false);
+        p2pkhTx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(p2pkhSig, key));
+
+        List<ECKey> keys = Arrays.asList(key, ECKey.fromPrivate(BenchmarkData.randomHash(random).getBytes()),
+                ECKey.fromPrivate(BenchmarkData.randomHash(random).getBytes()));
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, keys);
+        multiSigScriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        multiSigTx = createSpendingTransaction(random);
+        TransactionSignature sig0 = multiSigTx.calculateSignature(0, keys.get(0), redeemScript,
+                Transaction.SigHash.ALL, false);
+        TransactionSignature sig2 = multiSigTx.calculateSignature(0, keys.get(2), redeemScript,
+                Transaction.SigHash.ALL, false);
+        multiSigTx.getInput(0).setScriptSig(
+                ScriptBuilder.createP2SHMultiSigInputScript(Arrays.asList(sig0, sig2), redeemScript));
+
+        p2wpkhScriptPubKey = ScriptBuilder.createP2WPKHOutputScript(key);
+        p2wpkhTx = createSpendingTransaction(random);
+        TransactionSignature p2wpkhSig = p2wpkhTx.calculateWitnessSignature(0, key,
+                ScriptBuilder.createP2PKHOutputScript(key), VALUE, Transaction.SigHash.ALL, false);
+        p2wpkhTx.getInput(0).setWitness(TransactionWitness.redeemP2WPKH(p2wpkhSig, key));
+
+        // Make sure we measure valid spends.
+        p2pkh();
+        p2pkhInterpreted();
+        p2shMultiSig();
+        p2wpkh();
+    }
+
+    private static Transaction createSpendingTransaction(Random random) {
+        Transaction tx = new Transaction(BenchmarkData.PARAMS);
+        tx.addInput(new TransactionInput(BenchmarkData.PARAMS, tx, new byte[0],
+                new TransactionOutPoint(BenchmarkData.PARAMS, 0, BenchmarkData.randomHash(random))));
+        tx.addOutput(VALUE.subtract(Coin.MILLICOIN), ScriptBuilder.createP2PKHOutputScript(
+                ECKey.fromPrivate(BenchmarkData.randomHash(random).getBytes())));
+        return tx;
+    }
+
+    @Benchmark
+    public void p2pkh() {
+        p2pkhTx.getInput(0).getScriptSig().correctlySpends(p2pkhTx, 0, null, VALUE, p2pkhScriptPubKey, FLAGS);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public void p2pkhInterpreted() {
+        p2pkhTx.getInput(0).getScriptSig().correctlySpends(p2pkhTx, 0, p2pkhScriptPubKey, FLAGS);
+    }
+
+    @Benchmark
+    public void p2shMultiSig() {
+        multiSigTx.getInput(0).getScriptSig().correctlySpends(multiSigTx, 0, null, VALUE, multiSigScriptPubKey,
+                FLAGS);
+    }
+
+    @Benchmark
+    public void p2wpkh() {
+        TransactionInput input = p2wpkhTx.getInput(0);
+        input.getScriptSig().correctlySpends(p2wpkhTx, 0, input.getWitness(), VALUE, p2wpkhScriptPubKey, FLAGS);
+    }
+}
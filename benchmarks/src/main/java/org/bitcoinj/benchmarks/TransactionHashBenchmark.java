@@ -0,0 +1,77 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Transaction#getTxId()} and {@link Transaction#getWTxId()}. Transactions cache their ids, so every invocation
+ * parses a fresh copy; {@link #parse()} is the baseline to subtract.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionHashBenchmark {
+    @Param({"1", "10", "100"})
+    public int inputs;
+
+    @Param({"false", "true"})
+    public boolean segwit;
+
+    private MessageSerializer serializer;
+    private byte[] txBytes;
+
+    @Setup
+    public void setup() {
+        serializer = BenchmarkData.PARAMS.getDefaultSerializer();
+        txBytes = BenchmarkData.createTransaction(new Random(42), inputs, 2, segwit).bitcoinSerialize();
+    }
+
+    @Benchmark
+    public Transaction parse() {
+        return serializer.makeTransaction(txBytes);
+    }
+
+    @Benchmark
+    public Sha256Hash getTxId() {
+        return serializer.makeTransaction(txBytes).getTxId();
+    }
+
+    @Benchmark
+    public Sha256Hash getWTxId() {
+        return serializer.makeTransaction(txBytes).getWTxId();
+    }
+}
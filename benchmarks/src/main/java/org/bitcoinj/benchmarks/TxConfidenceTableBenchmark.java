@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TxConfidenceTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TxConfidenceTable#seen(Sha256Hash, PeerAddress)} as called by many peers announcing the same transactions
+ * during a mempool burst, with more announced transactions than the table tracks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TxConfidenceTableBenchmark {
+    private static final int TRANSACTIONS = 4096;
+    private static final int PEERS = 128;
+
+    private TxConfidenceTable table;
+    private Sha256Hash[] hashes;
+    private PeerAddress[] peers;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        Random random = new Random(42);
+        table = new TxConfidenceTable();
+        hashes = new Sha256Hash[TRANSACTIONS];
+        for (int i = 0; i < TRANSACTIONS; i++)
+            hashes[i] = BenchmarkData.randomHash(random);
+        peers = new PeerAddress[PEERS];
+        for (int i = 0; i < PEERS; i++)
+            peers[i] = new PeerAddress(BenchmarkData.PARAMS,
+                    InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }), 8333);
+    }
+
+    @Benchmark
+    public TransactionConfidence seenSingleThread() {
+        return seen();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public TransactionConfidence seenContended() {
+        return seen();
+    }
+
+    private TransactionConfidence seen() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return table.seen(hashes[random.nextInt(TRANSACTIONS)], peers[random.nextInt(PEERS)]);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Wallet#completeTx(SendRequest)} for a small payment, which needs a single input, at various numbers of
+ * unspent outputs in the wallet. This mostly measures gathering the spend candidates and coin selection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WalletCompleteTxBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int utxos;
+
+    private Wallet wallet;
+    private Address destination;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        wallet = BenchmarkData.createFundedWallet(random, utxos);
+        byte[] hash160 = new byte[20];
+        random.nextBytes(hash160);
+        destination = LegacyAddress.fromPubKeyHash(BenchmarkData.PARAMS, hash160);
+    }
+
+    @Benchmark
+    public SendRequest completeTx() throws InsufficientMoneyException {
+        SendRequest request = SendRequest.to(destination, Coin.valueOf(50000));
+        request.shuffleOutputs = false;
+        wallet.completeTx(request);
+        return request;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wallet queries from several threads, on their own and while another thread keeps connecting blocks to the wallet
+ * with {@link Wallet#notifyNewBestBlock(StoredBlock)}, which holds the wallet lock and touches the confidence of every
+ * transaction. With queries answered from the read view of the wallet, the readers should barely notice the writer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WalletContentionBenchmark {
+    @Param({"1000", "10000"})
+    public int utxos;
+
+    private Wallet wallet;
+    private Sha256Hash txId;
+    private StoredBlock[] blocks;
+    private int nextBlock;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        wallet = BenchmarkData.createFundedWallet(random, utxos);
+        Transaction tx = wallet.getTransactions(false).iterator().next();
+        txId = tx.getTxId();
+        // Alternate between two blocks, as the wallet ignores a block it has just seen.
+        Block previous = BenchmarkData.PARAMS.getGenesisBlock();
+        blocks = new StoredBlock[2];
+        for (int i = 0; i < blocks.length; i++) {
+            Block block = previous.createNextBlock(null);
+            blocks[i] = new StoredBlock(block.cloneAsHeader(), previous.getWork(), 2 + i);
+            previous = block;
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Coin uncontendedBalance() {
+        return wallet.getBalance();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Transaction uncontendedTransaction() {
+        return wallet.getTransaction(txId);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public Coin balance() {
+        return wallet.getBalance();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public Transaction transaction() {
+        return wallet.getTransaction(txId);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void newBlock() {
+        // Only this thread touches nextBlock.
+        wallet.notifyNewBestBlock(blocks[nextBlock]);
+        nextBlock = (nextBlock + 1) % blocks.length;
+    }
+}
@@ -29,6 +29,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.HEX;
 import static org.bitcoinj.core.Utils.readUint32;
 import static org.bitcoinj.core.Utils.uint32ToByteArrayBE;
@@ -78,6 +79,14 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(RejectMessage.class, "reject");
         names.put(SendHeadersMessage.class, "sendheaders");
         names.put(FeeFilterMessage.class, "feefilter");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFilterMessage.class, "cfilter");
+        names.put(CFHeadersMessage.class, "cfheaders");
+        names.put(SendCmpctMessage.class, "sendcmpct");
+        names.put(CmpctBlockMessage.class, "cmpctblock");
+        names.put(GetBlockTxnMessage.class, "getblocktxn");
+        names.put(BlockTxnMessage.class, "blocktxn");
     }
 
     /**
@@ -193,10 +202,21 @@ public class BitcoinSerializer extends MessageSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes);
+    }
+
+    /**
+     * Deserialize payload only, from an array holding it at its start. The checksum is verified on the array in
+     * place. Blocks and transactions can be parsed from an array longer than their payload, unless the serializer
+     * is in parse retain mode.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size ||
+                (payloadBytes.length > header.size && canDeserializeFromLargerArray(header.command)));
 
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
+        byte[] hash = Sha256Hash.hashTwice(payloadBytes, 0, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -206,14 +226,25 @@ public class BitcoinSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, 0, header.size));
         }
 
+        Message message;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            message = makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes, 0, header.size) + "\n", e);
         }
+        // Bytes past the payload are left over from earlier messages, a message parsed from them is invalid.
+        if (payloadBytes.length > header.size && message.getMessageSize() > header.size)
+            throw new ProtocolException("Message '" + header.command + "' is longer than its payload of " + header.size + " bytes");
+        return message;
+    }
+
+    /** Blocks and transactions, which parse no further than their given length, unless in parse retain mode. */
+    @Override
+    public boolean canDeserializeFromLargerArray(String command) {
+        return !parseRetain && (command.equals("block") || command.equals("tx"));
     }
 
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
@@ -260,6 +291,22 @@ public class BitcoinSerializer extends MessageSerializer {
             return new SendHeadersMessage(params, payloadBytes);
         } else if (command.equals("feefilter")) {
             return new FeeFilterMessage(params, payloadBytes, this, length);
+        } else if (command.equals("getcfilters")) {
+            return new GetCFiltersMessage(params, payloadBytes);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCFHeadersMessage(params, payloadBytes);
+        } else if (command.equals("cfilter")) {
+            return new CFilterMessage(params, payloadBytes);
+        } else if (command.equals("cfheaders")) {
+            return new CFHeadersMessage(params, payloadBytes);
+        } else if (command.equals("sendcmpct")) {
+            return new SendCmpctMessage(params, payloadBytes);
+        } else if (command.equals("cmpctblock")) {
+            return new CmpctBlockMessage(params, payloadBytes);
+        } else if (command.equals("getblocktxn")) {
+            return new GetBlockTxnMessage(params, payloadBytes);
+        } else if (command.equals("blocktxn")) {
+            return new BlockTxnMessage(params, payloadBytes);
         } else {
             return new UnknownMessage(params, command, payloadBytes);
         }
@@ -228,7 +228,7 @@ public class Block extends Message {
     protected void parseTransactions(final int transactionsOffset) throws ProtocolException {
         cursor = transactionsOffset;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        if (payload.length == cursor || (length != UNKNOWN_LENGTH && cursor == offset + length)) {
             // This message is just a header, it has no transactions.
             transactionBytesValid = false;
             return;
@@ -636,7 +636,7 @@ public class Block extends Message {
         }
     }
 
-    private Sha256Hash calculateMerkleRoot() {
+    Sha256Hash calculateMerkleRoot() {
         List<byte[]> tree = buildMerkleTree(false);
         return Sha256Hash.wrap(tree.get(tree.size() - 1));
     }
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.Math.E;
@@ -46,7 +47,9 @@ import static java.lang.Math.pow;
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Instances of this class are safe for use by multiple threads. The bits are held in atomic 64-bit words, so
+ * matching takes no lock and scales across cores, while inserts (including those done by
+ * {@link #applyAndUpdate(Transaction)}) set bits atomically and are visible to all threads once they return.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -58,7 +61,7 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    private volatile Bits bits;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
@@ -117,9 +120,9 @@ public class BloomFilter extends Message {
         //                        Size required for a given number of elements and false-positive rate
         int size = (int)(-1  / (pow(log(2), 2)) * elements * log(falsePositiveRate));
         size = max(1, min(size, (int) MAX_FILTER_SIZE * 8) / 8);
-        data = new byte[size];
+        bits = new Bits(size);
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = (int)(data.length * 8 / (double)elements * log(2));
+        hashFuncs = (int)(size * 8 / (double)elements * log(2));
         hashFuncs = max(1, min(hashFuncs, MAX_HASH_FUNCS));
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
@@ -129,13 +132,13 @@ public class BloomFilter extends Message {
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
+        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / bits.bitLength()), hashFuncs);
     }
 
     @Override
     public String toString() {
         final MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this).omitNullValues();
-        helper.add("data length", data.length);
+        helper.add("data length", bits.byteLength);
         helper.add("hashFuncs", hashFuncs);
         helper.add("nFlags", getUpdateFlag());
         return helper.toString();
@@ -143,9 +146,10 @@ public class BloomFilter extends Message {
 
     @Override
     protected void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE)
             throw new ProtocolException ("Bloom filter out of size range.");
+        bits = new Bits(data);
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS)
             throw new ProtocolException("Bloom filter hash function count out of range");
@@ -159,6 +163,7 @@ public class BloomFilter extends Message {
      */
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        byte[] data = bits.toByteArray();
         stream.write(new VarInt(data.length).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
@@ -175,82 +180,108 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
-        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        return murmurHash3(scrambleBlocks(object), object.length, nTweak, hashNum, data.length * 8);
+    }
+
+    /**
+     * Mixes the 4 byte blocks of the object, and the remaining tail bytes as the last block, with the MurmurHash3
+     * constants. This part does not depend on the seed, so it is done once per object and shared by all hash rounds.
+     */
+    private static int[] scrambleBlocks(byte[] object) {
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = object.length / 4;
+        int[] blocks = new int[numBlocks + 1];
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
+        for (int b = 0, i = 0; b < numBlocks; b++, i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
                   ((object[i+3] & 0xFF) << 24);
-            
+
             k1 *= c1;
             k1 = rotateLeft32(k1, 15);
             k1 *= c2;
-
-            h1 ^= k1;
-            h1 = rotateLeft32(h1, 13);
-            h1 = h1*5+0xe6546b64;
+            blocks[b] = k1;
         }
-        
+
+        int tail = numBlocks * 4;
         int k1 = 0;
         switch(object.length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
-                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
+                k1 ^= (object[tail] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
                 // Fall through.
             default:
-                // Do nothing.
+                // Without a tail k1 stays zero, which leaves h1 unchanged.
                 break;
         }
+        blocks[numBlocks] = k1;
+        return blocks;
+    }
+
+    /** Runs a single hash round over blocks from {@link #scrambleBlocks(byte[])} and returns the bit index. */
+    private static int murmurHash3(int[] blocks, int length, long nTweak, int hashNum, int bitLength) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        int numBlocks = blocks.length - 1;
+        for (int b = 0; b < numBlocks; b++) {
+            h1 ^= blocks[b];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        h1 ^= blocks[numBlocks];
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+
+        return (int)((h1&0xFFFFFFFFL) % bitLength);
     }
     
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
-    public synchronized boolean contains(byte[] object) {
+    public boolean contains(byte[] object) {
+        Bits bits = this.bits;
+        int bitLength = bits.bitLength();
+        int[] blocks = scrambleBlocks(object);
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+            if (!bits.get(murmurHash3(blocks, object.length, nTweak, i, bitLength)))
                 return false;
         }
         return true;
     }
     
     /** Insert the given arbitrary data into the filter */
-    public synchronized void insert(byte[] object) {
+    public void insert(byte[] object) {
+        Bits bits = this.bits;
+        int bitLength = bits.bitLength();
+        int[] blocks = scrambleBlocks(object);
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+            bits.set(murmurHash3(blocks, object.length, nTweak, i, bitLength));
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
-    public synchronized void insert(ECKey key) {
+    public void insert(ECKey key) {
         insert(key.getPubKey());
         insert(key.getPubKeyHash());
     }
 
     /** Inserts the given transaction outpoint. */
-    public synchronized void insert(TransactionOutPoint outpoint) {
+    public void insert(TransactionOutPoint outpoint) {
         insert(outpoint.unsafeBitcoinSerialize());
     }
 
@@ -261,8 +292,8 @@ public class BloomFilter extends Message {
      * Solved blocks will then be send just as Merkle trees of tx hashes, meaning a constant 32 bytes of data for each
      * transaction instead of 100-300 bytes as per usual.
      */
-    public synchronized void setMatchAll() {
-        data = new byte[] {(byte) 0xff};
+    public void setMatchAll() {
+        bits = new Bits(new byte[] {(byte) 0xff});
     }
 
     /**
@@ -271,13 +302,14 @@ public class BloomFilter extends Message {
      */
     public synchronized void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            Bits bits = this.bits;
+            Bits other = filter.bits;
+            checkArgument(other.byteLength == bits.byteLength &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
-            for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+            bits.or(other);
         } else {
-            this.data = new byte[] {(byte) 0xff};
+            setMatchAll();
         }
     }
 
@@ -285,18 +317,15 @@ public class BloomFilter extends Message {
      * Returns true if this filter will match anything. See {@link BloomFilter#setMatchAll()}
      * for when this can be a useful thing to do.
      */
-    public synchronized boolean matchesAll() {
-        for (byte b : data)
-            if (b != (byte) 0xff)
-                return false;
-        return true;
+    public boolean matchesAll() {
+        return bits.isFull();
     }
 
     /**
      * The update flag controls how application of the filter to a block modifies the filter. See the enum javadocs
      * for information on what occurs and when.
      */
-    public synchronized BloomUpdate getUpdateFlag() {
+    public BloomUpdate getUpdateFlag() {
         if (nFlags == 0)
             return BloomUpdate.UPDATE_NONE;
         else if (nFlags == 1)
@@ -313,27 +342,27 @@ public class BloomFilter extends Message {
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
      * filtered block already has the matched transactions associated with it.
      */
-    public synchronized FilteredBlock applyAndUpdate(Block block) {
+    public FilteredBlock applyAndUpdate(Block block) {
         List<Transaction> txns = block.getTransactions();
         List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
         List<Transaction> matched = new ArrayList<>();
-        byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
+        byte[] matchedBits = new byte[(int) Math.ceil(txns.size() / 8.0)];
         for (int i = 0; i < txns.size(); i++) {
             Transaction tx = txns.get(i);
             txHashes.add(tx.getTxId());
             if (applyAndUpdate(tx)) {
-                Utils.setBitLE(bits, i);
+                Utils.setBitLE(matchedBits, i);
                 matched.add(tx);
             }
         }
-        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.getParams(), bits, txHashes);
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(block.getParams(), matchedBits, txHashes);
         FilteredBlock filteredBlock = new FilteredBlock(block.getParams(), block.cloneAsHeader(), pmt);
         for (Transaction transaction : matched)
             filteredBlock.provideTransaction(transaction);
         return filteredBlock;
     }
 
-    public synchronized boolean applyAndUpdate(Transaction tx) {
+    public boolean applyAndUpdate(Transaction tx) {
         if (contains(tx.getTxId().getBytes()))
             return true;
         boolean found = false;
@@ -365,15 +394,81 @@ public class BloomFilter extends Message {
     }
     
     @Override
-    public synchronized boolean equals(Object o) {
+    public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BloomFilter other = (BloomFilter) o;
-        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && Arrays.equals(data, other.data);
+        return hashFuncs == other.hashFuncs && nTweak == other.nTweak &&
+                Arrays.equals(bits.toByteArray(), other.bits.toByteArray());
     }
 
     @Override
-    public synchronized int hashCode() {
-        return Objects.hash(hashFuncs, nTweak, Arrays.hashCode(data));
+    public int hashCode() {
+        return Objects.hash(hashFuncs, nTweak, Arrays.hashCode(bits.toByteArray()));
+    }
+
+    /**
+     * The bit array of a filter, packed little endian into 64-bit words so that bit {@code i} of the serialized form
+     * is bit {@code i % 64} of word {@code i / 64}. Bits are only ever set, never cleared, so readers need no lock.
+     */
+    private static final class Bits {
+        final int byteLength;
+        final AtomicLongArray words;
+
+        Bits(int byteLength) {
+            this.byteLength = byteLength;
+            this.words = new AtomicLongArray((byteLength + 7) / 8);
+        }
+
+        Bits(byte[] data) {
+            this(data.length);
+            for (int i = 0; i < data.length; i++)
+                words.set(i >>> 3, words.get(i >>> 3) | (data[i] & 0xFFL) << ((i & 7) * 8));
+        }
+
+        int bitLength() {
+            return byteLength * 8;
+        }
+
+        boolean get(int index) {
+            return (words.get(index >>> 6) & (1L << index)) != 0;
+        }
+
+        void set(int index) {
+            int word = index >>> 6;
+            long mask = 1L << index;
+            long current;
+            while (((current = words.get(word)) & mask) == 0) {
+                if (words.compareAndSet(word, current, current | mask))
+                    return;
+            }
+        }
+
+        void or(Bits other) {
+            for (int i = 0; i < words.length(); i++) {
+                long bitsToSet = other.words.get(i);
+                if (bitsToSet != 0)
+                    words.accumulateAndGet(i, bitsToSet, (a, b) -> a | b);
+            }
+        }
+
+        boolean isFull() {
+            int fullWords = byteLength / 8;
+            for (int i = 0; i < fullWords; i++)
+                if (words.get(i) != -1L)
+                    return false;
+            int remainingBytes = byteLength & 7;
+            if (remainingBytes == 0)
+                return true;
+            long mask = (1L << (remainingBytes * 8)) - 1;
+            return (words.get(fullWords) & mask) == mask;
+        }
+
+        byte[] toByteArray() {
+            byte[] data = new byte[byteLength];
+            for (int i = 0; i < byteLength; i++)
+                data[i] = (byte) (words.get(i >>> 3) >>> ((i & 7) * 8));
+            return data;
+        }
     }
 }
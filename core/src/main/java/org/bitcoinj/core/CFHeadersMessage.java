@@ -0,0 +1,105 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents the "cfheaders" P2P network message, which carries the filter hashes of a range of blocks and the
+ * filter header of the block before the range. It is sent in response to a {@link GetCFHeadersMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFHeadersMessage extends Message {
+    private int filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousFilterHeader;
+    private List<Sha256Hash> filterHashes;
+
+    public CFHeadersMessage(NetworkParameters params, int filterType, Sha256Hash stopHash,
+                            Sha256Hash previousFilterHeader, List<Sha256Hash> filterHashes) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = filterHashes;
+    }
+
+    public CFHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte() & 0xFF;
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        int count = readVarInt().intValue();
+        if (count < 0 || count > GetCFHeadersMessage.MAX_FILTER_HEADERS)
+            throw new ProtocolException("Too many filter hashes: " + count);
+        filterHashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            filterHashes.add(readHash());
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousFilterHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    public Sha256Hash getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    public List<Sha256Hash> getFilterHashes() {
+        return Collections.unmodifiableList(filterHashes);
+    }
+
+    /** Returns the filter header of the last block of the range, chained from the previous filter header. */
+    public Sha256Hash getLastFilterHeader() {
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash filterHash : filterHashes)
+            header = GolombCodedSet.computeHeader(filterHash, header);
+        return header;
+    }
+
+    @Override
+    public String toString() {
+        return "cfheaders: type " + filterType + ", " + filterHashes.size() + " hashes up to " + stopHash;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Represents the "cfilter" P2P network message, which carries the compact block filter of a single block. It is
+ * sent in response to a {@link GetCFiltersMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFilterMessage extends Message {
+    private int filterType;
+    private Sha256Hash blockHash;
+    private byte[] filter;
+
+    public CFilterMessage(NetworkParameters params, int filterType, Sha256Hash blockHash, byte[] filter) {
+        super(params);
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filter = filter;
+    }
+
+    public CFilterMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte() & 0xFF;
+        blockHash = readHash();
+        filter = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filter.length).encode());
+        stream.write(filter);
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the serialized filter. The array is not copied. */
+    public byte[] getFilterBytes() {
+        return filter;
+    }
+
+    /**
+     * Returns the decoded basic filter.
+     * @throws ProtocolException if this is not a basic filter, or it is malformed
+     */
+    public GolombCodedSet getFilter() throws ProtocolException {
+        if (filterType != GolombCodedSet.BASIC_FILTER_TYPE)
+            throw new ProtocolException("Unknown filter type " + filterType);
+        return new GolombCodedSet(filter, blockHash);
+    }
+
+    @Override
+    public String toString() {
+        return "cfilter: type " + filterType + " for " + blockHash + ", " + filter.length + " bytes";
+    }
+}
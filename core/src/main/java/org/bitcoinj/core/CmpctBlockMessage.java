@@ -0,0 +1,180 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents the "cmpctblock" P2P network message, a compact block as specified in
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP152</a>. It consists of the block header,
+ * a few prefilled transactions, usually just the coinbase, and 6 byte short ids of all other transactions. The
+ * receiver rebuilds the block from the transactions it has seen already and asks for the missing ones with a
+ * {@link GetBlockTxnMessage}.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CmpctBlockMessage extends Message {
+    private Block header;
+    private long nonce;
+    private long[] shortIds;
+    private List<PrefilledTransaction> prefilledTransactions;
+
+    /** A transaction sent along with the compact block, with its index in the block. */
+    public static class PrefilledTransaction {
+        public final int index;
+        public final Transaction tx;
+
+        public PrefilledTransaction(int index, Transaction tx) {
+            this.index = index;
+            this.tx = tx;
+        }
+    }
+
+    public CmpctBlockMessage(NetworkParameters params, Block header, long nonce, long[] shortIds,
+                             List<PrefilledTransaction> prefilledTransactions) {
+        super(params);
+        this.header = header.cloneAsHeader();
+        this.nonce = nonce;
+        this.shortIds = shortIds;
+        this.prefilledTransactions = prefilledTransactions;
+    }
+
+    public CmpctBlockMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    /**
+     * Creates the compact block of the given block, prefilling only the coinbase. The short ids are of witness
+     * transaction ids if {@code witness} is true, as in version 2 compact blocks.
+     */
+    public static CmpctBlockMessage fromBlock(Block block, long nonce, boolean witness) {
+        List<Transaction> transactions = block.getTransactions();
+        CmpctBlockMessage m = new CmpctBlockMessage(block.getParams(), block, nonce, new long[transactions.size() - 1],
+                Collections.singletonList(new PrefilledTransaction(0, transactions.get(0))));
+        HashFunction sipHash = m.shortIdHash();
+        for (int i = 1; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            m.shortIds[i - 1] = shortId(sipHash, witness ? tx.getWTxId() : tx.getTxId());
+        }
+        return m;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        header = params.getDefaultSerializer().makeBlock(readBytes(Block.HEADER_SIZE));
+        nonce = readInt64();
+        int shortIdCount = readVarInt().intValue();
+        if (shortIdCount < 0 || shortIdCount > (payload.length - cursor) / 6)
+            throw new ProtocolException("Too many short ids: " + shortIdCount);
+        shortIds = new long[shortIdCount];
+        for (int i = 0; i < shortIdCount; i++) {
+            byte[] bytes = readBytes(6);
+            long shortId = 0;
+            for (int j = 5; j >= 0; j--)
+                shortId = (shortId << 8) | (bytes[j] & 0xFFL);
+            shortIds[i] = shortId;
+        }
+        int prefilledCount = readVarInt().intValue();
+        if (prefilledCount < 0 || prefilledCount > payload.length - cursor)
+            throw new ProtocolException("Too many prefilled transactions: " + prefilledCount);
+        prefilledTransactions = new ArrayList<>(prefilledCount);
+        // Indexes are differentially encoded, each one relative to the one before plus one.
+        long index = -1;
+        for (int i = 0; i < prefilledCount; i++) {
+            index += readVarInt().longValue() + 1;
+            if (index < 0 || index >= shortIdCount + prefilledCount)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH, null);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            cursor += tx.getMessageSize();
+            prefilledTransactions.add(new PrefilledTransaction((int) index, tx));
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        header.writeHeader(stream);
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        for (long shortId : shortIds)
+            for (int j = 0; j < 6; j++)
+                stream.write((int) (shortId >>> (8 * j)));
+        stream.write(new VarInt(prefilledTransactions.size()).encode());
+        int previous = -1;
+        for (PrefilledTransaction prefilled : prefilledTransactions) {
+            stream.write(new VarInt(prefilled.index - previous - 1).encode());
+            previous = prefilled.index;
+            prefilled.tx.bitcoinSerializeToStream(stream);
+        }
+    }
+
+    /** Returns the block header, without transactions. */
+    public Block getHeader() {
+        return header;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return header.getHash();
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** Returns the short ids of the transactions that were not prefilled, in block order. The array is not copied. */
+    public long[] getShortIds() {
+        return shortIds;
+    }
+
+    public List<PrefilledTransaction> getPrefilledTransactions() {
+        return Collections.unmodifiableList(prefilledTransactions);
+    }
+
+    /** Returns the number of transactions of the block. */
+    public int getTransactionCount() {
+        return shortIds.length + prefilledTransactions.size();
+    }
+
+    /** Returns SipHash-2-4 keyed with the first 16 bytes of the SHA256 of the header and the nonce. */
+    HashFunction shortIdHash() {
+        byte[] bytes = new byte[Block.HEADER_SIZE + 8];
+        System.arraycopy(header.bitcoinSerialize(), 0, bytes, 0, Block.HEADER_SIZE);
+        Utils.int64ToByteArrayLE(nonce, bytes, Block.HEADER_SIZE);
+        byte[] key = Sha256Hash.hash(bytes);
+        return Hashing.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8));
+    }
+
+    /** Returns the short id of the given transaction id or witness transaction id, the lower 6 bytes of its hash. */
+    static long shortId(HashFunction sipHash, Sha256Hash id) {
+        return sipHash.hashBytes(id.getReversedBytes()).asLong() & 0xFFFFFFFFFFFFL;
+    }
+
+    @Override
+    public String toString() {
+        return "cmpctblock: " + header.getHashAsString() + ", " + shortIds.length + " short ids, "
+                + prefilledTransactions.size() + " prefilled";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A message serialized for the wire once, with its header and checksum, see {@link MessageSerializer#frame(Message)}.
+ * It can be sent to any number of peers with {@link PeerSocketHandler#sendMessage(FramedMessage)} without serializing
+ * and hashing the message again, and without copying its bytes for every connection.</p>
+ *
+ * <p>The bytes are taken when the message is framed, so later changes to the message are not reflected. Peers of a
+ * network different from the one of the serializer will not understand the message.</p>
+ */
+public final class FramedMessage {
+    private final Message message;
+    private final byte[] bytes;
+
+    FramedMessage(Message message, byte[] bytes) {
+        this.message = checkNotNull(message);
+        this.bytes = checkNotNull(bytes);
+    }
+
+    /** Returns the message that was framed. */
+    public Message getMessage() {
+        return message;
+    }
+
+    /** Returns the number of bytes on the wire, including the header. */
+    public int size() {
+        return bytes.length;
+    }
+
+    /** Returns a new read-only buffer over the bytes on the wire, positioned at the start of the header. */
+    public ByteBuffer getBytes() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return "framed " + bytes.length + " byte " + message.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Represents the "getblocktxn" P2P network message, which asks for the transactions of a compact block that could
+ * not be found among the transactions seen already. It is answered with a {@link BlockTxnMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP152</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetBlockTxnMessage extends Message {
+    private Sha256Hash blockHash;
+    private int[] indexes;
+
+    /** Asks for the transactions of the given block at the given indexes, which must be ascending. */
+    public GetBlockTxnMessage(NetworkParameters params, Sha256Hash blockHash, int[] indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = indexes;
+    }
+
+    public GetBlockTxnMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        int count = readVarInt().intValue();
+        if (count < 0 || count > payload.length - cursor)
+            throw new ProtocolException("Too many indexes: " + count);
+        indexes = new int[count];
+        // Indexes are differentially encoded, each one relative to the one before plus one.
+        long index = -1;
+        for (int i = 0; i < count; i++) {
+            index += readVarInt().longValue() + 1;
+            if (index < 0 || index > Integer.MAX_VALUE)
+                throw new ProtocolException("Index out of range: " + index);
+            indexes[i] = (int) index;
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(indexes.length).encode());
+        int previous = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - previous - 1).encode());
+            previous = index;
+        }
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the indexes of the requested transactions in the block, ascending. The array is not copied. */
+    public int[] getIndexes() {
+        return indexes;
+    }
+
+    @Override
+    public String toString() {
+        return "getblocktxn: " + indexes.length + " transactions of " + blockHash;
+    }
+}
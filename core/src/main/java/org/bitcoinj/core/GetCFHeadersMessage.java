@@ -0,0 +1,46 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+/**
+ * <p>The "getcfheaders" command is structurally identical to "getcfilters", but requests the hashes of the filters,
+ * together with the filter header of the block before the range. They are answered with a single
+ * {@link CFHeadersMessage} of at most 2000 hashes, which lets the filters be checked against the filter headers of
+ * other peers.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFHeadersMessage extends GetCFiltersMessage {
+    /** Maximum number of filter hashes that may be requested at once. */
+    public static final int MAX_FILTER_HEADERS = 2000;
+
+    public GetCFHeadersMessage(NetworkParameters params, int filterType, long startHeight, Sha256Hash stopHash) {
+        super(params, filterType, startHeight, stopHash);
+    }
+
+    public GetCFHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfheaders: type " + filterType + " from " + startHeight + " to " + stopHash;
+    }
+}
@@ -60,6 +60,11 @@ public class GetDataMessage extends ListMessage {
         addItem(new InventoryItem(InventoryItem.Type.FILTERED_BLOCK, hash));
     }
 
+    /** Asks for a compact block (BIP152), which the peer answers with a cmpctblock message. */
+    public void addCompactBlock(Sha256Hash hash) {
+        addItem(new InventoryItem(InventoryItem.Type.CMPCT_BLOCK, hash));
+    }
+
     public Sha256Hash getHashOf(int i) {
         return getItems().get(i).hash;
     }
@@ -0,0 +1,290 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A basic compact block filter as specified in <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP158</a>.
+ * It is a Golomb-coded set of the output scripts of a block and of the scripts of the outputs the block spends, so a
+ * wallet can find out locally whether a block is relevant to it, without telling anybody which scripts it is
+ * interested in.</p>
+ *
+ * <p>The elements are hashed with SipHash-2-4, keyed with the block hash, into the range {@code [0, N * M)}, sorted
+ * and stored as Golomb-Rice coded differences. Matching hashes the queried scripts the same way and merges them with
+ * the decoded differences, so it never needs more memory than the sorted queries.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class GolombCodedSet {
+    /** Filter type of the basic filter, the only one defined by BIP158. */
+    public static final int BASIC_FILTER_TYPE = 0;
+    /** Number of bits of the remainder of the Golomb-Rice coding. */
+    public static final int BASIC_FILTER_P = 19;
+    /** Inverse of the false positive rate. */
+    public static final long BASIC_FILTER_M = 784931;
+
+    private final byte[] filter;
+    private final Sha256Hash blockHash;
+    private final long n;
+    // Offset of the Golomb-Rice coded data, after the number of elements.
+    private final int dataOffset;
+
+    /**
+     * Wraps the given serialized basic filter of the block with the given hash. The array is not copied.
+     * @throws ProtocolException if the filter doesn't start with a valid number of elements
+     */
+    public GolombCodedSet(byte[] filter, Sha256Hash blockHash) throws ProtocolException {
+        this.filter = checkNotNull(filter);
+        this.blockHash = checkNotNull(blockHash);
+        try {
+            VarInt varInt = new VarInt(filter, 0);
+            this.n = varInt.longValue();
+            this.dataOffset = varInt.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException("Filter too short");
+        }
+        if (n < 0 || n > (long) (filter.length - dataOffset) * 8)
+            throw new ProtocolException("Filter cannot hold " + n + " elements");
+    }
+
+    /**
+     * Builds the basic filter of the block with the given hash from the given elements, which are the non-empty
+     * output scripts of the block except {@code OP_RETURN} outputs, and the scripts of the outputs it spends.
+     * Duplicates are removed.
+     */
+    public static GolombCodedSet build(Sha256Hash blockHash, Collection<byte[]> elements) {
+        Set<ByteArray> unique = new LinkedHashSet<>();
+        for (byte[] element : elements)
+            unique.add(new ByteArray(element));
+        int n = unique.size();
+        long[] values = new long[n];
+        HashFunction sipHash = sipHash(blockHash);
+        int i = 0;
+        for (ByteArray element : unique)
+            values[i++] = hashToRange(sipHash, element.bytes, n * BASIC_FILTER_M);
+        Arrays.sort(values);
+
+        BitWriter writer = new BitWriter();
+        long previous = 0;
+        for (long value : values) {
+            long delta = value - previous;
+            previous = value;
+            for (long q = delta >>> BASIC_FILTER_P; q > 0; q--)
+                writer.write(1, 1);
+            writer.write(0, 1);
+            writer.write(delta, BASIC_FILTER_P);
+        }
+        byte[] data = writer.toByteArray();
+        byte[] count = new VarInt(n).encode();
+        byte[] filter = new byte[count.length + data.length];
+        System.arraycopy(count, 0, filter, 0, count.length);
+        System.arraycopy(data, 0, filter, count.length, data.length);
+        return new GolombCodedSet(filter, blockHash);
+    }
+
+    /** Returns the serialized filter, as sent in a "cfilter" message. The array is not copied. */
+    public byte[] getFilter() {
+        return filter;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the number of elements in the set. */
+    public long size() {
+        return n;
+    }
+
+    /** Returns the hash of the serialized filter, which is committed to by the filter header. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filter));
+    }
+
+    /**
+     * Returns the filter header of this filter, which commits to the filter and to all filters of the previous
+     * blocks through the given previous filter header. The header of the genesis block commits to a zero previous
+     * header.
+     */
+    public Sha256Hash computeHeader(Sha256Hash previousHeader) {
+        return computeHeader(getFilterHash(), previousHeader);
+    }
+
+    /** Returns the filter header for the given filter hash and previous filter header. */
+    public static Sha256Hash computeHeader(Sha256Hash filterHash, Sha256Hash previousHeader) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterHash.getReversedBytes(),
+                previousHeader.getReversedBytes()));
+    }
+
+    /**
+     * Returns true if the given element is probably in the set. There are false positives at a rate of
+     * {@code 1 / M}, but no false negatives.
+     */
+    public boolean matches(byte[] element) {
+        return matchesAny(Arrays.asList(element));
+    }
+
+    /**
+     * Returns true if any of the given elements is probably in the set. This is much cheaper than matching the
+     * elements one by one, as the set is decoded only once.
+     */
+    public boolean matchesAny(Collection<byte[]> elements) {
+        if (n == 0 || elements.isEmpty())
+            return false;
+        long range = n * BASIC_FILTER_M;
+        long[] queries = new long[elements.size()];
+        HashFunction sipHash = sipHash(blockHash);
+        int i = 0;
+        for (byte[] element : elements)
+            queries[i++] = hashToRange(sipHash, element, range);
+        Arrays.sort(queries);
+
+        BitReader reader = new BitReader(filter, dataOffset);
+        int q = 0;
+        long value = 0;
+        for (long decoded = 0; decoded < n; decoded++) {
+            try {
+                value += reader.readGolombRice();
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // A truncated filter can't match anything more.
+                return false;
+            }
+            while (queries[q] < value) {
+                if (++q == queries.length)
+                    return false;
+            }
+            if (queries[q] == value)
+                return true;
+        }
+        return false;
+    }
+
+    private static HashFunction sipHash(Sha256Hash blockHash) {
+        // The key is the first 16 bytes of the block hash in internal byte order, read as two little endian integers.
+        byte[] hash = blockHash.getReversedBytes();
+        return Hashing.sipHash24(Utils.readInt64(hash, 0), Utils.readInt64(hash, 8));
+    }
+
+    /** Hashes the element and maps it uniformly into {@code [0, range)}, without a costly modulo. */
+    private static long hashToRange(HashFunction sipHash, byte[] element, long range) {
+        return multiplyHighUnsigned(sipHash.hashBytes(element).asLong(), range);
+    }
+
+    /** Returns the upper 64 bits of the unsigned 128 bit product of the given values. */
+    static long multiplyHighUnsigned(long x, long y) {
+        long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32;
+        long y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+        long p00 = x0 * y0, p01 = x0 * y1, p10 = x1 * y0, p11 = x1 * y1;
+        long middle = (p00 >>> 32) + (p01 & 0xFFFFFFFFL) + (p10 & 0xFFFFFFFFL);
+        return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return "GolombCodedSet{" + blockHash + ", " + n + " elements, " + filter.length + " bytes}";
+    }
+
+    private static class ByteArray {
+        final byte[] bytes;
+
+        ByteArray(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteArray && Arrays.equals(bytes, ((ByteArray) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+
+    /** Reads a bit stream, most significant bit of each byte first. */
+    private static class BitReader {
+        private final byte[] bytes;
+        private int position;
+        private int bitsLeft;
+        private int current;
+
+        BitReader(byte[] bytes, int offset) {
+            this.bytes = bytes;
+            this.position = offset;
+        }
+
+        long readGolombRice() {
+            long quotient = 0;
+            while (readBit() == 1)
+                quotient++;
+            long remainder = 0;
+            for (int i = 0; i < BASIC_FILTER_P; i++)
+                remainder = (remainder << 1) | readBit();
+            return (quotient << BASIC_FILTER_P) | remainder;
+        }
+
+        private int readBit() {
+            if (bitsLeft == 0) {
+                current = bytes[position++] & 0xFF;
+                bitsLeft = 8;
+            }
+            bitsLeft--;
+            return (current >>> bitsLeft) & 1;
+        }
+    }
+
+    /** Writes a bit stream, most significant bit of each byte first, padding the last byte with zeros. */
+    private static class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int bitsUsed;
+
+        void write(long value, int bits) {
+            checkArgument(bits <= 64);
+            for (int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++bitsUsed == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    bitsUsed = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (bitsUsed > 0) {
+                bytes.write(current << (8 - bitsUsed));
+                current = 0;
+                bitsUsed = 0;
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
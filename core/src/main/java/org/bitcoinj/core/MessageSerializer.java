@@ -56,6 +56,25 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize payload only, from an array holding it at its start. Unless the serializer is in parse retain
+     * mode, the returned message does not reference the array, so the caller can reuse it right away.
+     *
+     * @param payload array starting with the payload. It may only be longer than the payload if
+     * {@link #canDeserializeFromLargerArray(String)} returns true for the command.
+     */
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) throws ProtocolException, UnsupportedOperationException {
+        return deserializePayload(header, ByteBuffer.wrap(payload, 0, header.size));
+    }
+
+    /**
+     * Whether messages with the given command can be deserialized by {@link #deserializePayload(BitcoinSerializer.BitcoinPacketHeader, byte[])}
+     * from an array that is longer than their payload.
+     */
+    public boolean canDeserializeFromLargerArray(String command) {
+        return false;
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -172,5 +191,21 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
+
+    /**
+     * Serializes the message for the wire once, so it can be sent to many peers without serializing it again.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization, see {@link #serialize(Message, OutputStream)}.
+     */
+    public FramedMessage frame(Message message) throws UnsupportedOperationException {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream(BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 256);
+        try {
+            serialize(message, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen, we are serializing to a memory stream.
+        }
+        return new FramedMessage(message, out.toByteArray());
+    }
     
 }
@@ -534,7 +534,8 @@ public abstract class NetworkParameters {
         BLOOM_FILTER_BIP111(70011), // BIP111
         WITNESS_VERSION(70012),
         FEEFILTER(70013), // BIP133
-        CURRENT(70013);
+        SHORT_IDS_BLOCKS(70014), // BIP152
+        CURRENT(70014);
 
         private final int bitcoinProtocol;
 
@@ -0,0 +1,898 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.ListenableCompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Downloads the block chain from all connected peers at once. It fetches the headers of the best chain from the
+ * peer with the most blocks, asks all peers for the blocks over a sliding window of those headers, and adds the blocks
+ * to the chain in order as they come in. Blocks before the fast catchup time are added as headers only.</p>
+ *
+ * <p>Every peer gets up to {@link #MAX_BLOCKS_IN_FLIGHT_PER_PEER} requests at a time. Requests not answered within
+ * {@link #STALL_TIMEOUT_MILLIS} are handed to another peer. The throughput of every peer is measured, and peers much
+ * slower than the fastest one are demoted to a single request at a time, so they can't hold up the window. Peers that
+ * stall on a request for headers are not asked for headers again. If no peer is left to ask, or requests for headers
+ * keep stalling, the future fails and {@link PeerGroup} hands the download back to the download peer.</p>
+ *
+ * <p>Full blocks are downloaded, so this is for fully verifying chains and for SPV chains without Bloom filtering.
+ * It's created by {@link PeerGroup}, see {@link PeerGroup#setParallelBlockDownload(boolean)}. All state but the
+ * statistics of the peers is confined to the thread of the downloader.</p>
+ *
+ * <p>With compact block filters (BIP157/158), see {@link PeerGroup#setCompactBlockFilters(boolean)}, the filters of the
+ * headers are fetched in batches from a peer serving them. Their filter headers must chain to those of the previous
+ * batch, starting from the genesis block, and match the filter headers of a second peer if there is one. Filter headers
+ * that can be checked neither way, after a gap too long to fetch the filter headers of in one request, are trusted
+ * with a warning. Only the blocks whose filters match the scripts of the wallets are downloaded, all others are added
+ * as headers only. After a match, matching waits for the block to be added to the chain, as it may make the wallets
+ * derive more keys. If the filter headers don't check out, or no peer serves them, the blocks are downloaded in
+ * full.</p>
+ */
+public class ParallelBlockDownloader {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownloader.class);
+
+    /** Maximum number of blocks between the next block to add to the chain and the last block requested. */
+    public static final int WINDOW_SIZE = 1024;
+    /** Maximum number of blocks requested from a single peer at a time. */
+    public static final int MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    /** Requests for blocks or headers not answered within this time are handed to another peer. */
+    public static final long STALL_TIMEOUT_MILLIS = 20 * 1000;
+
+    // Peers serving blocks slower than this fraction of the fastest peer are demoted.
+    private static final double SLOW_PEER_FRACTION = 0.25;
+    // Number of blocks a peer has to serve before its throughput is compared to other peers.
+    private static final int MIN_SAMPLES = 4;
+    // Weight of the latest sample in the moving average of the throughput.
+    private static final double THROUGHPUT_ALPHA = 0.2;
+    // Number of times a block may fail to verify before the download is given up.
+    private static final int MAX_FAILURES_PER_BLOCK = 3;
+    // Number of requests for headers in a row that may stall before the download is given up.
+    private static final int MAX_HEADERS_STALLS = 3;
+
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain chain;
+    private final long fastCatchupTimeSecs;
+    private final boolean compactFilters;
+    private final ScheduledExecutorService executor;
+    private final ListenableCompletableFuture<Void> future = new ListenableCompletableFuture<>();
+    private final Map<Peer, PeerStats> peerStats = new ConcurrentHashMap<>();
+
+    // Headers of the best chain following the block at baseHeight, in order. The blocks of the headers before
+    // nextToConnect were added to the chain, the blocks from nextToRequest on were not requested yet. Headers before
+    // nextToConnect are dropped from time to time.
+    private final List<Block> headers = new ArrayList<>();
+    private Sha256Hash baseHash;
+    private int baseHeight;
+    private int nextToConnect, nextToRequest;
+    private boolean headersComplete;
+    private boolean started;
+    @Nullable private HeadersRequest headersRequest;
+    // Number of requests for headers in a row that stalled.
+    private int headersStalls;
+    // Blocks requested and not received yet, by hash. Requests may be in flight or waiting in retry for another peer.
+    private final Set<Sha256Hash> wanted = new HashSet<>();
+    private final Map<Sha256Hash, BlockRequest> inFlight = new HashMap<>();
+    // Heights of wanted blocks that are to be requested again.
+    private final Deque<Integer> retry = new ArrayDeque<>();
+    // Blocks received out of order, waiting for their parent to be added to the chain.
+    private final Map<Sha256Hash, Delivery> received = new HashMap<>();
+    private final Map<Sha256Hash, Integer> failures = new HashMap<>();
+
+    // With compact filters, blocks are only requested up to nextToFilter. Their filters were matched, and the hashes
+    // of the blocks that matched and were not requested yet are in filterMatches. The filters fetched for the headers
+    // from nextToFilter on wait in fetchedFilters, null for blocks to download in full.
+    private int nextToFilter;
+    private final Set<Sha256Hash> filterMatches = new HashSet<>();
+    private final LinkedList<GolombCodedSet> fetchedFilters = new LinkedList<>();
+    // Index of the header that matched last, matching waits until its block was added.
+    private int awaitedMatch = -1;
+    // Last filter header that was checked, and the height of its block. The filter headers of later batches must chain
+    // to it, which is why they are fetched from the block after it, including the blocks that were not filtered. It
+    // starts as the header before the genesis block, which is all zeros, and is null if it's not known.
+    @Nullable private Sha256Hash filterHeader = Sha256Hash.ZERO_HASH;
+    private int filterHeaderHeight = -1;
+    @Nullable private FilterRequest filterRequest;
+    // Time since when no connected peer serves filters, or 0.
+    private long noFilterPeersSince;
+
+    ParallelBlockDownloader(PeerGroup peerGroup, AbstractBlockChain chain, long fastCatchupTimeSecs,
+                            boolean compactFilters) {
+        this.peerGroup = peerGroup;
+        this.chain = chain;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.compactFilters = compactFilters;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ContextPropagatingThreadFactory("Block downloader"));
+    }
+
+    /** Starts the download. The returned future completes once all blocks of the best chain were added. */
+    ListenableCompletableFuture<Void> start() {
+        run(() -> {
+            StoredBlock head = chain.getChainHead();
+            baseHash = head.getHeader().getHash();
+            baseHeight = head.getHeight();
+            log.info("Starting parallel block download at height {}", baseHeight);
+            schedule();
+        });
+        executor.scheduleWithFixedDelay(() -> run(this::schedule), 1, 1, TimeUnit.SECONDS);
+        return future;
+    }
+
+    /** Stops the download, cancelling its future. */
+    void stop() {
+        future.cancel(false);
+        try {
+            executor.execute(this::dropRequests);
+        } catch (RejectedExecutionException e) {
+            // The download is over already.
+        }
+        executor.shutdown();
+    }
+
+    /** Returns a future that completes once all blocks of the best chain known to the peers were added. */
+    public ListenableCompletableFuture<Void> future() {
+        return future;
+    }
+
+    /**
+     * Returns the measured throughput of the peers that served enough blocks to be measured, in bytes per second.
+     * Peers that stalled have their throughput halved.
+     */
+    public Map<Peer, Double> getPeerThroughputs() {
+        Map<Peer, Double> throughputs = new HashMap<>();
+        for (Map.Entry<Peer, PeerStats> entry : peerStats.entrySet())
+            if (entry.getValue().vSamples >= MIN_SAMPLES)
+                throughputs.put(entry.getKey(), entry.getValue().vThroughput);
+        return throughputs;
+    }
+
+    /** Returns true if the given peer is too slow to get more than one request at a time. */
+    public boolean isDemoted(Peer peer) {
+        PeerStats stats = peerStats.get(peer);
+        return stats != null && isSlow(stats, bestThroughput());
+    }
+
+    private void run(Runnable task) {
+        try {
+            executor.execute(() -> {
+                if (future.isDone())
+                    return;
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // The executor was shut down, the download is over.
+        }
+    }
+
+    private void fail(Throwable e) {
+        log.warn("Parallel block download failed", e);
+        dropRequests();
+        future.completeExceptionally(e);
+        executor.shutdown();
+    }
+
+    /** Drops the requests for headers and filters in flight, so the peers don't keep waiting for their answers. */
+    private void dropRequests() {
+        if (headersRequest != null) {
+            headersRequest.future.cancel(false);
+            headersRequest = null;
+        }
+        dropFilterRequest();
+    }
+
+    private void schedule() {
+        long now = Utils.currentTimeMillis();
+        List<Peer> peers = eligiblePeers();
+        peerStats.keySet().retainAll(peers);
+        // Hand the requests of peers that went away or stalled to other peers.
+        for (Iterator<BlockRequest> it = inFlight.values().iterator(); it.hasNext(); ) {
+            BlockRequest request = it.next();
+            boolean gone = !peers.contains(request.peer);
+            if (gone || now - request.time > STALL_TIMEOUT_MILLIS) {
+                if (!gone) {
+                    log.info("{}: Request for block {} stalled, asking another peer", request.peer, request.hash);
+                    stats(request.peer).penalize();
+                }
+                finish(request);
+                it.remove();
+                retry.addFirst(request.height);
+            }
+        }
+        maybeRequestHeaders(peers, now);
+        if (future.isDone())
+            return;
+        if (compactFilters) {
+            requestFilters(peers, now);
+            matchFilters();
+        }
+        requestBlocks(peers, now);
+        if (headersComplete && headersRequest == null && nextToConnect == headers.size()) {
+            log.info("Parallel block download done at height {}", chain.getBestChainHeight());
+            future.complete(null);
+            executor.shutdown();
+        }
+    }
+
+    /** Returns the connected peers that serve the full block chain. */
+    private List<Peer> eligiblePeers() {
+        List<Peer> peers = new ArrayList<>();
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            VersionMessage version = peer.getPeerVersionMessage();
+            if (version != null && version.hasBlockChain())
+                peers.add(peer);
+        }
+        return peers;
+    }
+
+    private PeerStats stats(Peer peer) {
+        return peerStats.computeIfAbsent(peer, p -> new PeerStats());
+    }
+
+    private Sha256Hash tipHash() {
+        return headers.isEmpty() ? baseHash : headers.get(headers.size() - 1).getHash();
+    }
+
+    private int tipHeight() {
+        return baseHeight + headers.size();
+    }
+
+    /**
+     * Requests the next headers from the peer with the most blocks, skipping peers that stalled on a request for headers
+     * before. Gives up the download if requests for headers stall {@link #MAX_HEADERS_STALLS} times in a row, or no
+     * peer that didn't stall is left, so the download peer takes over.
+     */
+    private void maybeRequestHeaders(List<Peer> peers, long now) {
+        if (headersRequest != null) {
+            HeadersRequest request = headersRequest;
+            if (now - request.time <= STALL_TIMEOUT_MILLIS && peers.contains(request.peer))
+                return;
+            headersRequest = null;
+            request.future.cancel(false);
+            if (peers.contains(request.peer)) {
+                log.info("{}: Request for headers stalled, asking another peer", request.peer);
+                PeerStats stats = stats(request.peer);
+                stats.penalize();
+                stats.headersStalled = true;
+                if (++headersStalls >= MAX_HEADERS_STALLS) {
+                    fail(new IllegalStateException(headersStalls + " requests for headers in a row stalled"));
+                    return;
+                }
+            }
+        }
+        // Keep enough headers ahead of the requests to fill the window.
+        if (headersComplete || headers.size() - nextToRequest >= HeadersMessage.MAX_HEADERS || peers.isEmpty())
+            return;
+        if (Collections.max(peers, Comparator.comparingLong(Peer::getBestHeight)).getBestHeight() <= tipHeight()) {
+            headersComplete = true;
+            return;
+        }
+        Peer best = null;
+        for (Peer peer : peers)
+            if (!stats(peer).headersStalled && peer.getBestHeight() > tipHeight()
+                    && (best == null || peer.getBestHeight() > best.getBestHeight()))
+                best = peer;
+        if (best == null) {
+            fail(new IllegalStateException("All peers with more blocks stalled on requests for headers"));
+            return;
+        }
+        if (!started) {
+            started = true;
+            peerGroup.onParallelBlockDownloadStarted(best, (int) (best.getBestHeight() - baseHeight));
+        }
+        ListenableCompletableFuture<HeadersMessage> headersFuture;
+        try {
+            headersFuture = best.getBlockHeaders(locator(), Sha256Hash.ZERO_HASH);
+        } catch (RuntimeException e) {
+            log.info("{}: Could not request headers: {}", best, e.toString());
+            return;
+        }
+        HeadersRequest request = new HeadersRequest(best, headersFuture, now);
+        headersRequest = request;
+        headersFuture.whenComplete((m, throwable) -> run(() -> onHeaders(request, m, throwable)));
+    }
+
+    /** Builds a locator of the last headers, followed by the chain below them. */
+    private BlockLocator locator() {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = headers.size() - 1; i >= 0 && hashes.size() < 10; i--)
+            hashes.add(headers.get(i).getHash());
+        try {
+            BlockStore store = chain.getBlockStore();
+            StoredBlock cursor = store.get(baseHash);
+            for (int i = 100; cursor != null && i > 0; i--) {
+                hashes.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(store);
+            }
+            if (cursor != null)
+                hashes.add(chain.params.getGenesisBlock().getHash());
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        return new BlockLocator(hashes);
+    }
+
+    private void onHeaders(HeadersRequest request, @Nullable HeadersMessage m, @Nullable Throwable throwable) {
+        if (headersRequest != request)
+            return; // Stalled and asked another peer in the meantime.
+        headersRequest = null;
+        if (m != null) {
+            headersStalls = 0;
+            List<Block> newHeaders = m.getBlockHeaders();
+            if (newHeaders.isEmpty() || appendHeaders(request.peer, newHeaders)) {
+                if (newHeaders.size() < HeadersMessage.MAX_HEADERS)
+                    headersComplete = true;
+                log.info("{}: Got {} headers, now at height {}", request.peer, newHeaders.size(), tipHeight());
+            }
+        }
+        schedule();
+    }
+
+    /** Appends the headers, going back to where they fork off if they don't follow the last one. */
+    private boolean appendHeaders(Peer peer, List<Block> newHeaders) {
+        Sha256Hash prev = newHeaders.get(0).getPrevBlockHash();
+        if (!prev.equals(tipHash()) && !rewindTo(prev)) {
+            log.warn("{}: Headers don't connect to the chain, ignoring them", peer);
+            stats(peer).penalize();
+            return false;
+        }
+        for (Block header : newHeaders) {
+            try {
+                if (!header.getPrevBlockHash().equals(tipHash()))
+                    throw new VerificationException("Header " + header.getHashAsString() + " doesn't follow the previous one");
+                header.verifyHeader();
+            } catch (VerificationException e) {
+                log.warn("{}: Got invalid headers, disconnecting", peer, e);
+                peer.close();
+                return false;
+            }
+            headers.add(header);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the headers after the given block, which is one of our headers or a block of the chain, as the best chain
+     * forks off there. Blocks of the dropped headers that were added to the chain already stay there, the chain
+     * reorganizes once the blocks of the new branch are added.
+     */
+    private boolean rewindTo(Sha256Hash hash) {
+        int keep = -1;
+        if (hash.equals(baseHash)) {
+            keep = 0;
+        } else {
+            for (int i = headers.size() - 1; i >= 0 && keep < 0; i--)
+                if (headers.get(i).getHash().equals(hash))
+                    keep = i + 1;
+        }
+        if (keep >= 0) {
+            headers.subList(keep, headers.size()).clear();
+        } else {
+            StoredBlock stored;
+            try {
+                stored = chain.getBlockStore().get(hash);
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+            if (stored == null)
+                return false;
+            headers.clear();
+            baseHash = hash;
+            baseHeight = stored.getHeight();
+            keep = 0;
+        }
+        log.info("Best chain forks off at height {}, dropping the headers above", baseHeight + keep);
+        nextToConnect = Math.min(nextToConnect, keep);
+        nextToRequest = Math.min(nextToRequest, keep);
+        if (compactFilters)
+            rewindFiltersTo(keep);
+        Set<Sha256Hash> kept = new HashSet<>();
+        for (int i = nextToConnect; i < nextToRequest; i++)
+            kept.add(headers.get(i).getHash());
+        wanted.retainAll(kept);
+        received.keySet().retainAll(kept);
+        for (Iterator<BlockRequest> it = inFlight.values().iterator(); it.hasNext(); ) {
+            BlockRequest request = it.next();
+            if (!kept.contains(request.hash)) {
+                finish(request);
+                it.remove();
+            }
+        }
+        return true;
+    }
+
+    private void rewindFiltersTo(int keep) {
+        if (nextToFilter > keep) {
+            nextToFilter = keep;
+            fetchedFilters.clear();
+        } else if (nextToFilter + fetchedFilters.size() > keep) {
+            fetchedFilters.subList(keep - nextToFilter, fetchedFilters.size()).clear();
+        }
+        if (filterHeaderHeight > baseHeight + keep)
+            filterHeader = null;
+        if (awaitedMatch >= keep)
+            awaitedMatch = -1;
+        dropFilterRequest();
+        Set<Sha256Hash> kept = new HashSet<>();
+        for (int i = nextToRequest; i < nextToFilter; i++)
+            kept.add(headers.get(i).getHash());
+        filterMatches.retainAll(kept);
+    }
+
+    /** Fetches the filters of the next batch of headers, keeping a batch ahead of the block requests. */
+    private void requestFilters(List<Peer> peers, long now) {
+        if (filterRequest != null) {
+            FilterRequest request = filterRequest;
+            if (now - request.time <= STALL_TIMEOUT_MILLIS && peers.contains(request.peer)
+                    && (request.checkPeer == null || peers.contains(request.checkPeer)))
+                return;
+            log.info("{}: Request for filters stalled, asking another peer", request.peer);
+            stats(request.peer).penalize();
+            dropFilterRequest();
+        }
+        int from = nextToFilter + fetchedFilters.size();
+        // Blocks before the fast catchup time are added as headers only, they need no filters.
+        while (from < headers.size() && headers.get(from).getTimeSeconds() < fastCatchupTimeSecs) {
+            fetchedFilters.add(null);
+            from++;
+        }
+        if (from >= headers.size() || from - nextToRequest >= GetCFiltersMessage.MAX_FILTERS)
+            return;
+        int fromHeight = baseHeight + 1 + from;
+        List<Peer> filterPeers = new ArrayList<>();
+        for (Peer peer : rank(peers))
+            if (peer.getPeerVersionMessage().isCompactFiltersSupported() && peer.getBestHeight() >= fromHeight)
+                filterPeers.add(peer);
+        int to = Math.min(headers.size(), from + GetCFiltersMessage.MAX_FILTERS);
+        if (filterPeers.isEmpty()) {
+            if (noFilterPeersSince == 0) {
+                noFilterPeersSince = now;
+            } else if (now - noFilterPeersSince > STALL_TIMEOUT_MILLIS) {
+                log.info("No peer serves compact block filters, downloading blocks {} to {} in full", fromHeight,
+                        baseHeight + to);
+                for (int i = from; i < to; i++)
+                    fetchedFilters.add(null);
+            }
+            return;
+        }
+        noFilterPeersSince = 0;
+        Peer peer = filterPeers.get(0);
+        Peer checkPeer = filterPeers.size() > 1 ? filterPeers.get(1) : null;
+        long bestHeight = Math.min(peer.getBestHeight(), checkPeer != null ? checkPeer.getBestHeight() : Long.MAX_VALUE);
+        to = (int) Math.min(to, bestHeight - baseHeight);
+        Sha256Hash stopHash = headers.get(to - 1).getHash();
+        // The filter headers start after the last checked one if they fit a single request, so they chain to it.
+        // Otherwise they can only be checked against those of the second peer.
+        Sha256Hash previousFilterHeader = null;
+        int headersFromHeight = fromHeight;
+        if (filterHeader != null && baseHeight + to - filterHeaderHeight <= GetCFHeadersMessage.MAX_FILTER_HEADERS) {
+            previousFilterHeader = filterHeader;
+            headersFromHeight = filterHeaderHeight + 1;
+        }
+        FilterRequest request = new FilterRequest(peer, checkPeer, fromHeight, to - from, headersFromHeight,
+                previousFilterHeader, now);
+        filterRequest = request;
+        try {
+            request.await(peer.getFilterHeaders(headersFromHeight, stopHash))
+                    .whenComplete((m, throwable) -> run(() -> onFilterResponse(request, () -> request.headers = m)));
+            request.await(peer.getFilters(fromHeight, stopHash, request.count))
+                    .whenComplete((filters, throwable) -> run(() -> onFilterResponse(request, () -> request.filters = filters)));
+            if (checkPeer != null)
+                request.await(checkPeer.getFilterHeaders(headersFromHeight, stopHash))
+                        .whenComplete((m, throwable) -> run(() -> onFilterResponse(request, () -> request.checkHeaders = m)));
+        } catch (RuntimeException e) {
+            log.info("{}: Could not request filters: {}", peer, e.toString());
+            dropFilterRequest();
+        }
+    }
+
+    /** Drops the request for filters in flight, if any, so the peers drop it too and no late answer is mistaken. */
+    private void dropFilterRequest() {
+        if (filterRequest == null)
+            return;
+        for (ListenableCompletableFuture<?> answer : filterRequest.answers)
+            answer.cancel(false);
+        filterRequest = null;
+    }
+
+    private void onFilterResponse(FilterRequest request, Runnable store) {
+        if (filterRequest != request)
+            return; // Stalled or dropped in the meantime.
+        store.run();
+        if (--request.pending > 0)
+            return;
+        filterRequest = null;
+        if (request.headers == null || request.filters == null
+                || (request.checkPeer != null && request.checkHeaders == null)) {
+            // A request failed, the peer probably went away.
+            stats(request.peer).penalize();
+        } else {
+            checkFilters(request);
+        }
+        schedule();
+    }
+
+    /** Checks the fetched filters against the filter headers and queues them for matching. */
+    private void checkFilters(FilterRequest request) {
+        int from = request.startHeight - baseHeight - 1;
+        if (from != nextToFilter + fetchedFilters.size())
+            return;
+        CFHeadersMessage cfHeaders = request.headers;
+        // The filter hashes of the blocks before the batch only serve to chain the filter headers.
+        int skipped = request.startHeight - request.headersStartHeight;
+        List<Sha256Hash> allFilterHashes = cfHeaders.getFilterHashes();
+        if (!cfHeaders.getStopHash().equals(headers.get(from + request.count - 1).getHash())
+                || allFilterHashes.size() != skipped + request.count || request.filters.size() != request.count) {
+            log.warn("{}: Got filter headers that don't match the request, disconnecting", request.peer);
+            request.peer.close();
+            return;
+        }
+        List<Sha256Hash> filterHashes = allFilterHashes.subList(skipped, allFilterHashes.size());
+        List<GolombCodedSet> filters = new ArrayList<>(request.count);
+        for (int i = 0; i < request.count; i++) {
+            CFilterMessage m = request.filters.get(i);
+            try {
+                if (!m.getBlockHash().equals(headers.get(from + i).getHash()))
+                    throw new ProtocolException("Filter for unexpected block " + m.getBlockHash());
+                GolombCodedSet filter = m.getFilter();
+                if (!filter.getFilterHash().equals(filterHashes.get(i)))
+                    throw new ProtocolException("Filter of block " + m.getBlockHash() + " doesn't match its hash");
+                filters.add(filter);
+            } catch (ProtocolException e) {
+                log.warn("{}: Got invalid filters, disconnecting: {}", request.peer, e.getMessage());
+                request.peer.close();
+                return;
+            }
+        }
+        CFHeadersMessage check = request.checkHeaders;
+        boolean consistent = (request.previousFilterHeader == null
+                        || request.previousFilterHeader.equals(cfHeaders.getPreviousFilterHeader()))
+                && (check == null || (check.getPreviousFilterHeader().equals(cfHeaders.getPreviousFilterHeader())
+                        && check.getFilterHashes().equals(allFilterHashes)));
+        if (consistent) {
+            if (request.previousFilterHeader == null && check == null)
+                log.warn("{}: No earlier filter header and no second peer to check the filters of blocks {} to {} "
+                        + "against, trusting them", request.peer, request.startHeight, request.startHeight + request.count - 1);
+            fetchedFilters.addAll(filters);
+            filterHeader = cfHeaders.getLastFilterHeader();
+            filterHeaderHeight = request.startHeight + request.count - 1;
+        } else {
+            // A peer lies about the filters. Downloading the blocks is safe whoever it is. The last checked filter
+            // header stays, so the next batch is checked against it, including the filters of these blocks.
+            log.warn("{}: Filter headers of blocks {} to {} don't match the earlier ones or those of the other peer, "
+                    + "downloading the blocks in full", request.peer, request.startHeight, request.startHeight + request.count - 1);
+            for (int i = 0; i < request.count; i++)
+                fetchedFilters.add(null);
+        }
+    }
+
+    /** Matches the fetched filters against the scripts of the wallets, so their blocks can be requested. */
+    private void matchFilters() {
+        List<byte[]> scripts = null;
+        while (!fetchedFilters.isEmpty()) {
+            GolombCodedSet filter = fetchedFilters.getFirst();
+            if (filter != null && nextToConnect <= awaitedMatch)
+                break; // The matched block may make the wallets derive more keys, wait for it.
+            fetchedFilters.removeFirst();
+            Block header = headers.get(nextToFilter);
+            boolean matches;
+            if (filter == null) {
+                matches = header.getTimeSeconds() >= fastCatchupTimeSecs;
+            } else {
+                if (scripts == null)
+                    scripts = peerGroup.getCompactFilterScripts();
+                matches = filter.matchesAny(scripts);
+            }
+            if (matches) {
+                filterMatches.add(header.getHash());
+                if (filter != null)
+                    awaitedMatch = nextToFilter;
+            }
+            nextToFilter++;
+        }
+    }
+
+    private void requestBlocks(List<Peer> peers, long now) {
+        double best = bestThroughput();
+        for (Peer peer : rank(peers)) {
+            PeerStats stats = stats(peer);
+            int capacity = (isSlow(stats, best) ? 1 : MAX_BLOCKS_IN_FLIGHT_PER_PEER) - stats.inFlight;
+            List<Integer> heights = new ArrayList<>();
+            while (heights.size() < capacity) {
+                int height = takeHeight(peer.getBestHeight());
+                if (height < 0)
+                    break;
+                heights.add(height);
+            }
+            if (!heights.isEmpty())
+                sendRequests(peer, heights, now);
+        }
+        connectBlocks();
+    }
+
+    /** Returns the given peers, fastest first, peers that were not measured yet before all others to give them a chance. */
+    private List<Peer> rank(List<Peer> peers) {
+        List<Peer> ranked = new ArrayList<>(peers);
+        ranked.sort(Comparator.comparingDouble(peer -> {
+            PeerStats stats = stats(peer);
+            return stats.vSamples < MIN_SAMPLES ? Double.NEGATIVE_INFINITY : -stats.vThroughput;
+        }));
+        return ranked;
+    }
+
+    /**
+     * Returns the height of the next block to request from a peer with the given best height, or -1 if there is none.
+     * Headers before the fast catchup time, or whose filters didn't match, are queued for the chain right away.
+     */
+    private int takeHeight(long peerBestHeight) {
+        Integer retryHeight;
+        while ((retryHeight = retry.peekFirst()) != null) {
+            int index = retryHeight - baseHeight - 1;
+            if (index < nextToConnect || index >= nextToRequest || !wanted.contains(headers.get(index).getHash())
+                    || inFlight.containsKey(headers.get(index).getHash())) {
+                retry.pollFirst(); // Received or dropped in the meantime.
+                continue;
+            }
+            if (retryHeight > peerBestHeight)
+                return -1;
+            return retry.pollFirst();
+        }
+        int end = compactFilters ? nextToFilter : headers.size();
+        while (nextToRequest < end && nextToRequest - nextToConnect < WINDOW_SIZE) {
+            int height = baseHeight + 1 + nextToRequest;
+            if (height > peerBestHeight)
+                return -1;
+            Block header = headers.get(nextToRequest++);
+            if (compactFilters ? !filterMatches.remove(header.getHash()) : header.getTimeSeconds() < fastCatchupTimeSecs) {
+                received.put(header.getHash(), new Delivery(header, null));
+                continue;
+            }
+            wanted.add(header.getHash());
+            return height;
+        }
+        return -1;
+    }
+
+    private void sendRequests(Peer peer, List<Integer> heights, long now) {
+        List<Sha256Hash> hashes = new ArrayList<>(heights.size());
+        for (int height : heights)
+            hashes.add(headers.get(height - baseHeight - 1).getHash());
+        List<ListenableCompletableFuture<Block>> futures;
+        try {
+            futures = peer.getBlocks(hashes);
+        } catch (RuntimeException e) {
+            log.info("{}: Could not request blocks: {}", peer, e.toString());
+            for (int i = heights.size() - 1; i >= 0; i--)
+                retry.addFirst(heights.get(i));
+            return;
+        }
+        PeerStats stats = stats(peer);
+        for (int i = 0; i < hashes.size(); i++) {
+            BlockRequest request = new BlockRequest(hashes.get(i), heights.get(i), peer, now);
+            inFlight.put(request.hash, request);
+            stats.inFlight++;
+            futures.get(i).whenComplete((block, throwable) -> run(() -> onBlock(request, block, throwable)));
+        }
+    }
+
+    private void onBlock(BlockRequest request, @Nullable Block block, @Nullable Throwable throwable) {
+        long now = Utils.currentTimeMillis();
+        finish(request);
+        if (inFlight.get(request.hash) == request)
+            inFlight.remove(request.hash);
+        if (block == null) {
+            // The peer doesn't have the block.
+            log.info("{}: Block {} not found", request.peer, request.hash);
+            stats(request.peer).penalize();
+            if (wanted.contains(request.hash) && !inFlight.containsKey(request.hash))
+                retry.addFirst(request.height);
+        } else if (wanted.remove(request.hash)) {
+            received.put(request.hash, new Delivery(block, request.peer));
+            stats(request.peer).recordDelivery(block.getMessageSize(), request.time, now);
+        }
+        schedule();
+    }
+
+    /** Adds the received blocks that follow the chain to it, in order. */
+    private void connectBlocks() {
+        while (nextToConnect < nextToRequest) {
+            Block header = headers.get(nextToConnect);
+            Delivery delivery = received.remove(header.getHash());
+            if (delivery == null)
+                break;
+            Peer peer = delivery.peer != null ? delivery.peer : peerGroup.getDownloadPeer();
+            try {
+                if (!chain.add(delivery.block))
+                    throw new IllegalStateException("Block " + header.getHashAsString() + " does not connect to the chain");
+            } catch (VerificationException e) {
+                int failed = failures.merge(header.getHash(), 1, Integer::sum);
+                if (delivery.peer == null || failed >= MAX_FAILURES_PER_BLOCK)
+                    throw e;
+                log.warn("{}: Block {} failed verification, disconnecting and asking another peer", delivery.peer,
+                        header.getHashAsString(), e);
+                delivery.peer.close();
+                wanted.add(header.getHash());
+                retry.addFirst(baseHeight + 1 + nextToConnect);
+                break;
+            } catch (PrunedException e) {
+                throw new RuntimeException(e);
+            }
+            nextToConnect++;
+            if (peer != null) {
+                int blocksLeft = (int) Math.max(tipHeight() - chain.getBestChainHeight(),
+                        peer.getBestHeight() - chain.getBestChainHeight());
+                peerGroup.onParallelBlockDownloaded(peer, delivery.block, Math.max(blocksLeft, 0));
+            }
+        }
+        // Drop the headers of added blocks once in a while.
+        if (nextToConnect >= HeadersMessage.MAX_HEADERS) {
+            baseHash = headers.get(nextToConnect - 1).getHash();
+            baseHeight += nextToConnect;
+            headers.subList(0, nextToConnect).clear();
+            nextToRequest -= nextToConnect;
+            nextToFilter -= nextToConnect;
+            awaitedMatch -= nextToConnect;
+            nextToConnect = 0;
+        }
+    }
+
+    private void finish(BlockRequest request) {
+        if (request.finished)
+            return;
+        request.finished = true;
+        PeerStats stats = peerStats.get(request.peer);
+        if (stats != null)
+            stats.inFlight--;
+    }
+
+    private double bestThroughput() {
+        double best = 0;
+        for (PeerStats stats : peerStats.values())
+            if (stats.vSamples >= MIN_SAMPLES)
+                best = Math.max(best, stats.vThroughput);
+        return best;
+    }
+
+    private static boolean isSlow(PeerStats stats, double bestThroughput) {
+        return stats.vSamples >= MIN_SAMPLES && stats.vThroughput < bestThroughput * SLOW_PEER_FRACTION;
+    }
+
+    private static class PeerStats {
+        // Moving average of bytes per second, and the number of blocks it's based on. Read by any thread.
+        volatile double vThroughput;
+        volatile int vSamples;
+        // Only used by the downloader thread.
+        long lastDeliveryTime;
+        int inFlight;
+        // Whether a request for headers stalled, so the peer is no longer asked for them.
+        boolean headersStalled;
+
+        void recordDelivery(int bytes, long requestTime, long now) {
+            // With several requests in flight, the time since the previous delivery is what this block took.
+            long millis = Math.max(now - Math.max(requestTime, lastDeliveryTime), 1);
+            double sample = bytes * 1000.0 / millis;
+            vThroughput = vSamples == 0 ? sample : vThroughput + THROUGHPUT_ALPHA * (sample - vThroughput);
+            vSamples++;
+            lastDeliveryTime = now;
+        }
+
+        void penalize() {
+            vThroughput /= 2;
+            vSamples = Math.max(vSamples, MIN_SAMPLES);
+        }
+    }
+
+    private static class BlockRequest {
+        final Sha256Hash hash;
+        final int height;
+        final Peer peer;
+        final long time;
+        // Whether the request no longer counts towards the requests in flight of the peer.
+        boolean finished;
+
+        BlockRequest(Sha256Hash hash, int height, Peer peer, long time) {
+            this.hash = hash;
+            this.height = height;
+            this.peer = peer;
+            this.time = time;
+        }
+    }
+
+    private static class HeadersRequest {
+        final Peer peer;
+        final ListenableCompletableFuture<HeadersMessage> future;
+        final long time;
+
+        HeadersRequest(Peer peer, ListenableCompletableFuture<HeadersMessage> future, long time) {
+            this.peer = peer;
+            this.future = future;
+            this.time = time;
+        }
+    }
+
+    private static class FilterRequest {
+        final Peer peer;
+        // Second peer asked for the filter headers, to check the first one, or null if there is none.
+        @Nullable final Peer checkPeer;
+        final int startHeight;
+        final int count;
+        // Height the filter headers start at, and the filter header they must chain to, or null if it's not known.
+        final int headersStartHeight;
+        @Nullable final Sha256Hash previousFilterHeader;
+        final long time;
+        // Number of answers missing, and the futures of all answers.
+        int pending;
+        final List<ListenableCompletableFuture<?>> answers = new ArrayList<>(3);
+        @Nullable CFHeadersMessage headers, checkHeaders;
+        @Nullable List<CFilterMessage> filters;
+
+        FilterRequest(Peer peer, @Nullable Peer checkPeer, int startHeight, int count, int headersStartHeight,
+                      @Nullable Sha256Hash previousFilterHeader, long time) {
+            this.peer = peer;
+            this.checkPeer = checkPeer;
+            this.startHeight = startHeight;
+            this.count = count;
+            this.headersStartHeight = headersStartHeight;
+            this.previousFilterHeader = previousFilterHeader;
+            this.time = time;
+            this.pending = checkPeer != null ? 3 : 2;
+        }
+
+        <T> ListenableCompletableFuture<T> await(ListenableCompletableFuture<T> answer) {
+            answers.add(answer);
+            return answer;
+        }
+    }
+
+    private static class Delivery {
+        final Block block;
+        // Null for headers added without their block.
+        @Nullable final Peer peer;
+
+        Delivery(Block block, @Nullable Peer peer) {
+            this.block = block;
+            this.peer = peer;
+        }
+    }
+}
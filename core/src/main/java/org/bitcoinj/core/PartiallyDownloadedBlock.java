@@ -0,0 +1,151 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import com.google.common.hash.HashFunction;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A block being rebuilt from a compact block (BIP152). The prefilled transactions are put in place, and the short
+ * ids are matched against the transactions of a {@link RecentTransactionPool}. The transactions still missing are
+ * then requested from the peer with a {@link GetBlockTxnMessage}.</p>
+ *
+ * <p>Short ids are only 6 bytes, so a pool transaction may match the short id of a different transaction of the block.
+ * If two pool transactions match the same short id, that transaction is requested. If a wrong transaction slips in
+ * anyway, the merkle root of the block doesn't match, and the full block has to be downloaded instead.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+final class PartiallyDownloadedBlock {
+    private final CmpctBlockMessage compactBlock;
+    private final Transaction[] transactions;
+    private final int[] missing;
+    private final int fromPool;
+    private final long startTime;
+
+    /**
+     * Matches the short ids of the compact block against the given transactions.
+     * @param witness whether the short ids are of witness transaction ids, as in version 2 compact blocks
+     * @throws ProtocolException if the compact block has duplicate short ids or prefilled transactions
+     */
+    PartiallyDownloadedBlock(CmpctBlockMessage compactBlock, boolean witness, List<Transaction> pool)
+            throws ProtocolException {
+        this.compactBlock = compactBlock;
+        this.startTime = Utils.currentTimeMillis();
+        int count = compactBlock.getTransactionCount();
+        if (count == 0)
+            throw new ProtocolException("Compact block without transactions");
+        transactions = new Transaction[count];
+        boolean[] prefilled = new boolean[count];
+        for (CmpctBlockMessage.PrefilledTransaction tx : compactBlock.getPrefilledTransactions()) {
+            if (prefilled[tx.index])
+                throw new ProtocolException("Duplicate prefilled transaction at " + tx.index);
+            prefilled[tx.index] = true;
+            transactions[tx.index] = tx.tx;
+        }
+
+        // Map the short ids to the indexes of the slots that are not prefilled, in block order.
+        long[] shortIds = compactBlock.getShortIds();
+        Map<Long, Integer> slots = new HashMap<>(shortIds.length * 2);
+        int index = 0;
+        for (long shortId : shortIds) {
+            while (prefilled[index])
+                index++;
+            if (slots.put(shortId, index) != null)
+                throw new ProtocolException("Duplicate short id " + Long.toHexString(shortId));
+            index++;
+        }
+
+        HashFunction sipHash = compactBlock.shortIdHash();
+        boolean[] collided = new boolean[count];
+        int found = 0;
+        for (Transaction tx : pool) {
+            Integer slot = slots.get(CmpctBlockMessage.shortId(sipHash, witness ? tx.getWTxId() : tx.getTxId()));
+            if (slot == null || collided[slot])
+                continue;
+            if (transactions[slot] == null) {
+                transactions[slot] = tx;
+                found++;
+            } else if (!transactions[slot].getTxId().equals(tx.getTxId())) {
+                // Two transactions with the same short id, ask for the right one.
+                transactions[slot] = null;
+                collided[slot] = true;
+                found--;
+            }
+        }
+        this.fromPool = found;
+
+        int[] missing = new int[count];
+        int missingCount = 0;
+        for (int i = 0; i < count; i++)
+            if (transactions[i] == null)
+                missing[missingCount++] = i;
+        this.missing = Arrays.copyOf(missing, missingCount);
+    }
+
+    Sha256Hash getBlockHash() {
+        return compactBlock.getBlockHash();
+    }
+
+    /** Returns the indexes of the transactions not found in the pool, ascending. */
+    int[] getMissing() {
+        return missing;
+    }
+
+    /** Returns the number of transactions found in the pool. */
+    int getFromPool() {
+        return fromPool;
+    }
+
+    /** Returns the size of the cmpctblock message. */
+    int getCompactBlockSize() {
+        return compactBlock.getMessageSize();
+    }
+
+    /** Returns the time when the compact block was received. */
+    long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Fills in the missing transactions, in the order of {@link #getMissing()}, and returns the block. Returns null if
+     * the transactions don't match the merkle root of the header, which happens if a pool transaction matched the short
+     * id of a different transaction.
+     * @throws ProtocolException if the number of transactions doesn't match the number of missing ones
+     */
+    @Nullable
+    Block fill(List<Transaction> missingTransactions) throws ProtocolException {
+        if (missingTransactions.size() != missing.length)
+            throw new ProtocolException("Got " + missingTransactions.size() + " transactions for block "
+                    + getBlockHash() + " but " + missing.length + " are missing");
+        for (int i = 0; i < missing.length; i++)
+            transactions[missing[i]] = missingTransactions.get(i);
+        Block header = compactBlock.getHeader();
+        Block block = new Block(header.getParams(), header.getVersion(), header.getPrevBlockHash(),
+                header.getMerkleRoot(), header.getTimeSeconds(), header.getDifficultyTarget(), header.getNonce(),
+                Arrays.asList(transactions));
+        if (!block.calculateMerkleRoot().equals(header.getMerkleRoot()))
+            return null;
+        return block;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A pool of byte arrays for the payloads of large messages, shared by all connections. Arrays come in power of two
+ * sizes, so an array is usually longer than the payload it holds. Only messages that can be parsed from a longer
+ * array are read into pooled arrays, see {@link MessageSerializer#canDeserializeFromLargerArray(String)}.</p>
+ *
+ * <p>The pool holds on to at most a given number of bytes. Arrays given back beyond that are left to the garbage
+ * collector.</p>
+ */
+final class PayloadBufferPool {
+    /** Payloads smaller than this are cheap to allocate and not pooled. */
+    static final int MIN_POOLED_SIZE = 1 << 14;
+    private static final int MIN_SIZE_CLASS = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+
+    /** The pool shared by all {@link PeerSocketHandler}s. */
+    static final PayloadBufferPool SHARED = new PayloadBufferPool(64 * 1024 * 1024);
+
+    // Free arrays by size class, the arrays of class i being 2^(MIN_SIZE_CLASS + i) bytes long.
+    private final List<Queue<byte[]>> free;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    PayloadBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        int classes = sizeClass(Message.MAX_SIZE) + 1;
+        free = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++)
+            free.add(new ConcurrentLinkedQueue<>());
+    }
+
+    private static int sizeClass(int size) {
+        int bits = Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(size, MIN_POOLED_SIZE) - 1);
+        return bits - MIN_SIZE_CLASS;
+    }
+
+    /** Returns the length of the arrays holding payloads of the given size. */
+    static int capacity(int size) {
+        return 1 << (MIN_SIZE_CLASS + sizeClass(size));
+    }
+
+    /** Returns a free array of {@link #capacity(int)} for the given payload size, or null if there is none. */
+    @Nullable
+    byte[] poll(int size) {
+        byte[] array = free.get(sizeClass(size)).poll();
+        if (array != null)
+            pooledBytes.addAndGet(-array.length);
+        return array;
+    }
+
+    /** Gives an array obtained for a payload back to the pool. The caller must not use it anymore. */
+    void release(byte[] array) {
+        int sizeClass = sizeClass(array.length);
+        if (array.length != capacity(array.length) || sizeClass >= free.size())
+            return;
+        if (pooledBytes.addAndGet(array.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-array.length);
+            return;
+        }
+        free.get(sizeClass).offer(array);
+    }
+
+    /** Returns the number of bytes held by free arrays. */
+    long getPooledBytes() {
+        return pooledBytes.get();
+    }
+}
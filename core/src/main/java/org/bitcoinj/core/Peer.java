@@ -50,6 +50,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -65,6 +66,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -127,6 +129,15 @@ public class Peer extends PeerSocketHandler {
     private volatile BloomFilter vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
+    // Recently received transactions to rebuild compact blocks (BIP152) from, or null if compact blocks are not used.
+    @Nullable private volatile RecentTransactionPool vRecentTransactions;
+    // The compact block version both sides support, or 0 if the peer didn't announce a matching one.
+    private volatile long vCompactBlockVersion;
+    // Compact blocks waiting for their missing transactions, by block hash, oldest first. Only used by the network
+    // thread. Blocks dropped or waiting longer than BLOCK_TXN_TIMEOUT_MILLIS are downloaded in full instead.
+    private final LinkedHashMap<Sha256Hash, PartiallyDownloadedBlock> partialBlocks = new LinkedHashMap<>();
+    private static final int MAX_PARTIAL_BLOCKS = 8;
+    private static final long BLOCK_TXN_TIMEOUT_MILLIS = 10 * 1000;
     // If non-null, we should discard incoming filtered blocks because we ran out of keys and are awaiting a new filter
     // to be calculated by the PeerGroup. The discarded block hashes should be added here so we can re-request them
     // once we've recalculated and resent a new filter.
@@ -159,6 +170,24 @@ public class Peer extends PeerSocketHandler {
     // TODO: The types/locking should be rationalised a bit.
     private final Queue<GetDataRequest> getDataFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<CompletableFuture<AddressMessage>> getAddrFutures;
+    @GuardedBy("getHeadersFutures") private final LinkedList<CompletableFuture<HeadersMessage>> getHeadersFutures;
+    @GuardedBy("getFilterHeadersFutures") private final LinkedList<CompletableFuture<CFHeadersMessage>> getFilterHeadersFutures;
+    @GuardedBy("getFiltersRequests") private final LinkedList<GetFiltersRequest> getFiltersRequests;
+
+    // A getFilters() call, which is answered by one cfilter message per block of the range, the last one being for the
+    // block of the stop hash.
+    private static class GetFiltersRequest {
+        final ListenableCompletableFuture<List<CFilterMessage>> future = new ListenableCompletableFuture<>();
+        final List<CFilterMessage> filters;
+        final Sha256Hash stopHash;
+        final int count;
+
+        GetFiltersRequest(Sha256Hash stopHash, int count) {
+            this.filters = new ArrayList<>(count);
+            this.stopHash = stopHash;
+            this.count = count;
+        }
+    }
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -232,6 +261,9 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = chain != null;
         this.getDataFutures = new ConcurrentLinkedQueue<>();
         this.getAddrFutures = new LinkedList<>();
+        this.getHeadersFutures = new LinkedList<>();
+        this.getFilterHeadersFutures = new LinkedList<>();
+        this.getFiltersRequests = new LinkedList<>();
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         this.pendingPings = new CopyOnWriteArrayList<>();
         this.vMinProtocolVersion = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG);
@@ -431,6 +463,9 @@ public class Peer extends PeerSocketHandler {
         }
         if (m == null) return;
 
+        if (!partialBlocks.isEmpty())
+            expirePartialBlocks();
+
         // If we are in the middle of receiving transactions as part of a filtered block push from the remote node,
         // and we receive something that's not a transaction, then we're done.
         if (currentFilteredBlock != null && !(m instanceof Transaction)) {
@@ -468,7 +503,8 @@ public class Peer extends PeerSocketHandler {
             // properly explore the network.
             processAddressMessage((AddressMessage) m);
         } else if (m instanceof HeadersMessage) {
-            processHeaders((HeadersMessage) m);
+            if (!maybeHandleRequestedHeaders((HeadersMessage) m))
+                processHeaders((HeadersMessage) m);
         } else if (m instanceof VersionMessage) {
             processVersionMessage((VersionMessage) m);
         } else if (m instanceof VersionAck) {
@@ -479,6 +515,18 @@ public class Peer extends PeerSocketHandler {
             // We ignore this message, because we don't announce new blocks.
         } else if (m instanceof FeeFilterMessage) {
             processFeeFilter((FeeFilterMessage) m);
+        } else if (m instanceof CFHeadersMessage) {
+            processFilterHeaders((CFHeadersMessage) m);
+        } else if (m instanceof CFilterMessage) {
+            processFilter((CFilterMessage) m);
+        } else if (m instanceof SendCmpctMessage) {
+            processSendCmpct((SendCmpctMessage) m);
+        } else if (m instanceof CmpctBlockMessage) {
+            processCmpctBlock((CmpctBlockMessage) m);
+        } else if (m instanceof BlockTxnMessage) {
+            processBlockTxn((BlockTxnMessage) m);
+        } else if (m instanceof GetBlockTxnMessage) {
+            // We ignore this message, because we don't announce compact blocks.
         } else {
             log.warn("{}: Received unhandled message: {}", this, m);
         }
@@ -494,6 +542,47 @@ public class Peer extends PeerSocketHandler {
         future.complete(m);
     }
 
+    private boolean maybeHandleRequestedHeaders(HeadersMessage m) {
+        CompletableFuture<HeadersMessage> future;
+        synchronized (getHeadersFutures) {
+            future = getHeadersFutures.poll();
+            if (future == null)  // Not a headers message requested by getBlockHeaders().
+                return false;
+        }
+        future.complete(m);
+        return true;
+    }
+
+    private void processFilterHeaders(CFHeadersMessage m) {
+        CompletableFuture<CFHeadersMessage> future;
+        synchronized (getFilterHeadersFutures) {
+            future = getFilterHeadersFutures.poll();
+            if (future == null) {  // Not a cfheaders message we are waiting for.
+                log.debug("{}: Received unrequested {}", this, m);
+                return;
+            }
+        }
+        future.complete(m);
+    }
+
+    private void processFilter(CFilterMessage m) {
+        GetFiltersRequest request;
+        synchronized (getFiltersRequests) {
+            request = getFiltersRequests.peek();
+            if (request == null) {  // Not a cfilter message we are waiting for.
+                log.debug("{}: Received unrequested {}", this, m);
+                return;
+            }
+            request.filters.add(m);
+            // The filter of the stop hash ends the answer, even if filters are missing. The request then fails the
+            // checks of its caller instead of taking the filters of the next request.
+            if (request.filters.size() < request.count && !m.getBlockHash().equals(request.stopHash))
+                return;
+            getFiltersRequests.poll();
+        }
+        request.future.complete(request.filters);
+    }
+
     private void processVersionMessage(VersionMessage peerVersionMessage) throws ProtocolException {
         if (vPeerVersionMessage != null)
             throw new ProtocolException("Got two version messages from peer");
@@ -593,6 +682,132 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void processSendCmpct(SendCmpctMessage m) {
+        // Peers announce every version they support, we only use the one matching our choice.
+        if (m.getVersion() == compactBlockVersion(vPeerVersionMessage))
+            vCompactBlockVersion = m.getVersion();
+    }
+
+    private static long compactBlockVersion(VersionMessage peerVersion) {
+        return peerVersion.isWitnessSupported() ? SendCmpctMessage.VERSION_WTXID : SendCmpctMessage.VERSION_TXID;
+    }
+
+    /**
+     * Tells the peer we understand compact blocks, asking the download peer to send new blocks as compact blocks
+     * right away (high bandwidth mode), as it's the one that adds them to the chain.
+     */
+    private void sendCompactBlockPreference() {
+        VersionMessage peerVersion = vPeerVersionMessage;
+        if (vRecentTransactions == null || peerVersion == null || peerVersion.clientVersion
+                < params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.SHORT_IDS_BLOCKS))
+            return;
+        sendMessage(new SendCmpctMessage(params, vDownloadData, compactBlockVersion(peerVersion)));
+    }
+
+    protected void processCmpctBlock(CmpctBlockMessage m) {
+        final RecentTransactionPool pool = vRecentTransactions;
+        if (blockChain == null || pool == null || !vDownloadData) {
+            if (log.isDebugEnabled())
+                log.debug("{}: Received compact block we can't use: {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        PartiallyDownloadedBlock partial;
+        try {
+            m.getHeader().verifyHeader();
+            partial = new PartiallyDownloadedBlock(m, vCompactBlockVersion == SendCmpctMessage.VERSION_WTXID,
+                    pool.getTransactions());
+        } catch (VerificationException e) {
+            // Also covers ProtocolException.
+            log.info("{}: Invalid compact block {}, downloading the full block: {}", getAddress(), m.getBlockHash(),
+                    e.getMessage());
+            pool.recordFailedCompactBlock();
+            requestFullBlock(m.getBlockHash());
+            return;
+        }
+        if (partial.getMissing().length == 0) {
+            completeCompactBlock(pool, partial, Collections.emptyList(), 0);
+            return;
+        }
+        // Put it last, even if the block was announced before, so the oldest block stays first.
+        partialBlocks.remove(partial.getBlockHash());
+        partialBlocks.put(partial.getBlockHash(), partial);
+        if (partialBlocks.size() > MAX_PARTIAL_BLOCKS) {
+            Iterator<PartiallyDownloadedBlock> oldest = partialBlocks.values().iterator();
+            Sha256Hash dropped = oldest.next().getBlockHash();
+            oldest.remove();
+            log.info("{}: Too many compact blocks waiting for transactions, downloading block {} in full",
+                    getAddress(), dropped);
+            requestFullBlock(dropped);
+        }
+        sendMessage(new GetBlockTxnMessage(params, partial.getBlockHash(), partial.getMissing()));
+    }
+
+    protected void processBlockTxn(BlockTxnMessage m) {
+        PartiallyDownloadedBlock partial = partialBlocks.remove(m.getBlockHash());
+        if (partial == null) {
+            if (log.isDebugEnabled())
+                log.debug("{}: Received unrequested transactions of block {}", getAddress(), m.getBlockHash());
+            return;
+        }
+        RecentTransactionPool pool = vRecentTransactions;
+        if (pool == null) {
+            // Compact blocks were turned off in the meantime.
+            requestFullBlock(partial.getBlockHash());
+            return;
+        }
+        completeCompactBlock(pool, partial, m.getTransactions(), m.getMessageSize());
+    }
+
+    /** Downloads the compact blocks in full whose missing transactions didn't arrive in time. */
+    private void expirePartialBlocks() {
+        long now = Utils.currentTimeMillis();
+        for (Iterator<PartiallyDownloadedBlock> it = partialBlocks.values().iterator(); it.hasNext(); ) {
+            PartiallyDownloadedBlock partial = it.next();
+            if (now - partial.getStartTime() <= BLOCK_TXN_TIMEOUT_MILLIS)
+                break; // Oldest first, the others are younger.
+            it.remove();
+            log.info("{}: Transactions of compact block {} did not arrive, downloading the full block", getAddress(),
+                    partial.getBlockHash());
+            RecentTransactionPool pool = vRecentTransactions;
+            if (pool != null)
+                pool.recordFailedCompactBlock();
+            requestFullBlock(partial.getBlockHash());
+        }
+    }
+
+    private void completeCompactBlock(RecentTransactionPool pool, PartiallyDownloadedBlock partial,
+                                      List<Transaction> missingTransactions, int missingBytes) {
+        Block block;
+        try {
+            block = partial.fill(missingTransactions);
+        } catch (ProtocolException e) {
+            log.info("{}: {}", getAddress(), e.getMessage());
+            block = null;
+        }
+        if (block == null) {
+            log.info("{}: Could not rebuild block {} from compact block, downloading the full block", getAddress(),
+                    partial.getBlockHash());
+            pool.recordFailedCompactBlock();
+            requestFullBlock(partial.getBlockHash());
+            return;
+        }
+        long millis = Utils.currentTimeMillis() - partial.getStartTime();
+        int receivedBytes = partial.getCompactBlockSize() + missingBytes;
+        pool.recordCompactBlock(partial.getFromPool(), partial.getMissing().length, receivedBytes,
+                block.getOptimalEncodingMessageSize(), millis);
+        if (log.isDebugEnabled())
+            log.debug("{}: Rebuilt block {} from compact block in {} ms, {} of {} transactions requested, {} bytes received",
+                    getAddress(), block.getHashAsString(), millis, partial.getMissing().length,
+                    block.getTransactions().size(), receivedBytes);
+        processBlock(block);
+    }
+
+    private void requestFullBlock(Sha256Hash hash) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(hash, vPeerVersionMessage.isWitnessSupported());
+        sendMessage(getdata);
+    }
+
     protected void processHeaders(HeadersMessage m) throws ProtocolException {
         // Runs in network loop thread for this peer.
         //
@@ -696,6 +911,9 @@ public class Peer extends PeerSocketHandler {
     protected void processTransaction(final Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        RecentTransactionPool pool = vRecentTransactions;
+        if (pool != null)
+            pool.add(tx);
         lock.lock();
         try {
             if (log.isDebugEnabled())
@@ -933,6 +1151,9 @@ public class Peer extends PeerSocketHandler {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
+                RecentTransactionPool pool = vRecentTransactions;
+                if (pool != null && m.getTransactions() != null)
+                    pool.removeAll(m.getTransactions());
                 invokeOnBlocksDownloaded(m, null);
             } else {
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
@@ -1210,6 +1431,10 @@ public class Peer extends PeerSocketHandler {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
+                            } else if (vCompactBlockVersion != 0 && vRecentTransactions != null
+                                    && blockChain.getBestChainHeight() >= getBestHeight() - 1) {
+                                // A new block on top of our chain, most of its transactions were relayed already.
+                                getdata.addCompactBlock(item.hash);
                             } else {
                                 getdata.addBlock(item.hash, vPeerVersionMessage.isWitnessSupported());
                             }
@@ -1253,6 +1478,92 @@ public class Peer extends PeerSocketHandler {
         return ListenableCompletableFuture.of(sendSingleGetData(getdata));
     }
 
+    /**
+     * Asks the connected peer for the blocks of the given hashes in a single getdata message, and returns a future for
+     * each of them. A future is cancelled if the peer answers that it doesn't have the block.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ListenableCompletableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        if (log.isDebugEnabled())
+            log.debug("{}: Request to fetch {} blocks", this, blockHashes.size());
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableCompletableFuture<Block>> futures = new ArrayList<>(blockHashes.size());
+        for (Sha256Hash blockHash : blockHashes) {
+            getdata.addBlock(blockHash, true);
+            GetDataRequest req = new GetDataRequest(blockHash);
+            getDataFutures.add(req);
+            futures.add(ListenableCompletableFuture.of((CompletableFuture<Block>) req));
+        }
+        sendMessage(getdata);
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for up to {@link HeadersMessage#MAX_HEADERS} headers of its best chain, following the
+     * first block of the locator it knows about, and returns a future representing the answer. Headers received this
+     * way are not added to the block chain. Cancel the future if the answer takes too long, so it doesn't take the
+     * answer to the next request.
+     */
+    public ListenableCompletableFuture<HeadersMessage> getBlockHeaders(BlockLocator locator, Sha256Hash stopHash) {
+        ListenableCompletableFuture<HeadersMessage> future = new ListenableCompletableFuture<>();
+        synchronized (getHeadersFutures) {
+            getHeadersFutures.add(future);
+        }
+        removeWhenCancelled(getHeadersFutures, future, future);
+        sendMessage(new GetHeadersMessage(params, locator, stopHash));
+        return future;
+    }
+
+    /**
+     * Drops the given request from its queue once its future is cancelled, so answers arriving later complete the
+     * requests still waiting instead.
+     */
+    private static <T> void removeWhenCancelled(LinkedList<T> queue, T request, CompletableFuture<?> future) {
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled()) {
+                synchronized (queue) {
+                    queue.remove(request);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the connected peer for the hashes of the basic compact block filters (BIP157) of the blocks from the given
+     * height up to and including the block with the given hash, which must be at most
+     * {@link GetCFHeadersMessage#MAX_FILTER_HEADERS} blocks. Only peers that
+     * {@link VersionMessage#isCompactFiltersSupported() serve filters} answer, others ignore the request or
+     * disconnect. Cancel the future if the answer takes too long, so it doesn't take the answer to the next request.
+     */
+    public ListenableCompletableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash) {
+        ListenableCompletableFuture<CFHeadersMessage> future = new ListenableCompletableFuture<>();
+        synchronized (getFilterHeadersFutures) {
+            getFilterHeadersFutures.add(future);
+        }
+        removeWhenCancelled(getFilterHeadersFutures, future, future);
+        sendMessage(new GetCFHeadersMessage(params, GolombCodedSet.BASIC_FILTER_TYPE, startHeight, stopHash));
+        return future;
+    }
+
+    /**
+     * Asks the connected peer for the basic compact block filters (BIP157) of the given number of blocks, ending with
+     * the block with the given hash. The number must be at most {@link GetCFiltersMessage#MAX_FILTERS}. The future
+     * completes once all filters arrived, in chain order, or once the filter of the block with the given hash arrived.
+     * Cancel the future if the filters take too long, so they don't take the filters of the next request.
+     */
+    public ListenableCompletableFuture<List<CFilterMessage>> getFilters(int startHeight, Sha256Hash stopHash,
+                                                                       int count) {
+        checkArgument(count > 0 && count <= GetCFiltersMessage.MAX_FILTERS);
+        GetFiltersRequest request = new GetFiltersRequest(stopHash, count);
+        synchronized (getFiltersRequests) {
+            getFiltersRequests.add(request);
+        }
+        removeWhenCancelled(getFiltersRequests, request, request.future);
+        sendMessage(new GetCFiltersMessage(params, GolombCodedSet.BASIC_FILTER_TYPE, startHeight, stopHash));
+        return request.future;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1605,7 +1916,21 @@ public class Peer extends PeerSocketHandler {
      * a request to the remote peer for the contents of its memory pool, if Bloom filtering is active.
      */
     public void setDownloadData(boolean downloadData) {
+        boolean changed = vDownloadData != downloadData;
         this.vDownloadData = downloadData;
+        if (changed)
+            sendCompactBlockPreference();
+    }
+
+    /**
+     * Sets the pool of recently received transactions that blocks announced as compact blocks (BIP152) are rebuilt
+     * from, or null to download full blocks only. Received transactions are added to the pool. If the peer supports
+     * compact blocks, new blocks on top of the chain are then requested as compact blocks, and the download peer is
+     * asked to send them right away.
+     */
+    public void setRecentTransactionPool(@Nullable RecentTransactionPool pool) {
+        this.vRecentTransactions = pool;
+        sendCompactBlockPreference();
     }
 
     /** Returns version data announced by the remote peer. */
@@ -1681,12 +2006,28 @@ public class Peer extends PeerSocketHandler {
      */
     public void setBloomFilter(BloomFilter filter, boolean andQueryMemPool) {
         checkNotNull(filter, "Clearing filters is not currently supported");
+        setBloomFilter(filter, null, andQueryMemPool);
+    }
+
+    /**
+     * Like {@link #setBloomFilter(BloomFilter, boolean)}, but sends the filter as already serialized for the wire. This
+     * is how {@link PeerGroup} sends the same filter to all its peers.
+     */
+    public void setBloomFilter(FramedMessage filter, boolean andQueryMemPool) {
+        checkArgument(filter.getMessage() instanceof BloomFilter, "Not a Bloom filter: %s", filter);
+        setBloomFilter((BloomFilter) filter.getMessage(), filter, andQueryMemPool);
+    }
+
+    private void setBloomFilter(BloomFilter filter, @Nullable FramedMessage framedFilter, boolean andQueryMemPool) {
         final VersionMessage version = vPeerVersionMessage;
         checkNotNull(version, "Cannot set filter before version handshake is complete");
         if (version.isBloomFilteringSupported()) {
             vBloomFilter = filter;
             log.info("{}: Sending Bloom filter{}", this, andQueryMemPool ? " and querying mempool" : "");
-            sendMessage(filter);
+            if (framedFilter != null)
+                sendMessage(framedFilter);
+            else
+                sendMessage(filter);
             if (andQueryMemPool)
                 sendMessage(new MemoryPoolMessage());
             maybeRestartChainDownload();
@@ -167,6 +167,13 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private BlockchainDownloadEventListener downloadListener;
+    // Whether to download the chain from all peers at once, and the downloader doing so while it's running.
+    @GuardedBy("lock") private boolean parallelBlockDownload = false;
+    // Whether only the blocks whose compact block filters match the wallets are downloaded.
+    @GuardedBy("lock") private boolean compactBlockFilters = false;
+    // Recently received transactions that compact blocks are rebuilt from, or null if compact blocks are not used.
+    @Nullable @GuardedBy("lock") private RecentTransactionPool recentTransactions;
+    @Nullable @GuardedBy("lock") private ParallelBlockDownloader blockDownloader;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -277,7 +284,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
         @Override
         public List<Message> getData(Peer peer, GetDataMessage m) {
-            return handleGetData(m);
+            return handleGetData(peer, m);
         }
 
         @Override
@@ -581,12 +588,22 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
-    private List<Message> handleGetData(GetDataMessage m) {
-        // Scans the wallets and memory pool for transactions in the getdata message and returns them.
-        // Runs on peer threads.
+    private List<Message> handleGetData(Peer peer, GetDataMessage m) {
+        // Scans the wallets and memory pool for transactions in the getdata message and sends them. Transactions that
+        // are being broadcast are sent as serialized for the broadcast. Runs on peer threads.
+        List<Transaction> transactions = findTransactions(m);
+        if (transactions.isEmpty())
+            return Collections.emptyList();
+        log.info("{}: Sending {} transactions requested by getdata", peer, transactions.size());
+        for (Transaction tx : transactions)
+            peer.sendMessage(frameTransaction(tx));
+        return Collections.emptyList();
+    }
+
+    private List<Transaction> findTransactions(GetDataMessage m) {
         lock.lock();
         try {
-            LinkedList<Message> transactions = new LinkedList<>();
+            LinkedList<Transaction> transactions = new LinkedList<>();
             LinkedList<InventoryItem> items = new LinkedList<>(m.getItems());
             Iterator<InventoryItem> it = items.iterator();
             while (it.hasNext()) {
@@ -606,6 +623,15 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    private FramedMessage frameTransaction(Transaction tx) {
+        synchronized (runningBroadcasts) {
+            for (TransactionBroadcast broadcast : runningBroadcasts)
+                if (broadcast.getTransaction() == tx)
+                    return broadcast.getFramedTransaction();
+        }
+        return params.getDefaultSerializer().frame(tx);
+    }
+
     /**
      * Sets the {@link VersionMessage} that will be announced on newly created connections. A version message is
      * primarily interesting because it lets you customize the "subVer" field which is used a bit like the User-Agent
@@ -1109,6 +1135,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 Stopwatch watch = Stopwatch.createStarted();
                 // The log output this creates can be useful.
                 setDownloadPeer(null);
+                stopParallelBlockDownload();
                 // Blocking close of all sockets.
                 channels.stopAsync();
                 channels.awaitTerminated();
@@ -1312,11 +1339,13 @@ public class PeerGroup implements TransactionBroadcaster {
                         throw new UnsupportedOperationException();
                 }
                 if (send) {
+                    // The same filter goes to every peer, so serialize it once.
+                    FramedMessage framedFilter = params.getDefaultSerializer().frame(result.filter);
                     for (Peer peer : peers /* COW */) {
                         // Only query the mempool if this recalculation request is not in order to lower the observed FP
                         // rate. There's no point querying the mempool when doing this because the FP rate can only go
                         // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
-                        peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+                        peer.setBloomFilter(framedFilter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
                     }
                     // Reset the false positive estimate so that we don't send a flood of filter updates
                     // if the estimate temporarily overshoots our threshold.
@@ -1543,6 +1572,8 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            if (recentTransactions != null)
+                peer.setRecentTransactionPool(recentTransactions);
             if (downloadPeer == null && newSize > maxConnections / 2) {
                 Peer newDownloadPeer = selectDownloadPeer(peers);
                 if (newDownloadPeer != null) {
@@ -1918,6 +1949,15 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            if ((parallelBlockDownload || compactBlockFilters) && chain != null
+                    && (chain.shouldVerifyTransactions() || !vBloomFilteringEnabled)) {
+                // The downloader takes care of the chain. The download peer picks up new blocks once it's done.
+                peer.setDownloadData(false);
+                if (blockDownloader == null)
+                    startParallelBlockDownload();
+                return;
+            }
+
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -1925,6 +1965,173 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    @GuardedBy("lock")
+    private void startParallelBlockDownload() {
+        final ParallelBlockDownloader downloader = new ParallelBlockDownloader(this, chain, fastCatchupTimeSecs,
+                compactBlockFilters && !chain.shouldVerifyTransactions());
+        blockDownloader = downloader;
+        downloader.start().whenComplete((result, throwable) -> {
+            lock.lock();
+            try {
+                if (blockDownloader != downloader)
+                    return;
+                blockDownloader = null;
+                // Catch up with blocks solved in the meantime, or take over if the parallel download failed.
+                if (downloadPeer != null && isRunning())
+                    downloadPeer.startBlockChainDownload();
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    private void stopParallelBlockDownload() {
+        lock.lock();
+        try {
+            if (blockDownloader != null) {
+                ParallelBlockDownloader downloader = blockDownloader;
+                blockDownloader = null;
+                downloader.stop();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets whether the block chain is downloaded from all connected peers at once using a
+     * {@link ParallelBlockDownloader}, instead of from the download peer alone. This only applies if full blocks are
+     * downloaded, that is if the chain verifies transactions or Bloom filtering is disabled. Call this before starting
+     * block chain download.
+     */
+    public void setParallelBlockDownload(boolean parallelBlockDownload) {
+        lock.lock();
+        try {
+            this.parallelBlockDownload = parallelBlockDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets whether to find the blocks relevant to the wallets with compact block filters (BIP157/158) instead of
+     * Bloom filters. The filters of all blocks are downloaded from peers serving them and matched locally, and only
+     * the matching blocks are downloaded in full, from all peers at once using a {@link ParallelBlockDownloader}.
+     * Enabling this disables Bloom filtering, so peers learn nothing about the wallets, and new keys don't make the
+     * filters be sent again. Fully verifying chains download all blocks anyway and ignore this.</p>
+     *
+     * <p>To make sure there are peers serving filters, require {@link VersionMessage#NODE_COMPACT_FILTERS} with
+     * {@link #setRequiredServices(long)}. If no connected peer serves filters for a while, blocks are downloaded in
+     * full. Call this before starting block chain download.</p>
+     */
+    public void setCompactBlockFilters(boolean compactBlockFilters) {
+        lock.lock();
+        try {
+            this.compactBlockFilters = compactBlockFilters;
+            if (compactBlockFilters)
+                vBloomFilteringEnabled = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether compact block filters are used to find the relevant blocks, see {@link #setCompactBlockFilters(boolean)}. */
+    public boolean isCompactBlockFilters() {
+        lock.lock();
+        try {
+            return compactBlockFilters;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets whether new blocks are received as compact blocks (BIP152). Transactions relayed by peers are then kept in
+     * a {@link RecentTransactionPool}, and new blocks are rebuilt from them, downloading only the transactions that
+     * were not relayed. This cuts the time and bandwidth it takes to get a new block, and is useful when full blocks
+     * are downloaded, as by a {@link FullPrunedBlockChain}. The chain download before reaching the tip is not
+     * affected.
+     */
+    public void setCompactBlocks(boolean compactBlocks) {
+        lock.lock();
+        try {
+            if (compactBlocks == (recentTransactions != null))
+                return;
+            recentTransactions = compactBlocks ? new RecentTransactionPool() : null;
+            for (Peer peer : peers)
+                peer.setRecentTransactionPool(recentTransactions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the pool of recently received transactions used to rebuild compact blocks, which also has statistics of
+     * the compact blocks received, or null if compact blocks are not used.
+     */
+    @Nullable
+    public RecentTransactionPool getRecentTransactionPool() {
+        lock.lock();
+        try {
+            return recentTransactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the output scripts of all wallets, which compact block filters are matched against. */
+    List<byte[]> getCompactFilterScripts() {
+        List<byte[]> scripts = new ArrayList<>();
+        for (Wallet wallet : wallets)
+            scripts.addAll(wallet.getCompactFilterScripts());
+        return scripts;
+    }
+
+    /** Returns the running parallel block chain download, for instance to look at the throughput of peers, or null. */
+    @Nullable
+    public ParallelBlockDownloader getParallelBlockDownloader() {
+        lock.lock();
+        try {
+            return blockDownloader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by the {@link ParallelBlockDownloader} in place of the download peer when it starts. */
+    void onParallelBlockDownloadStarted(final Peer peer, final int blocksLeft) {
+        final BlockchainDownloadEventListener listener;
+        lock.lock();
+        try {
+            listener = downloadListener;
+        } finally {
+            lock.unlock();
+        }
+        if (listener != null)
+            Threading.USER_THREAD.execute(() -> listener.onChainDownloadStarted(peer, blocksLeft));
+        for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : peersChainDownloadStartedEventListeners)
+            registration.executor.execute(() -> registration.listener.onChainDownloadStarted(peer, blocksLeft));
+    }
+
+    /** Called by the {@link ParallelBlockDownloader} in place of the download peer for every block added. */
+    void onParallelBlockDownloaded(final Peer peer, final Block block, final int blocksLeft) {
+        final BlockchainDownloadEventListener listener;
+        final ChainDownloadSpeedCalculator speedCalculator;
+        lock.lock();
+        try {
+            listener = downloadListener;
+            speedCalculator = chainDownloadSpeedCalculator;
+        } finally {
+            lock.unlock();
+        }
+        if (speedCalculator != null)
+            speedCalculator.onBlocksDownloaded(peer, block, null, blocksLeft);
+        if (listener != null)
+            Threading.USER_THREAD.execute(() -> listener.onBlocksDownloaded(peer, block, null, blocksLeft));
+        for (final ListenerRegistration<BlocksDownloadedEventListener> registration : peersBlocksDownloadedEventListeners)
+            registration.executor.execute(() -> registration.listener.onBlocksDownloaded(peer, block, null, blocksLeft));
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link PeerGroup#getMaxConnections()} you can wait until the
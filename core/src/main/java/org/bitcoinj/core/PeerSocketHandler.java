@@ -27,7 +27,6 @@ import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -35,6 +34,7 @@ import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -63,6 +63,13 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
+    // Payloads of blocks and transactions are read into arrays of this pool and parsed in place, see
+    // acquirePayloadArray(). The arrays are given back once the message is parsed.
+    private final PayloadBufferPool payloadPool = PayloadBufferPool.SHARED;
+    private final long creationTimeNanos = System.nanoTime();
+    private final AtomicLong allocatedPayloadBytes = new AtomicLong();
+    private final AtomicLong pooledPayloadBytes = new AtomicLong();
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
         serializer = params.getDefaultSerializer();
@@ -81,6 +88,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public ListenableCompletableFuture<Void> sendMessage(Message message) throws NotYetConnectedException {
+        return sendMessage(serializer.frame(message));
+    }
+
+    /**
+     * Sends the given message, which was already serialized for the wire. Use this to send the same message to many
+     * peers, as their connections share the serialized bytes. Throws NotYetConnectedException if we are not yet
+     * connected to the remote peer.
+     */
+    public ListenableCompletableFuture<Void> sendMessage(FramedMessage message) throws NotYetConnectedException {
         lock.lock();
         try {
             if (writeTarget == null)
@@ -88,11 +104,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            return writeTarget.writeBytes(out.toByteArray());
+            return writeTarget.writeBytes(message.getBytes());
         } catch (IOException e) {
             exceptionCaught(e);
             return ListenableCompletableFuture.failedFuture(e);
@@ -139,14 +152,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        byte[] payload = largeReadBuffer;
                         largeReadBuffer = null;
+                        processMessage(deserializePayload(header, payload));
                         header = null;
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
@@ -156,7 +170,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 Message message;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    message = deserialize(buff);
                 } catch (BufferUnderflowException e) {
                     // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
                     if (firstMessage && buff.limit() == buff.capacity()) {
@@ -167,7 +181,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            largeReadBuffer = acquirePayloadArray(header);
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
@@ -194,6 +208,69 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    /**
+     * Deserializes the next message in the buffer like {@link MessageSerializer#deserialize(ByteBuffer)}, but reads
+     * its payload into an array from the pool if it can be parsed from one.
+     */
+    private Message deserialize(ByteBuffer buff) throws ProtocolException, IOException {
+        serializer.seekPastMagicBytes(buff);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(buff);
+        if (buff.remaining() < header.size)
+            throw new BufferUnderflowException();
+        byte[] payload = acquirePayloadArray(header);
+        buff.get(payload, 0, header.size);
+        return deserializePayload(header, payload);
+    }
+
+    /**
+     * Returns an array to read the payload of the given message into. It is taken from the pool if the message can be
+     * parsed from a longer array and is large enough to be worth pooling, otherwise it's a new array of the exact size.
+     */
+    private byte[] acquirePayloadArray(BitcoinSerializer.BitcoinPacketHeader header) {
+        if (!isPooled(header)) {
+            allocatedPayloadBytes.addAndGet(header.size);
+            return new byte[header.size];
+        }
+        byte[] payload = payloadPool.poll(header.size);
+        if (payload != null) {
+            pooledPayloadBytes.addAndGet(header.size);
+            return payload;
+        }
+        allocatedPayloadBytes.addAndGet(header.size);
+        return new byte[PayloadBufferPool.capacity(header.size)];
+    }
+
+    private boolean isPooled(BitcoinSerializer.BitcoinPacketHeader header) {
+        return header.size >= PayloadBufferPool.MIN_POOLED_SIZE && serializer.canDeserializeFromLargerArray(header.command);
+    }
+
+    /** Parses the payload, giving its array back to the pool afterwards if it came from there. */
+    private Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload) throws ProtocolException {
+        try {
+            return serializer.deserializePayload(header, payload);
+        } finally {
+            // Parsed messages don't keep a reference to the payload when it can be parsed from a pooled array.
+            if (isPooled(header))
+                payloadPool.release(payload);
+        }
+    }
+
+    /** Returns the number of payload bytes received from the peer that were read into newly allocated arrays. */
+    public long getAllocatedPayloadBytes() {
+        return allocatedPayloadBytes.get();
+    }
+
+    /** Returns the number of payload bytes received from the peer that were read into reused arrays of the pool. */
+    public long getPooledPayloadBytes() {
+        return pooledPayloadBytes.get();
+    }
+
+    /** Returns the average number of payload bytes allocated per second since this handler was created. */
+    public double getPayloadAllocationRate() {
+        long elapsedNanos = Math.max(System.nanoTime() - creationTimeNanos, 1);
+        return allocatedPayloadBytes.get() * 1e9 / elapsedNanos;
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
@@ -0,0 +1,191 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the transactions recently received from peers, so that blocks announced as compact blocks (BIP152) can be
+ * rebuilt from them, and only the transactions that were not seen have to be downloaded. Typically one is created by
+ * a {@link PeerGroup} and given to each peer, see {@link PeerGroup#setCompactBlocks(boolean)}.</p>
+ *
+ * <p>The pool is bounded by an estimate of the memory used by the transactions. When it's exceeded, the oldest
+ * transactions are evicted. Transactions are removed once a block including them was added to the chain. The pool
+ * also counts the compact blocks received and the bytes they saved compared to full blocks, see
+ * {@link #toString()}.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class RecentTransactionPool {
+    /** The max estimated memory usage of a pool created with the no-args constructor. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    // Rough estimate of the memory used by a transaction beyond its serialized size: the map entry, the hash and the
+    // objects of the inputs and outputs, which take about twice the serialized size.
+    private static final long ENTRY_BYTES = 200;
+
+    private final ReentrantLock lock = Threading.lock(RecentTransactionPool.class);
+    // In insertion order, so the eldest transactions are evicted first.
+    @GuardedBy("lock") private final Map<Sha256Hash, Transaction> transactions = new LinkedHashMap<>();
+    @GuardedBy("lock") private long bytes;
+    private final long maxBytes;
+
+    private final LongAdder compactBlocks = new LongAdder();
+    private final LongAdder failedCompactBlocks = new LongAdder();
+    private final LongAdder transactionsFromPool = new LongAdder();
+    private final LongAdder transactionsRequested = new LongAdder();
+    private final LongAdder compactBytes = new LongAdder();
+    private final LongAdder fullBytes = new LongAdder();
+    private final LongAdder reconstructionMillis = new LongAdder();
+
+    /** Creates a pool using at most {@link #DEFAULT_MAX_BYTES}. */
+    public RecentTransactionPool() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /** Creates a pool that evicts transactions once their estimated memory usage exceeds the given number of bytes. */
+    public RecentTransactionPool(long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+    }
+
+    /** Adds a transaction received from a peer. */
+    public void add(Transaction tx) {
+        long size = estimateBytes(tx);
+        lock.lock();
+        try {
+            if (transactions.putIfAbsent(tx.getTxId(), tx) != null)
+                return;
+            bytes += size;
+            for (Iterator<Transaction> it = transactions.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+                bytes -= estimateBytes(it.next());
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the transactions of a block that was added to the chain, as they won't be in another block. */
+    public void removeAll(List<Transaction> confirmed) {
+        lock.lock();
+        try {
+            for (Transaction tx : confirmed) {
+                Transaction removed = transactions.remove(tx.getTxId());
+                if (removed != null)
+                    bytes -= estimateBytes(removed);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a copy of the transactions in the pool, oldest first. */
+    public List<Transaction> getTransactions() {
+        lock.lock();
+        try {
+            return new ArrayList<>(transactions.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions in the pool. */
+    public int size() {
+        lock.lock();
+        try {
+            return transactions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated memory used by the transactions in the pool. */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long estimateBytes(Transaction tx) {
+        return ENTRY_BYTES + 3L * tx.getMessageSize();
+    }
+
+    /**
+     * Records a block rebuilt from a compact block.
+     * @param fromPool number of transactions found in the pool
+     * @param requested number of transactions that had to be requested
+     * @param receivedBytes bytes of the cmpctblock and blocktxn messages
+     * @param blockBytes bytes of the full block
+     * @param millis time from receiving the compact block to having the full block
+     */
+    void recordCompactBlock(int fromPool, int requested, long receivedBytes, long blockBytes, long millis) {
+        compactBlocks.increment();
+        transactionsFromPool.add(fromPool);
+        transactionsRequested.add(requested);
+        compactBytes.add(receivedBytes);
+        fullBytes.add(blockBytes);
+        reconstructionMillis.add(millis);
+    }
+
+    /** Records a compact block that could not be rebuilt, so the full block had to be downloaded. */
+    void recordFailedCompactBlock() {
+        failedCompactBlocks.increment();
+    }
+
+    /** Returns the number of blocks rebuilt from compact blocks. */
+    public long getCompactBlocks() {
+        return compactBlocks.sum();
+    }
+
+    /** Returns the bytes received for the blocks rebuilt from compact blocks, including requested transactions. */
+    public long getCompactBlockBytes() {
+        return compactBytes.sum();
+    }
+
+    /** Returns the serialized size of the blocks rebuilt from compact blocks. */
+    public long getFullBlockBytes() {
+        return fullBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        long blocks = compactBlocks.sum();
+        return String.format(Locale.US,
+                "%d txns in pool (%d kB), %d compact blocks (%d failed), %d txns from pool, %d requested, "
+                        + "%.1f kB received per block instead of %.1f kB, %.1f ms per block",
+                size(), getBytes() / 1024, blocks, failedCompactBlocks.sum(), transactionsFromPool.sum(),
+                transactionsRequested.sum(), blocks > 0 ? compactBytes.sum() / 1024.0 / blocks : 0,
+                blocks > 0 ? fullBytes.sum() / 1024.0 / blocks : 0,
+                blocks > 0 ? (double) reconstructionMillis.sum() / blocks : 0);
+    }
+}
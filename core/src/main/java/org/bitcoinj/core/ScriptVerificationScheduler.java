@@ -0,0 +1,165 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Verifies the input scripts of a block on a long-lived pool of threads. Work is split at the input level, so a
+ * single transaction with many inputs is spread over all threads, and inputs are handed to the pool in batches as the
+ * block is being connected. The first failing input stops all remaining work of the block, without shutting down the
+ * pool.</p>
+ *
+ * <p>{@link Script#correctlySpends(Transaction, int, TransactionWitness, Coin, Script, Set)} works on copies of the
+ * transaction, so inputs of the same transaction can be verified concurrently.</p>
+ */
+class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    /** Number of inputs handed to a thread at once. */
+    static final int BATCH_SIZE = 32;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    ScriptVerificationScheduler(int threads) {
+        checkArgument(threads > 0);
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("Script verification"));
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    /** Starts the verification of a new block. */
+    BlockVerification newBlock() {
+        return new BlockVerification();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class InputCheck {
+        final Transaction tx;
+        final int index;
+        final Script scriptPubKey;
+        final Set<VerifyFlag> verifyFlags;
+
+        InputCheck(Transaction tx, int index, Script scriptPubKey, Set<VerifyFlag> verifyFlags) {
+            this.tx = tx;
+            this.index = index;
+            this.scriptPubKey = scriptPubKey;
+            this.verifyFlags = verifyFlags;
+        }
+    }
+
+    /**
+     * The script checks of a single block. Not thread safe, it is meant to be filled and waited for by the thread
+     * connecting the block.
+     */
+    class BlockVerification {
+        private final AtomicReference<VerificationException> failure = new AtomicReference<>();
+        private final List<Future<?>> futures = new ArrayList<>();
+        private List<InputCheck> batch = new ArrayList<>(BATCH_SIZE);
+        private final long startTime = System.nanoTime();
+        private int inputs;
+
+        /**
+         * Schedules the check of all inputs of the given transaction. The transaction must not be changed anymore.
+         * @param prevOutScripts the scripts of the connected outputs, in input order
+         */
+        void addTransaction(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            int index = 0;
+            for (Script scriptPubKey : prevOutScripts) {
+                batch.add(new InputCheck(tx, index++, scriptPubKey, verifyFlags));
+                if (batch.size() >= BATCH_SIZE)
+                    submitBatch();
+            }
+        }
+
+        private void submitBatch() {
+            if (batch.isEmpty())
+                return;
+            final List<InputCheck> checks = batch;
+            batch = new ArrayList<>(BATCH_SIZE);
+            inputs += checks.size();
+            futures.add(executor.submit(() -> {
+                for (InputCheck check : checks) {
+                    if (failure.get() != null)
+                        return;
+                    try {
+                        check.tx.getInput(check.index).getScriptSig().correctlySpends(check.tx, check.index, null,
+                                null, check.scriptPubKey, check.verifyFlags);
+                    } catch (VerificationException e) {
+                        failure.compareAndSet(null, e);
+                        return;
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Waits for all scheduled checks and throws the first failure, if any.
+         * @return the time spent between the start of the block and the end of the last check, in milliseconds
+         */
+        long await() throws VerificationException {
+            submitBatch();
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e); // Shouldn't happen
+                } catch (ExecutionException e) {
+                    log.error("Script.correctlySpends threw a non-normal exception: " + e.getCause());
+                    cancel();
+                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e);
+                }
+                VerificationException e = failure.get();
+                if (e != null)
+                    throw e;
+            }
+            long millis = (System.nanoTime() - startTime) / 1000000;
+            if (inputs > 0)
+                log.debug("Verified {} inputs using {} threads in {} ms", inputs, threads, millis);
+            return millis;
+        }
+
+        /** Makes all checks of this block that have not run yet return immediately. Does not wait for them. */
+        void cancel() {
+            failure.compareAndSet(null, new VerificationException("Script verification cancelled"));
+            batch.clear();
+        }
+    }
+}
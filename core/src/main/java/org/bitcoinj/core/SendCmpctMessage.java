@@ -0,0 +1,76 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Represents the "sendcmpct" P2P network message, which announces that compact blocks of the given version are
+ * understood. In high bandwidth mode the sender asks to be sent new blocks as cmpctblock messages right away, without
+ * announcing them with an inv or headers message first.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0152.mediawiki">BIP152</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class SendCmpctMessage extends Message {
+    /** Compact blocks with short ids of transaction ids. */
+    public static final long VERSION_TXID = 1;
+    /** Compact blocks with short ids of witness transaction ids, and transactions including witness data. */
+    public static final long VERSION_WTXID = 2;
+
+    private boolean highBandwidth;
+    private long version;
+
+    public SendCmpctMessage(NetworkParameters params, boolean highBandwidth, long version) {
+        super(params);
+        this.highBandwidth = highBandwidth;
+        this.version = version;
+    }
+
+    public SendCmpctMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        highBandwidth = readByte() != 0;
+        version = readInt64();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(highBandwidth ? 1 : 0);
+        Utils.int64ToByteStreamLE(version, stream);
+    }
+
+    public boolean isHighBandwidth() {
+        return highBandwidth;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "sendcmpct: version " + version + (highBandwidth ? ", high bandwidth" : ", low bandwidth");
+    }
+}
@@ -52,6 +52,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TreeMap;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -149,6 +150,13 @@ public class Transaction extends ChildMessage {
     private Sha256Hash cachedTxId;
     private Sha256Hash cachedWTxId;
 
+    // BIP143 intermediate hashes shared by all inputs, so signing or verifying every input of a segwit transaction
+    // is linear in its size. They don't cover the input scripts and witnesses, so unlike the txid they survive
+    // signing, and are only cleared by unCacheSigHashes() when outpoints, sequence numbers or outputs change.
+    @Nullable private volatile byte[] cachedHashPrevouts;
+    @Nullable private volatile byte[] cachedHashSequence;
+    @Nullable private volatile byte[] cachedHashOutputs;
+
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
 
@@ -599,6 +607,13 @@ public class Transaction extends ChildMessage {
         cachedWTxId = null;
     }
 
+    /** Clears the BIP143 intermediate hashes. Called when outpoints, sequence numbers or outputs change. */
+    void unCacheSigHashes() {
+        cachedHashPrevouts = null;
+        cachedHashSequence = null;
+        cachedHashOutputs = null;
+    }
+
     protected static int calcLength(byte[] buf, int offset) {
         VarInt varint;
         // jump past version (uint32)
@@ -950,6 +965,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearInputs() {
         unCache();
+        unCacheSigHashes();
         for (TransactionInput input : inputs) {
             input.setParent(null);
         }
@@ -975,6 +991,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionInput addInput(TransactionInput input) {
         unCache();
+        unCacheSigHashes();
         input.setParent(this);
         inputs.add(input);
         adjustLength(inputs.size(), input.length);
@@ -1113,6 +1130,7 @@ public class Transaction extends ChildMessage {
      */
     public void clearOutputs() {
         unCache();
+        unCacheSigHashes();
         for (TransactionOutput output : outputs) {
             output.setParent(null);
         }
@@ -1126,6 +1144,7 @@ public class Transaction extends ChildMessage {
      */
     public TransactionOutput addOutput(TransactionOutput to) {
         unCache();
+        unCacheSigHashes();
         to.setParent(this);
         outputs.add(to);
         adjustLength(outputs.size(), to.length);
@@ -1414,7 +1433,7 @@ public class Transaction extends ChildMessage {
         return calculateWitnessSignature(inputIndex, key, aesKey, scriptCode.getProgram(), value, hashType, anyoneCanPay);
     }
 
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             byte[] scriptCode,
             Coin prevValue,
@@ -1439,7 +1458,7 @@ public class Transaction extends ChildMessage {
      * @param type         Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             Script scriptCode,
             Coin prevValue,
@@ -1448,7 +1467,7 @@ public class Transaction extends ChildMessage {
         return hashForWitnessSignature(inputIndex, scriptCode.getProgram(), prevValue, type, anyoneCanPay);
     }
 
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             byte[] scriptCode,
             Coin prevValue,
@@ -1463,33 +1482,15 @@ public class Transaction extends ChildMessage {
             boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
 
             if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    bosHashPrevouts.write(input.getOutpoint().getHash().getReversedBytes());
-                    uint32ToByteStreamLE(input.getOutpoint().getIndex(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+                hashPrevouts = getHashPrevouts();
             }
 
             if (!anyoneCanPay && signAll) {
-                ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    uint32ToByteStreamLE(input.getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
+                hashSequence = getHashSequence();
             }
 
             if (signAll) {
-                ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
-                for (TransactionOutput output : this.outputs) {
-                    uint64ToByteStreamLE(
-                            BigInteger.valueOf(output.getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(new VarInt(output.getScriptBytes().length).encode());
-                    bosHashOutputs.write(output.getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+                hashOutputs = getHashOutputs();
             } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
                 ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
                 uint64ToByteStreamLE(
@@ -1519,6 +1520,51 @@ public class Transaction extends ChildMessage {
         return Sha256Hash.twiceOf(bos.toByteArray());
     }
 
+    byte[] getHashPrevouts() throws IOException {
+        byte[] hashPrevouts = cachedHashPrevouts;
+        if (hashPrevouts == null) {
+            ByteArrayOutputStream bosHashPrevouts = new UnsafeByteArrayOutputStream(inputs.size() * 36);
+            for (TransactionInput input : this.inputs) {
+                bosHashPrevouts.write(input.getOutpoint().getHash().getReversedBytes());
+                uint32ToByteStreamLE(input.getOutpoint().getIndex(), bosHashPrevouts);
+            }
+            hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
+            cachedHashPrevouts = hashPrevouts;
+        }
+        return hashPrevouts;
+    }
+
+    byte[] getHashSequence() throws IOException {
+        byte[] hashSequence = cachedHashSequence;
+        if (hashSequence == null) {
+            ByteArrayOutputStream bosSequence = new UnsafeByteArrayOutputStream(inputs.size() * 4);
+            for (TransactionInput input : this.inputs) {
+                uint32ToByteStreamLE(input.getSequenceNumber(), bosSequence);
+            }
+            hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
+            cachedHashSequence = hashSequence;
+        }
+        return hashSequence;
+    }
+
+    byte[] getHashOutputs() throws IOException {
+        byte[] hashOutputs = cachedHashOutputs;
+        if (hashOutputs == null) {
+            ByteArrayOutputStream bosHashOutputs = new UnsafeByteArrayOutputStream(256);
+            for (TransactionOutput output : this.outputs) {
+                uint64ToByteStreamLE(
+                        BigInteger.valueOf(output.getValue().getValue()),
+                        bosHashOutputs
+                );
+                bosHashOutputs.write(new VarInt(output.getScriptBytes().length).encode());
+                bosHashOutputs.write(output.getScriptBytes());
+            }
+            hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
+            cachedHashOutputs = hashOutputs;
+        }
+        return hashOutputs;
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         boolean useSegwit = hasWitnesses() && allowWitness();
@@ -1628,6 +1674,8 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
+        unCacheSigHashes();
         Collections.shuffle(outputs);
     }
 
@@ -1863,7 +1911,10 @@ public class Transaction extends ChildMessage {
      * information on the point of this field and what it can be.
      */
     public void setPurpose(Purpose purpose) {
+        if (this.purpose == purpose)
+            return;
         this.purpose = purpose;
+        queueMetadataChanged();
     }
 
     /**
@@ -1878,7 +1929,10 @@ public class Transaction extends ChildMessage {
      * Setter for {@link #exchangeRate}.
      */
     public void setExchangeRate(ExchangeRate exchangeRate) {
+        if (Objects.equals(this.exchangeRate, exchangeRate))
+            return;
         this.exchangeRate = exchangeRate;
+        queueMetadataChanged();
     }
 
     /**
@@ -1894,6 +1948,15 @@ public class Transaction extends ChildMessage {
      * transaction.
      */
     public void setMemo(String memo) {
+        if (Objects.equals(this.memo, memo))
+            return;
         this.memo = memo;
+        queueMetadataChanged();
+    }
+
+    /** Tells the listeners of the confidence, if there are any yet, that the purpose, exchange rate or memo changed. */
+    private void queueMetadataChanged() {
+        if (confidence != null)
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.METADATA);
     }
 }
@@ -54,6 +54,8 @@ public class TransactionBroadcast {
     private int minConnections;
     private boolean dropPeersAfterBroadcast = false;
     private int numWaitingFor;
+    // The transaction serialized for the wire once, shared by all peers it's sent to.
+    @Nullable private volatile FramedMessage vFramedTx;
 
     /** Used for shuffling the peers before broadcast: unit tests can replace this to make themselves deterministic. */
     @VisibleForTesting
@@ -93,6 +95,22 @@ public class TransactionBroadcast {
         return ListenableCompletableFuture.of(future);
     }
 
+    /** Returns the transaction being broadcast. */
+    Transaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Returns the transaction serialized for the wire. It's serialized on first use only, so sending it to many peers
+     * and answering their getdata costs a single serialization.
+     */
+    FramedMessage getFramedTransaction() {
+        FramedMessage framedTx = vFramedTx;
+        if (framedTx == null)
+            vFramedTx = framedTx = tx.getParams().getDefaultSerializer().frame(tx);
+        return framedTx;
+    }
+
     public void setMinConnections(int minConnections) {
         this.minConnections = minConnections;
     }
@@ -165,9 +183,10 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getTxId());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, InternalUtils.joiner(",").join(peers));
+            FramedMessage framedTx = getFramedTransaction();
             for (final Peer peer : peers) {
                 try {
-                    CompletableFuture<Void> future = peer.sendMessage(tx);
+                    CompletableFuture<Void> future = peer.sendMessage(framedTx);
                     if (dropPeersAfterBroadcast) {
                         // We drop the peer shortly after the transaction has been sent, because this peer will not
                         // send us back useful broadcast confirmations.
@@ -32,6 +32,7 @@ import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.function.IntSupplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -63,7 +64,8 @@ import static com.google.common.base.Preconditions.checkState;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * method to ensure the block depth is up to date, unless a chain height source has been set with
+ * {@link #setChainHeightSource(IntSupplier)}, in which case the depth is derived from the height of the best chain.</p>
  * To make a copy that won't be changed, use {@link TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -88,6 +90,9 @@ public class TransactionConfidence {
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
+    // If set, the depth of a BUILDING transaction is not counted but derived from appearedAtChainHeight and the height
+    // of the best chain returned by this.
+    @Nullable private IntSupplier chainHeightSource;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -196,6 +201,12 @@ public class TransactionConfidence {
              * is considered relayable and has thus reached the miners.
              */
             SEEN_PEERS,
+
+            /**
+             * Occurs when the purpose, the exchange rate or the memo of the transaction was set. They aren't part of
+             * the confidence, but wallets listen for this to save them.
+             */
+            METADATA,
         }
         void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason);
     }
@@ -282,6 +293,9 @@ public class TransactionConfidence {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        // Keep the depth the transaction had when it leaves the best chain, as a counted depth would.
+        if (chainHeightSource != null && this.confidenceType == ConfidenceType.BUILDING)
+            depth = getDepthInBlocks();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -379,14 +393,39 @@ public class TransactionConfidence {
 
     /**
      * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * internal counter that tracks how deeply buried the block is. Does nothing if the depth is derived from the
+     * chain height.
      *
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
+        if (chainHeightSource != null)
+            return getDepthInBlocks();
         return ++this.depth;
     }
 
+    /**
+     * <p>Makes the depth of this transaction, while it is BUILDING, be computed on demand from the height it appeared
+     * at and the height of the best chain as returned by the given source, rather than being counted up by
+     * {@link #incrementDepthInBlocks()} for every block. This way nothing has to touch the transaction when a new
+     * block arrives.</p>
+     *
+     * <p>The source is called with the lock of this object held, so it must be cheap and must not take any locks.
+     * Pass null to go back to counting, starting from the current depth.</p>
+     */
+    public synchronized void setChainHeightSource(@Nullable IntSupplier chainHeightSource) {
+        if (chainHeightSource == this.chainHeightSource)
+            return;
+        if (this.chainHeightSource != null)
+            depth = getDepthInBlocks();
+        this.chainHeightSource = chainHeightSource;
+    }
+
+    /** Returns true if the depth is derived from the chain height. See {@link #setChainHeightSource(IntSupplier)}. */
+    public synchronized boolean isDepthDerivedFromChainHeight() {
+        return chainHeightSource != null;
+    }
+
     /**
      * <p>Depth in the chain is an approximation of how much time has elapsed since the transaction has been confirmed.
      * On average there is supposed to be a new block every 10 minutes, but the actual rate may vary. Bitcoin Core
@@ -398,11 +437,15 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (chainHeightSource != null && confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0)
+            // The source may lag behind while the block containing the transaction is being processed.
+            return Math.max(1, chainHeightSource.getAsInt() - appearedAtChainHeight + 1);
         return depth;
     }
 
     /*
-     * Set the depth in blocks. Having one block confirmation is a depth of one.
+     * Set the depth in blocks. Having one block confirmation is a depth of one. While the transaction is BUILDING and
+     * the depth is derived from the chain height, the given depth is not used.
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
@@ -223,6 +223,8 @@ public class TransactionInput extends ChildMessage {
      */
     public void setSequenceNumber(long sequence) {
         unCache();
+        if (parent != null)
+            getParentTransaction().unCacheSigHashes();
         this.sequence = sequence;
     }
 
@@ -209,6 +209,8 @@ public class TransactionOutPoint extends ChildMessage {
      */
     @Deprecated
     void setHash(Sha256Hash hash) {
+        unCache();
+        unCacheSigHashes();
         this.hash = hash;
     }
 
@@ -222,9 +224,17 @@ public class TransactionOutPoint extends ChildMessage {
      */
     @Deprecated
     public void setIndex(long index) {
+        unCache();
+        unCacheSigHashes();
         this.index = index;
     }
 
+    private void unCacheSigHashes() {
+        Transaction tx = parent instanceof TransactionInput ? ((TransactionInput) parent).getParentTransaction() : null;
+        if (tx != null)
+            tx.unCacheSigHashes();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
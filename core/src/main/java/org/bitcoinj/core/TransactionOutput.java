@@ -172,6 +172,8 @@ public class TransactionOutput extends ChildMessage {
     public void setValue(Coin value) {
         checkNotNull(value);
         unCache();
+        if (parent != null)
+            getParentTransaction().unCacheSigHashes();
         this.value = value.value;
     }
 
@@ -22,10 +22,20 @@ import javax.annotation.Nullable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -38,29 +48,71 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every peer reports every announced transaction here, so the table is split into segments by hash, each with its
+ * own lock. Its size is bounded by a number of transactions and by an estimate of the memory used by them and the
+ * peers that announced them. When either bound is exceeded, the oldest transactions of the table are evicted, but never
+ * the one that is being looked up or announced. One thread at a time evicts, down to 90% of the bounds, so that a
+ * full table only visits all segments once every so many insertions. The table counts hits, misses, evictions and the
+ * peers tracked per transaction, see {@link #toString()}.</p>
  */
 public class TxConfidenceTable {
-    protected final ReentrantLock lock = Threading.lock(TxConfidenceTable.class);
+    // Must be a power of two.
+    private static final int SEGMENTS = 16;
+    // On average, every this many calls drain the reference queue.
+    private static final int CLEANUP_INTERVAL = 64;
+    // Rough estimates of the memory used by a tracked transaction (the hash, the map entry, the reference and the
+    // confidence object) and by each peer that announced it (the peer address and its slot in the confidence).
+    static final long ENTRY_BYTES = 400;
+    static final long PEER_BYTES = 160;
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
         public Sha256Hash hash;
-        public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
+        // Number of peers recorded by seen(), guarded by the lock of the segment.
+        int peers;
+        // Order of insertion into the table, to find the oldest entry over all segments.
+        final long sequence;
+        public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue,
+                                       long sequence) {
             super(confidence, queue);
             hash = confidence.getTransactionHash();
+            this.sequence = sequence;
         }
     }
-    private final Map<Sha256Hash, WeakConfidenceReference> table;
+
+    private static class Segment {
+        final ReentrantLock lock = Threading.lock("TxConfidenceTable segment");
+        // In insertion order, so the eldest entries are evicted first.
+        final Map<Sha256Hash, WeakConfidenceReference> table = new LinkedHashMap<>();
+    }
+
+    private final Segment[] segments;
+    private final int maxEntries;
+    private final long maxBytes;
     private final TransactionConfidence.Factory confidenceFactory;
 
+    private final AtomicLong insertions = new AtomicLong();
+    private final AtomicInteger entries = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong trackedPeers = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
     // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    // if our peers flood us with invs but the size bounds cap this.
+    private final ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final ReentrantLock cleanupLock = Threading.lock("TxConfidenceTable cleanup");
+    private final ReentrantLock evictionLock = Threading.lock("TxConfidenceTable eviction");
 
-    /** The max size of a table created with the no-args constructor. */
+    /** The max number of transactions of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
+    /** The max estimated memory usage of a table created with the no-args constructor. */
+    public static final long MAX_BYTES = 8 * 1024 * 1024;
 
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
@@ -68,73 +120,184 @@ public class TxConfidenceTable {
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        this(size, new TransactionConfidence.Factory());
+        this(size, Long.MAX_VALUE);
     }
 
-    TxConfidenceTable(final int size, TransactionConfidence.Factory confidenceFactory){
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+    /**
+     * Creates a table that will track at most the given number of transactions, and stops growing when the estimated
+     * memory used by them and the peers that announced them exceeds the given number of bytes.
+     * @param size Max number of transactions to track.
+     * @param maxBytes Max estimated memory usage of the tracked transactions.
+     */
+    public TxConfidenceTable(final int size, final long maxBytes) {
+        this(size, maxBytes, new TransactionConfidence.Factory());
+    }
+
+    TxConfidenceTable(final int size, final long maxBytes, TransactionConfidence.Factory confidenceFactory) {
+        checkArgument(size > 0, "size must be positive");
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+        this.maxEntries = size;
+        this.maxBytes = maxBytes;
         referenceQueue = new ReferenceQueue<>();
         this.confidenceFactory = confidenceFactory;
     }
 
     /**
-     * Creates a table that will track at most {@link TxConfidenceTable#MAX_SIZE} entries. You should normally use
-     * this constructor.
+     * Creates a table that will track at most {@link TxConfidenceTable#MAX_SIZE} entries using at most
+     * {@link TxConfidenceTable#MAX_BYTES}. You should normally use this constructor.
      */
     public TxConfidenceTable() {
-        this(MAX_SIZE);
+        this(MAX_SIZE, MAX_BYTES);
+    }
+
+    private Segment segment(Sha256Hash hash) {
+        // The top bits, as the hash maps of the segments use the bottom ones.
+        return segments[hash.hashCode() >>> (Integer.SIZE - Integer.numberOfTrailingZeros(SEGMENTS))];
     }
 
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
      * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
+     * are relevant to any of our wallets. Only one thread drains the queue at a time, the others don't wait for it.
      */
     private void cleanTable() {
-        lock.lock();
+        if (!cleanupLock.tryLock())
+            return;
         try {
             Reference<? extends TransactionConfidence> ref;
             while ((ref = referenceQueue.poll()) != null) {
                 // Find which transaction got deleted by the GC.
                 WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
+                // And remove the associated map entry so the other bits of memory can also be reclaimed, unless
+                // it was evicted or replaced already.
+                Segment segment = segment(txRef.hash);
+                segment.lock.lock();
+                try {
+                    if (segment.table.remove(txRef.hash, txRef)) {
+                        release(txRef);
+                        expirations.increment();
+                    }
+                } finally {
+                    segment.lock.unlock();
+                }
             }
         } finally {
-            lock.unlock();
+            cleanupLock.unlock();
+        }
+    }
+
+    /** Drains the reference queue once every {@link #CLEANUP_INTERVAL} calls on average. */
+    private void maybeCleanTable() {
+        if (ThreadLocalRandom.current().nextInt(CLEANUP_INTERVAL) == 0)
+            cleanTable();
+    }
+
+    /** Updates the totals for a removed entry. Must hold the lock of its segment. */
+    private void release(WeakConfidenceReference ref) {
+        entries.decrementAndGet();
+        bytes.addAndGet(-ENTRY_BYTES - ref.peers * PEER_BYTES);
+        trackedPeers.addAndGet(-ref.peers);
+    }
+
+    private boolean isFull() {
+        return entries.get() > maxEntries || bytes.get() > maxBytes;
+    }
+
+    /**
+     * Evicts the oldest entries of the table until it is within 90% of its bounds, except for the entry of the given
+     * hash, which the caller is about to return. If another thread is evicting already, leaves it to that one. Only
+     * holds the lock of one segment at a time, so it must be called without holding any.
+     */
+    private void evict(Sha256Hash keep) {
+        if (!evictionLock.tryLock())
+            return;
+        try {
+            long targetEntries = maxEntries - maxEntries / 10;
+            long targetBytes = maxBytes - maxBytes / 10;
+            while (entries.get() > targetEntries || bytes.get() > targetBytes) {
+                // Every entry takes at least ENTRY_BYTES, so this many are enough unless more peers come in between.
+                long excessBytes = bytes.get() - targetBytes;
+                long count = Math.max(entries.get() - targetEntries,
+                        (excessBytes + ENTRY_BYTES - 1) / ENTRY_BYTES);
+                List<WeakConfidenceReference> oldest = oldest((int) Math.min(count, maxEntries + 1L), keep);
+                if (oldest.isEmpty())
+                    return; // Only the kept entry is left.
+                for (WeakConfidenceReference ref : oldest) {
+                    Segment segment = segment(ref.hash);
+                    segment.lock.lock();
+                    try {
+                        // Unless it expired or was replaced in between.
+                        if (segment.table.remove(ref.hash, ref)) {
+                            release(ref);
+                            evictions.increment();
+                        }
+                    } finally {
+                        segment.lock.unlock();
+                    }
+                    if (entries.get() <= targetEntries && bytes.get() <= targetBytes)
+                        return;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the given number of oldest entries of the table, oldest first, except for the given hash. Every segment
+     * is in insertion order, so they are among the eldest entries of each segment.
+     */
+    private List<WeakConfidenceReference> oldest(int count, Sha256Hash except) {
+        List<WeakConfidenceReference> candidates = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                int taken = 0;
+                for (Iterator<WeakConfidenceReference> i = segment.table.values().iterator();
+                     i.hasNext() && taken < count; ) {
+                    WeakConfidenceReference ref = i.next();
+                    if (!ref.hash.equals(except)) {
+                        candidates.add(ref);
+                        taken++;
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
         }
+        candidates.sort(Comparator.comparingLong(ref -> ref.sequence));
+        return candidates.size() > count ? candidates.subList(0, count) : candidates;
     }
 
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        maybeCleanTable();
+        Segment segment = segment(txHash);
+        segment.lock.lock();
         try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
+            WeakConfidenceReference entry = segment.table.get(txHash);
             if (entry == null) {
                 return 0;  // No such TX known.
             } else {
                 TransactionConfidence confidence = entry.get();
                 if (confidence == null) {
                     // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
+                    segment.table.remove(txHash);
+                    release(entry);
+                    expirations.increment();
                     return 0;
                 } else {
                     return confidence.numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -147,14 +310,23 @@ public class TxConfidenceTable {
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
         TransactionConfidence confidence;
         boolean fresh = false;
-        lock.lock();
+        maybeCleanTable();
+        Segment segment = segment(hash);
+        segment.lock.lock();
         try {
-            cleanTable();
-            confidence = getOrCreate(hash);
+            WeakConfidenceReference reference = getOrCreate(segment, hash);
+            confidence = checkNotNull(reference.get());
             fresh = confidence.markBroadcastBy(byPeer);
+            if (fresh) {
+                reference.peers++;
+                trackedPeers.incrementAndGet();
+                bytes.addAndGet(PEER_BYTES);
+            }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
+        if (isFull())
+            evict(hash);
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
@@ -166,20 +338,44 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        TransactionConfidence confidence;
+        Segment segment = segment(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
-            }
-            TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
-            return newConfidence;
+            // The referent is strongly reachable from the stack while we return it.
+            confidence = checkNotNull(getOrCreate(segment, hash).get());
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
+        if (isFull())
+            evict(hash);
+        return confidence;
+    }
+
+    /**
+     * Returns the reference to the live confidence for the given hash, creating it if needed. Must hold the lock of
+     * the segment. The caller must get the referent before releasing the lock, so the new confidence can't be
+     * collected in between, and evict entries afterwards if the table is full.
+     */
+    private WeakConfidenceReference getOrCreate(Segment segment, Sha256Hash hash) {
+        WeakConfidenceReference reference = segment.table.get(hash);
+        if (reference != null) {
+            if (reference.get() != null) {
+                hits.increment();
+                return reference;
+            }
+            // Collected but not cleaned yet.
+            segment.table.remove(hash);
+            release(reference);
+            expirations.increment();
+        }
+        misses.increment();
+        TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
+        reference = new WeakConfidenceReference(newConfidence, referenceQueue, insertions.getAndIncrement());
+        segment.table.put(hash, reference);
+        entries.incrementAndGet();
+        bytes.addAndGet(ENTRY_BYTES);
+        return reference;
     }
 
     /**
@@ -188,18 +384,67 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Segment segment = segment(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
-            if (ref == null)
-                return null;
-            TransactionConfidence confidence = ref.get();
+            WeakConfidenceReference ref = segment.table.get(hash);
+            TransactionConfidence confidence = ref != null ? ref.get() : null;
             if (confidence != null)
-                return confidence;
+                hits.increment();
             else
-                return null;
+                misses.increment();
+            return confidence;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
+
+    /** Returns the number of tracked transactions, including ones that were collected but not cleaned up yet. */
+    public int size() {
+        return entries.get();
+    }
+
+    /** Returns the estimated memory used by the tracked transactions and the peers that announced them. */
+    public long getEstimatedBytes() {
+        return bytes.get();
+    }
+
+    /** Returns how often a lookup found a live confidence. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Returns how often a lookup found no live confidence. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Returns the number of transactions evicted to stay within the bounds of the table. */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Returns the number of transactions removed because nothing else referenced their confidence anymore. */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /** Returns the number of announcing peers recorded by {@link #seen(Sha256Hash, PeerAddress)}, over all tracked transactions. */
+    public long getTrackedPeers() {
+        return trackedPeers.get();
+    }
+
+    /** Returns the average number of announcing peers per tracked transaction. */
+    public double getAveragePeersPerTransaction() {
+        int size = entries.get();
+        return size > 0 ? (double) trackedPeers.get() / size : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d transactions (%d KB), %.1f peers per transaction, %d hits, %d misses, %d evictions, %d expirations",
+                size(), getEstimatedBytes() / 1024, getAveragePeersPerTransaction(), getHits(), getMisses(),
+                getEvictions(), getExpirations());
+    }
 }
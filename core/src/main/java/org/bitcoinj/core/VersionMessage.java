@@ -54,6 +54,8 @@ public class VersionMessage extends Message {
     public static final int NODE_BLOOM = 1 << 2;
     /** Indicates that a node can be asked for blocks and transactions including witness data. */
     public static final int NODE_WITNESS = 1 << 3;
+    /** A service bit that denotes whether the peer serves BIP157 compact block filters. */
+    public static final int NODE_COMPACT_FILTERS = 1 << 6;
     /** A service bit that denotes whether the peer has at least the last two days worth of blockchain (BIP159). */
     public static final int NODE_NETWORK_LIMITED = 1 << 10;
     /** A service bit used by Bitcoin-ABC to announce Bitcoin Cash nodes. */
@@ -290,6 +292,11 @@ public class VersionMessage extends Message {
         return (localServices & NODE_WITNESS) == NODE_WITNESS;
     }
 
+    /** Returns true if a peer can be asked for compact block filters (BIP157). */
+    public boolean isCompactFiltersSupported() {
+        return (localServices & NODE_COMPACT_FILTERS) == NODE_COMPACT_FILTERS;
+    }
+
     /**
      * Returns true if the version message indicates the sender has a full copy of the block chain, or false if it's
      * running in client mode (only has the headers).
@@ -317,6 +324,10 @@ public class VersionMessage extends Message {
             strings.add("WITNESS");
             services &= ~NODE_WITNESS;
         }
+        if ((services & NODE_COMPACT_FILTERS) == NODE_COMPACT_FILTERS) {
+            strings.add("COMPACT_FILTERS");
+            services &= ~NODE_COMPACT_FILTERS;
+        }
         if ((services & NODE_NETWORK_LIMITED) == NODE_NETWORK_LIMITED) {
             strings.add("NETWORK_LIMITED");
             services &= ~NODE_NETWORK_LIMITED;
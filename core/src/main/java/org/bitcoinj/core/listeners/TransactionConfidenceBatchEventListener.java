@@ -0,0 +1,36 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core.listeners;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.List;
+
+/**
+ * Implementors are called with batches of transactions whose confidence changed. Unlike a
+ * {@link TransactionConfidenceEventListener}, they get one call for all changes within a time window, see
+ * {@link Wallet#addTransactionConfidenceBatchEventListener(java.util.concurrent.Executor, long, TransactionConfidenceBatchEventListener)}.
+ */
+public interface TransactionConfidenceBatchEventListener {
+    /**
+     * Called with the transactions whose confidence changed since the last call, each of them once, in the order of
+     * their first change. The current confidences are available from {@link Transaction#getConfidence()}.
+     */
+    void onTransactionConfidencesChanged(Wallet wallet, List<Transaction> transactions);
+}
@@ -18,13 +18,19 @@ package org.bitcoinj.crypto;
 
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.Utils;
+import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.math.ec.ECPoint;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -54,6 +60,9 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    /** Number of keys derived by one task in {@link #deriveChildKeysFromPublic(DeterministicKey, int, int)}. */
+    private static final int BULK_DERIVATION_BATCH_SIZE = 64;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -229,6 +238,78 @@ public final class HDKeyDerivation {
         return new RawKeyBytes(Ki.getEncoded(true), chainCode);
     }
 
+    /**
+     * <p>Derives the public keys of {@code count} consecutive non-hardened children of the given parent, starting at
+     * {@code childNumber}. Like {@link #generate(DeterministicKey, int)}, a child whose derivation fails is skipped
+     * and the next one is derived instead. The returned keys are created without private key bytes, but like keys
+     * derived by {@link #deriveChildKeyFromPublic}, they derive them from the parent on demand if it has any.</p>
+     *
+     * <p>This is meant for filling large lookahead zones. The work is split into batches that are derived in parallel
+     * on the common {@link java.util.concurrent.ForkJoinPool}, and the points of each batch are normalized with a
+     * single shared field inversion instead of one inversion per key.</p>
+     *
+     * @return unmodifiable list of keys, ordered by child number
+     */
+    public static List<DeterministicKey> deriveChildKeysFromPublic(DeterministicKey parent, int childNumber,
+                                                                   int count) {
+        checkArgument(count >= 0, "count must not be negative");
+        checkArgument(!new ChildNumber(childNumber).isHardened(), "Hardened derivation is unsupported (%s).",
+                childNumber);
+        // Decode the parent point once, before it is shared by the worker threads.
+        final ECPoint parentPoint = parent.getPubKeyPoint();
+        final byte[] parentPublicKey = parentPoint.getEncoded(true);
+        int batches = (count + BULK_DERIVATION_BATCH_SIZE - 1) / BULK_DERIVATION_BATCH_SIZE;
+        List<DeterministicKey> keys = IntStream.range(0, batches).parallel()
+                .mapToObj(batch -> {
+                    int first = batch * BULK_DERIVATION_BATCH_SIZE;
+                    return deriveChildKeysFromPublic(parent, parentPoint, parentPublicKey, childNumber + first,
+                            Math.min(BULK_DERIVATION_BATCH_SIZE, count - first));
+                })
+                .flatMap(List::stream)
+                .collect(Collectors.toCollection(ArrayList::new));
+        // Make up for children that could not be derived, which is extremely unlikely.
+        int nextChild = childNumber + count;
+        while (keys.size() < count) {
+            keys.addAll(deriveChildKeysFromPublic(parent, parentPoint, parentPublicKey, nextChild++, 1));
+            checkState(nextChild - childNumber - count < MAX_CHILD_DERIVATION_ATTEMPTS,
+                    "Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
+        }
+        return Collections.unmodifiableList(keys);
+    }
+
+    /** Derives a batch of public keys, leaving out children whose derivation fails. */
+    private static List<DeterministicKey> deriveChildKeysFromPublic(DeterministicKey parent, ECPoint parentPoint,
+            byte[] parentPublicKey, int childNumber, int count) {
+        HMac hmacSha512 = HDUtils.createHmacSha512Digest(parent.getChainCode());
+        ECPoint[] points = new ECPoint[count];
+        byte[][] chainCodes = new byte[count][];
+        for (int n = 0; n < count; n++) {
+            ByteBuffer data = ByteBuffer.allocate(37);
+            data.put(parentPublicKey);
+            data.putInt(childNumber + n);
+            byte[] i = HDUtils.hmacSha512(hmacSha512, data.array());
+            BigInteger ilInt = Utils.bytesToBigInteger(Arrays.copyOfRange(i, 0, 32));
+            if (ilInt.compareTo(ECKey.CURVE.getN()) > 0)
+                continue; // Illegal derived key: I_L >= n
+            ECPoint Ki = ECKey.publicPointFromPrivate(ilInt).add(parentPoint);
+            if (Ki.isInfinity())
+                continue; // Illegal derived key: derived public key equals infinity.
+            points[n] = Ki;
+            chainCodes[n] = Arrays.copyOfRange(i, 32, 64);
+        }
+        // Skips the null entries of the children left out above.
+        ECKey.CURVE.getCurve().normalizeAll(points);
+        List<DeterministicKey> keys = new ArrayList<>(count);
+        for (int n = 0; n < count; n++) {
+            if (points[n] == null)
+                continue;
+            ChildNumber child = new ChildNumber(childNumber + n);
+            keys.add(new DeterministicKey(parent.getPath().extend(child), chainCodes[n],
+                    new LazyECPoint(points[n], true), null, parent));
+        }
+        return keys;
+    }
+
     private static void assertNonZero(BigInteger integer, String errorMessage) {
         if (integer.equals(BigInteger.ZERO))
             throw new HDDerivationException(errorMessage);
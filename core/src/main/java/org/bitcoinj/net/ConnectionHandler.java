@@ -31,23 +31,25 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-// TODO: The locking in all this class is horrible and not really necessary. We should just run all network stuff on one thread.
-
 /**
- * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
- * Used only by the NioClient and NioServer classes
+ * <p>A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
+ * Used only by the NioClient and NioServer classes</p>
+ *
+ * <p>All reading and writing happens on the thread selecting the key of the connection. Other threads only queue
+ * outbound messages and ask the selector for a write, so reads and writes don't take any locks.</p>
  */
 class ConnectionHandler implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
-    // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
+    // We only lock when opening and closing the connection, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock(ConnectionHandler.class);
 
@@ -56,14 +58,16 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
-    @GuardedBy("lock") private final ByteBuffer readBuff;
-    @GuardedBy("lock") private final SocketChannel channel;
-    @GuardedBy("lock") private final SelectionKey key;
-    @GuardedBy("lock") StreamConnection connection;
+    // Only used by the selector thread.
+    private final ByteBuffer readBuff;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    StreamConnection connection;
     @GuardedBy("lock") private boolean closeCalled = false;
 
-    @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<BytesAndFuture> bytesToWrite = new LinkedList<>();
+    // Filled by any thread, drained by the selector thread.
+    private final AtomicLong bytesToWriteRemaining = new AtomicLong();
+    private final Queue<BytesAndFuture> bytesToWrite = new ConcurrentLinkedQueue<>();
 
     private static class BytesAndFuture {
         public final ByteBuffer bytes;
@@ -112,7 +116,6 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
-    @GuardedBy("lock")
     private void setWriteOps() {
         // Make sure we are registered to get updated when writing is available again
         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
@@ -120,67 +123,56 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
-    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
+    // Tries to write any outstanding write bytes, runs in the selector thread
     private void tryWriteBytes() throws IOException {
-        lock.lock();
-        try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
-            while (iterator.hasNext()) {
-                BytesAndFuture bytesAndFuture = iterator.next();
-                bytesToWriteRemaining -= channel.write(bytesAndFuture.bytes);
-                if (!bytesAndFuture.bytes.hasRemaining()) {
-                    iterator.remove();
-                    bytesAndFuture.future.complete(null);
-                } else {
-                    setWriteOps();
-                    break;
-                }
-            }
-            // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
-        } finally {
-            lock.unlock();
+        // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
+        BytesAndFuture bytesAndFuture;
+        while ((bytesAndFuture = bytesToWrite.peek()) != null) {
+            bytesToWriteRemaining.addAndGet(-channel.write(bytesAndFuture.bytes));
+            if (bytesAndFuture.bytes.hasRemaining())
+                return; // OP_WRITE is still set, so we get called again when there is buffer space.
+            bytesToWrite.poll();
+            bytesAndFuture.future.complete(null);
         }
+        // We are done writing, clear the OP_WRITE interestOps. A writer may have queued a message since we found the
+        // queue empty and set OP_WRITE before we cleared it, so look again.
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (!bytesToWrite.isEmpty())
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        // Don't bother waking up the selector here, since we are the selector thread
     }
 
     @Override
     public ListenableCompletableFuture<Void> writeBytes(byte[] message) throws IOException {
-        boolean andUnlock = true;
-        lock.lock();
-        try {
-            // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
-                throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            final ListenableCompletableFuture<Void> future = new ListenableCompletableFuture<>();
-            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), future));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
-            return future;
-        } catch (IOException e) {
-            lock.unlock();
-            andUnlock = false;
+        return writeBytes(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    @Override
+    public ListenableCompletableFuture<Void> writeBytes(ByteBuffer message) throws IOException {
+        // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
+        // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
+        // append to it when we want to send a message. We then let the selector thread call tryWriteBytes() to send
+        // the message as soon as we have free outbound buffer space available.
+        int length = message.remaining();
+        if (bytesToWriteRemaining.addAndGet(length) > OUTBOUND_BUFFER_BYTE_COUNT) {
+            bytesToWriteRemaining.addAndGet(-length);
+            IOException e = new IOException("Outbound buffer overflowed");
             log.warn("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
+        }
+        // Just dump the message onto the write buffer and register for OP_WRITE. The buffer is shared with the caller
+        // and possibly other connections, so only our own view of it is advanced while writing.
+        final ListenableCompletableFuture<Void> future = new ListenableCompletableFuture<>();
+        bytesToWrite.offer(new BytesAndFuture(message.duplicate(), future));
+        try {
+            setWriteOps();
         } catch (CancelledKeyException e) {
-            lock.unlock();
-            andUnlock = false;
             log.warn("Error writing message to connection, closing connection", e);
             closeConnection();
             throw new IOException(e);
-        } finally {
-            if (andUnlock)
-                lock.unlock();
         }
+        return future;
     }
 
     // May NOT be called with lock held
@@ -211,8 +203,7 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     // Handle a SelectionKey which was selected
-    // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
-    // atomically for a given ConnectionHandler)
+    // Runs unlocked as it is only called by the single thread selecting the key
     public static void handleKey(SelectionKey key) {
         ConnectionHandler handler = ((ConnectionHandler)key.attachment());
         try {
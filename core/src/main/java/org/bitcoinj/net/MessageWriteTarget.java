@@ -19,6 +19,7 @@ package org.bitcoinj.net;
 import org.bitcoinj.utils.ListenableCompletableFuture;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -29,6 +30,17 @@ public interface MessageWriteTarget {
      * have been written to the OS network buffer.
      */
     ListenableCompletableFuture<Void> writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the remaining bytes of the given buffer to the remote server, leaving the position of the buffer
+     * untouched. Unlike {@link #writeBytes(byte[])}, implementations may write straight from the buffer instead of
+     * copying it, so its contents must not change anymore. This allows the same message to be queued on many
+     * connections at once.
+     */
+    default ListenableCompletableFuture<Void> writeBytes(ByteBuffer message) throws IOException {
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        return writeBytes(bytes);
+    }
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import org.bitcoinj.utils.ListenableCompletableFuture;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link ClientConnectionManager} that spreads its connections over several {@link NioClientManager}s, each
+ * with its own selector and thread. A connection stays on the thread it was opened on, which reads, frames and
+ * deserializes its messages, so with many peers this work runs on all cores instead of one.</p>
+ *
+ * <p>New connections go to the reactor with the fewest connections. Pass an instance to
+ * {@link org.bitcoinj.core.PeerGroup#PeerGroup(org.bitcoinj.core.NetworkParameters, org.bitcoinj.core.AbstractBlockChain, ClientConnectionManager)}
+ * to use it for the peers of a peer group.</p>
+ */
+public class MultiReactorClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private final NioClientManager[] reactors;
+    // Breaks ties between equally loaded reactors.
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Creates a client manager with one reactor per available processor. */
+    public MultiReactorClientManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a client manager with the given number of reactors. */
+    public MultiReactorClientManager(int reactors) {
+        checkArgument(reactors > 0, "reactors must be positive");
+        this.reactors = new NioClientManager[reactors];
+        for (int i = 0; i < reactors; i++)
+            this.reactors[i] = new NioClientManager("NioClientManager " + (i + 1) + "/" + reactors);
+    }
+
+    @Override
+    protected void startUp() {
+        for (NioClientManager reactor : reactors)
+            reactor.startAsync();
+        for (NioClientManager reactor : reactors)
+            reactor.awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() {
+        for (NioClientManager reactor : reactors)
+            reactor.stopAsync();
+        for (NioClientManager reactor : reactors)
+            reactor.awaitTerminated();
+    }
+
+    @Override
+    public ListenableCompletableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        int start = Math.floorMod(next.getAndIncrement(), reactors.length);
+        NioClientManager target = reactors[start];
+        for (int i = 1; i < reactors.length; i++) {
+            NioClientManager reactor = reactors[(start + i) % reactors.length];
+            if (reactor.getConnectedClientCount() < target.getConnectedClientCount())
+                target = reactor;
+        }
+        return target.openConnection(serverAddress, connection);
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager reactor : reactors)
+            count += reactor.getConnectedClientCount();
+        return count;
+    }
+
+    /** Returns the number of connections of each reactor. */
+    public int[] getConnectedClientCounts() {
+        int[] counts = new int[reactors.length];
+        for (int i = 0; i < reactors.length; i++)
+            counts[i] = reactors[i].getConnectedClientCount();
+        return counts;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        // Close from the most loaded reactors, so the remaining connections stay spread out.
+        while (n-- > 0) {
+            NioClientManager target = null;
+            for (NioClientManager reactor : reactors)
+                if (target == null || reactor.getConnectedClientCount() > target.getConnectedClientCount())
+                    target = reactor;
+            if (target.getConnectedClientCount() == 0)
+                return;
+            target.closeConnections(1);
+        }
+    }
+}
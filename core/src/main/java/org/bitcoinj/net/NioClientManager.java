@@ -47,6 +47,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    private final String threadName;
 
     static class PendingConnect {
         SocketChannel sc;
@@ -101,6 +102,12 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this("NioClientManager");
+    }
+
+    /** Creates a new client manager whose select calls are handled by a thread with the given name. */
+    NioClientManager(String threadName) {
+        this.threadName = threadName;
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
@@ -196,6 +203,6 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     protected Executor executor() {
-        return command -> new ContextPropagatingThreadFactory("NioClientManager").newThread(command).start();
+        return command -> new ContextPropagatingThreadFactory(threadName).newThread(command).start();
     }
 }
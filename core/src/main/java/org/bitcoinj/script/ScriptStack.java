@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * <p>The stack of the script interpreter, backed by an array that grows as needed and is reused when the stack is
+ * cleared. Unlike a {@link LinkedList}, pushing and popping does not allocate.</p>
+ *
+ * <p>Elements are addressed by their depth, 0 being the top of the stack. Callers are expected to check the size of
+ * the stack before popping or peeking, as the interpreter has to do that anyway to raise the right
+ * {@link ScriptException}.</p>
+ */
+final class ScriptStack {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        elements = new byte[INITIAL_CAPACITY][];
+    }
+
+    /** Creates a stack with the elements of the given collection, the last one on top. */
+    ScriptStack(Collection<byte[]> collection) {
+        elements = new byte[Math.max(INITIAL_CAPACITY, collection.size())][];
+        for (byte[] element : collection)
+            elements[size++] = element;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    byte[] peek() {
+        return elements[size - 1];
+    }
+
+    /** Returns the element at the given depth without removing it. */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes and returns the element at the given depth. */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Removes the given number of elements from the top. */
+    void drop(int count) {
+        Arrays.fill(elements, size - count, size, null);
+        size -= count;
+    }
+
+    void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+    }
+
+    /** Replaces the contents of this stack with the contents of the given stack. */
+    void copyFrom(ScriptStack other) {
+        if (elements.length < other.size)
+            elements = new byte[other.elements.length][];
+        else if (size > other.size)
+            Arrays.fill(elements, other.size, size, null);
+        System.arraycopy(other.elements, 0, elements, 0, other.size);
+        size = other.size;
+    }
+
+    /** Returns the elements as a new list, bottom first. */
+    LinkedList<byte[]> toList() {
+        LinkedList<byte[]> list = new LinkedList<>();
+        for (int i = 0; i < size; i++)
+            list.add(elements[i]);
+        return list;
+    }
+}
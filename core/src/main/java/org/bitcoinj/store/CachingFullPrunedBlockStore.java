@@ -0,0 +1,503 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps a write-back cache of unspent outputs in front of any other
+ * FullPrunedBlockStore, similar to the dbcache of Bitcoin Core.</p>
+ *
+ * <p>Outputs read from the underlying store are kept in memory, and outputs added or removed by the block chain only
+ * change the cache. Blocks, undo blocks and chain heads are held back as well, so the underlying store always
+ * reflects the state at the last flush: if the process dies, the chain resumes from there. Everything is written to
+ * the underlying store in one batch every {@code flushInterval} verified blocks, or when the estimated memory usage
+ * exceeds the budget. Outputs that are created and spent between two flushes never reach the underlying store at
+ * all. Re-orgs work as usual, as undo blocks are served from the cache until they are flushed.</p>
+ *
+ * <p>The batch write methods apply to the whole store rather than to the calling thread, so this class is meant
+ * to be used by a single {@link org.bitcoinj.core.FullPrunedBlockChain}. Other threads may read from it safely.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget of the cache, in bytes. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 256 * 1024 * 1024;
+    /** The default number of verified blocks between flushes to the underlying store. */
+    public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+    // Rough estimates of the heap used per cached entry, including the parsed script of outputs.
+    private static final int OUTPUT_BYTES = 400;
+    private static final int BLOCK_BYTES = 300;
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+    private final int flushInterval;
+
+    // Cached outputs that match the underlying store, in least recently used order. They are evicted when the cache
+    // is over budget.
+    private final LinkedHashMap<StoredTransactionOutPoint, CachedOutput> cleanOutputs =
+            new LinkedHashMap<>(16, 0.75f, true);
+    // Cached outputs that differ from the underlying store. They stay until the next flush, so they are kept apart
+    // from the clean ones to keep eviction from walking over them.
+    private final HashMap<StoredTransactionOutPoint, CachedOutput> dirtyOutputs = new HashMap<>();
+    // Blocks and chain heads that were not written to the underlying store yet.
+    private final LinkedHashMap<Sha256Hash, PendingBlock> pendingBlocks = new LinkedHashMap<>();
+    @Nullable private StoredBlock pendingChainHead;
+    @Nullable private StoredBlock pendingVerifiedChainHead;
+    private long cacheBytes;
+    private int blocksSinceFlush;
+
+    // State needed to undo the current batch write.
+    private boolean inBatch;
+    private final List<OutputUndo> outputUndoLog = new ArrayList<>();
+    private final List<BlockUndo> blockUndoLog = new ArrayList<>();
+    @Nullable private StoredBlock batchStartChainHead;
+    @Nullable private StoredBlock batchStartVerifiedChainHead;
+
+    private long hits;
+    private long misses;
+    private long flushes;
+
+    private static class CachedOutput {
+        // The current state and the state in the underlying store as of the last flush, null meaning absent.
+        @Nullable UTXO utxo;
+        @Nullable UTXO storedUtxo;
+
+        CachedOutput(@Nullable UTXO utxo, @Nullable UTXO storedUtxo) {
+            this.utxo = utxo;
+            this.storedUtxo = storedUtxo;
+        }
+
+        boolean isDirty() {
+            return utxo != storedUtxo;
+        }
+    }
+
+    private static class PendingBlock {
+        final StoredBlock block;
+        @Nullable final StoredUndoableBlock undoableBlock;
+        final long size;
+
+        PendingBlock(StoredBlock block, @Nullable StoredUndoableBlock undoableBlock) {
+            this.block = block;
+            this.undoableBlock = undoableBlock;
+            this.size = BLOCK_BYTES + (undoableBlock != null ? estimateSize(undoableBlock) : 0);
+        }
+
+        private static long estimateSize(StoredUndoableBlock undoableBlock) {
+            List<Transaction> transactions = undoableBlock.getTransactions();
+            if (transactions != null) {
+                long size = 0;
+                for (Transaction tx : transactions)
+                    size += 2L * tx.getMessageSize();
+                return size;
+            }
+            TransactionOutputChanges changes = undoableBlock.getTxOutChanges();
+            return (long) OUTPUT_BYTES * (changes.txOutsCreated.size() + changes.txOutsSpent.size());
+        }
+    }
+
+    private static class OutputUndo {
+        final StoredTransactionOutPoint key;
+        final boolean existed;
+        @Nullable final UTXO utxo;
+        @Nullable final UTXO storedUtxo;
+
+        OutputUndo(StoredTransactionOutPoint key, @Nullable CachedOutput entry) {
+            this.key = key;
+            this.existed = entry != null;
+            this.utxo = entry != null ? entry.utxo : null;
+            this.storedUtxo = entry != null ? entry.storedUtxo : null;
+        }
+    }
+
+    private static class BlockUndo {
+        final Sha256Hash hash;
+        @Nullable final PendingBlock previous;
+
+        BlockUndo(Sha256Hash hash, @Nullable PendingBlock previous) {
+            this.hash = hash;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Wraps the given store with a cache using {@link #DEFAULT_MAX_CACHE_BYTES} and {@link #DEFAULT_FLUSH_INTERVAL}.
+     * @param store the store to write through to
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_MAX_CACHE_BYTES, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Wraps the given store with a cache.
+     * @param store the store to write through to
+     * @param maxCacheBytes the memory budget of the cache, in bytes
+     * @param flushInterval the number of verified blocks after which the cache is flushed
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes, int flushInterval) {
+        this.store = checkNotNull(store);
+        checkArgument(maxCacheBytes > 0);
+        checkArgument(flushInterval > 0);
+        this.maxCacheBytes = maxCacheBytes;
+        this.flushInterval = flushInterval;
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        putPendingBlock(block, null);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        putPendingBlock(storedBlock, undoableBlock);
+    }
+
+    private void putPendingBlock(StoredBlock block, @Nullable StoredUndoableBlock undoableBlock) {
+        Sha256Hash hash = block.getHeader().getHash();
+        PendingBlock pending = new PendingBlock(block, undoableBlock);
+        PendingBlock previous = pendingBlocks.put(hash, pending);
+        cacheBytes += pending.size - (previous != null ? previous.size : 0);
+        if (inBatch)
+            blockUndoLog.add(new BlockUndo(hash, previous));
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        PendingBlock pending = pendingBlocks.get(hash);
+        return pending != null ? pending.block : store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        PendingBlock pending = pendingBlocks.get(hash);
+        if (pending != null && pending.undoableBlock != null)
+            return pending.block;
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        PendingBlock pending = pendingBlocks.get(hash);
+        if (pending != null && pending.undoableBlock != null)
+            return pending.undoableBlock;
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return pendingChainHead != null ? pendingChainHead : store.getChainHead();
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        pendingChainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return pendingVerifiedChainHead != null ? pendingVerifiedChainHead : store.getVerifiedChainHead();
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        pendingVerifiedChainHead = chainHead;
+        if (getChainHead().getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        CachedOutput entry = getCachedOutput(key);
+        if (entry != null) {
+            hits++;
+            return entry.utxo;
+        }
+        misses++;
+        UTXO utxo = store.getTransactionOutput(hash, index);
+        // Once the dirty outputs alone use up the budget, anything cached would be evicted right away.
+        if (utxo != null && (long) OUTPUT_BYTES * dirtyOutputs.size() < maxCacheBytes) {
+            cleanOutputs.put(key, new CachedOutput(utxo, utxo));
+            cacheBytes += OUTPUT_BYTES;
+            maybeEvict();
+        }
+        return utxo;
+    }
+
+    @Nullable
+    private CachedOutput getCachedOutput(StoredTransactionOutPoint key) {
+        CachedOutput entry = dirtyOutputs.get(key);
+        return entry != null ? entry : cleanOutputs.get(key);
+    }
+
+    /** Replaces the cached output of the given key, filing it as clean or dirty, or dropping it if null or absent. */
+    private void putCachedOutput(StoredTransactionOutPoint key, @Nullable CachedOutput entry) {
+        CachedOutput previous = dirtyOutputs.remove(key);
+        if (previous == null)
+            previous = cleanOutputs.remove(key);
+        if (previous != null)
+            cacheBytes -= OUTPUT_BYTES;
+        // Created and spent since the last flush, the underlying store never needs to know.
+        if (entry == null || (entry.utxo == null && entry.storedUtxo == null))
+            return;
+        (entry.isDirty() ? dirtyOutputs : cleanOutputs).put(key, entry);
+        cacheBytes += OUTPUT_BYTES;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        // If the underlying store turns out to have the output already, the flush overwrites it.
+        updateOutput(new StoredTransactionOutPoint(out), out, null);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        // Loads the output into the cache if needed, so we know what the underlying store has.
+        UTXO current = getTransactionOutput(out.getHash(), out.getIndex());
+        if (current == null)
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        updateOutput(new StoredTransactionOutPoint(out), null, current);
+    }
+
+    private void updateOutput(StoredTransactionOutPoint key, @Nullable UTXO utxo, @Nullable UTXO storedIfUncached) {
+        CachedOutput entry = getCachedOutput(key);
+        if (inBatch)
+            outputUndoLog.add(new OutputUndo(key, entry));
+        putCachedOutput(key, new CachedOutput(utxo, entry != null ? entry.storedUtxo : storedIfUncached));
+        maybeEvict();
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean allCached = true;
+        for (int i = 0; i < numOutputs; i++) {
+            CachedOutput entry = getCachedOutput(new StoredTransactionOutPoint(hash, i));
+            if (entry == null)
+                allCached = false;
+            else if (entry.utxo != null)
+                return true;
+        }
+        if (allCached || !store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        // The underlying store has some, but they might have been spent in the cache. Rare, so check one by one.
+        for (int i = 0; i < numOutputs; i++) {
+            if (getCachedOutput(new StoredTransactionOutPoint(hash, i)) == null
+                    && store.getTransactionOutput(hash, i) != null)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (inBatch)
+            return;
+        inBatch = true;
+        batchStartChainHead = pendingChainHead;
+        batchStartVerifiedChainHead = pendingVerifiedChainHead;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch)
+            return;
+        if (pendingVerifiedChainHead != batchStartVerifiedChainHead)
+            blocksSinceFlush++;
+        endBatch();
+        if (blocksSinceFlush >= flushInterval || cacheBytes > maxCacheBytes)
+            flush();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch)
+            return;
+        for (int i = outputUndoLog.size() - 1; i >= 0; i--) {
+            OutputUndo undo = outputUndoLog.get(i);
+            putCachedOutput(undo.key, undo.existed ? new CachedOutput(undo.utxo, undo.storedUtxo) : null);
+        }
+        for (int i = blockUndoLog.size() - 1; i >= 0; i--) {
+            BlockUndo undo = blockUndoLog.get(i);
+            PendingBlock pending = undo.previous != null ? pendingBlocks.put(undo.hash, undo.previous)
+                    : pendingBlocks.remove(undo.hash);
+            cacheBytes += (undo.previous != null ? undo.previous.size : 0) - (pending != null ? pending.size : 0);
+        }
+        pendingChainHead = batchStartChainHead;
+        pendingVerifiedChainHead = batchStartVerifiedChainHead;
+        endBatch();
+    }
+
+    private void endBatch() {
+        inBatch = false;
+        outputUndoLog.clear();
+        blockUndoLog.clear();
+        batchStartChainHead = null;
+        batchStartVerifiedChainHead = null;
+    }
+
+    /**
+     * Writes all pending blocks, chain heads and output changes to the underlying store in one batch. Does nothing
+     * while a batch write is in progress, as that would make uncommitted changes visible.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (inBatch)
+            return;
+        long start = System.currentTimeMillis();
+        int written = 0;
+        store.beginDatabaseBatchWrite();
+        try {
+            for (PendingBlock pending : pendingBlocks.values()) {
+                if (pending.undoableBlock != null)
+                    store.put(pending.block, pending.undoableBlock);
+                else
+                    store.put(pending.block);
+            }
+            for (CachedOutput entry : dirtyOutputs.values()) {
+                if (entry.storedUtxo != null)
+                    store.removeUnspentTransactionOutput(entry.storedUtxo);
+                if (entry.utxo != null)
+                    store.addUnspentTransactionOutput(entry.utxo);
+                written++;
+            }
+            if (pendingChainHead != null)
+                store.setChainHead(pendingChainHead);
+            if (pendingVerifiedChainHead != null)
+                store.setVerifiedChainHead(pendingVerifiedChainHead);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        // The flushed outputs are clean now, spent ones aren't worth keeping.
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : dirtyOutputs.entrySet()) {
+            CachedOutput output = entry.getValue();
+            output.storedUtxo = output.utxo;
+            if (output.utxo != null)
+                cleanOutputs.put(entry.getKey(), output);
+            else
+                cacheBytes -= OUTPUT_BYTES;
+        }
+        dirtyOutputs.clear();
+        for (PendingBlock pending : pendingBlocks.values())
+            cacheBytes -= pending.size;
+        pendingBlocks.clear();
+        pendingChainHead = null;
+        pendingVerifiedChainHead = null;
+        blocksSinceFlush = 0;
+        flushes++;
+        maybeEvict();
+        log.info("Flushed {} outputs to the underlying store in {} ms, {} cached, {} hits, {} misses", written,
+                System.currentTimeMillis() - start, cleanOutputs.size(), hits, misses);
+    }
+
+    /**
+     * Evicts clean outputs in least recently used order while the cache is over budget. The dirty ones can only go
+     * with the next flush, which happens at the end of the batch write when the cache is over budget.
+     */
+    private void maybeEvict() {
+        for (Iterator<CachedOutput> it = cleanOutputs.values().iterator(); it.hasNext() && cacheBytes > maxCacheBytes;) {
+            it.next();
+            it.remove();
+            cacheBytes -= OUTPUT_BYTES;
+        }
+    }
+
+    /** Returns the number of output lookups that were answered from the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of output lookups that had to go to the underlying store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns the number of times the cache was flushed to the underlying store. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Returns the estimated memory used by the cache, in bytes. */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /** Returns the store this cache writes to. */
+    public FullPrunedBlockStore getUnderlyingStore() {
+        return store;
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (inBatch)
+            abortDatabaseBatchWrite();
+        flush();
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        // The underlying store can only answer this once it has seen all changes.
+        try {
+            flush();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+        return store.getOpenTransactionOutputs(keys);
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Coin;
@@ -44,18 +46,25 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
@@ -101,6 +110,11 @@ import java.util.Properties;
  *     <tr><td>addresstargetable</td><td>integer</td></tr>
  *     <tr><td>coinbase</td><td>boolean</td></tr>
  * </table>
+ *
+ * <p>Between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} additions and removals of
+ * unspent outputs are buffered and sent to the database with JDBC batching when the batch is committed. Reads of
+ * unspent outputs made inside the batch see the buffered changes. As removals are no longer checked one by one,
+ * removing an output the store doesn't have is only reported when the batch is flushed.</p>
  */
 public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
@@ -164,6 +178,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // Like the connection, the UTXO write buffer and its cached statements are kept per thread. All batches are also
+    // kept in allBatches, so close() can close their statements.
+    private final ThreadLocal<UTXOBatch> utxoBatch = new ThreadLocal<>();
+    private final Set<UTXOBatch> allBatches = new HashSet<>();
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -467,8 +486,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public synchronized void close() {
+        for (UTXOBatch batch : allBatches)
+            batch.closeStatementsQuietly();
+        allBatches.clear();
+        utxoBatch.remove();
         for (Connection conn : allConnections) {
             try {
+                // Connections found closed were replaced by maybeConnect().
+                if (conn.isClosed())
+                    continue;
                 if (!conn.getAutoCommit()) {
                     conn.rollback();
                 }
@@ -907,95 +933,266 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        UTXOBatch batch = getUTXOBatch();
+        if (batch.active) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            UTXO inserted = batch.inserts.get(key);
+            if (inserted != null)
+                return inserted;
+            if (batch.deletes.containsKey(key))
+                return null;
+        }
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = batch.getStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            try (ResultSet results = s.executeQuery()) {
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
+                int height = results.getInt(1);
+                Coin value = Coin.valueOf(results.getLong(2));
+                byte[] scriptBytes = results.getBytes(3);
+                boolean coinbase = results.getBoolean(4);
+                String address = results.getString(5);
+                UTXO txout = new UTXO(hash,
+                        index,
+                        value,
+                        height,
+                        coinbase,
+                        new Script(scriptBytes),
+                        address);
+                return txout;
             }
-            // Parse it.
-            int height = results.getInt(1);
-            Coin value = Coin.valueOf(results.getLong(2));
-            byte[] scriptBytes = results.getBytes(3);
-            boolean coinbase = results.getBoolean(4);
-            String address = results.getString(5);
-            UTXO txout = new UTXO(hash,
-                    index,
-                    value,
-                    height,
-                    coinbase,
-                    new Script(scriptBytes),
-                    address);
-            return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
         }
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        UTXOBatch batch = getUTXOBatch();
+        if (batch.active) {
+            // Like the duplicate key handling below, the first insert of an output wins.
+            if (batch.inserts.putIfAbsent(new StoredTransactionOutPoint(out), out) == null)
+                batch.insertedHashes.add(out.getHash());
+            return;
+        }
+        try {
+            insertUnspentTransactionOutput(batch.getStatement(getInsertOpenoutputsSQL()), out);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        ScriptType scriptType = out.getScript().getScriptType();
+        s.setInt(7, scriptType != null ? scriptType.id : 0);
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    private void insertUnspentTransactionOutput(PreparedStatement s, UTXO out) throws SQLException {
+        setInsertOpenoutputsParameters(s, out);
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            ScriptType scriptType = out.getScript().getScriptType();
-            s.setInt(7, scriptType != null ? scriptType.id : 0);
-            s.setBoolean(8, out.isCoinbase());
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
+                throw e;
+        }
+    }
+
+    /** Like {@link #insertUnspentTransactionOutput}, but rolls back a duplicate insert so the transaction goes on. */
+    private void insertUnspentTransactionOutputInTransaction(Connection connection, PreparedStatement s, UTXO out)
+            throws SQLException {
+        setInsertOpenoutputsParameters(s, out);
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            s.executeUpdate();
+        } catch (SQLException e) {
+            if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                throw e;
+            connection.rollback(savepoint);
+            return;
         }
+        connection.releaseSavepoint(savepoint);
     }
 
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        UTXOBatch batch = getUTXOBatch();
+        if (batch.active) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            if (batch.inserts.remove(key) != null) {
+                // Never made it to the database.
+                batch.insertedHashes.remove(out.getHash());
+                return;
+            }
+            if (batch.deletes.containsKey(key))
+                throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            // Whether the database has it is checked when the batch is flushed.
+            batch.deletes.put(key, out);
+            batch.deletedHashes.add(out.getHash());
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
+            PreparedStatement s = batch.getStatement(getDeleteOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            if (s.executeUpdate() == 0)
+                throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    /**
+     * Sends the buffered UTXO inserts and deletes of the current thread's batch to the database, as part of the
+     * running database transaction.
+     */
+    private void flushUTXOBatch(UTXOBatch batch) throws BlockStoreException {
+        try {
+            // Deletes go first, so an output that was removed and added back within the batch ends up present.
+            if (!batch.deletes.isEmpty()) {
+                PreparedStatement s = batch.getStatement(getDeleteOpenoutputsSQL());
+                for (UTXO out : batch.deletes.values()) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) out.getIndex());
+                    s.addBatch();
+                }
+                for (int count : s.executeBatch()) {
+                    if (count == 0)
+                        throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+                }
+            }
+            if (!batch.inserts.isEmpty()) {
+                Connection connection = batch.connection;
+                PreparedStatement s = batch.getStatement(getInsertOpenoutputsSQL());
+                for (UTXO out : batch.inserts.values()) {
+                    setInsertOpenoutputsParameters(s, out);
+                    s.addBatch();
+                }
+                // Databases like PostgreSQL abort the whole transaction when a statement fails, so the batch is
+                // wrapped in a savepoint that can be rolled back to.
+                Savepoint savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+                try {
+                    s.executeBatch();
+                } catch (BatchUpdateException e) {
+                    if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                        throw e;
+                    // Some outputs were already present, which single inserts ignore. Redo them one by one.
+                    s.clearBatch();
+                    if (savepoint == null) {
+                        for (UTXO out : batch.inserts.values())
+                            insertUnspentTransactionOutput(s, out);
+                    } else {
+                        connection.rollback(savepoint);
+                        savepoint = null;
+                        for (UTXO out : batch.inserts.values())
+                            insertUnspentTransactionOutputInTransaction(connection, s, out);
+                    }
+                }
+                if (savepoint != null)
+                    connection.releaseSavepoint(savepoint);
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /** Flushes the current thread's UTXO batch, if any, so that queries which can't use the buffer see it. */
+    private void maybeFlushUTXOBatch() throws BlockStoreException {
+        UTXOBatch batch = utxoBatch.get();
+        if (batch != null && batch.active && batch.connection == conn.get())
+            flushUTXOBatch(batch);
+    }
+
+    private UTXOBatch getUTXOBatch() {
+        Connection connection = conn.get();
+        UTXOBatch batch = utxoBatch.get();
+        if (batch == null || batch.connection != connection) {
+            UTXOBatch previous = batch;
+            batch = new UTXOBatch(connection);
+            utxoBatch.set(batch);
+            synchronized (this) {
+                // The connection of this thread was replaced, its statements are of no use anymore.
+                if (previous != null) {
+                    previous.closeStatementsQuietly();
+                    allBatches.remove(previous);
+                }
+                allBatches.add(batch);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * The openoutputs state of one connection: prepared statements that are reused across calls and, while a batch
+     * write is in progress, the inserts and deletes that have not been sent to the database yet.
+     */
+    private static final class UTXOBatch {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private boolean active;
+        private final Map<StoredTransactionOutPoint, UTXO> inserts = new LinkedHashMap<>();
+        private final Map<StoredTransactionOutPoint, UTXO> deletes = new LinkedHashMap<>();
+        // Used by hasUnspentOutputs() to decide whether the buffer or the database can answer.
+        private final Multiset<Sha256Hash> insertedHashes = HashMultiset.create();
+        private final Set<Sha256Hash> deletedHashes = new HashSet<>();
+
+        private UTXOBatch(Connection connection) {
+            this.connection = connection;
+        }
+
+        private PreparedStatement getStatement(String sql) throws SQLException {
+            PreparedStatement s = statements.get(sql);
+            if (s == null) {
+                s = connection.prepareStatement(sql);
+                statements.put(sql, s);
+            }
+            return s;
+        }
+
+        private void clear() {
+            inserts.clear();
+            deletes.clear();
+            insertedHashes.clear();
+            deletedHashes.clear();
+        }
+
+        private void closeStatements() throws SQLException {
+            for (PreparedStatement s : statements.values())
+                s.close();
+            statements.clear();
+        }
+
+        /** Closes the statements, ignoring failures as the connection may be closed already. */
+        private void closeStatementsQuietly() {
+            for (PreparedStatement s : statements.values()) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    log.debug("Failed to close statement", e);
+                }
+            }
+            statements.clear();
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1003,6 +1200,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             log.debug("Starting database batch write with connection: " + conn.get().toString());
         try {
             conn.get().setAutoCommit(false);
+            getUTXOBatch().active = true;
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1013,11 +1211,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        UTXOBatch batch = getUTXOBatch();
         try {
+            flushUTXOBatch(batch);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            batch.active = false;
         }
     }
 
@@ -1026,6 +1228,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        UTXOBatch batch = getUTXOBatch();
+        batch.clear();
+        batch.active = false;
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1041,26 +1246,26 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        UTXOBatch batch = getUTXOBatch();
+        if (batch.active) {
+            if (batch.insertedHashes.contains(hash))
+                return true;
+            // The database can't tell which of its outputs are still there, so send the buffer first. This is rare.
+            if (batch.deletedHashes.contains(hash))
+                flushUTXOBatch(batch);
+        }
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = batch.getStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            try (ResultSet results = s.executeQuery()) {
+                if (!results.next()) {
+                    throw new BlockStoreException("Got no results from a COUNT(*) query");
+                }
+                int count = results.getInt(1);
+                return count != 0;
             }
-            int count = results.getInt(1);
-            return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
         }
     }
 
@@ -1100,6 +1305,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
         try {
+            // Statements prepared against the old tables must not be reused.
+            UTXOBatch batch = utxoBatch.get();
+            if (batch != null) {
+                batch.closeStatements();
+                utxoBatch.remove();
+                synchronized (this) {
+                    allBatches.remove(batch);
+                }
+            }
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
                 s.execute(sql);
@@ -1126,6 +1340,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        maybeFlushUTXOBatch();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1155,6 +1370,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         List<UTXO> outputs = new ArrayList<>();
         try {
             maybeConnect();
+            maybeFlushUTXOBatch();
             s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
             for (ECKey key : keys) {
                 // TODO switch to pubKeyHash in order to support native segwit addresses
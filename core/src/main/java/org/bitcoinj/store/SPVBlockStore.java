@@ -16,6 +16,7 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.primitives.Ints;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
@@ -50,6 +51,11 @@ import static com.google.common.base.Preconditions.checkState;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Next to the ring buffer the store keeps a memory mapped hash index (the store file name plus
+ * {@link #INDEX_FILE_SUFFIX}), an open addressing table that maps block hashes to their record in the ring. It
+ * makes {@link #get(Sha256Hash)} cost the same regardless of capacity. The index is rebuilt from the ring buffer
+ * if it is missing, does not match the ring, or the store was not closed cleanly.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -58,6 +64,9 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_CAPACITY = 10000;
     public static final String HEADER_MAGIC = "SPVB";
+    /** Suffix appended to the store file name to get the name of the hash index file. */
+    public static final String INDEX_FILE_SUFFIX = ".idx";
+    public static final String INDEX_HEADER_MAGIC = "SPVI";
 
     protected volatile MappedByteBuffer buffer;
     protected final NetworkParameters params;
@@ -93,6 +102,12 @@ public class SPVBlockStore implements BlockStore {
     protected RandomAccessFile randomAccessFile = null;
     private int fileLength;
 
+    // The hash index. Each slot holds the file offset of a ring record, or zero if the slot is empty. Collisions are
+    // resolved by linear probing and the table is kept at most half full, so lookups touch very few slots.
+    protected volatile MappedByteBuffer indexBuffer;
+    protected RandomAccessFile indexRandomAccessFile = null;
+    private int indexMask;
+
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
      * given file if it's missing. This operation will block on disk.
@@ -158,12 +173,18 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                if (!openIndex(file, capacity, getRingCursor(buffer))) {
+                    log.info("Rebuilding block hash index of " + file);
+                    rebuildIndex(buffer);
+                }
             } else {
+                openIndex(file, capacity, -1);
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (indexRandomAccessFile != null) indexRandomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -193,6 +214,152 @@ public class SPVBlockStore implements BlockStore {
         return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    /** Returns the size in bytes of the hash index file that is kept next to a store of the given capacity. */
+    public static int getIndexFileSize(int capacity) {
+        return getIndexSlots(capacity) * INDEX_SLOT_SIZE + INDEX_PROLOGUE_BYTES;
+    }
+
+    private static int getIndexSlots(int capacity) {
+        // At least twice the capacity, rounded up to a power of two so the slot can be computed with a mask.
+        return Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+    }
+
+    /**
+     * Maps the hash index file, creating or truncating it if needed. Returns true if the existing index can be used
+     * as is, false if it was reset and must be rebuilt from the ring buffer.
+     */
+    private boolean openIndex(File file, int capacity, int ringCursor) throws IOException {
+        File indexFile = new File(file.getPath() + INDEX_FILE_SUFFIX);
+        boolean exists = indexFile.exists();
+        indexRandomAccessFile = new RandomAccessFile(indexFile, "rw");
+        int indexLength = getIndexFileSize(capacity);
+        boolean valid = false;
+        if (exists && indexRandomAccessFile.length() == indexLength) {
+            byte[] header = new byte[4];
+            indexRandomAccessFile.readFully(header);
+            int cursor = indexRandomAccessFile.readInt();
+            int clean = indexRandomAccessFile.readInt();
+            valid = new String(header, StandardCharsets.US_ASCII).equals(INDEX_HEADER_MAGIC)
+                    && cursor == ringCursor && clean == INDEX_CLEAN;
+        }
+        if (!valid) {
+            // Truncating gives us a zeroed, empty table.
+            indexRandomAccessFile.setLength(0);
+            indexRandomAccessFile.setLength(indexLength);
+        }
+        indexBuffer = indexRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexLength);
+        indexMask = getIndexSlots(capacity) - 1;
+        if (!valid) {
+            ((Buffer) indexBuffer).position(0);
+            indexBuffer.put(INDEX_HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            indexBuffer.putInt(INDEX_CURSOR_OFFSET, ringCursor);
+        }
+        // Mark the index dirty for as long as it's open, so a crash causes a rebuild on the next start.
+        indexBuffer.putInt(INDEX_CLEAN_OFFSET, 0);
+        return valid;
+    }
+
+    /** Inserts all records of the ring buffer into an empty index, oldest first so newer duplicates take over. */
+    private void rebuildIndex(ByteBuffer buffer) {
+        int cursor = getRingCursor(buffer);
+        if (cursor == fileLength)
+            cursor = FILE_PROLOGUE_BYTES;
+        final byte[] zeroHash = Sha256Hash.ZERO_HASH.getBytes();
+        byte[] scratch = new byte[32];
+        int offset = cursor;
+        do {
+            ((Buffer) buffer).position(offset);
+            buffer.get(scratch);
+            if (!Arrays.equals(scratch, zeroHash))
+                insertIntoIndex(buffer, offset, scratch);
+            offset += RECORD_SIZE;
+            if (offset == fileLength)
+                offset = FILE_PROLOGUE_BYTES;
+        } while (offset != cursor);
+    }
+
+    private void clearIndex() {
+        for (int slot = 0; slot <= indexMask; slot++)
+            setIndexSlot(slot, 0);
+    }
+
+    private int getIndexSlot(int slot) {
+        return indexBuffer.getInt(INDEX_PROLOGUE_BYTES + slot * INDEX_SLOT_SIZE);
+    }
+
+    private void setIndexSlot(int slot, int recordOffset) {
+        indexBuffer.putInt(INDEX_PROLOGUE_BYTES + slot * INDEX_SLOT_SIZE, recordOffset);
+    }
+
+    // Like Sha256Hash.hashCode() we use the last 4 bytes, because the first ones of a block hash are mostly zeros.
+    private int homeSlot(int hashTail) {
+        return hashTail & indexMask;
+    }
+
+    private int homeSlot(byte[] hashBytes) {
+        return homeSlot(Ints.fromBytes(hashBytes[28], hashBytes[29], hashBytes[30], hashBytes[31]));
+    }
+
+    private static boolean recordHashEquals(ByteBuffer buffer, int recordOffset, byte[] hashBytes) {
+        // Compare back to front, as the leading bytes of block hashes are mostly equal.
+        for (int i = 31; i >= 0; i--) {
+            if (buffer.get(recordOffset + i) != hashBytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the index slot pointing at the newest record with the given hash, or -1 if there is none. */
+    private int findIndexSlot(ByteBuffer buffer, byte[] hashBytes) {
+        int slot = homeSlot(hashBytes);
+        while (true) {
+            int recordOffset = getIndexSlot(slot);
+            if (recordOffset == 0)
+                return -1;
+            if (recordHashEquals(buffer, recordOffset, hashBytes))
+                return slot;
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    private void insertIntoIndex(ByteBuffer buffer, int recordOffset, byte[] hashBytes) {
+        int slot = homeSlot(hashBytes);
+        while (true) {
+            int existing = getIndexSlot(slot);
+            if (existing == 0 || recordHashEquals(buffer, existing, hashBytes)) {
+                setIndexSlot(slot, recordOffset);
+                return;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    /** Drops the record at the given offset from the index, if the index still points at it. */
+    private void removeFromIndex(ByteBuffer buffer, int recordOffset) {
+        byte[] hashBytes = new byte[32];
+        ((Buffer) buffer).position(recordOffset);
+        buffer.get(hashBytes);
+        int hole = findIndexSlot(buffer, hashBytes);
+        if (hole < 0 || getIndexSlot(hole) != recordOffset)
+            return; // Never written, or superseded by a newer record with the same hash.
+        // Backward shift deletion: move later entries of the probe sequence into the hole, unless that would put
+        // them in front of their home slot.
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & indexMask;
+            int offset = getIndexSlot(slot);
+            if (offset == 0)
+                break;
+            int home = homeSlot(buffer.getInt(offset + 28));
+            boolean stays = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (!stays) {
+                setIndexSlot(hole, offset);
+                hole = slot;
+            }
+        }
+        setIndexSlot(hole, 0);
+    }
+
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
@@ -205,11 +372,14 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            // The record we are about to overwrite drops out of the index.
+            removeFromIndex(buffer, cursor);
             ((Buffer) buffer).position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
+            insertIntoIndex(buffer, cursor, hash.getBytes());
             setRingCursor(buffer, buffer.position());
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
@@ -229,28 +399,14 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                ((Buffer) buffer).position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
+            // Look the hash up in the index, which points at the newest record for it.
+            int slot = findIndexSlot(buffer, hash.getBytes());
+            if (slot >= 0) {
+                ((Buffer) buffer).position(getIndexSlot(slot) + 32);
+                StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                blockCache.put(hash, storedBlock);
+                return storedBlock;
+            }
             // Not found.
             notFoundCache.put(hash, NOT_FOUND_MARKER);
             return null;
@@ -301,8 +457,12 @@ public class SPVBlockStore implements BlockStore {
         try {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            indexBuffer.putInt(INDEX_CLEAN_OFFSET, INDEX_CLEAN);
+            indexBuffer.force();
+            indexBuffer = null;
             fileLock.release();
             randomAccessFile.close();
+            indexRandomAccessFile.close();
             blockCache.clear();
         } catch (IOException e) {
             throw new BlockStoreException(e);
@@ -328,6 +488,19 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes copy of the ring cursor, to detect an index that does not belong to the ring
+    //   4 bytes clean flag, set on close and cleared while the store is open
+    //   4 unused bytes
+    //
+    // Followed by a power of two number of 4 byte slots, each the file offset of a ring record or zero.
+    protected static final int INDEX_PROLOGUE_BYTES = 16;
+    private static final int INDEX_SLOT_SIZE = 4;
+    private static final int INDEX_CURSOR_OFFSET = 4;
+    private static final int INDEX_CLEAN_OFFSET = 8;
+    private static final int INDEX_CLEAN = 1;
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
@@ -338,6 +511,7 @@ public class SPVBlockStore implements BlockStore {
     private void setRingCursor(ByteBuffer buffer, int newCursor) {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
+        indexBuffer.putInt(INDEX_CURSOR_OFFSET, newCursor);
     }
 
     public void clear() throws Exception {
@@ -352,6 +526,7 @@ public class SPVBlockStore implements BlockStore {
             for (int i = 0; i < fileLength; i++) {
                 buffer.put((byte)0);
             }
+            clearIndex();
             // Initialize store again
             ((Buffer) buffer).position(0);
             initNewStore(params);
@@ -0,0 +1,164 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.utils;
+
+import net.jcip.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Delivers events to a handler in batches, coalescing events with equal keys. The first event posted after a
+ * delivery starts a time window, and all events posted until the window closes and the batch runs on the executor
+ * are handed to the handler in a single call, each key once and in the order it was first posted.</p>
+ *
+ * <p>This keeps a burst of events, like the confidence changes of a wallet during block chain sync, from flooding the
+ * executor with one task per event. With a window of zero, a batch is dispatched right away and only coalesces the
+ * events posted while it waits in the executor.</p>
+ *
+ * <p>The dispatcher keeps some metrics: the number of events waiting to be delivered, how many events were posted
+ * and delivered, and the latency from posting an event to the start of the call delivering it.</p>
+ */
+public class CoalescingDispatcher<K> {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("CoalescingDispatcher timer"));
+
+    private final Executor executor;
+    private final long windowNanos;
+    private final Consumer<List<K>> handler;
+
+    private final ReentrantLock lock = Threading.lock(CoalescingDispatcher.class);
+    // Keys waiting to be delivered, with the time they were first posted.
+    @GuardedBy("lock") private LinkedHashMap<K, Long> pending = new LinkedHashMap<>();
+    @GuardedBy("lock") private boolean scheduled;
+
+    private final AtomicLong postedEvents = new AtomicLong();
+    private final AtomicLong deliveredEvents = new AtomicLong();
+    private final AtomicLong deliveredBatches = new AtomicLong();
+    private volatile long vLastLatencyNanos;
+    private volatile long vMaxLatencyNanos;
+
+    /**
+     * @param executor executor running the handler, for example {@link Threading#USER_THREAD}
+     * @param window time to wait for more events after the first one of a batch
+     * @param unit unit of the window
+     * @param handler called with the keys of each batch
+     */
+    public CoalescingDispatcher(Executor executor, long window, TimeUnit unit, Consumer<List<K>> handler) {
+        checkArgument(window >= 0, "window must not be negative");
+        this.executor = checkNotNull(executor);
+        this.windowNanos = unit.toNanos(window);
+        this.handler = checkNotNull(handler);
+    }
+
+    /** Posts an event. If an event with an equal key is already waiting, the two are delivered as one. */
+    public void post(K key) {
+        checkNotNull(key);
+        postedEvents.incrementAndGet();
+        lock.lock();
+        try {
+            pending.putIfAbsent(key, System.nanoTime());
+            if (scheduled)
+                return;
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        if (windowNanos == 0)
+            executor.execute(this::deliver);
+        else
+            TIMER.schedule(() -> executor.execute(this::deliver), windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void deliver() {
+        Map<K, Long> batch;
+        lock.lock();
+        try {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        if (batch.isEmpty())
+            return;
+        // The first key is the oldest one.
+        long latency = System.nanoTime() - batch.values().iterator().next();
+        vLastLatencyNanos = latency;
+        if (latency > vMaxLatencyNanos)
+            vMaxLatencyNanos = latency;
+        deliveredEvents.addAndGet(batch.size());
+        deliveredBatches.incrementAndGet();
+        handler.accept(new ArrayList<>(batch.keySet()));
+    }
+
+    /** Returns the number of distinct events waiting to be delivered. */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of events posted, including the ones that were coalesced with others. */
+    public long getPostedEvents() {
+        return postedEvents.get();
+    }
+
+    /** Returns the number of distinct events delivered to the handler. */
+    public long getDeliveredEvents() {
+        return deliveredEvents.get();
+    }
+
+    /** Returns the number of calls to the handler. */
+    public long getDeliveredBatches() {
+        return deliveredBatches.get();
+    }
+
+    /** Returns the latency of the oldest event of the last batch, from posting it to the call of the handler. */
+    public long getLastDispatchLatency(TimeUnit unit) {
+        return unit.convert(vLastLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the highest latency of any event so far, from posting it to the call of the handler. */
+    public long getMaxDispatchLatency(TimeUnit unit) {
+        return unit.convert(vMaxLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d waiting, %d posted, %d delivered in %d batches, max latency %d ms",
+                getQueueDepth(), getPostedEvents(), getDeliveredEvents(), getDeliveredBatches(),
+                getMaxDispatchLatency(TimeUnit.MILLISECONDS));
+    }
+}
@@ -125,6 +125,11 @@ public class Threading {
             }
             Uninterruptibles.putUninterruptibly(tasks, command);
         }
+
+        /** Returns the number of tasks waiting to be run. */
+        public int getQueueDepth() {
+            return tasks.size();
+        }
     }
 
     static {
@@ -57,9 +57,10 @@ import static com.google.common.base.Preconditions.checkState;
 public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock(BasicKeyChain.class);
 
-    // Maps used to let us quickly look up a key given data we find in transactions or the block chain.
-    private final LinkedHashMap<ByteString, ECKey> hashToKeys;
-    private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
+    // Maps used to let us quickly look up a key given data we find in transactions or the block chain. They are looked
+    // up with the raw bytes, without wrapping them, as this is done for every output script we see.
+    private final KeyIndex hashToKeys;
+    private final KeyIndex pubkeyToKeys;
     @Nullable private final KeyCrypter keyCrypter;
     private boolean isWatching;
 
@@ -71,8 +72,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     public BasicKeyChain(@Nullable KeyCrypter crypter) {
         this.keyCrypter = crypter;
-        hashToKeys = new LinkedHashMap<>();
-        pubkeyToKeys = new LinkedHashMap<>();
+        hashToKeys = new KeyIndex();
+        pubkeyToKeys = new KeyIndex();
         listeners = new CopyOnWriteArrayList<>();
     }
 
@@ -190,8 +191,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (!key.isWatching() && isWatching)
                 throw new IllegalArgumentException("Key is not watching but chain is");
         }
-        ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
-        hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        ECKey previousKey = pubkeyToKeys.put(key.getPubKey(), key);
+        hashToKeys.put(key.getPubKeyHash(), key);
         checkState(previousKey == null);
     }
 
@@ -219,7 +220,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubHash(byte[] pubKeyHash) {
         lock.lock();
         try {
-            return hashToKeys.get(ByteString.copyFrom(pubKeyHash));
+            return hashToKeys.get(pubKeyHash);
         } finally {
             lock.unlock();
         }
@@ -228,7 +229,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubKey(byte[] pubKey) {
         lock.lock();
         try {
-            return pubkeyToKeys.get(ByteString.copyFrom(pubKey));
+            return pubkeyToKeys.get(pubKey);
         } finally {
             lock.unlock();
         }
@@ -274,8 +275,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
-            boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
+            boolean a = hashToKeys.remove(key.getPubKeyHash()) != null;
+            boolean b = pubkeyToKeys.remove(key.getPubKey()) != null;
             checkState(a == b);   // Should be in both maps or neither.
             return a;
         } finally {
@@ -312,7 +313,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
      * @return A map (treat as unmodifiable)
      */
     Map<ECKey, Protos.Key.Builder> serializeToEditableProtobufs() {
-        // Both hashToKeys and the returned map are LinkedHashMap to preserve order
+        // Both hashToKeys and the returned map preserve insertion order
         return hashToKeys.values().stream()
                 .collect(Collectors.toMap(ecKey -> ecKey,   // key is ECKey
                         ecKey -> toProtoKeyBuilder(ecKey),  // value is Builder
@@ -321,7 +322,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     // Create a Protos.Key.Builder from an ECKey
-    private static Protos.Key.Builder toProtoKeyBuilder(ECKey ecKey) {
+    static Protos.Key.Builder toProtoKeyBuilder(ECKey ecKey) {
         Protos.Key.Builder protoKey = serializeEncryptableItem(ecKey);
         protoKey.setPublicKey(ByteString.copyFrom(ecKey.getPubKey()));
         return protoKey;
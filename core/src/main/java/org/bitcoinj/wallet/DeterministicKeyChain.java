@@ -792,39 +792,58 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         }
         Map<ECKey, Protos.Key.Builder> keys = basicKeyChain.serializeToEditableProtobufs();
         for (Map.Entry<ECKey, Protos.Key.Builder> entry : keys.entrySet()) {
-            DeterministicKey key = (DeterministicKey) entry.getKey();
-            Protos.Key.Builder proto = entry.getValue();
-            proto.setType(Protos.Key.Type.DETERMINISTIC_KEY);
-            final Protos.DeterministicKey.Builder detKey = proto.getDeterministicKey().toBuilder();
-            detKey.setChainCode(ByteString.copyFrom(key.getChainCode()));
-            for (ChildNumber num : key.getPath())
-                detKey.addPath(num.i());
-            if (key.equals(externalParentKey)) {
-                detKey.setIssuedSubkeys(issuedExternalKeys);
-                detKey.setLookaheadSize(lookaheadSize);
-                detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
-            } else if (key.equals(internalParentKey)) {
-                detKey.setIssuedSubkeys(issuedInternalKeys);
-                detKey.setLookaheadSize(lookaheadSize);
-                detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
-            }
             // Flag the very first key of following keychain.
-            if (entries.isEmpty() && isFollowing()) {
-                detKey.setIsFollowing(true);
-            }
-            proto.setDeterministicKey(detKey);
-            if (key.getParent() != null) {
-                // HD keys inherit the timestamp of their parent if they have one, so no need to serialize it.
-                proto.clearCreationTimestamp();
-            } else {
-                proto.setOutputScriptType(Protos.Key.OutputScriptType.valueOf(outputScriptType.name()));
-            }
-            entries.add(proto.build());
+            boolean first = entries.isEmpty() && isFollowing();
+            entries.add(serializeKey((DeterministicKey) entry.getKey(), entry.getValue(), first));
         }
         // TODO: return unmodifiable list
         return entries;
     }
 
+    /**
+     * Serializes the parent keys of the external and internal chains, which hold the numbers of keys issued from them.
+     * The other keys of the chain follow from these and the keys that don't change when keys are issued.
+     */
+    List<Protos.Key> serializeParentKeysToProtobuf() {
+        lock.lock();
+        try {
+            List<Protos.Key> entries = new ArrayList<>(2);
+            for (DeterministicKey key : Arrays.asList(externalParentKey, internalParentKey))
+                entries.add(serializeKey(key, BasicKeyChain.toProtoKeyBuilder(key), false));
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Protos.Key serializeKey(DeterministicKey key, Protos.Key.Builder proto, boolean following) {
+        proto.setType(Protos.Key.Type.DETERMINISTIC_KEY);
+        final Protos.DeterministicKey.Builder detKey = proto.getDeterministicKey().toBuilder();
+        detKey.setChainCode(ByteString.copyFrom(key.getChainCode()));
+        for (ChildNumber num : key.getPath())
+            detKey.addPath(num.i());
+        if (key.equals(externalParentKey)) {
+            detKey.setIssuedSubkeys(issuedExternalKeys);
+            detKey.setLookaheadSize(lookaheadSize);
+            detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
+        } else if (key.equals(internalParentKey)) {
+            detKey.setIssuedSubkeys(issuedInternalKeys);
+            detKey.setLookaheadSize(lookaheadSize);
+            detKey.setSigsRequiredToSpend(getSigsRequiredToSpend());
+        }
+        if (following) {
+            detKey.setIsFollowing(true);
+        }
+        proto.setDeterministicKey(detKey);
+        if (key.getParent() != null) {
+            // HD keys inherit the timestamp of their parent if they have one, so no need to serialize it.
+            proto.clearCreationTimestamp();
+        } else {
+            proto.setOutputScriptType(Protos.Key.OutputScriptType.valueOf(outputScriptType.name()));
+        }
+        return proto.build();
+    }
+
     static List<DeterministicKeyChain> fromProtobuf(List<Protos.Key> keys, @Nullable KeyCrypter crypter) throws UnreadableWalletException {
         return fromProtobuf(keys, crypter, new DefaultKeyChainFactory());
     }
@@ -1243,10 +1262,8 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
                 limit, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
         final Stopwatch watch = Stopwatch.createStarted();
-        List<DeterministicKey> result = HDKeyDerivation.generate(parent, numChildren)
-                .limit(limit)
-                .map(DeterministicKey::dropPrivateBytes)
-                .collect(Collectors.collectingAndThen(Collectors.toList(), Collections::unmodifiableList));
+        // Lookahead keys are public only, so they can be derived from the public parent key, in parallel.
+        List<DeterministicKey> result = HDKeyDerivation.deriveChildKeysFromPublic(parent, numChildren, limit);
         watch.stop();
         log.info("Took {}", watch);
         return result;
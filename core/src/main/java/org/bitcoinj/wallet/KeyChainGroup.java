@@ -811,6 +811,20 @@ public class KeyChainGroup implements KeyBag {
         return basic.getKeys();
     }
 
+    /**
+     * Returns the imported keys and all keys of the deterministic chains, including the lookahead keys, for matching
+     * compact block filters. Like a Bloom filter, the filters must be matched against keys before they are issued.
+     */
+    List<ECKey> getKeysForFilterMatching() {
+        List<ECKey> keys = new ArrayList<>(basic.getKeys());
+        if (chains != null)
+            for (DeterministicKeyChain chain : chains) {
+                chain.maybeLookAhead();
+                keys.addAll(chain.getKeys(true, false));
+            }
+        return keys;
+    }
+
     public long getEarliestKeyCreationTime() {
         long time = basic.getEarliestKeyCreationTime();   // Long.MAX_VALUE if empty.
         if (chains != null)
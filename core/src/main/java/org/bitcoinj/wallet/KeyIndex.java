@@ -0,0 +1,215 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>An insertion ordered map from byte arrays, like hash160s or public keys, to keys. It is an open addressing hash
+ * table probed with the first 8 bytes of the array, which are about as random as the whole array for hashes and
+ * public keys. The full arrays are only compared once those bytes match, so a lookup by raw {@code byte[]} allocates
+ * nothing.</p>
+ *
+ * <p>Not thread safe, {@link BasicKeyChain} guards it with its lock.</p>
+ */
+final class KeyIndex {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Entries in insertion order. Removed entries are null until the arrays are compacted.
+    private byte[][] entryKeys;
+    private ECKey[] entryValues;
+    private long[] entryPrefixes;
+    // Number of entries used, including removed ones.
+    private int entryCount;
+    private int size;
+    // Open addressing table with linear probing, holding entry index + 1, or 0 for a free slot. Its length is a power
+    // of two and twice the entry capacity, so it's at most half full.
+    private int[] table;
+
+    KeyIndex() {
+        entryKeys = new byte[INITIAL_CAPACITY][];
+        entryValues = new ECKey[INITIAL_CAPACITY];
+        entryPrefixes = new long[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Nullable
+    ECKey get(byte[] key) {
+        int slot = findSlot(key, prefix(key));
+        return table[slot] != 0 ? entryValues[table[slot] - 1] : null;
+    }
+
+    /**
+     * Maps the given array to the given key. The array is copied. If the array was already mapped, the position of
+     * the mapping in the insertion order is kept.
+     * @return the previously mapped key, or null
+     */
+    @Nullable
+    ECKey put(byte[] key, ECKey value) {
+        long prefix = prefix(key);
+        int slot = findSlot(key, prefix);
+        if (table[slot] != 0) {
+            int entry = table[slot] - 1;
+            ECKey previous = entryValues[entry];
+            entryValues[entry] = value;
+            return previous;
+        }
+        if (entryCount == entryKeys.length) {
+            rebuild();
+            slot = findSlot(key, prefix);
+        }
+        int entry = entryCount++;
+        entryKeys[entry] = Arrays.copyOf(key, key.length);
+        entryValues[entry] = value;
+        entryPrefixes[entry] = prefix;
+        table[slot] = entry + 1;
+        size++;
+        return null;
+    }
+
+    /** @return the key the given array was mapped to, or null */
+    @Nullable
+    ECKey remove(byte[] key) {
+        int slot = findSlot(key, prefix(key));
+        if (table[slot] == 0)
+            return null;
+        int entry = table[slot] - 1;
+        ECKey previous = entryValues[entry];
+        entryKeys[entry] = null;
+        entryValues[entry] = null;
+        size--;
+        // Shift back the following entries of the probe sequence that may move into the freed slot, so lookups
+        // don't stop early.
+        int mask = table.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = homeSlot(entryPrefixes[table[next] - 1]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+        return previous;
+    }
+
+    /** Returns a live view of the keys in insertion order. */
+    Collection<ECKey> values() {
+        return new AbstractCollection<ECKey>() {
+            @Override
+            public Iterator<ECKey> iterator() {
+                return new Iterator<ECKey>() {
+                    private int entry = skipRemoved(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return entry < entryCount;
+                    }
+
+                    @Override
+                    public ECKey next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        ECKey value = entryValues[entry];
+                        entry = skipRemoved(entry + 1);
+                        return value;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int skipRemoved(int entry) {
+        while (entry < entryCount && entryKeys[entry] == null)
+            entry++;
+        return entry;
+    }
+
+    /** Returns the slot holding the given array, or the free slot where it would be inserted. */
+    private int findSlot(byte[] key, long prefix) {
+        int mask = table.length - 1;
+        int slot = homeSlot(prefix);
+        while (true) {
+            int entry = table[slot] - 1;
+            if (entry < 0 || (entryPrefixes[entry] == prefix && Arrays.equals(entryKeys[entry], key)))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int homeSlot(long prefix) {
+        // Public keys start with a constant byte, so spread all bits of the prefix over the slot bits.
+        long hash = prefix * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (table.length - 1);
+    }
+
+    private static long prefix(byte[] key) {
+        long prefix = 0;
+        for (int i = 0; i < Math.min(8, key.length); i++)
+            prefix |= (key[i] & 0xFFL) << (8 * i);
+        return prefix;
+    }
+
+    /** Drops removed entries and, if more than half of the entries are in use, doubles the capacity. */
+    private void rebuild() {
+        int capacity = size >= entryKeys.length / 2 ? entryKeys.length * 2 : entryKeys.length;
+        byte[][] keys = new byte[capacity][];
+        ECKey[] values = new ECKey[capacity];
+        long[] prefixes = new long[capacity];
+        int count = 0;
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (entryKeys[entry] == null)
+                continue;
+            keys[count] = entryKeys[entry];
+            values[count] = entryValues[entry];
+            prefixes[count] = entryPrefixes[entry];
+            count++;
+        }
+        entryKeys = keys;
+        entryValues = values;
+        entryPrefixes = prefixes;
+        entryCount = count;
+        table = new int[capacity * 2];
+        int mask = table.length - 1;
+        for (int entry = 0; entry < count; entry++) {
+            int slot = homeSlot(prefixes[entry]);
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = entry + 1;
+        }
+    }
+}
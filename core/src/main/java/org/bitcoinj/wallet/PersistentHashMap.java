@@ -0,0 +1,341 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>An immutable hash map. {@link #with(Object, Object)} and {@link #without(Object)} return a new map that shares all
+ * but the changed path of the tree with this one, so a changed copy of a large map costs a few small arrays rather
+ * than a copy of the whole map.</p>
+ *
+ * <p>It is a hash array mapped trie: every node consumes 5 bits of the hash and stores its up to 32 children in an
+ * array that only has room for the children present. Keys whose hashes are equal share a collision bucket.</p>
+ *
+ * <p>Being immutable, it is thread safe. The mutators of {@link Map} throw {@link UnsupportedOperationException}.</p>
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // A Leaf, a Bucket or a Node, or null if the map is empty.
+    @Nullable private final Object root;
+    private final int size;
+
+    private PersistentHashMap(@Nullable Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    @Override
+    @Nullable
+    public V get(Object key) {
+        Leaf<K, V> leaf = find(key);
+        return leaf != null ? leaf.getValue() : null;
+    }
+
+    /** Returns a map with the given mapping added, or replacing the previous mapping of the key. */
+    PersistentHashMap<K, V> with(K key, V value) {
+        Leaf<K, V> leaf = new Leaf<>(key, value, hash(key));
+        if (root == null)
+            return new PersistentHashMap<>(leaf, 1);
+        Leaf<K, V> previous = find(key);
+        if (previous != null && previous.getValue() == value)
+            return this;
+        return new PersistentHashMap<>(put(root, leaf, 0), previous == null ? size + 1 : size);
+    }
+
+    /** Returns a map without the mapping of the given key, or this map if there was none. */
+    PersistentHashMap<K, V> without(Object key) {
+        if (find(key) == null)
+            return this;
+        return new PersistentHashMap<>(remove(root, key, hash(key), 0), size - 1);
+    }
+
+    /**
+     * Calls the given consumer for every key whose mapping in this map differs from its mapping in the given map, with
+     * the value in this map or null if this map doesn't have it. Values are compared by identity. Subtrees the two maps
+     * share are skipped, so comparing a map with the map it was derived from costs about as much as the changes.
+     */
+    void forEachChange(PersistentHashMap<K, V> previous, BiConsumer<K, V> consumer) {
+        diff(previous.root, root, 0, consumer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void diff(@Nullable Object before, @Nullable Object after, int shift,
+                                    BiConsumer<K, V> consumer) {
+        if (before == after)
+            return;
+        if (before instanceof Node && after instanceof Node) {
+            Node beforeNode = (Node) before, afterNode = (Node) after;
+            int bits = beforeNode.bitmap | afterNode.bitmap;
+            while (bits != 0) {
+                int bit = Integer.lowestOneBit(bits);
+                bits &= ~bit;
+                Object beforeChild = (beforeNode.bitmap & bit) != 0 ? beforeNode.slots[beforeNode.index(bit)] : null;
+                Object afterChild = (afterNode.bitmap & bit) != 0 ? afterNode.slots[afterNode.index(bit)] : null;
+                diff(beforeChild, afterChild, shift + BITS, consumer);
+            }
+            return;
+        }
+        // One side is a leaf, a bucket or missing, so both sides are small unless a whole subtree was added or
+        // removed. Compare their entries directly.
+        Map<Object, Object> beforeValues = new HashMap<>();
+        for (Iterator<Entry<K, V>> i = new EntryIterator<>(before); i.hasNext(); ) {
+            Entry<K, V> entry = i.next();
+            beforeValues.put(entry.getKey(), entry.getValue());
+        }
+        for (Iterator<Entry<K, V>> i = new EntryIterator<>(after); i.hasNext(); ) {
+            Entry<K, V> entry = i.next();
+            boolean existed = beforeValues.containsKey(entry.getKey());
+            Object beforeValue = beforeValues.remove(entry.getKey());
+            if (!existed || beforeValue != entry.getValue())
+                consumer.accept(entry.getKey(), entry.getValue());
+        }
+        for (Object key : beforeValues.keySet())
+            consumer.accept((K) key, null);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private Leaf<K, V> find(Object key) {
+        int hash = hash(key);
+        Object current = root;
+        for (int shift = 0; current instanceof Node; shift += BITS) {
+            Node node = (Node) current;
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            current = node.slots[node.index(bit)];
+        }
+        if (current instanceof Leaf) {
+            Leaf<K, V> leaf = (Leaf<K, V>) current;
+            return leaf.hash == hash && leaf.getKey().equals(key) ? leaf : null;
+        }
+        if (current instanceof Bucket) {
+            Bucket bucket = (Bucket) current;
+            if (bucket.hash != hash)
+                return null;
+            for (Leaf<?, ?> leaf : bucket.leaves)
+                if (leaf.getKey().equals(key))
+                    return (Leaf<K, V>) leaf;
+        }
+        return null;
+    }
+
+    private static Object put(Object slot, Leaf<?, ?> leaf, int shift) {
+        if (slot instanceof Node) {
+            Node node = (Node) slot;
+            int bit = bit(leaf.hash, shift);
+            int index = node.index(bit);
+            if ((node.bitmap & bit) == 0)
+                return new Node(node.bitmap | bit, insert(node.slots, index, leaf));
+            return new Node(node.bitmap, replace(node.slots, index, put(node.slots[index], leaf, shift + BITS)));
+        }
+        if (slot instanceof Leaf) {
+            Leaf<?, ?> existing = (Leaf<?, ?>) slot;
+            if (existing.hash == leaf.hash && existing.getKey().equals(leaf.getKey()))
+                return leaf;
+            if (existing.hash == leaf.hash)
+                return new Bucket(leaf.hash, new Leaf<?, ?>[] { existing, leaf });
+            return split(existing, existing.hash, leaf, shift);
+        }
+        Bucket bucket = (Bucket) slot;
+        if (bucket.hash != leaf.hash)
+            return split(bucket, bucket.hash, leaf, shift);
+        for (int i = 0; i < bucket.leaves.length; i++)
+            if (bucket.leaves[i].getKey().equals(leaf.getKey()))
+                return new Bucket(bucket.hash, replace(bucket.leaves, i, leaf));
+        return new Bucket(bucket.hash, insert(bucket.leaves, bucket.leaves.length, leaf));
+    }
+
+    /** Creates the nodes needed to hold a leaf or bucket and a leaf whose hashes differ. */
+    private static Object split(Object existing, int existingHash, Leaf<?, ?> leaf, int shift) {
+        int existingBit = bit(existingHash, shift);
+        int bit = bit(leaf.hash, shift);
+        if (existingBit == bit)
+            return new Node(bit, new Object[] { split(existing, existingHash, leaf, shift + BITS) });
+        // Compare unsigned, the bit of child 31 is the sign bit.
+        boolean existingFirst = Integer.compareUnsigned(existingBit, bit) < 0;
+        Object[] slots = existingFirst ? new Object[] { existing, leaf } : new Object[] { leaf, existing };
+        return new Node(existingBit | bit, slots);
+    }
+
+    /** Returns the slot without the key, which must be present. Nodes left with a single leaf or bucket collapse. */
+    @Nullable
+    private static Object remove(Object slot, Object key, int hash, int shift) {
+        if (slot instanceof Leaf)
+            return null;
+        if (slot instanceof Bucket) {
+            Bucket bucket = (Bucket) slot;
+            int i = 0;
+            while (!bucket.leaves[i].getKey().equals(key))
+                i++;
+            if (bucket.leaves.length == 2)
+                return bucket.leaves[1 - i];
+            return new Bucket(bucket.hash, delete(bucket.leaves, i));
+        }
+        Node node = (Node) slot;
+        int bit = bit(hash, shift);
+        int index = node.index(bit);
+        Object child = remove(node.slots[index], key, hash, shift + BITS);
+        if (child == null) {
+            if (node.slots.length == 1)
+                return null;
+            if (node.slots.length == 2 && !(node.slots[1 - index] instanceof Node))
+                return node.slots[1 - index];
+            return new Node(node.bitmap & ~bit, delete(node.slots, index));
+        }
+        if (node.slots.length == 1 && !(child instanceof Node))
+            return child;
+        return new Node(node.bitmap, replace(node.slots, index, child));
+    }
+
+    private static <T> T[] insert(T[] array, int index, T element) {
+        T[] result = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        result[index] = element;
+        return result;
+    }
+
+    private static <T> T[] replace(T[] array, int index, T element) {
+        T[] result = array.clone();
+        result[index] = element;
+        return result;
+    }
+
+    private static <T> T[] delete(T[] array, int index) {
+        T[] result = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static final class Leaf<K, V> extends SimpleImmutableEntry<K, V> {
+        private static final long serialVersionUID = 1832445692977607294L;
+        final int hash;
+
+        Leaf(K key, V value, int hash) {
+            super(key, value);
+            this.hash = hash;
+        }
+    }
+
+    /** Leaves whose keys have the same hash. */
+    private static final class Bucket {
+        final int hash;
+        final Leaf<?, ?>[] leaves;
+
+        Bucket(int hash, Leaf<?, ?>[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    private static final class Node {
+        // Which of the 32 children are present. slots holds them in order.
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+        private final Deque<Object> stack = new ArrayDeque<>();
+
+        EntryIterator(@Nullable Object root) {
+            if (root != null)
+                stack.push(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!stack.isEmpty() && !(stack.peek() instanceof Leaf)) {
+                Object slot = stack.pop();
+                Object[] children = slot instanceof Node ? ((Node) slot).slots : ((Bucket) slot).leaves;
+                for (int i = children.length - 1; i >= 0; i--)
+                    stack.push(children[i]);
+            }
+            return !stack.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return (Leaf<K, V>) stack.pop();
+        }
+    }
+}
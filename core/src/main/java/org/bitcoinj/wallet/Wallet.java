@@ -59,6 +59,7 @@ import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionConfidenceBatchEventListener;
 import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
 import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
 import org.bitcoinj.crypto.ChildNumber;
@@ -78,6 +79,7 @@ import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.MissingSigResolutionSigner;
 import org.bitcoinj.signers.TransactionSigner;
 import org.bitcoinj.utils.BaseTaggableObject;
+import org.bitcoinj.utils.CoalescingDispatcher;
 import org.bitcoinj.utils.FutureUtils;
 import org.bitcoinj.utils.ListenableCompletableFuture;
 import org.bitcoinj.utils.ListenerRegistration;
@@ -105,7 +107,10 @@ import java.io.OutputStream;
 import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -113,8 +118,10 @@ import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -125,7 +132,9 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -168,6 +177,13 @@ import static com.google.common.base.Preconditions.checkState;
  * thrashing when the wallet is changing very fast (eg due to a block chain sync). See
  * {@link Wallet#autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)}
  * for more information about this.</p>
+ *
+ * <p>Queries like {@link #getBalance(BalanceType)}, {@link #getTransactions(boolean)}, {@link #getTransaction(Sha256Hash)},
+ * {@link #getUnspents()} and {@link #calculateAllSpendCandidates(boolean, boolean)} don't wait for the wallet lock. While
+ * another thread is changing the wallet, for example connecting a block, they return the state from before that
+ * change. A thread always sees its own changes though. The transactions returned are the live objects, so their
+ * confidence may be newer than the rest of the answer. {@link #snapshot()} returns a consistent view that includes the
+ * confidences.</p>
  */
 public class Wallet extends BaseTaggableObject
     implements NewBestBlockListener, TransactionReceivedInBlockListener, PeerFilterProvider, KeyBag, TransactionBag, ReorganizeListener {
@@ -210,6 +226,26 @@ public class Wallet extends BaseTaggableObject
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = new HashSet<>();
 
+    // Running totals of myUnspents for each BalanceType, indexed by ordinal, so that getBalance() doesn't have to run
+    // coin selection over all outputs. balanceFlags remembers which totals each output currently contributes to.
+    // Transactions whose confidence changed are queued in balanceDirtyTransactions and re-evaluated lazily. If
+    // balanceNeedsRecompute is set (e.g. because keys were added or removed) all flags are recalculated.
+    @GuardedBy("lock") private final long[] balanceTotals = new long[BalanceType.values().length];
+    @GuardedBy("lock") private final Map<TransactionOutput, Integer> balanceFlags = new HashMap<>();
+    @GuardedBy("lock") private final Set<Transaction> balanceDirtyTransactions = new HashSet<>();
+    private volatile boolean balanceNeedsRecompute = true;
+
+    // Read only queries are answered from vSnapshot, an immutable snapshot of the pools, the unspent outputs and the
+    // balances, so they run concurrently and don't wait for block processing. Every change bumps stateVersion, and
+    // the first query that finds the snapshot out of date updates it if the lock is free. While another thread holds
+    // the lock, queries are answered from the last snapshot, unless it misses a change of the querying thread itself:
+    // lastChangeVersion remembers the version of the last change made by each thread. Snapshots are updated
+    // incrementally, with the transactions in snapshotDirtyTransactions and those in confidenceChanged.
+    private final AtomicLong stateVersion = new AtomicLong();
+    private final ThreadLocal<Long> lastChangeVersion = ThreadLocal.withInitial(() -> 0L);
+    @Nullable private volatile WalletSnapshot vSnapshot;
+    @GuardedBy("lock") private final Set<Transaction> snapshotDirtyTransactions = new HashSet<>();
+
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
     // then it actually does confirm and does so within the same network session, remote peers will not resend us
@@ -228,6 +264,13 @@ public class Wallet extends BaseTaggableObject
     // outside the wallet lock. So don't expose this object directly via any accessors!
     @GuardedBy("keyChainGroupLock") private final KeyChainGroup keyChainGroup;
 
+    // What changed about the keys since the journal last saved them, see takeKeyChangesForJournal(). Keys are issued
+    // from many places, so the issued counts of the chains are compared instead, which takes a few ints per chain.
+    @GuardedBy("keyChainGroupLock") private final Set<ByteString> keysImportedForJournal = new LinkedHashSet<>();
+    @GuardedBy("keyChainGroupLock") private boolean keysRemovedForJournal;
+    @GuardedBy("keyChainGroupLock") private final Map<DeterministicKeyChain, List<Integer>> issuedCountsForJournal =
+            new IdentityHashMap<>();
+
     // A list of scripts watched by this wallet.
     @GuardedBy("keyChainGroupLock") private final Set<Script> watchedScripts;
 
@@ -235,7 +278,8 @@ public class Wallet extends BaseTaggableObject
     protected final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
-    private int lastBlockSeenHeight;
+    // Volatile so that transaction confidences can read it through chainHeightSource without taking the wallet lock.
+    private volatile int lastBlockSeenHeight;
     private long lastBlockSeenTimeSecs;
 
     private final CopyOnWriteArrayList<ListenerRegistration<WalletChangeEventListener>> changeListeners
@@ -250,6 +294,11 @@ public class Wallet extends BaseTaggableObject
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionConfidenceEventListener>> transactionConfidenceListeners
         = new CopyOnWriteArrayList<>();
+    // Listeners whose events are coalesced, see CoalescingDispatcher. Change listeners are posted the wallet itself.
+    private final CopyOnWriteArrayList<CoalescedListenerRegistration<Wallet>> coalescedChangeListeners
+        = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<CoalescedListenerRegistration<Transaction>> coalescedConfidenceListeners
+        = new CopyOnWriteArrayList<>();
 
     // A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
     // as a convenience to API users so they don't have to register on every transaction themselves.
@@ -259,6 +308,15 @@ public class Wallet extends BaseTaggableObject
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private HashSet<Sha256Hash> ignoreNextNewBlock;
+    // If true, the depth of BUILDING transactions is derived from lastBlockSeenHeight, and notifyNewBestBlock only
+    // looks at the transactions in shallowTransactions rather than at all transactions of the wallet.
+    private boolean heightDerivedDepth;
+    // The depth up to which DEPTH confidence changes are sent if the depth is derived from the chain height.
+    private int depthWatchThreshold;
+    // BUILDING transactions that are not yet buried deeper than both the depth watch threshold and the event horizon,
+    // and coinbases that are not yet mature.
+    private final Set<Transaction> shallowTransactions = new LinkedHashSet<>();
+    private final IntSupplier chainHeightSource = () -> lastBlockSeenHeight;
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -484,6 +542,7 @@ public class Wallet extends BaseTaggableObject
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
+        depthWatchThreshold = context.getEventHorizon();
         signers = new ArrayList<>();
         addTransactionSigner(new LocalTransactionSigner());
         createTransientState();
@@ -498,6 +557,21 @@ public class Wallet extends BaseTaggableObject
             // doesn't necessarily know at that point which wallets contain which transactions, so it's up
             // to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
             // so we'll queue up a wallet change event in other parts of the code.
+            lock.lock();
+            try {
+                Transaction tx = transactions.get(confidence.getTransactionHash());
+                if (tx != null && affectsBalance(tx, reason)) {
+                    balanceDirtyTransactions.add(tx);
+                    markChanged(tx);
+                } else if (tx != null && reason == Listener.ChangeReason.METADATA) {
+                    // Doesn't affect the balances, but it's saved with the transaction.
+                    markChanged(tx);
+                    maybeQueueOnWalletChanged();
+                    saveLater();
+                }
+            } finally {
+                lock.unlock();
+            }
             if (reason == Listener.ChangeReason.SEEN_PEERS) {
                 lock.lock();
                 try {
@@ -803,7 +877,11 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            keysRemovedForJournal = true;
+            boolean removed = keyChainGroup.removeImportedKey(key);
+            balanceNeedsRecompute = true;
+            markChanged();
+            return removed;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -872,6 +950,9 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            recordImportedKeys(keys);
+            balanceNeedsRecompute = true;
+            markChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -902,7 +983,11 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
-            return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            int result = keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            recordImportedKeys(keys);
+            balanceNeedsRecompute = true;
+            markChanged();
+            return result;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -923,6 +1008,8 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            balanceNeedsRecompute = true;
+            markChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1482,13 +1569,69 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private void recordImportedKeys(List<ECKey> keys) {
+        checkState(keyChainGroupLock.isHeldByCurrentThread());
+        for (ECKey key : keys)
+            keysImportedForJournal.add(ByteString.copyFrom(key.getPubKey()));
+    }
+
+    /**
+     * Returns the keys that changed since the last call, for {@link WalletJournal} to append: the imported keys, and
+     * the parent keys of the chains that issued keys, which hold the issued counts. The other keys of the chains
+     * follow from these when the wallet is loaded. Returns null if the keys changed in a way that only saving the
+     * whole wallet captures, like removed keys, new chains or encryption.
+     */
+    @Nullable
+    List<Protos.Key> takeKeyChangesForJournal() {
+        keyChainGroupLock.lock();
+        try {
+            boolean restructured = keysRemovedForJournal;
+            List<Protos.Key> changes = new ArrayList<>();
+            for (ByteString pubKey : keysImportedForJournal) {
+                ECKey key = keyChainGroup.findKeyFromPubKey(pubKey.toByteArray());
+                if (key == null || key instanceof DeterministicKey)
+                    restructured = true;
+                else
+                    changes.add(BasicKeyChain.toProtoKeyBuilder(key).build());
+            }
+            List<DeterministicKeyChain> chains = keyChainGroup.isSupportsDeterministicChains()
+                    ? keyChainGroup.getDeterministicKeyChains() : Collections.emptyList();
+            // Encryption replaces the chains, so it shows as new chains here.
+            if (chains.size() != issuedCountsForJournal.size())
+                restructured = true;
+            Map<DeterministicKeyChain, List<Integer>> issuedCounts = new IdentityHashMap<>();
+            for (DeterministicKeyChain chain : chains) {
+                List<Integer> counts = Arrays.asList(chain.getIssuedExternalKeys(), chain.getIssuedInternalKeys(),
+                        chain.getLookaheadSize());
+                List<Integer> previous = issuedCountsForJournal.get(chain);
+                if (previous == null)
+                    restructured = true;
+                else if (!counts.equals(previous))
+                    changes.addAll(chain.serializeParentKeysToProtobuf());
+                issuedCounts.put(chain, counts);
+            }
+            keysImportedForJournal.clear();
+            keysRemovedForJournal = false;
+            issuedCountsForJournal.clear();
+            issuedCountsForJournal.putAll(issuedCounts);
+            return restructured ? null : changes;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
     public void saveToFile(File temp, File destFile) throws IOException {
+        saveToFile(temp, destFile, null);
+    }
+
+    /** Like {@link #saveToFile(File, File)}, but also feeds the file contents into the given digest. */
+    void saveToFile(File temp, File destFile, @Nullable MessageDigest digest) throws IOException {
         FileOutputStream stream = null;
         lock.lock();
         try {
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            saveToFileStream(digest != null ? new DigestOutputStream(stream, digest) : stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -1562,6 +1705,108 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Whether the depth of transactions in the best chain is derived from the height of the last seen block
+     * instead of being counted up on every block. Counting touches every confirmed transaction of the wallet for
+     * every new block, and sends a {@link TransactionConfidence.Listener.ChangeReason#DEPTH} change for each of them.
+     * With this property set, a new block only touches the transactions that are not deeper than the
+     * {@link #setDepthWatchThreshold(int) depth watch threshold}, and only those get DEPTH changes. The depth of all
+     * other transactions is still correct whenever it is read, see
+     * {@link TransactionConfidence#setChainHeightSource(java.util.function.IntSupplier)}.</p>
+     *
+     * <p>Note that this property is not serialized. You have to set it each time a Wallet object is constructed,
+     * even if it's loaded from a protocol buffer.</p>
+     */
+    public void setHeightDerivedDepth(boolean heightDerivedDepth) {
+        lock.lock();
+        try {
+            if (heightDerivedDepth == this.heightDerivedDepth)
+                return;
+            this.heightDerivedDepth = heightDerivedDepth;
+            for (Transaction tx : transactions.values())
+                tx.getConfidence().setChainHeightSource(heightDerivedDepth ? chainHeightSource : null);
+            updateShallowTransactions();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See {@link Wallet#setHeightDerivedDepth(boolean)} for an explanation of this property.
+     */
+    public boolean isHeightDerivedDepth() {
+        lock.lock();
+        try {
+            return heightDerivedDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the depth up to which DEPTH confidence changes are sent if the depth is derived from the chain height, see
+     * {@link #setHeightDerivedDepth(boolean)}. Futures from {@link TransactionConfidence#getDepthFuture(int)} rely
+     * on these changes, so they only complete for depths up to this threshold. Defaults to the event horizon of the
+     * context. Coinbase transactions are watched until they mature whatever the threshold, so the balances pick up
+     * their maturity. This property is not serialized.
+     */
+    public void setDepthWatchThreshold(int depthWatchThreshold) {
+        checkArgument(depthWatchThreshold >= 0, "depthWatchThreshold must not be negative");
+        lock.lock();
+        try {
+            this.depthWatchThreshold = depthWatchThreshold;
+            updateShallowTransactions();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See {@link Wallet#setDepthWatchThreshold(int)} for an explanation of this property.
+     */
+    public int getDepthWatchThreshold() {
+        lock.lock();
+        try {
+            return depthWatchThreshold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateShallowTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        shallowTransactions.clear();
+        if (heightDerivedDepth)
+            for (Transaction tx : transactions.values())
+                maybeWatchDepth(tx);
+    }
+
+    private void maybeWatchDepth(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING
+                && !isBeyondDepthWatch(tx, confidence.getDepthInBlocks()))
+            shallowTransactions.add(tx);
+    }
+
+    private boolean isBeyondDepthWatch(Transaction tx, int depth) {
+        if (tx.isCoinBase() && depth < params.getSpendableCoinbaseDepth())
+            return false;
+        return depth > depthWatchThreshold && depth > context.getEventHorizon();
+    }
+
+    /**
+     * Queues the change of depth of a watched transaction: a DEPTH confidence change up to the depth watch threshold,
+     * or else, for a coinbase watched until it matures, just a re-evaluation of the balances.
+     */
+    private void queueDepthChange(Transaction tx, int depth) {
+        if (depth <= depthWatchThreshold) {
+            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+        } else if (tx.isCoinBase()) {
+            balanceDirtyTransactions.add(tx);
+            markChanged(tx);
+        }
+    }
+
     /**
      * Sets the {@link RiskAnalysis} implementation to use for deciding whether received pending transactions are risky
      * or not. If the analyzer says a transaction is risky, by default it will be dropped. You can customize this
@@ -1716,6 +1961,18 @@ public class Wallet extends BaseTaggableObject
      * @throws UnreadableWalletException if there was a problem loading or parsing the file
      */
     public static Wallet loadFromFile(File file, WalletProtobufSerializer.WalletFactory factory, boolean forceReset, boolean ignoreMandatoryExtensions, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.fileFor(file).exists()) {
+            // Written by WalletFiles in journal mode.
+            WalletProtobufSerializer loader = new WalletProtobufSerializer(factory);
+            if (ignoreMandatoryExtensions) {
+                loader.setRequireMandatoryExtensions(false);
+            }
+            Wallet wallet = loader.readWallet(file, forceReset, walletExtensions);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
+        }
         try (FileInputStream stream = new FileInputStream(file)) {
             return loadFromFileStream(stream, factory, forceReset, ignoreMandatoryExtensions, walletExtensions);
         } catch (IOException e) {
@@ -2168,6 +2425,7 @@ public class Wallet extends BaseTaggableObject
                 tx = tmp;
         }
 
+        markChanged(tx);
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
@@ -2182,7 +2440,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2218,6 +2476,8 @@ public class Wallet extends BaseTaggableObject
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
                 ignoreNextNewBlock.add(txHash);
+                if (heightDerivedDepth)
+                    shallowTransactions.add(tx);
 
                 // When a tx is received from the best chain, if other txns that spend this tx are IN_CONFLICT,
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
@@ -2256,7 +2516,7 @@ public class Wallet extends BaseTaggableObject
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
+            Coin newBalance = getBalance();
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -2326,6 +2586,8 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
+        if (!confidenceChanged.isEmpty())
+            markChanged();
         if (insideReorg)
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
@@ -2356,30 +2618,10 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getTxId())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getTxId());
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
-                }
-            }
+            if (heightDerivedDepth)
+                notifyShallowTransactions();
+            else
+                notifyAllTransactions();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2396,6 +2638,59 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Counts up the depth of all BUILDING transactions. */
+    private void notifyAllTransactions() {
+        // Notify all the BUILDING transactions of the new block.
+        // This is so that they can update their depth.
+        Set<Transaction> transactions = getTransactions(true);
+        for (Transaction tx : transactions) {
+            if (ignoreNextNewBlock.contains(tx.getTxId())) {
+                // tx was already processed in receive() due to it appearing in this block, so we don't want to
+                // increment the tx confidence depth twice, it'd result in miscounting.
+                ignoreNextNewBlock.remove(tx.getTxId());
+            } else {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+                    // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
+                    // pending again. We could clear this data the moment a tx is seen in the block chain, but
+                    // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
+                    // pending tx has zero confidence at all, which would not be right: we expect it to be
+                    // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
+                    // but this way is backwards compatible with existing software, and the new state probably
+                    // wouldn't mean anything different to just remembering peers anyway.
+                    if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        confidence.clearBroadcastBy();
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                }
+            }
+        }
+    }
+
+    private void notifyShallowTransactions() {
+        // The depth of BUILDING transactions follows from the new last seen block height, so only the transactions
+        // that are still being watched need to be looked at.
+        Iterator<Transaction> iterator = shallowTransactions.iterator();
+        while (iterator.hasNext()) {
+            Transaction tx = iterator.next();
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() != ConfidenceType.BUILDING) {
+                iterator.remove();
+                continue;
+            }
+            // Appeared in this block, a TYPE change has been queued by receive().
+            if (ignoreNextNewBlock.contains(tx.getTxId()))
+                continue;
+            int depth = confidence.getDepthInBlocks();
+            // See notifyAllTransactions() for why the seen peers are cleared.
+            if (depth > context.getEventHorizon())
+                confidence.clearBroadcastBy();
+            queueDepthChange(tx, depth);
+            if (isBeyondDepthWatch(tx, depth))
+                iterator.remove();
+        }
+        ignoreNextNewBlock.clear();
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2419,6 +2714,7 @@ public class Wallet extends BaseTaggableObject
             log.info("  coinbase tx <-dead: confidence {}", tx.getTxId(),
                     tx.getConfidence().getConfidenceType().name());
             dead.remove(tx.getTxId());
+            markChanged(tx);
         }
 
         // Update tx and other unspent/pending transactions by connecting inputs/outputs.
@@ -2535,7 +2831,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2558,7 +2854,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2583,12 +2879,13 @@ public class Wallet extends BaseTaggableObject
             pending.remove(tx.getTxId());
             unspent.remove(tx.getTxId());
             spent.remove(tx.getTxId());
+            markChanged(tx);
             addWalletTransaction(Pool.DEAD, tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
@@ -2598,7 +2895,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2614,13 +2911,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2640,6 +2937,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-unspent ->spent", tx.getTxId(), context);
                 }
                 spent.put(tx.getTxId(), tx);
+                markChanged(tx);
             }
         } else {
             if (spent.remove(tx.getTxId()) != null) {
@@ -2647,6 +2945,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-spent ->unspent", tx.getTxId(), context);
                 }
                 unspent.put(tx.getTxId(), tx);
+                markChanged(tx);
             }
         }
     }
@@ -2791,6 +3090,21 @@ public class Wallet extends BaseTaggableObject
         changeListeners.add(new ListenerRegistration<>(listener, executor));
     }
 
+    /**
+     * Adds an event listener object that is called at most once per time window, no matter how often the wallet
+     * changed within the window. The listener is executed by the given executor.
+     *
+     * @param coalesceWindowMillis time to wait for more changes after the first one before calling the listener
+     * @return the dispatcher of the listener, which provides its queue depth and dispatch latency
+     */
+    public CoalescingDispatcher<Wallet> addChangeEventListener(Executor executor, long coalesceWindowMillis,
+                                                               WalletChangeEventListener listener) {
+        CoalescingDispatcher<Wallet> dispatcher = new CoalescingDispatcher<>(executor, coalesceWindowMillis,
+                TimeUnit.MILLISECONDS, wallets -> listener.onWalletChanged(Wallet.this));
+        coalescedChangeListeners.add(new CoalescedListenerRegistration<>(listener, dispatcher));
+        return dispatcher;
+    }
+
     /**
      * Adds an event listener object called when coins are received.
      * Runs the listener methods in the user thread.
@@ -2908,12 +3222,58 @@ public class Wallet extends BaseTaggableObject
         transactionConfidenceListeners.add(new ListenerRegistration<>(listener, executor));
     }
 
+    /**
+     * Adds an event listener object that is called once per transaction and time window, no matter how often the
+     * confidence of the transaction changed within the window. The listener is executed by the given executor.
+     *
+     * @param coalesceWindowMillis time to wait for more changes after the first one before calling the listener
+     * @return the dispatcher of the listener, which provides its queue depth and dispatch latency
+     */
+    public CoalescingDispatcher<Transaction> addTransactionConfidenceEventListener(Executor executor,
+            long coalesceWindowMillis, TransactionConfidenceEventListener listener) {
+        CoalescingDispatcher<Transaction> dispatcher = new CoalescingDispatcher<>(executor, coalesceWindowMillis,
+                TimeUnit.MILLISECONDS, txns -> {
+                    for (Transaction tx : txns)
+                        listener.onTransactionConfidenceChanged(Wallet.this, tx);
+                });
+        coalescedConfidenceListeners.add(new CoalescedListenerRegistration<>(listener, dispatcher));
+        return dispatcher;
+    }
+
+    /**
+     * Adds an event listener object that is called once per time window with all transactions whose confidence
+     * changed within the window. Runs the listener methods in the user thread.
+     *
+     * @param coalesceWindowMillis time to wait for more changes after the first one before calling the listener
+     * @return the dispatcher of the listener, which provides its queue depth and dispatch latency
+     */
+    public CoalescingDispatcher<Transaction> addTransactionConfidenceBatchEventListener(long coalesceWindowMillis,
+            TransactionConfidenceBatchEventListener listener) {
+        return addTransactionConfidenceBatchEventListener(Threading.USER_THREAD, coalesceWindowMillis, listener);
+    }
+
+    /**
+     * Adds an event listener object that is called once per time window with all transactions whose confidence
+     * changed within the window. The listener is executed by the given executor.
+     *
+     * @param coalesceWindowMillis time to wait for more changes after the first one before calling the listener
+     * @return the dispatcher of the listener, which provides its queue depth and dispatch latency
+     */
+    public CoalescingDispatcher<Transaction> addTransactionConfidenceBatchEventListener(Executor executor,
+            long coalesceWindowMillis, TransactionConfidenceBatchEventListener listener) {
+        CoalescingDispatcher<Transaction> dispatcher = new CoalescingDispatcher<>(executor, coalesceWindowMillis,
+                TimeUnit.MILLISECONDS, txns -> listener.onTransactionConfidencesChanged(Wallet.this, txns));
+        coalescedConfidenceListeners.add(new CoalescedListenerRegistration<>(listener, dispatcher));
+        return dispatcher;
+    }
+
     /**
      * Removes the given event listener object. Returns true if the listener was removed, false if that listener
      * was never added.
      */
     public boolean removeChangeEventListener(WalletChangeEventListener listener) {
-        return ListenerRegistration.removeFromList(listener, changeListeners);
+        return ListenerRegistration.removeFromList(listener, changeListeners)
+                || coalescedChangeListeners.removeIf(registration -> registration.listener == listener);
     }
 
     /**
@@ -2969,7 +3329,27 @@ public class Wallet extends BaseTaggableObject
      * was never added.
      */
     public boolean removeTransactionConfidenceEventListener(TransactionConfidenceEventListener listener) {
-        return ListenerRegistration.removeFromList(listener, transactionConfidenceListeners);
+        return ListenerRegistration.removeFromList(listener, transactionConfidenceListeners)
+                || coalescedConfidenceListeners.removeIf(registration -> registration.listener == listener);
+    }
+
+    /**
+     * Removes the given event listener object. Returns true if the listener was removed, false if that listener
+     * was never added.
+     */
+    public boolean removeTransactionConfidenceBatchEventListener(TransactionConfidenceBatchEventListener listener) {
+        return coalescedConfidenceListeners.removeIf(registration -> registration.listener == listener);
+    }
+
+    /** A listener whose events go through a {@link CoalescingDispatcher}. */
+    private static class CoalescedListenerRegistration<K> {
+        final Object listener;
+        final CoalescingDispatcher<K> dispatcher;
+
+        CoalescedListenerRegistration(Object listener, CoalescingDispatcher<K> dispatcher) {
+            this.listener = checkNotNull(listener);
+            this.dispatcher = dispatcher;
+        }
     }
 
     private void queueOnTransactionConfidenceChanged(final Transaction tx) {
@@ -2981,6 +3361,8 @@ public class Wallet extends BaseTaggableObject
                 registration.executor.execute(() -> registration.listener.onTransactionConfidenceChanged(Wallet.this, tx));
             }
         }
+        for (CoalescedListenerRegistration<Transaction> registration : coalescedConfidenceListeners)
+            registration.dispatcher.post(tx);
     }
 
     protected void maybeQueueOnWalletChanged() {
@@ -2988,10 +3370,13 @@ public class Wallet extends BaseTaggableObject
         // transactions due to a new block arriving. It will be called later instead.
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
+        markChanged();
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(() -> registration.listener.onWalletChanged(Wallet.this));
         }
+        for (CoalescedListenerRegistration<Wallet> registration : coalescedChangeListeners)
+            registration.dispatcher.post(this);
     }
 
     protected void queueOnCoinsReceived(final Transaction tx, final Coin balance, final Coin newBalance) {
@@ -3033,6 +3418,16 @@ public class Wallet extends BaseTaggableObject
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        WalletSnapshot view = readView();
+        if (view != null) {
+            Set<Transaction> all = new HashSet<>();
+            all.addAll(view.getPool(Pool.UNSPENT).values());
+            all.addAll(view.getPool(Pool.SPENT).values());
+            all.addAll(view.getPool(Pool.PENDING).values());
+            if (includeDead)
+                all.addAll(view.getPool(Pool.DEAD).values());
+            return all;
+        }
         lock.lock();
         try {
             Set<Transaction> all = new HashSet<>();
@@ -3051,6 +3446,13 @@ public class Wallet extends BaseTaggableObject
      * Returns a set of all WalletTransactions in the wallet.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
+        WalletSnapshot view = readView();
+        if (view != null) {
+            Set<WalletTransaction> all = new HashSet<>();
+            for (WalletSnapshot.TransactionState state : view.getTransactionStates().values())
+                all.add(new WalletTransaction(state.getPool(), state.getTransaction()));
+            return all;
+        }
         lock.lock();
         try {
             Set<WalletTransaction> all = new HashSet<>();
@@ -3090,6 +3492,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        markChanged(tx);
         transactions.put(tx.getTxId(), tx);
         switch (pool) {
         case UNSPENT:
@@ -3110,12 +3513,17 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
+        balanceDirtyTransactions.add(tx);
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        if (heightDerivedDepth) {
+            tx.getConfidence().setChainHeightSource(chainHeightSource);
+            maybeWatchDepth(tx);
+        }
     }
 
     /**
@@ -3160,6 +3568,9 @@ public class Wallet extends BaseTaggableObject
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
+        WalletSnapshot view = readView();
+        if (view != null)
+            return view.getTransaction(hash);
         lock.lock();
         try {
             return transactions.get(hash);
@@ -3201,6 +3612,7 @@ public class Wallet extends BaseTaggableObject
             lastBlockSeenHash = null;
             lastBlockSeenHeight = -1; // Magic value for 'never'.
             lastBlockSeenTimeSecs = 0;
+            markChanged();
             saveLater();
             maybeQueueOnWalletChanged();
         } finally {
@@ -3228,12 +3640,15 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        snapshotDirtyTransactions.addAll(transactions.values());
+        markChanged();
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
-        myUnspents.clear();
+        shallowTransactions.clear();
+        clearUnspents();
     }
 
     /**
@@ -3284,14 +3699,15 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getTxId());
+                        markChanged(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3377,6 +3793,9 @@ public class Wallet extends BaseTaggableObject
 
     /** Returns a copy of the internal unspent outputs list */
     public List<TransactionOutput> getUnspents() {
+        WalletSnapshot view = readView();
+        if (view != null)
+            return new ArrayList<>(view.getUnspents());
         lock.lock();
         try {
             return new ArrayList<>(myUnspents);
@@ -3508,6 +3927,9 @@ public class Wallet extends BaseTaggableObject
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
     public Collection<Transaction> getPendingTransactions() {
+        WalletSnapshot view = readView();
+        if (view != null)
+            return view.getPool(Pool.PENDING).values();
         lock.lock();
         try {
             return Collections.unmodifiableCollection(pending.values());
@@ -3558,6 +3980,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.lastBlockSeenHash = lastBlockSeenHash;
+            markChanged();
         } finally {
             lock.unlock();
         }
@@ -3567,6 +3990,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            markChanged();
         } finally {
             lock.unlock();
         }
@@ -3709,31 +4133,269 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        WalletSnapshot view = readView();
+        if (view != null)
+            return view.getBalance(balanceType);
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
+            if (vUTXOProvider != null)
+                return calculateBalance(balanceType);
+            updateBalanceTotals();
+            return Coin.valueOf(balanceTotals[balanceType.ordinal()]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Calculates the given balance from scratch, by running coin selection over all spend candidates. */
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    private boolean addUnspent(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        boolean added = myUnspents.add(output);
+        if (added)
+            markChanged(checkNotNull(output.getParentTransaction()));
+        if (added && !balanceNeedsRecompute)
+            updateBalanceFlags(output);
+        return added;
+    }
+
+    private boolean removeUnspent(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        boolean removed = myUnspents.remove(output);
+        if (removed)
+            markChanged(checkNotNull(output.getParentTransaction()));
+        if (removed && !balanceNeedsRecompute)
+            updateBalanceFlags(output);
+        return removed;
+    }
+
+    private void clearUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        markChanged();
+        myUnspents.clear();
+        balanceFlags.clear();
+        balanceDirtyTransactions.clear();
+        Arrays.fill(balanceTotals, 0);
+    }
+
+    /**
+     * Returns whether a confidence change of the given reason can move the outputs of the transaction between balance
+     * types. Depth only matters for the maturity of coinbases, so most depth changes can be ignored, and metadata
+     * doesn't matter at all.
+     */
+    private static boolean affectsBalance(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        if (reason == TransactionConfidence.Listener.ChangeReason.METADATA)
+            return false;
+        return reason != TransactionConfidence.Listener.ChangeReason.DEPTH || tx.isCoinBase();
+    }
+
+    /** Records a change of the unspent outputs, the balances or the last block seen. */
+    private void markChanged() {
+        lastChangeVersion.set(stateVersion.incrementAndGet());
+    }
+
+    /** Records a change of the pool, the confidence or the unspent outputs of the given transaction. */
+    private void markChanged(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        snapshotDirtyTransactions.add(tx);
+        markChanged();
+    }
+
+    /**
+     * <p>Returns an immutable snapshot of the wallet: the transactions in each pool with their confidence, the unspent
+     * outputs, the balances and the last block seen. It can be read from any thread without locking, and won't change
+     * when the wallet does. Use it to report on a wallet consistently, e.g. for a statement or an export, or to
+     * answer many queries at once.</p>
+     *
+     * <p>Snapshots are cheap to take even after every block, as a snapshot only records the changes since the
+     * previous one and shares everything else with it. If another thread is in the middle of changing the wallet, the
+     * snapshot from before that change is returned, unless it is missing changes of the calling thread.</p>
+     *
+     * <p>If a {@link UTXOProvider} is set, the snapshot doesn't know about its outputs, and its balances only count the
+     * outputs of the transactions in the wallet.</p>
+     */
+    public WalletSnapshot snapshot() {
+        if (lock.isHeldByCurrentThread()) {
+            // The calling thread might be in the middle of a change, so don't publish that state to other threads.
+            return buildSnapshot(vSnapshot, stateVersion.get());
+        }
+        return latestSnapshot();
+    }
+
+    /** Like {@link #snapshot()}, for callers that hold the lock without being in the middle of a change. */
+    WalletSnapshot snapshotForSave() {
+        checkState(lock.isHeldByCurrentThread());
+        return lock.getHoldCount() == 1 ? updateSnapshot() : snapshot();
+    }
+
+    /**
+     * Returns a snapshot for answering a query without holding the lock, or null if the query has to be answered
+     * from the live state, because the calling thread holds the lock (and might be in the middle of a change) or
+     * because balances are calculated from a {@link UTXOProvider}.
+     */
+    @Nullable
+    private WalletSnapshot readView() {
+        if (vUTXOProvider != null || lock.isHeldByCurrentThread())
+            return null;
+        return latestSnapshot();
+    }
+
+    /**
+     * Returns the current snapshot if there is one or it can be updated right away, or else the last one if the lock
+     * is held by another thread and the last snapshot contains all changes of the calling thread. Otherwise waits for
+     * the lock to update the snapshot.
+     */
+    private WalletSnapshot latestSnapshot() {
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshot.version == stateVersion.get())
+            return snapshot;
+        if (!lock.tryLock()) {
+            if (snapshot != null && snapshot.version >= lastChangeVersion.get())
+                return snapshot;
+            lock.lock();
+        }
+        try {
+            return updateSnapshot();
         } finally {
             lock.unlock();
         }
     }
 
+    private WalletSnapshot updateSnapshot() {
+        checkState(lock.getHoldCount() == 1);
+        // Read the version first, so that concurrent changes at worst make the snapshot look older than it is.
+        long version = stateVersion.get();
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshot.version == version)
+            return snapshot;
+        snapshot = buildSnapshot(snapshot, version);
+        snapshotDirtyTransactions.clear();
+        vSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /** Builds a snapshot of the current state, starting from the given snapshot if there is one. */
+    private WalletSnapshot buildSnapshot(@Nullable WalletSnapshot previous, long version) {
+        checkState(lock.isHeldByCurrentThread());
+        updateBalanceTotals();
+        WalletSnapshot.Builder builder;
+        if (previous == null) {
+            builder = new WalletSnapshot.Builder();
+            for (Transaction tx : transactions.values())
+                updateSnapshot(builder, tx);
+        } else {
+            builder = new WalletSnapshot.Builder(previous);
+            for (Transaction tx : snapshotDirtyTransactions)
+                updateSnapshot(builder, tx);
+            // Depth isn't part of the snapshot, it follows from the height of the last block seen.
+            for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet())
+                if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                    updateSnapshot(builder, entry.getKey());
+        }
+        return builder.build(version, balanceTotals, lastBlockSeenHash, lastBlockSeenHeight, lastBlockSeenTimeSecs);
+    }
+
+    private void updateSnapshot(WalletSnapshot.Builder builder, Transaction tx) {
+        Transaction current = transactions.get(tx.getTxId());
+        Pool pool = null;
+        if (current != null) {
+            tx = current;
+            Sha256Hash txId = tx.getTxId();
+            if (unspent.containsKey(txId))
+                pool = Pool.UNSPENT;
+            else if (spent.containsKey(txId))
+                pool = Pool.SPENT;
+            else if (pending.containsKey(txId))
+                pool = Pool.PENDING;
+            else if (dead.containsKey(txId))
+                pool = Pool.DEAD;
+        }
+        builder.updateTransaction(tx, pool);
+        for (TransactionOutput output : tx.getOutputs())
+            builder.updateUnspent(output, myUnspents.contains(output));
+    }
+
+    /** Brings {@link #balanceTotals} up to date with confidence changes since the last call. */
+    private void updateBalanceTotals() {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceNeedsRecompute) {
+            balanceNeedsRecompute = false;
+            balanceFlags.clear();
+            balanceDirtyTransactions.clear();
+            Arrays.fill(balanceTotals, 0);
+            for (TransactionOutput output : myUnspents)
+                updateBalanceFlags(output);
+            return;
+        }
+        // Confidence changes are queued in confidenceChanged before the listeners hear about them.
+        for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet())
+            if (affectsBalance(entry.getKey(), entry.getValue()))
+                balanceDirtyTransactions.add(entry.getKey());
+        for (Transaction tx : balanceDirtyTransactions)
+            for (TransactionOutput output : tx.getOutputs())
+                updateBalanceFlags(output);
+        balanceDirtyTransactions.clear();
+    }
+
+    /** Re-evaluates which balance types the given output counts towards and adjusts the totals accordingly. */
+    private void updateBalanceFlags(TransactionOutput output) {
+        int newFlags = myUnspents.contains(output) ? calculateBalanceFlags(output) : 0;
+        Integer previous = newFlags == 0 ? balanceFlags.remove(output) : balanceFlags.put(output, newFlags);
+        int oldFlags = previous == null ? 0 : previous;
+        if (oldFlags == newFlags)
+            return;
+        long value = output.getValue().value;
+        for (BalanceType type : BalanceType.values()) {
+            int flag = 1 << type.ordinal();
+            if ((oldFlags & flag) != 0)
+                balanceTotals[type.ordinal()] -= value;
+            if ((newFlags & flag) != 0)
+                balanceTotals[type.ordinal()] += value;
+        }
+    }
+
+    // Mirrors calculateAllSpendCandidates() and the default coin selector for a single unspent output.
+    private int calculateBalanceFlags(TransactionOutput output) {
+        Transaction tx = checkNotNull(output.getParentTransaction());
+        boolean spendable = canSignFor(output.getScriptPubKey());
+        boolean available = tx.isMature() && DefaultCoinSelector.isSelectable(tx);
+        int flags = 1 << BalanceType.ESTIMATED.ordinal();
+        if (spendable)
+            flags |= 1 << BalanceType.ESTIMATED_SPENDABLE.ordinal();
+        if (available)
+            flags |= 1 << BalanceType.AVAILABLE.ordinal();
+        if (available && spendable)
+            flags |= 1 << BalanceType.AVAILABLE_SPENDABLE.ordinal();
+        return flags;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
      * possible and returns the total.
      */
     public Coin getBalance(CoinSelector selector) {
+        checkNotNull(selector);
+        WalletSnapshot view = readView();
+        if (view != null) {
+            List<TransactionOutput> candidates = filterSpendCandidates(view.getUnspents(), true, false);
+            return selector.select(params.getMaxMoney(), candidates).valueGathered;
+        }
         lock.lock();
         try {
             checkNotNull(selector);
@@ -4405,18 +5067,14 @@ public class Wallet extends BaseTaggableObject
      * @param excludeUnsignable Whether to ignore outputs that we are tracking but don't have the keys to sign for.
      */
     public List<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        WalletSnapshot view = readView();
+        if (view != null)
+            return filterSpendCandidates(view.getUnspents(), excludeImmatureCoinbases, excludeUnsignable);
         lock.lock();
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
-                candidates = new ArrayList<>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
-                    candidates.add(output);
-                }
+                candidates = filterSpendCandidates(myUnspents, excludeImmatureCoinbases, excludeUnsignable);
             } else {
                 candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
             }
@@ -4426,6 +5084,19 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private List<TransactionOutput> filterSpendCandidates(Collection<TransactionOutput> outputs,
+            boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        List<TransactionOutput> candidates = new ArrayList<>(outputs.size());
+        for (TransactionOutput output : outputs) {
+            if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+            Transaction transaction = checkNotNull(output.getParentTransaction());
+            if (excludeImmatureCoinbases && !transaction.isMature())
+                continue;
+            candidates.add(output);
+        }
+        return candidates;
+    }
+
     /**
      * Returns true if this wallet has at least one of the private keys needed to sign for this scriptPubKey. Returns
      * false if the form of the script is not known or if the script is OP_RETURN.
@@ -4704,13 +5375,14 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        markChanged(tx);
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -4738,6 +5410,8 @@ public class Wallet extends BaseTaggableObject
             // The old blocks have contributed to the depth for all the transactions in the
             // wallet that are in blocks up to and including the chain split block.
             // The total depth is calculated here and then subtracted from the appropriate transactions.
+            // If the depth is derived from the chain height, setting the height is all it takes.
+            setLastBlockSeenHeight(splitPoint.getHeight());
             int depthToSubtract = oldBlocks.size();
             log.info("depthToSubtract = " + depthToSubtract);
             // Remove depthToSubtract from all transactions in the wallet except for pending.
@@ -4786,6 +5460,11 @@ public class Wallet extends BaseTaggableObject
     private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
         for (Transaction tx : transactions) {
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                if (heightDerivedDepth) {
+                    maybeWatchDepth(tx);
+                    queueDepthChange(tx, tx.getConfidence().getDepthInBlocks());
+                    continue;
+                }
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
@@ -4907,6 +5586,30 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns the output scripts that compact block filters (BIP158) are matched against to find the blocks relevant
+     * to this wallet: the P2PKH, P2WPKH and P2PK scripts of all keys, including the lookahead keys, and the watched
+     * scripts. Spends are found through the same scripts, as the filters also contain the scripts of spent outputs.
+     * Unlike a Bloom filter, the scripts are matched locally, so nothing has to be sent to peers when they change.
+     */
+    public List<byte[]> getCompactFilterScripts() {
+        keyChainGroupLock.lock();
+        try {
+            List<byte[]> scripts = new ArrayList<>();
+            for (ECKey key : keyChainGroup.getKeysForFilterMatching()) {
+                scripts.add(ScriptBuilder.createP2PKHOutputScript(key.getPubKeyHash()).getProgram());
+                scripts.add(ScriptBuilder.createP2PKOutputScript(key.getPubKey()).getProgram());
+                if (key.isCompressed())
+                    scripts.add(ScriptBuilder.createP2WPKHOutputScript(key.getPubKeyHash()).getProgram());
+            }
+            for (Script script : watchedScripts)
+                scripts.add(script.getProgram());
+            return scripts;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
@@ -32,6 +33,7 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -43,6 +45,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
 
+    /** Journal size in bytes above which the wallet file is rewritten, see {@link #enableJournal(long)}. */
+    public static final long DEFAULT_JOURNAL_COMPACTION_THRESHOLD = 64 * 1024 * 1024;
+
     private final Wallet wallet;
     private final ScheduledThreadPoolExecutor executor;
     private final File file;
@@ -53,6 +58,11 @@ public class WalletFiles {
 
     private volatile Listener vListener;
 
+    // Only set in journal mode. Guarded by the wallet lock.
+    @Nullable private volatile WalletJournal journal;
+    private volatile long journalCompactionThreshold;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
      */
@@ -115,6 +125,30 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>Switches to journal mode. Instead of rewriting the whole wallet file, saves append the changes since the
+     * previous save to a journal next to the wallet file, named like it with {@code .journal} appended. The changes
+     * are new transactions, pool moves, confidence changes and changed memos, exchange rates and broadcasts, as well
+     * as changes of keys and settings. Once the journal grows beyond the given number of bytes, the wallet file is
+     * rewritten on the auto-save thread and the journal starts over. The first save in journal mode rewrites the
+     * wallet file, too, and so does the first save after a failed one.</p>
+     *
+     * <p>{@link Wallet#loadFromFile(File, WalletExtension...)} applies the journal. Older versions of this library
+     * don't know about it though, and would load the wallet as of the last rewrite. The {@link Listener} is only
+     * called for rewrites of the wallet file.</p>
+     */
+    public void enableJournal(long compactionThreshold) {
+        checkArgument(compactionThreshold > 0, "compactionThreshold must be positive");
+        wallet.lock.lock();
+        try {
+            journalCompactionThreshold = compactionThreshold;
+            if (journal == null)
+                journal = new WalletJournal(wallet, file);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -129,6 +163,11 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        WalletJournal journal = this.journal;
+        if (journal != null) {
+            saveToJournal(journal);
+            return;
+        }
         final Stopwatch watch = Stopwatch.createStarted();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -142,6 +181,43 @@ public class WalletFiles {
         log.info("Save completed in {}", watch);
     }
 
+    private void saveToJournal(WalletJournal journal) throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        boolean compacted;
+        long size;
+        wallet.lock.lock();
+        try {
+            compacted = journal.append(vListener);
+            size = journal.size();
+        } finally {
+            wallet.lock.unlock();
+        }
+        watch.stop();
+        log.info(compacted ? "Save completed in {}" : "Save to journal completed in {}", watch);
+        if (size > journalCompactionThreshold && !executor.isShutdown() && !compactionPending.getAndSet(true))
+            executor.execute(() -> compactJournal(journal));
+    }
+
+    // Runs in the auto save thread.
+    private void compactJournal(WalletJournal journal) {
+        compactionPending.set(false);
+        final Stopwatch watch = Stopwatch.createStarted();
+        wallet.lock.lock();
+        try {
+            if (journal.size() <= journalCompactionThreshold)
+                return;
+            log.info("Compacting wallet journal of {} bytes", journal.size());
+            journal.compact(vListener);
+        } catch (IOException e) {
+            log.error("Failed to compact wallet journal", e);
+            return;
+        } finally {
+            wallet.lock.unlock();
+        }
+        watch.stop();
+        log.info("Compaction completed in {}", watch);
+    }
+
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
         if (executor.isShutdown() || savePending.getAndSet(true))
@@ -157,5 +233,16 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        WalletJournal journal = this.journal;
+        if (journal != null) {
+            wallet.lock.lock();
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Failed to close wallet journal", e);
+            } finally {
+                wallet.lock.unlock();
+            }
+        }
     }
 }
@@ -0,0 +1,380 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only journal of wallet changes, kept next to the wallet file by {@link WalletFiles} so that a save
+ * doesn't have to write the whole wallet.</p>
+ *
+ * <p>The journal starts with a magic number and the SHA-256 hash of the wallet file it applies to, followed by
+ * length-delimited {@link Protos.Wallet} messages that each hold the changes since the previous one: the transactions
+ * whose pool, confidence, broadcasts or metadata changed, the keys that were imported and the parent keys of the
+ * chains that issued keys, all settings (description, watched scripts, encryption, extensions, tags) if any of them
+ * changed, and the last seen block. The wallet records these changes as it makes them, so an append costs about as
+ * much as what changed. Keys replace the keys of the wallet file with the same public key and path, or are added. A
+ * message has settings if and only if it has an encryption type, which full wallets always have.</p>
+ *
+ * <p>Compaction writes the whole wallet and then replaces the journal with an empty one for the new wallet file.
+ * If it's interrupted in between, the old journal no longer matches the wallet file and is ignored. Changes that
+ * can't be expressed as a delta, like removed transactions or keys, new key chains or encryption, also cause a
+ * compaction, and so does a failed append, as the journal might end with a partial message then.</p>
+ *
+ * <p>All methods that write must be called with the wallet lock held.</p>
+ */
+final class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x574a524e; // "WJRN"
+
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+
+    // The journal being appended to, or null until the first compaction.
+    @Nullable private FileOutputStream output;
+    private long size;
+    // What was last written, to find the changes.
+    private WalletSnapshot lastSnapshot;
+    private Protos.Wallet lastSettings;
+
+    WalletJournal(Wallet wallet, File walletFile) {
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.journalFile = fileFor(walletFile);
+    }
+
+    /** Returns the journal of the given wallet file. */
+    static File fileFor(File walletFile) {
+        return new File(walletFile.getPath() + SUFFIX);
+    }
+
+    /** Returns the size of the journal in bytes. */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Appends the changes since the last append or compaction to the journal, or compacts if they can't be appended.
+     * @return true if it compacted
+     */
+    boolean append(@Nullable WalletFiles.Listener listener) throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        if (output == null) {
+            compact(listener);
+            return true;
+        }
+        WalletSnapshot snapshot = wallet.snapshotForSave();
+        Protos.Wallet.Builder delta = Protos.Wallet.newBuilder();
+        delta.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        List<WalletSnapshot.TransactionState> changed = new ArrayList<>();
+        boolean[] removed = new boolean[1];
+        snapshot.forEachChangedTransaction(lastSnapshot, (txId, state) -> {
+            if (state == null)
+                removed[0] = true;
+            else
+                changed.add(state);
+        });
+        if (removed[0]) {
+            log.info("Transactions were removed, compacting the journal");
+            compact(listener);
+            return true;
+        }
+        List<Protos.Key> keys = wallet.takeKeyChangesForJournal();
+        if (keys == null) {
+            log.info("Key chains changed, compacting the journal");
+            compact(listener);
+            return true;
+        }
+        for (WalletSnapshot.TransactionState state : changed)
+            delta.addTransaction(WalletProtobufSerializer.makeTxProto(
+                    new WalletTransaction(state.getPool(), state.getTransaction())));
+        delta.addAllKey(keys);
+        Protos.Wallet settings = settings();
+        if (!settings.equals(lastSettings))
+            delta.mergeFrom(settings);
+        boolean sameBlock = snapshot.getLastBlockSeenHeight() == lastSnapshot.getLastBlockSeenHeight()
+                && snapshot.getLastBlockSeenTimeSecs() == lastSnapshot.getLastBlockSeenTimeSecs()
+                && Objects.equals(snapshot.getLastBlockSeenHash(), lastSnapshot.getLastBlockSeenHash());
+        if (delta.getTransactionCount() == 0 && delta.getKeyCount() == 0 && !delta.hasEncryptionType() && sameBlock)
+            return false;
+        WalletProtobufSerializer.populateLastSeenBlock(snapshot.getLastBlockSeenHash(),
+                snapshot.getLastBlockSeenHeight(), snapshot.getLastBlockSeenTimeSecs(), delta);
+        delta.setVersion(wallet.getVersion());
+
+        Protos.Wallet message = delta.build();
+        try {
+            message.writeDelimitedTo(output);
+            output.flush();
+            output.getFD().sync();
+            size = output.getChannel().size();
+        } catch (IOException e) {
+            // Entries appended after a partial one would be lost, so compact on the next save instead.
+            log.warn("Failed to append to the wallet journal, it will be compacted on the next save", e);
+            closeQuietly();
+            throw e;
+        }
+        log.info("Appended {} transactions and {} keys to the wallet journal, now {} bytes",
+                message.getTransactionCount(), message.getKeyCount(), size);
+        lastSnapshot = snapshot;
+        lastSettings = settings;
+        return false;
+    }
+
+    /** Saves the whole wallet and starts a new, empty journal for it. */
+    void compact(@Nullable WalletFiles.Listener listener) throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        close();
+        WalletSnapshot snapshot = wallet.snapshotForSave();
+        // Start recording key changes before the save, so that changes made while saving are appended later.
+        wallet.takeKeyChangesForJournal();
+        Protos.Wallet settings = settings();
+
+        File directory = walletFile.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        if (listener != null)
+            listener.onBeforeAutoSave(temp);
+        MessageDigest digest = Sha256Hash.newDigest();
+        wallet.saveToFile(temp, walletFile, digest);
+        if (listener != null)
+            listener.onAfterAutoSave(walletFile);
+
+        // Replace the journal atomically, so that it always matches either the old or the new wallet file.
+        File tempJournal = File.createTempFile("journal", null, directory);
+        try (FileOutputStream stream = new FileOutputStream(tempJournal)) {
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.write(digest.digest());
+            header.flush();
+            stream.getFD().sync();
+        }
+        if (!tempJournal.renameTo(journalFile)) {
+            // Windows can't rename over existing files.
+            if (!journalFile.delete() || !tempJournal.renameTo(journalFile))
+                throw new IOException("Failed to rename " + tempJournal + " to " + journalFile);
+        }
+        output = new FileOutputStream(journalFile, true);
+        size = output.getChannel().size();
+        lastSnapshot = snapshot;
+        lastSettings = settings;
+    }
+
+    void close() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            log.warn("Failed to close the wallet journal", e);
+        } finally {
+            output = null;
+        }
+    }
+
+    private Protos.Wallet settings() {
+        Protos.Wallet.Builder builder = Protos.Wallet.newBuilder();
+        builder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        WalletProtobufSerializer.populateSettings(wallet, builder);
+        return builder.build();
+    }
+
+    /**
+     * Reads the journal of the given wallet file, for {@link WalletProtobufSerializer} to apply while it streams the
+     * wallet file. Returns null if there is no journal, or if it belongs to a different version of the wallet file. A
+     * truncated message at the end of the journal is ignored.
+     */
+    @Nullable
+    static Replay read(File walletFile) throws IOException {
+        File journalFile = fileFor(walletFile);
+        if (!journalFile.exists())
+            return null;
+        try (DataInputStream journal = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            byte[] baseHash = new byte[32];
+            if (journal.readInt() != MAGIC)
+                throw new IOException("Not a wallet journal: " + journalFile);
+            journal.readFully(baseHash);
+            // Hashing the wallet file takes an extra pass over it, but a stray journal must not be applied.
+            MessageDigest digest = Sha256Hash.newDigest();
+            try (InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)),
+                    digest)) {
+                byte[] buffer = new byte[8192];
+                while (stream.read(buffer) != -1)
+                    continue;
+            }
+            if (!Arrays.equals(baseHash, digest.digest())) {
+                log.warn("Ignoring {}, it doesn't belong to the wallet file", journalFile);
+                return null;
+            }
+            return new Replay(journal);
+        }
+    }
+
+    /** The changes of a journal, keeping only the latest version of every transaction. */
+    static final class Replay {
+        // The journaled transactions by hash, in the order they were first journaled.
+        private final Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        // The transactions that were found in the wallet file. Added to by the loader threads.
+        private final Set<ByteString> applied = ConcurrentHashMap.newKeySet();
+        // The journaled keys by public key and path, see keyId().
+        private final Map<List<Object>, Protos.Key> keys = new LinkedHashMap<>();
+        @Nullable private Protos.Wallet settings;
+        @Nullable private Protos.Wallet lastSeenBlock;
+        private int version = -1;
+
+        private Replay(DataInputStream journal) throws IOException {
+            int count = 0;
+            while (true) {
+                int firstByte = journal.read();
+                if (firstByte == -1)
+                    break;
+                Protos.Wallet delta;
+                try {
+                    // Not parseDelimitedFrom(), as it takes a message that was cut at a field boundary for complete.
+                    byte[] message = new byte[CodedInputStream.readRawVarint32(firstByte, journal)];
+                    journal.readFully(message);
+                    delta = Protos.Wallet.parseFrom(message);
+                } catch (EOFException | InvalidProtocolBufferException e) {
+                    // Most likely the last append was interrupted.
+                    log.warn("Ignoring the end of the wallet journal after {} entries", count, e);
+                    break;
+                }
+                count++;
+                for (Protos.Transaction tx : delta.getTransactionList())
+                    transactions.put(tx.getHash(), tx);
+                for (Protos.Key key : delta.getKeyList())
+                    keys.put(keyId(key), key);
+                if (delta.hasEncryptionType())
+                    settings = Protos.Wallet.newBuilder(delta).clearTransaction().clearKey().clearLastSeenBlockHash()
+                            .clearLastSeenBlockHeight().clearLastSeenBlockTimeSecs().clearVersion().build();
+                if (delta.hasLastSeenBlockHash() || delta.hasLastSeenBlockTimeSecs())
+                    lastSeenBlock = delta;
+                if (delta.hasVersion())
+                    version = delta.getVersion();
+            }
+            log.info("Read {} entries of the wallet journal", count);
+        }
+
+        /**
+         * Returns the latest version of the given transaction of the wallet file. Depths are only journaled for
+         * transactions that changed otherwise, so derive them from the last seen block, like the wallet would have
+         * counted them. Can be called from any thread.
+         */
+        Protos.Transaction apply(Protos.Transaction tx) {
+            Protos.Transaction latest = transactions.get(tx.getHash());
+            if (latest != null) {
+                applied.add(tx.getHash());
+                tx = latest;
+            }
+            if (lastSeenBlock == null || !lastSeenBlock.hasLastSeenBlockHeight())
+                return tx;
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight())
+                return tx;
+            int depth = Math.max(1, lastSeenBlock.getLastSeenBlockHeight() - confidence.getAppearedAtHeight() + 1);
+            if (confidence.getDepth() == depth)
+                return tx;
+            return tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+        }
+
+        /**
+         * Returns the journaled transactions that weren't in the wallet file, once all transactions of the wallet file
+         * were passed to {@link #apply(Protos.Transaction)}.
+         */
+        List<Protos.Transaction> added() {
+            List<Protos.Transaction> added = new ArrayList<>();
+            for (Protos.Transaction tx : transactions.values())
+                if (!applied.contains(tx.getHash()))
+                    added.add(apply(tx));
+            return added;
+        }
+
+        /** Applies the changes of everything but the transactions to the given wallet. */
+        Protos.Wallet apply(Protos.Wallet base) {
+            Protos.Wallet.Builder wallet = base.toBuilder();
+            if (!keys.isEmpty()) {
+                Map<List<Object>, Protos.Key> added = new LinkedHashMap<>(keys);
+                List<Protos.Key> merged = new ArrayList<>(base.getKeyCount() + keys.size());
+                for (Protos.Key key : base.getKeyList()) {
+                    Protos.Key latest = added.remove(keyId(key));
+                    merged.add(latest != null ? latest : key);
+                }
+                // The keys that aren't in the wallet file were imported, and imported keys come first.
+                merged.addAll(0, added.values());
+                wallet.clearKey().addAllKey(merged);
+            }
+            if (settings != null) {
+                wallet.clearDescription().clearWatchedScript().clearEncryptionParameters().clearKeyRotationTime()
+                        .clearExtension().clearTags();
+                wallet.mergeFrom(settings);
+            }
+            if (lastSeenBlock != null) {
+                if (lastSeenBlock.hasLastSeenBlockHash()) {
+                    wallet.setLastSeenBlockHash(lastSeenBlock.getLastSeenBlockHash());
+                    wallet.setLastSeenBlockHeight(lastSeenBlock.getLastSeenBlockHeight());
+                }
+                if (lastSeenBlock.hasLastSeenBlockTimeSecs())
+                    wallet.setLastSeenBlockTimeSecs(lastSeenBlock.getLastSeenBlockTimeSecs());
+            }
+            if (version >= 0)
+                wallet.setVersion(version);
+            return wallet.build();
+        }
+
+        /**
+         * Identifies a key across versions of the wallet. The path tells apart the keys of chains that share a seed,
+         * like the roots of chains for different script types.
+         */
+        private static List<Object> keyId(Protos.Key key) {
+            return Arrays.asList(key.getType(), key.getPublicKey(), key.getDeterministicKey().getPathList());
+        }
+    }
+}
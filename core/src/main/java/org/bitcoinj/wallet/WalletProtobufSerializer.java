@@ -17,11 +17,16 @@
 
 package org.bitcoinj.wallet;
 
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.WireFormat;
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.Sha256Hash;
@@ -36,6 +41,7 @@ import org.bitcoinj.crypto.KeyCrypter;
 import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -43,22 +49,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -87,12 +106,15 @@ public class WalletProtobufSerializer {
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
     private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // Bounds the serialized transactions read ahead of the connecting thread.
+    private static final int MAX_TRANSACTIONS_IN_FLIGHT_PER_THREAD = 64;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
+    private int loaderThreads = Runtime.getRuntime().availableProcessors();
 
     @FunctionalInterface
     public interface WalletFactory {
@@ -126,6 +148,15 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * Sets the number of threads decoding transactions when reading a wallet from a stream. The default is the number
+     * of processors. With one thread, transactions are decoded on the calling thread.
+     */
+    public void setLoaderThreads(int loaderThreads) {
+        checkArgument(loaderThreads > 0, "loaderThreads must be positive");
+        this.loaderThreads = loaderThreads;
+    }
+
     /**
      * If this property is set to true, the wallet will fail to load if  any found extensions are unknown..
      */
@@ -171,9 +202,6 @@ public class WalletProtobufSerializer {
     public Protos.Wallet walletToProto(Wallet wallet) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
 
         for (WalletTransaction wtx : wallet.getWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
@@ -182,6 +210,25 @@ public class WalletProtobufSerializer {
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobufInternal());
 
+        populateSettings(wallet, walletBuilder);
+        populateLastSeenBlock(wallet.getLastBlockSeenHash(), wallet.getLastBlockSeenHeight(),
+                wallet.getLastBlockSeenTimeSecs(), walletBuilder);
+
+        // Populate the wallet version.
+        walletBuilder.setVersion(wallet.getVersion());
+
+        return walletBuilder.build();
+    }
+
+    /**
+     * Populates everything but the transactions, the keys, the last seen block and the version. The encryption type is
+     * always set, which the {@link WalletJournal} relies on.
+     */
+    static void populateSettings(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
+        }
+
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
                     Protos.Script.newBuilder()
@@ -192,15 +239,6 @@ public class WalletProtobufSerializer {
             walletBuilder.addWatchedScript(protoScript);
         }
 
-        // Populate the lastSeenBlockHash field.
-        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
-        if (lastSeenBlockHash != null) {
-            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
-            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
-        }
-        if (wallet.getLastBlockSeenTimeSecs() > 0)
-            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
-
         // Populate the scrypt parameters.
         KeyCrypter keyCrypter = wallet.getKeyCrypter();
         if (keyCrypter == null) {
@@ -229,11 +267,16 @@ public class WalletProtobufSerializer {
             Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
             walletBuilder.addTags(tag);
         }
+    }
 
-        // Populate the wallet version.
-        walletBuilder.setVersion(wallet.getVersion());
-
-        return walletBuilder.build();
+    static void populateLastSeenBlock(@Nullable Sha256Hash lastSeenBlockHash, int lastSeenBlockHeight,
+                                      long lastSeenBlockTimeSecs, Protos.Wallet.Builder walletBuilder) {
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(lastSeenBlockHeight);
+        }
+        if (lastSeenBlockTimeSecs > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(lastSeenBlockTimeSecs);
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
@@ -246,7 +289,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -434,17 +477,208 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+            return streamWallet(input, forceReset, extensions, null);
         } catch (IOException | IllegalArgumentException | IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
     }
 
+    /**
+     * Reads the wallet without materializing the whole {@link Protos.Wallet}. The repeated transaction field is read
+     * one transaction at a time and decoded on the loader threads, while this thread connects the decoded
+     * transactions in file order. Only a bounded number of transactions is in flight, so the serialized transactions
+     * don't have to be held in memory next to the wallet being built. Protobuf doesn't guarantee the field order, so
+     * transactions that come before the network parameters ID are held back until it is read. If a journal is given,
+     * its changes are applied on the way.
+     */
+    private Wallet streamWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions,
+                                @Nullable WalletJournal.Replay journal) throws IOException, UnreadableWalletException {
+        Stopwatch watch = Stopwatch.createStarted();
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        // All other fields are copied as is and parsed as a wallet without transactions at the end.
+        ByteString.Output otherFields = ByteString.newOutput();
+        CodedOutputStream otherFieldsOutput = CodedOutputStream.newInstance(otherFields);
+        NetworkParameters params = null;
+        TransactionConnector connector = new TransactionConnector();
+        AtomicLong decodeNanos = new AtomicLong();
+        long connectNanos = 0;
+        ExecutorService decoders = loaderThreads > 1 ? Executors.newFixedThreadPool(loaderThreads,
+                new ContextPropagatingThreadFactory("Wallet loader")) : null;
+        Deque<Future<DecodedTransaction>> inFlight = new ArrayDeque<>();
+        List<byte[]> beforeParams = new ArrayList<>();
+        try {
+            int tag;
+            while ((tag = codedInput.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                boolean lengthDelimited = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+                if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER && lengthDelimited) {
+                    String paramsID = codedInput.readString();
+                    if (params != null) {
+                        if (!params.getId().equals(paramsID))
+                            throw new UnreadableWalletException("Conflicting network parameters ID " + paramsID);
+                        continue;
+                    }
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    // Decoding transactions requires a context, the wallet would create it anyway.
+                    Context.getOrCreate(params);
+                    otherFieldsOutput.writeString(field, paramsID);
+                    for (byte[] bytes : beforeParams)
+                        connectNanos += queueTransaction(bytes, params, journal, decoders, inFlight, connector,
+                                decodeNanos);
+                    beforeParams = null;
+                } else if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && lengthDelimited) {
+                    if (forceReset) {
+                        codedInput.skipField(tag);
+                        continue;
+                    }
+                    byte[] bytes = codedInput.readByteArray();
+                    if (params == null)
+                        beforeParams.add(bytes);
+                    else
+                        connectNanos += queueTransaction(bytes, params, journal, decoders, inFlight, connector,
+                                decodeNanos);
+                } else {
+                    copyField(tag, codedInput, otherFieldsOutput);
+                }
+            }
+            long readNanos = watch.elapsed(TimeUnit.NANOSECONDS) - connectNanos;
+            long start = System.nanoTime();
+            while (!inFlight.isEmpty())
+                connector.add(awaitDecoded(inFlight.poll()));
+            if (journal != null && !forceReset && params != null) {
+                // Only now it's known which of the journaled transactions were not in the wallet file.
+                for (Protos.Transaction txProto : journal.added())
+                    connector.add(new DecodedTransaction(txProto, decodeTransaction(txProto, params)));
+            }
+            List<WalletTransaction> transactions = connector.finish();
+            connectNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            otherFieldsOutput.flush();
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(otherFields.toByteString());
+            if (journal != null)
+                walletProto = journal.apply(walletProto);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+            Wallet wallet = readWallet(params, extensions, walletProto, forceReset, transactions);
+            long walletNanos = System.nanoTime() - start;
+            log.info("Loaded wallet with {} transactions in {}: read {} ms, decode {} ms on {} threads, connect {} ms, keys and settings {} ms",
+                    transactions.size(), watch, TimeUnit.NANOSECONDS.toMillis(readNanos),
+                    TimeUnit.NANOSECONDS.toMillis(decodeNanos.get()), decoders != null ? loaderThreads : 1,
+                    TimeUnit.NANOSECONDS.toMillis(connectNanos), TimeUnit.NANOSECONDS.toMillis(walletNanos));
+            return wallet;
+        } catch (UnreadableWalletException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // Only the inline decode throws anything else.
+            throw new UnreadableWalletException("Could not decode transaction", e);
+        } finally {
+            if (decoders != null)
+                decoders.shutdownNow();
+        }
+    }
+
+    /**
+     * Copies the field whose tag was just read from the input to the output, as is. The lite runtime has no unknown
+     * field set to do this for us.
+     */
+    private static void copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+        int field = WireFormat.getTagFieldNumber(tag);
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeUInt64(field, input.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeFixed64(field, input.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                output.writeBytes(field, input.readBytes());
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeFixed32(field, input.readRawLittleEndian32());
+                break;
+            case WireFormat.WIRETYPE_START_GROUP:
+                output.writeTag(field, WireFormat.WIRETYPE_START_GROUP);
+                int groupTag;
+                while ((groupTag = input.readTag()) != 0
+                        && WireFormat.getTagWireType(groupTag) != WireFormat.WIRETYPE_END_GROUP)
+                    copyField(groupTag, input, output);
+                input.checkLastTagWas(field << 3 | WireFormat.WIRETYPE_END_GROUP);
+                output.writeTag(field, WireFormat.WIRETYPE_END_GROUP);
+                break;
+            default:
+                throw new InvalidProtocolBufferException("Invalid wire type in tag " + tag);
+        }
+    }
+
+    /**
+     * Queues the serialized transaction for decoding. Once the window of transactions in flight is full, the oldest one
+     * is connected. Returns the time spent connecting, in nanoseconds.
+     */
+    private long queueTransaction(byte[] bytes, NetworkParameters params, @Nullable WalletJournal.Replay journal,
+                                  @Nullable ExecutorService decoders, Deque<Future<DecodedTransaction>> inFlight,
+                                  TransactionConnector connector, AtomicLong decodeNanos) throws Exception {
+        Callable<DecodedTransaction> decode = () -> {
+            long start = System.nanoTime();
+            Protos.Transaction txProto = Protos.Transaction.parseFrom(bytes);
+            if (journal != null)
+                txProto = journal.apply(txProto);
+            DecodedTransaction decoded = new DecodedTransaction(txProto, decodeTransaction(txProto, params));
+            decodeNanos.addAndGet(System.nanoTime() - start);
+            return decoded;
+        };
+        if (decoders != null) {
+            inFlight.add(decoders.submit(decode));
+            if (inFlight.size() < loaderThreads * MAX_TRANSACTIONS_IN_FLIGHT_PER_THREAD)
+                return 0;
+        } else {
+            inFlight.add(Futures.immediateFuture(decode.call()));
+        }
+        long start = System.nanoTime();
+        connector.add(awaitDecoded(inFlight.poll()));
+        return System.nanoTime() - start;
+    }
+
+    private static DecodedTransaction awaitDecoded(Future<DecodedTransaction> future) throws UnreadableWalletException,
+            IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnreadableWalletException("Interrupted while loading wallet", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.throwIfInstanceOf(cause, UnreadableWalletException.class);
+            Throwables.throwIfInstanceOf(cause, IOException.class);
+            Throwables.throwIfUnchecked(cause);
+            throw new UnreadableWalletException("Could not decode transaction", cause);
+        }
+    }
+
+    /**
+     * <p>Loads a wallet from the given file, applying the changes in its journal if it was saved by {@link WalletFiles}
+     * in journal mode (see {@link WalletFiles#enableJournal(long)}).</p>
+     *
+     * <p>If {@code forceReset} is {@code true}, then no transactions are loaded from the wallet, and it is configured
+     * to replay transactions from the blockchain (as if the wallet had been loaded and {@link Wallet#reset()}
+     * had been called immediately thereafter).
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(InputStream, boolean, WalletExtension[])}).
+     */
+    public Wallet readWallet(File file, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        try {
+            WalletJournal.Replay journal = WalletJournal.read(file);
+            try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+                return streamWallet(input, forceReset, extensions, journal);
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse wallet file", e);
+        }
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -479,6 +713,17 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        return readWallet(params, extensions, walletProto, forceReset, null);
+    }
+
+    /**
+     * Loads the wallet from the given protocol buffer. If {@code transactions} is not null, they were streamed by
+     * {@link #streamWallet(InputStream, boolean, WalletExtension[])} and are used instead of the transactions of the
+     * protocol buffer.
+     */
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, boolean forceReset,
+                              @Nullable List<WalletTransaction> transactions) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -519,16 +764,15 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            if (transactions == null) {
+                // Read all transactions and update their outputs to point to the inputs that spend them.
+                TransactionConnector connector = new TransactionConnector();
+                for (Protos.Transaction txProto : walletProto.getTransactionList())
+                    connector.add(new DecodedTransaction(txProto, decodeTransaction(txProto, params)));
+                transactions = connector.finish();
             }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (WalletTransaction wtx : transactions)
                 wallet.addWalletTransaction(wtx);
-            }
 
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
@@ -614,7 +858,9 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    /** Builds the transaction described by the given protocol buffer. Safe to call from any thread. */
+    private static Transaction decodeTransaction(Protos.Transaction txProto, NetworkParameters params)
+            throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -693,59 +939,104 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getTxId().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getTxId(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
-    private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
-        Transaction tx = txMap.get(txProto.getHash());
-        final WalletTransaction.Pool pool;
+    private static WalletTransaction.Pool readPool(Protos.Transaction txProto) throws UnreadableWalletException {
         switch (txProto.getPool()) {
-            case DEAD: pool = WalletTransaction.Pool.DEAD; break;
-            case PENDING: pool = WalletTransaction.Pool.PENDING; break;
-            case SPENT: pool = WalletTransaction.Pool.SPENT; break;
-            case UNSPENT: pool = WalletTransaction.Pool.UNSPENT; break;
+            case DEAD: return WalletTransaction.Pool.DEAD;
+            case PENDING: return WalletTransaction.Pool.PENDING;
+            case SPENT: return WalletTransaction.Pool.SPENT;
+            case UNSPENT: return WalletTransaction.Pool.UNSPENT;
             // Upgrade old wallets: inactive pool has been merged with the pending pool.
             // Remove this some time after 0.9 is old and everyone has upgraded.
             // There should not be any spent outputs in this tx as old wallets would not allow them to be spent
             // in this state.
             case INACTIVE:
             case PENDING_INACTIVE:
-                pool = WalletTransaction.Pool.PENDING;
-                break;
+                return WalletTransaction.Pool.PENDING;
             default:
                 throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
         }
-        for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
-            TransactionOutput output = tx.getOutputs().get(i);
-            final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
-            if (transactionOutput.hasSpentByTransactionHash()) {
-                final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
-                Transaction spendingTx = txMap.get(spentByTransactionHash);
-                if (spendingTx == null) {
-                    throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
-                            tx.getTxId(), byteStringToHash(spentByTransactionHash)));
+    }
+
+    private static final class DecodedTransaction {
+        final Protos.Transaction proto;
+        final Transaction tx;
+
+        DecodedTransaction(Protos.Transaction proto, Transaction tx) {
+            this.proto = proto;
+            this.tx = tx;
+        }
+    }
+
+    /**
+     * Connects the outputs of decoded transactions to the inputs that spend them, and dead transactions to the ones
+     * that overrode them, in a single pass in file order. References to transactions that weren't added yet are
+     * indexed by the hash of the referenced transaction and resolved when it is added.
+     */
+    private final class TransactionConnector {
+        private final List<WalletTransaction> transactions = new ArrayList<>();
+        // Outputs by the hash of the transaction spending them, with the index of the spending input.
+        private final Map<ByteString, List<Map.Entry<Integer, TransactionOutput>>> awaitingSpender = new HashMap<>();
+        private final Map<ByteString, List<TransactionConfidence>> awaitingOverride = new HashMap<>();
+
+        void add(DecodedTransaction decoded) throws UnreadableWalletException {
+            Protos.Transaction txProto = decoded.proto;
+            Transaction tx = decoded.tx;
+            ByteString hash = txProto.getHash();
+            if (txMap.containsKey(hash))
+                throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+            txMap.put(hash, tx);
+            WalletTransaction.Pool pool = readPool(txProto);
+
+            List<Map.Entry<Integer, TransactionOutput>> spentOutputs = awaitingSpender.remove(hash);
+            if (spentOutputs != null)
+                for (Map.Entry<Integer, TransactionOutput> spentOutput : spentOutputs)
+                    checkNotNull(tx.getInput(spentOutput.getKey())).connect(spentOutput.getValue());
+            for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
+                TransactionOutput output = tx.getOutputs().get(i);
+                final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
+                if (transactionOutput.hasSpentByTransactionHash()) {
+                    final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
+                    final int spendingIndex = transactionOutput.getSpentByTransactionIndex();
+                    Transaction spendingTx = txMap.get(spentByTransactionHash);
+                    if (spendingTx != null)
+                        checkNotNull(spendingTx.getInput(spendingIndex)).connect(output);
+                    else
+                        awaitingSpender.computeIfAbsent(spentByTransactionHash, k -> new ArrayList<>(1))
+                                .add(new AbstractMap.SimpleImmutableEntry<>(spendingIndex, output));
                 }
-                final int spendingIndex = transactionOutput.getSpentByTransactionIndex();
-                TransactionInput input = checkNotNull(spendingTx.getInput(spendingIndex));
-                input.connect(output);
             }
-        }
 
-        if (txProto.hasConfidence()) {
-            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
-            TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(params, tx, confidenceProto, confidence);
+            List<TransactionConfidence> overridden = awaitingOverride.remove(hash);
+            if (overridden != null)
+                for (TransactionConfidence confidence : overridden)
+                    confidence.setOverridingTransaction(tx);
+            if (txProto.hasConfidence())
+                readConfidence(tx.getParams(), tx, txProto.getConfidence(), tx.getConfidence(), awaitingOverride);
+
+            transactions.add(new WalletTransaction(pool, tx));
         }
 
-        return new WalletTransaction(pool, tx);
+        /** Returns the connected transactions in file order. */
+        List<WalletTransaction> finish() throws UnreadableWalletException {
+            for (Map.Entry<ByteString, List<Map.Entry<Integer, TransactionOutput>>> entry : awaitingSpender.entrySet()) {
+                Transaction tx = entry.getValue().get(0).getValue().getParentTransaction();
+                throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
+                        tx != null ? tx.getTxId() : null, byteStringToHash(entry.getKey())));
+            }
+            for (List<TransactionConfidence> confidences : awaitingOverride.values())
+                for (TransactionConfidence confidence : confidences)
+                    log.warn("Have overridingTransaction that is not in wallet for tx {}", confidence.getTransactionHash());
+            return transactions;
+        }
     }
 
     private void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
-                                final TransactionConfidence confidence) throws UnreadableWalletException {
+                                final TransactionConfidence confidence,
+                                final Map<ByteString, List<TransactionConfidence>> awaitingOverride) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
@@ -787,11 +1078,12 @@ public class WalletProtobufSerializer {
             }
             Transaction overridingTransaction =
                 txMap.get(confidenceProto.getOverridingTransaction());
-            if (overridingTransaction == null) {
-                log.warn("Have overridingTransaction that is not in wallet for tx {}", tx.getTxId());
-                return;
-            }
-            confidence.setOverridingTransaction(overridingTransaction);
+            if (overridingTransaction != null)
+                confidence.setOverridingTransaction(overridingTransaction);
+            else
+                // It may come later in the wallet, see TransactionConnector.
+                awaitingOverride.computeIfAbsent(confidenceProto.getOverridingTransaction(), k -> new ArrayList<>(1))
+                        .add(confidence);
         }
         for (Protos.PeerAddress proto : confidenceProto.getBroadcastByList()) {
             InetAddress ip;
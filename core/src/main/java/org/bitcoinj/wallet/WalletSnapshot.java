@@ -0,0 +1,258 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>The state of a {@link Wallet} at one point in time, as returned by {@link Wallet#snapshot()}: the transactions in
+ * each pool with the confidence they had, the unspent outputs, the balances and the last block seen.</p>
+ *
+ * <p>A snapshot is immutable, so it can be read from any number of threads without locking and stays consistent while
+ * the wallet moves on. Snapshots share all unchanged parts with their predecessor, so taking one after every block
+ * costs about as much as the changes made by the block, not as much as the size of the wallet.</p>
+ *
+ * <p>The {@link Transaction} objects are the live ones of the wallet. Their contents don't change, but their
+ * confidence and the spent state of their outputs do, so read those from the snapshot instead.</p>
+ */
+public final class WalletSnapshot {
+    // Stamped by the wallet, to tell whether the snapshot is up to date.
+    final long version;
+    private final PersistentHashMap<Sha256Hash, Transaction> unspent;
+    private final PersistentHashMap<Sha256Hash, Transaction> spent;
+    private final PersistentHashMap<Sha256Hash, Transaction> pending;
+    private final PersistentHashMap<Sha256Hash, Transaction> dead;
+    private final PersistentHashMap<Sha256Hash, TransactionState> states;
+    private final PersistentHashMap<TransactionOutPoint, TransactionOutput> unspents;
+    private final long[] balances;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+    private final long lastBlockSeenTimeSecs;
+
+    private WalletSnapshot(Builder builder, long version, long[] balances, @Nullable Sha256Hash lastBlockSeenHash,
+                           int lastBlockSeenHeight, long lastBlockSeenTimeSecs) {
+        this.version = version;
+        this.unspent = builder.unspent;
+        this.spent = builder.spent;
+        this.pending = builder.pending;
+        this.dead = builder.dead;
+        this.states = builder.states;
+        this.unspents = builder.unspents;
+        this.balances = balances.clone();
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+        this.lastBlockSeenTimeSecs = lastBlockSeenTimeSecs;
+    }
+
+    /** Returns the transactions of the given pool, by transaction ID. The map is immutable. */
+    public Map<Sha256Hash, Transaction> getPool(Pool pool) {
+        switch (pool) {
+            case UNSPENT:
+                return unspent;
+            case SPENT:
+                return spent;
+            case PENDING:
+                return pending;
+            case DEAD:
+                return dead;
+            default:
+                throw new RuntimeException("Unknown wallet transaction type " + pool);
+        }
+    }
+
+    /** Returns the state of all transactions in the wallet, by transaction ID. The map is immutable. */
+    public Map<Sha256Hash, TransactionState> getTransactionStates() {
+        return states;
+    }
+
+    /** Returns the state of the given transaction, or null if it wasn't in the wallet. */
+    @Nullable
+    public TransactionState getTransactionState(Sha256Hash txId) {
+        return states.get(txId);
+    }
+
+    /** Returns the given transaction, or null if it wasn't in the wallet. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash txId) {
+        TransactionState state = states.get(txId);
+        return state != null ? state.getTransaction() : null;
+    }
+
+    /**
+     * Returns the number of blocks the given transaction is buried under, counted from the last block seen. Returns
+     * 0 if the transaction isn't {@link ConfidenceType#BUILDING}.
+     */
+    public int getDepthInBlocks(TransactionState state) {
+        if (state.getConfidenceType() != ConfidenceType.BUILDING)
+            return 0;
+        return Math.max(1, lastBlockSeenHeight - state.getAppearedAtChainHeight() + 1);
+    }
+
+    /** Returns the outputs the wallet could spend, like {@link Wallet#getUnspents()}. The collection is immutable. */
+    public Collection<TransactionOutput> getUnspents() {
+        return unspents.values();
+    }
+
+    /** Returns the given unspent output, or null if it wasn't unspent or isn't ours. */
+    @Nullable
+    public TransactionOutput getUnspent(TransactionOutPoint outPoint) {
+        return unspents.get(outPoint);
+    }
+
+    /** Returns the AVAILABLE balance, see {@link BalanceType#AVAILABLE}. */
+    public Coin getBalance() {
+        return getBalance(BalanceType.AVAILABLE);
+    }
+
+    /** Returns the balance of the given type, like {@link Wallet#getBalance(BalanceType)}. */
+    public Coin getBalance(BalanceType balanceType) {
+        return Coin.valueOf(balances[balanceType.ordinal()]);
+    }
+
+    /** Returns the hash of the last block seen, or null if the wallet hasn't seen any. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    /** Returns the height of the last block seen, or -1 if the wallet hasn't seen any. */
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+
+    /** Returns the time of the last block seen, in seconds since the epoch, or 0 if unknown. */
+    public long getLastBlockSeenTimeSecs() {
+        return lastBlockSeenTimeSecs;
+    }
+
+    /**
+     * Calls the given consumer for every transaction whose state differs from its state in the given earlier snapshot
+     * of the same wallet, with null for transactions that were removed.
+     */
+    void forEachChangedTransaction(WalletSnapshot previous, BiConsumer<Sha256Hash, TransactionState> consumer) {
+        states.forEachChange(previous.states, consumer);
+    }
+
+    @Override
+    public String toString() {
+        return "WalletSnapshot{" + states.size() + " transactions, " + unspents.size() + " unspent outputs, balance "
+                + getBalance().toFriendlyString() + ", last block seen at height " + lastBlockSeenHeight + "}";
+    }
+
+    /** The pool and confidence of a transaction at the time of the snapshot. */
+    public static final class TransactionState {
+        private final Transaction transaction;
+        private final Pool pool;
+        private final ConfidenceType confidenceType;
+        private final int appearedAtChainHeight;
+
+        private TransactionState(Transaction transaction, Pool pool) {
+            this.transaction = transaction;
+            this.pool = pool;
+            TransactionConfidence confidence = transaction.getConfidence();
+            // Read both under the lock of the confidence, as it may be changed by another thread.
+            synchronized (confidence) {
+                confidenceType = confidence.getConfidenceType();
+                appearedAtChainHeight = confidenceType == ConfidenceType.BUILDING
+                        ? confidence.getAppearedAtChainHeight() : -1;
+            }
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+        public Pool getPool() {
+            return pool;
+        }
+
+        public ConfidenceType getConfidenceType() {
+            return confidenceType;
+        }
+
+        /** Returns the height of the block the transaction appeared in, or -1 if it isn't BUILDING. */
+        public int getAppearedAtChainHeight() {
+            return appearedAtChainHeight;
+        }
+
+        @Override
+        public String toString() {
+            return transaction.getTxId() + " " + pool + " " + confidenceType;
+        }
+    }
+
+    /** Derives a snapshot from the previous one by applying the changes since, see {@link Wallet#snapshot()}. */
+    static final class Builder {
+        private PersistentHashMap<Sha256Hash, Transaction> unspent;
+        private PersistentHashMap<Sha256Hash, Transaction> spent;
+        private PersistentHashMap<Sha256Hash, Transaction> pending;
+        private PersistentHashMap<Sha256Hash, Transaction> dead;
+        private PersistentHashMap<Sha256Hash, TransactionState> states;
+        private PersistentHashMap<TransactionOutPoint, TransactionOutput> unspents;
+
+        /** Starts from an empty wallet. */
+        Builder() {
+            unspent = spent = pending = dead = PersistentHashMap.empty();
+            states = PersistentHashMap.empty();
+            unspents = PersistentHashMap.empty();
+        }
+
+        /** Starts from the given snapshot. */
+        Builder(WalletSnapshot previous) {
+            unspent = previous.unspent;
+            spent = previous.spent;
+            pending = previous.pending;
+            dead = previous.dead;
+            states = previous.states;
+            unspents = previous.unspents;
+        }
+
+        /** Records the current pool and confidence of the given transaction, or its removal if the pool is null. */
+        void updateTransaction(Transaction tx, @Nullable Pool pool) {
+            Sha256Hash txId = tx.getTxId();
+            unspent = pool == Pool.UNSPENT ? unspent.with(txId, tx) : unspent.without(txId);
+            spent = pool == Pool.SPENT ? spent.with(txId, tx) : spent.without(txId);
+            pending = pool == Pool.PENDING ? pending.with(txId, tx) : pending.without(txId);
+            dead = pool == Pool.DEAD ? dead.with(txId, tx) : dead.without(txId);
+            states = pool != null ? states.with(txId, new TransactionState(tx, pool)) : states.without(txId);
+        }
+
+        void updateUnspent(TransactionOutput output, boolean isUnspent) {
+            TransactionOutPoint outPoint = output.getOutPointFor();
+            unspents = isUnspent ? unspents.with(outPoint, output) : unspents.without(outPoint);
+        }
+
+        WalletSnapshot build(long version, long[] balances, @Nullable Sha256Hash lastBlockSeenHash,
+                             int lastBlockSeenHeight, long lastBlockSeenTimeSecs) {
+            return new WalletSnapshot(this, version, balances, lastBlockSeenHash, lastBlockSeenHeight,
+                    lastBlockSeenTimeSecs);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link BloomFilter} against the MurmurHash3 and filter vectors of Bitcoin Core, and the word-wise bit
+ * operations on filters whose size isn't a multiple of 8 bytes.
+ */
+public class BloomFilterTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    // Expected hash, seed and data, from the MurmurHash3 tests of Bitcoin Core.
+    private static final Object[][] MURMUR_VECTORS = {
+            { 0x00000000L, 0x00000000L, "" },
+            { 0x6a396f08L, 0xFBA4C795L, "" },
+            { 0x81f16f39L, 0xffffffffL, "" },
+            { 0x514E28B7L, 0x00000000L, "00" },
+            { 0xEA3F0B17L, 0xFBA4C795L, "00" },
+            { 0xFD6CF10DL, 0x00000000L, "ff" },
+            { 0x16c6b7abL, 0x00000000L, "0011" },
+            { 0x8eb51c3dL, 0x00000000L, "001122" },
+            { 0xb4471bf8L, 0x00000000L, "00112233" },
+            { 0xe2301fa8L, 0x00000000L, "0011223344" },
+            { 0xfc2e4a15L, 0x00000000L, "001122334455" },
+            { 0xb074502cL, 0x00000000L, "00112233445566" },
+            { 0x8034d2a0L, 0x00000000L, "0011223344556677" },
+            { 0xb4698defL, 0x00000000L, "001122334455667788" },
+    };
+
+    @Test
+    void murmurHash3() {
+        // The hash is only returned modulo the number of bits, so check it modulo a power of two and an odd size.
+        byte[][] filters = { new byte[1 << 20], new byte[1000003] };
+        for (Object[] vector : MURMUR_VECTORS) {
+            long expected = (Long) vector[0];
+            long seed = (Long) vector[1];
+            byte[] object = HEX.decode((String) vector[2]);
+            for (byte[] filter : filters) {
+                long bits = filter.length * 8L;
+                // The seed of the first round is the tweak, the one of the second round is 0xFBA4C795 plus the tweak.
+                assertEquals(expected % bits, BloomFilter.murmurHash3(filter, seed, 0, object), (String) vector[2]);
+                assertEquals(expected % bits, BloomFilter.murmurHash3(filter, (seed - 0xFBA4C795L) & 0xffffffffL, 1,
+                        object), (String) vector[2]);
+            }
+        }
+    }
+
+    @Test
+    void insertAndSerialize() throws Exception {
+        BloomFilter filter = new BloomFilter(3, 0.01, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        insertCoreVectors(filter);
+        byte[] serialized = filter.bitcoinSerialize();
+        assertArrayEquals(HEX.decode("03614e9b050000000000000001"), serialized);
+
+        BloomFilter parsed = new BloomFilter(PARAMS, serialized);
+        assertEquals(filter, parsed);
+        assertArrayEquals(serialized, parsed.bitcoinSerialize());
+        assertTrue(parsed.contains(HEX.decode("b9300670b4c5366e95b2699e8b18bc75e5f729c5")));
+        assertEquals(BloomFilter.BloomUpdate.UPDATE_ALL, parsed.getUpdateFlag());
+    }
+
+    @Test
+    void insertAndSerializeWithTweak() throws Exception {
+        BloomFilter filter = new BloomFilter(3, 0.01, 2147483649L, BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY);
+        insertCoreVectors(filter);
+        assertArrayEquals(HEX.decode("03ce4299050000000100008002"), filter.bitcoinSerialize());
+        BloomFilter parsed = new BloomFilter(PARAMS, filter.bitcoinSerialize());
+        assertArrayEquals(filter.bitcoinSerialize(), parsed.bitcoinSerialize());
+        assertEquals(BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY, parsed.getUpdateFlag());
+    }
+
+    @Test
+    void mergeOddSizes() throws Exception {
+        // 3 bytes, and 13 bytes: a full word and a partial one.
+        for (int elements : new int[] { 3, 10 }) {
+            BloomFilter first = new BloomFilter(elements, 0.01, 5, BloomFilter.BloomUpdate.UPDATE_ALL);
+            BloomFilter second = new BloomFilter(elements, 0.01, 5, BloomFilter.BloomUpdate.UPDATE_ALL);
+            BloomFilter both = new BloomFilter(elements, 0.01, 5, BloomFilter.BloomUpdate.UPDATE_ALL);
+            byte[] a = HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8");
+            byte[] b = HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee");
+            first.insert(a);
+            second.insert(b);
+            both.insert(a);
+            both.insert(b);
+            // The serialization starts with the size.
+            int size = first.bitcoinSerialize()[0];
+            assertTrue(size % 8 != 0, "size " + size);
+            first.merge(second);
+            assertTrue(first.contains(a));
+            assertTrue(first.contains(b));
+            assertArrayEquals(both.bitcoinSerialize(), first.bitcoinSerialize());
+            assertFalse(first.matchesAll());
+        }
+
+        BloomFilter small = new BloomFilter(3, 0.01, 5);
+        BloomFilter large = new BloomFilter(10, 0.01, 5);
+        assertThrows(IllegalArgumentException.class, () -> small.merge(large));
+        BloomFilter all = new BloomFilter(3, 0.01, 5);
+        all.setMatchAll();
+        small.merge(all);
+        assertTrue(small.matchesAll());
+    }
+
+    @Test
+    void matchesAllOddSizes() throws Exception {
+        for (int size : new int[] { 1, 3, 7, 9, 13 }) {
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte) 0xff);
+            assertTrue(parse(data).matchesAll(), "size " + size);
+            // Any clear bit, in the full words or in the partial one.
+            for (int i : new int[] { 0, size - 1 }) {
+                byte[] missing = data.clone();
+                missing[i] = (byte) 0x7f;
+                assertFalse(parse(missing).matchesAll(), "size " + size + ", byte " + i);
+            }
+        }
+        assertFalse(parse(new byte[3]).matchesAll());
+    }
+
+    private static BloomFilter parse(byte[] data) throws ProtocolException {
+        byte[] payload = new byte[1 + data.length + 9];
+        payload[0] = (byte) data.length;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        payload[1 + data.length] = 5; // hash functions
+        return new BloomFilter(PARAMS, payload);
+    }
+
+    /** Inserts the elements of the filter vectors of Bitcoin Core. */
+    private static void insertCoreVectors(BloomFilter filter) {
+        filter.insert(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8"));
+        assertTrue(filter.contains(HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        // One bit different in first byte
+        assertFalse(filter.contains(HEX.decode("19108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        filter.insert(HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee"));
+        assertTrue(filter.contains(HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee")));
+        filter.insert(HEX.decode("b9300670b4c5366e95b2699e8b18bc75e5f729c5"));
+        assertTrue(filter.contains(HEX.decode("b9300670b4c5366e95b2699e8b18bc75e5f729c5")));
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.hash.HashFunction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the compact block (BIP152) messages against their wire format, the short ids against an independent
+ * implementation of the BIP152 recipe, and the fallbacks of {@link Peer} to downloading the full block.
+ */
+public class CompactBlockTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long NONCE = 0x0123456789abcdefL;
+
+    private BlockChain chain;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        Utils.setMockClock();
+    }
+
+    @AfterEach
+    void tearDown() {
+        Utils.resetMocking();
+    }
+
+    @Test
+    void getBlockTxnIndexesAreDifferentiallyEncoded() throws Exception {
+        Sha256Hash blockHash = Sha256Hash.of(new byte[] {1});
+        GetBlockTxnMessage m = new GetBlockTxnMessage(PARAMS, blockHash, new int[] {0, 1, 3, 4});
+        byte[] bytes = m.bitcoinSerialize();
+        assertEquals(Utils.HEX.encode(blockHash.getReversedBytes()) + "04" + "00000100", Utils.HEX.encode(bytes));
+        GetBlockTxnMessage parsed = new GetBlockTxnMessage(PARAMS, bytes);
+        assertEquals(blockHash, parsed.getBlockHash());
+        assertArrayEquals(new int[] {0, 1, 3, 4}, parsed.getIndexes());
+
+        int[] large = {5, 300, 70000, 70001, Integer.MAX_VALUE};
+        parsed = new GetBlockTxnMessage(PARAMS, new GetBlockTxnMessage(PARAMS, blockHash, large).bitcoinSerialize());
+        assertArrayEquals(large, parsed.getIndexes());
+    }
+
+    @Test
+    void getBlockTxnIndexOverflowIsRejected() {
+        // The first index is Integer.MAX_VALUE, the second one doesn't fit anymore.
+        byte[] bytes = Utils.HEX.decode(Utils.HEX.encode(new byte[32]) + "02" + "feffffff7f" + "00");
+        assertThrows(ProtocolException.class, () -> new GetBlockTxnMessage(PARAMS, bytes));
+    }
+
+    @Test
+    void cmpctBlockRoundTrip() throws Exception {
+        Block block = block(3);
+        List<Transaction> txs = block.getTransactions();
+        ShortIds ids = new ShortIds(block);
+        List<CmpctBlockMessage.PrefilledTransaction> prefilled = Arrays.asList(
+                new CmpctBlockMessage.PrefilledTransaction(0, txs.get(0)),
+                new CmpctBlockMessage.PrefilledTransaction(2, txs.get(2)));
+        long[] shortIds = {ids.of(txs.get(1)), ids.of(txs.get(3))};
+        CmpctBlockMessage m = new CmpctBlockMessage(PARAMS, block, NONCE, shortIds, prefilled);
+        byte[] bytes = m.bitcoinSerialize();
+        // Header, nonce, two short ids, then the prefilled transactions at index 0 and 2, encoded as 0 and 1.
+        int prefilledOffset = Block.HEADER_SIZE + 8 + 1 + 2 * 6;
+        assertEquals(2, bytes[prefilledOffset]);
+        assertEquals(0, bytes[prefilledOffset + 1]);
+        assertEquals(1, bytes[prefilledOffset + 2 + txs.get(0).getMessageSize()]);
+
+        CmpctBlockMessage parsed = new CmpctBlockMessage(PARAMS, bytes);
+        assertEquals(block.getHash(), parsed.getBlockHash());
+        assertEquals(NONCE, parsed.getNonce());
+        assertArrayEquals(shortIds, parsed.getShortIds());
+        assertEquals(4, parsed.getTransactionCount());
+        assertEquals(0, parsed.getPrefilledTransactions().get(0).index);
+        assertEquals(txs.get(0).getTxId(), parsed.getPrefilledTransactions().get(0).tx.getTxId());
+        assertEquals(2, parsed.getPrefilledTransactions().get(1).index);
+        assertEquals(txs.get(2).getTxId(), parsed.getPrefilledTransactions().get(1).tx.getTxId());
+    }
+
+    @Test
+    void blockTxnAndSendCmpctRoundTrip() throws Exception {
+        Block block = block(2);
+        List<Transaction> txs = block.getTransactions().subList(1, 3);
+        BlockTxnMessage blockTxn = new BlockTxnMessage(PARAMS, block.getHash(), txs);
+        BlockTxnMessage parsedTxn = new BlockTxnMessage(PARAMS, blockTxn.bitcoinSerialize());
+        assertEquals(block.getHash(), parsedTxn.getBlockHash());
+        assertEquals(2, parsedTxn.getTransactions().size());
+        for (int i = 0; i < 2; i++)
+            assertEquals(txs.get(i).getTxId(), parsedTxn.getTransactions().get(i).getTxId());
+
+        SendCmpctMessage sendCmpct = new SendCmpctMessage(PARAMS, true, SendCmpctMessage.VERSION_WTXID);
+        assertEquals("010200000000000000", Utils.HEX.encode(sendCmpct.bitcoinSerialize()));
+        SendCmpctMessage parsedSendCmpct = new SendCmpctMessage(PARAMS, sendCmpct.bitcoinSerialize());
+        assertTrue(parsedSendCmpct.isHighBandwidth());
+        assertEquals(SendCmpctMessage.VERSION_WTXID, parsedSendCmpct.getVersion());
+    }
+
+    @Test
+    void referenceSipHashMatchesPaperVector() {
+        byte[] message = new byte[15];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) i;
+        assertEquals(0xa129ca6149be45e5L, sipHash24(0x0706050403020100L, 0x0f0e0d0c0b0a0908L, message));
+    }
+
+    @Test
+    void shortIdsFollowBip152() throws Exception {
+        Block block = block(3);
+        byte[] bytes = CmpctBlockMessage.fromBlock(block, NONCE, false).bitcoinSerialize();
+        // The key is the single SHA256 of the header followed by the nonce, read as two little endian integers.
+        byte[] keyInput = new byte[Block.HEADER_SIZE + 8];
+        System.arraycopy(bytes, 0, keyInput, 0, Block.HEADER_SIZE + 8);
+        assertEquals(NONCE, Utils.readInt64(keyInput, Block.HEADER_SIZE));
+        byte[] key = Sha256Hash.hash(keyInput);
+        long k0 = Utils.readInt64(key, 0), k1 = Utils.readInt64(key, 8);
+        int offset = Block.HEADER_SIZE + 8;
+        assertEquals(3, bytes[offset++]);
+        for (Transaction tx : block.getTransactions().subList(1, 4)) {
+            long expected = sipHash24(k0, k1, tx.getTxId().getReversedBytes()) & 0xFFFFFFFFFFFFL;
+            long actual = 0;
+            for (int j = 5; j >= 0; j--)
+                actual = (actual << 8) | (bytes[offset + j] & 0xFFL);
+            assertEquals(expected, actual, "short id of " + tx.getTxId());
+            offset += 6;
+        }
+    }
+
+    @Test
+    void wrongPoolTransactionFallsBackToFullBlock() throws Exception {
+        // The short id of the block's second transaction is that of another transaction in the pool, so the rebuilt
+        // block doesn't match its merkle root.
+        Block block = block(1);
+        Transaction other = tx(100);
+        CmpctBlockMessage m = CmpctBlockMessage.fromBlock(block, NONCE, false);
+        m.getShortIds()[0] = new ShortIds(m).of(other);
+        PartiallyDownloadedBlock partial = new PartiallyDownloadedBlock(m, false, Collections.singletonList(other));
+        assertEquals(0, partial.getMissing().length);
+        assertNull(partial.fill(Collections.emptyList()));
+
+        RecentTransactionPool pool = new RecentTransactionPool();
+        StandInPeer peer = connect(pool);
+        pool.add(other);
+        peer.receive(m);
+        assertEquals(0, peer.sent(GetBlockTxnMessage.class).size());
+        assertRequestedInFull(peer, block);
+    }
+
+    @Test
+    void evictedCompactBlockIsDownloadedInFull() throws Exception {
+        StandInPeer peer = connect(new RecentTransactionPool());
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            blocks.add(block(1));
+            peer.receive(CmpctBlockMessage.fromBlock(blocks.get(i), NONCE, false));
+        }
+        assertEquals(9, peer.sent(GetBlockTxnMessage.class).size());
+        assertRequestedInFull(peer, blocks.get(0));
+    }
+
+    @Test
+    void compactBlockIsDownloadedInFullIfTransactionsDontArrive() throws Exception {
+        StandInPeer peer = connect(new RecentTransactionPool());
+        Block block = block(1);
+        peer.receive(CmpctBlockMessage.fromBlock(block, NONCE, false));
+        assertEquals(1, peer.sent(GetBlockTxnMessage.class).size());
+        Utils.rollMockClock(5);
+        peer.receive(new Ping(1));
+        assertEquals(0, peer.sent(GetDataMessage.class).size());
+        Utils.rollMockClock(6);
+        peer.receive(new Ping(2));
+        assertRequestedInFull(peer, block);
+        // The late answer is ignored.
+        peer.receive(new BlockTxnMessage(PARAMS, block.getHash(), block.getTransactions().subList(1, 2)));
+        assertEquals(1, peer.sent(GetDataMessage.class).size());
+    }
+
+    @Test
+    void compactBlockIsDownloadedInFullIfPoolWasRemoved() throws Exception {
+        StandInPeer peer = connect(new RecentTransactionPool());
+        Block block = block(1);
+        peer.receive(CmpctBlockMessage.fromBlock(block, NONCE, false));
+        peer.setRecentTransactionPool(null);
+        peer.receive(new BlockTxnMessage(PARAMS, block.getHash(), block.getTransactions().subList(1, 2)));
+        assertRequestedInFull(peer, block);
+    }
+
+    private StandInPeer connect(RecentTransactionPool pool) throws Exception {
+        StandInPeer peer = new StandInPeer(PARAMS, chain).handshake(1, VersionMessage.NODE_NETWORK);
+        peer.setRecentTransactionPool(pool);
+        return peer;
+    }
+
+    private static void assertRequestedInFull(StandInPeer peer, Block block) {
+        List<GetDataMessage> getData = peer.sent(GetDataMessage.class);
+        assertEquals(1, getData.size());
+        assertEquals(1, getData.get(0).getItems().size());
+        InventoryItem item = getData.get(0).getItems().get(0);
+        assertEquals(InventoryItem.Type.BLOCK, item.type);
+        assertEquals(block.getHash(), item.hash);
+    }
+
+    /** Returns a solved block on top of the genesis block with a coinbase and the given number of transactions. */
+    private static Block block(int transactions) {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(null);
+        for (int i = 0; i < transactions; i++)
+            block.addTransaction(tx(i));
+        block.solve();
+        return block;
+    }
+
+    private static Transaction tx(int i) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                new TransactionOutPoint(PARAMS, i, Sha256Hash.of(Utils.HEX.decode(String.format("%08x", i))))));
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(PARAMS, new ECKey()));
+        return tx;
+    }
+
+    /** Short ids of transaction ids as computed by {@link CmpctBlockMessage}. */
+    private static class ShortIds {
+        private final HashFunction sipHash;
+
+        ShortIds(Block block) {
+            this(new CmpctBlockMessage(PARAMS, block, NONCE, new long[0], Collections.emptyList()));
+        }
+
+        ShortIds(CmpctBlockMessage m) {
+            this.sipHash = m.shortIdHash();
+        }
+
+        long of(Transaction tx) {
+            return CmpctBlockMessage.shortId(sipHash, tx.getTxId());
+        }
+    }
+
+    /** SipHash-2-4 as in the reference implementation, independent of the one used by the code under test. */
+    private static long sipHash24(long k0, long k1, byte[] message) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+        int blocks = message.length / 8;
+        for (int i = 0; i <= blocks; i++) {
+            long m;
+            if (i < blocks) {
+                m = Utils.readInt64(message, i * 8);
+            } else {
+                // The last block holds the remaining bytes and the length in its top byte.
+                m = (long) message.length << 56;
+                for (int j = 0; j < message.length % 8; j++)
+                    m |= (message[i * 8 + j] & 0xFFL) << (8 * j);
+            }
+            v3 ^= m;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+        v2 ^= 0xff;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link GolombCodedSet} against the test vectors of BIP158 and against the elements it was built from.
+ */
+public class GolombCodedSetTest {
+    private static final NetworkParameters PARAMS = TestNet3Params.get();
+
+    // The testnet genesis block vector of BIP158: block, basic filter and basic filter header.
+    private static final String GENESIS_BLOCK = "0100000000000000000000000000000000000000000000000000000000000000000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4adae5494dffff001d1aa4ae180101000000010000000000000000000000000000000000000000000000000000000000000000ffffffff4d04ffff001d0104455468652054696d65732030332f4a616e2f32303039204368616e63656c6c6f72206f6e206272696e6b206f66207365636f6e64206261696c6f757420666f722062616e6b73ffffffff0100f2052a01000000434104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac00000000";
+    private static final String GENESIS_HASH = "000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943";
+    private static final String GENESIS_FILTER = "019dfca8";
+    private static final String GENESIS_FILTER_HEADER = "21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750";
+
+    @BeforeEach
+    void setUp() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    @Test
+    void buildsGenesisVector() {
+        Block genesis = PARAMS.getDefaultSerializer().makeBlock(Utils.HEX.decode(GENESIS_BLOCK));
+        assertEquals(GENESIS_HASH, genesis.getHashAsString());
+        GolombCodedSet filter = GolombCodedSet.build(genesis.getHash(), outputScripts(genesis));
+        assertEquals(GENESIS_FILTER, Utils.HEX.encode(filter.getFilter()));
+        assertEquals(1, filter.size());
+        assertEquals(GENESIS_FILTER_HEADER, filter.computeHeader(Sha256Hash.ZERO_HASH).toString());
+    }
+
+    @Test
+    void matchesGenesisVector() throws Exception {
+        Block genesis = PARAMS.getDefaultSerializer().makeBlock(Utils.HEX.decode(GENESIS_BLOCK));
+        GolombCodedSet filter = new GolombCodedSet(Utils.HEX.decode(GENESIS_FILTER), Sha256Hash.wrap(GENESIS_HASH));
+        byte[] script = outputScripts(genesis).get(0);
+        assertTrue(filter.matches(script));
+        assertTrue(filter.matchesAny(Arrays.asList(new byte[] {1, 2, 3}, script)));
+        assertFalse(filter.matches(new byte[] {1, 2, 3}));
+        assertFalse(filter.matchesAny(Collections.emptyList()));
+        // The same script hashes elsewhere under the key of another block.
+        GolombCodedSet other = new GolombCodedSet(Utils.HEX.decode(GENESIS_FILTER), Sha256Hash.ZERO_HASH);
+        assertFalse(other.matches(script));
+    }
+
+    @Test
+    void emptyFilterMatchesNothing() throws Exception {
+        GolombCodedSet filter = GolombCodedSet.build(Sha256Hash.wrap(GENESIS_HASH), Collections.emptyList());
+        assertEquals("00", Utils.HEX.encode(filter.getFilter()));
+        assertEquals(0, filter.size());
+        assertFalse(filter.matches(new byte[] {1}));
+    }
+
+    @Test
+    void builtFilterMatchesAllItsElements() throws Exception {
+        Sha256Hash blockHash = Sha256Hash.of(new byte[] {42});
+        List<byte[]> elements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            elements.add(element(i));
+        // Duplicates are stored once.
+        elements.add(elements.get(0));
+        GolombCodedSet built = GolombCodedSet.build(blockHash, elements);
+        assertEquals(1000, built.size());
+        GolombCodedSet filter = new GolombCodedSet(built.getFilter(), blockHash);
+        for (byte[] element : elements)
+            assertTrue(filter.matches(element));
+        int falsePositives = 0;
+        for (int i = 1000; i < 11000; i++)
+            if (filter.matches(element(i)))
+                falsePositives++;
+        // One in M = 784931 is expected, so almost surely none.
+        assertTrue(falsePositives <= 1, falsePositives + " false positives");
+    }
+
+    @Test
+    void rejectsFilterTooShortForItsCount() {
+        // Nine elements need more than eight bits.
+        byte[] filter = Utils.HEX.decode("09ff");
+        assertThrows(ProtocolException.class,
+                () -> new GolombCodedSet(filter, Sha256Hash.ZERO_HASH));
+    }
+
+    private static byte[] element(int i) {
+        return Sha256Hash.of(Integer.toString(i).getBytes()).getBytes();
+    }
+
+    private static List<byte[]> outputScripts(Block block) {
+        List<byte[]> scripts = new ArrayList<>();
+        for (Transaction tx : block.getTransactions())
+            for (TransactionOutput output : tx.getOutputs())
+                scripts.add(output.getScriptBytes());
+        return scripts;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.ListenableCompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives {@link ParallelBlockDownloader} with stand-in peers, checking the download with compact block filters and
+ * how it deals with peers that don't answer. Also checks that {@link Peer} matches answers to the right requests.
+ */
+public class ParallelBlockDownloaderTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int STALL_SECONDS = (int) (ParallelBlockDownloader.STALL_TIMEOUT_MILLIS / 1000) + 1;
+
+    private BlockChain chain;
+    private StandInPeerGroup peerGroup;
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Block> headers = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        peerGroup = new StandInPeerGroup();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 5; i++) {
+            // Every block pays to a key of its own, so its filter matches no other block.
+            prev = prev.createNextBlock(LegacyAddress.fromKey(PARAMS, new ECKey()));
+            blocks.add(prev);
+            headers.add(prev.cloneAsHeader());
+        }
+        Utils.setMockClock();
+    }
+
+    @AfterEach
+    void tearDown() {
+        Utils.resetMocking();
+    }
+
+    @Test
+    void cancelledHeadersRequestDoesNotTakeTheNextAnswer() throws Exception {
+        StandInPeer peer = connect();
+        BlockLocator locator = new BlockLocator(Collections.singletonList(PARAMS.getGenesisBlock().getHash()));
+        ListenableCompletableFuture<HeadersMessage> first = peer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+        first.cancel(false);
+        ListenableCompletableFuture<HeadersMessage> second = peer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+        peer.receive(new HeadersMessage(PARAMS, headers));
+        assertTrue(second.isDone());
+        assertEquals(headers, second.get().getBlockHeaders());
+    }
+
+    @Test
+    void asksAnotherPeerForHeadersAfterAStall() throws Exception {
+        StandInPeer stalling = connect();
+        StandInPeer answering = connect();
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, Long.MAX_VALUE, false);
+        try {
+            downloader.start();
+            stalling.awaitSent(GetHeadersMessage.class, 1);
+            Utils.rollMockClock(STALL_SECONDS);
+            answering.awaitSent(GetHeadersMessage.class, 1);
+            answering.receive(new HeadersMessage(PARAMS, headers));
+            downloader.future().get(10, TimeUnit.SECONDS);
+        } finally {
+            downloader.stop();
+        }
+        assertEquals(headers.size(), chain.getBestChainHeight());
+        assertEquals(1, stalling.sent(GetHeadersMessage.class).size());
+        // The penalty shows in the throughput of the peer that stalled.
+        assertTrue(downloader.getPeerThroughputs().containsKey(stalling));
+    }
+
+    @Test
+    void givesUpWhenNoPeerIsLeftToAskForHeaders() throws Exception {
+        StandInPeer first = connect();
+        StandInPeer second = connect();
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, Long.MAX_VALUE, false);
+        try {
+            downloader.start();
+            first.awaitSent(GetHeadersMessage.class, 1);
+            Utils.rollMockClock(STALL_SECONDS);
+            second.awaitSent(GetHeadersMessage.class, 1);
+            Utils.rollMockClock(STALL_SECONDS);
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> downloader.future().get(10, TimeUnit.SECONDS));
+            assertSame(IllegalStateException.class, e.getCause().getClass());
+        } finally {
+            downloader.stop();
+        }
+        assertEquals(1, first.sent(GetHeadersMessage.class).size());
+        assertEquals(1, second.sent(GetHeadersMessage.class).size());
+        assertEquals(0, chain.getBestChainHeight());
+    }
+
+    @Test
+    void givesUpAfterRepeatedHeadersStalls() throws Exception {
+        List<StandInPeer> peers = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            peers.add(connect());
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, Long.MAX_VALUE, false);
+        try {
+            downloader.start();
+            for (int i = 0; i < 3; i++) {
+                peers.get(i).awaitSent(GetHeadersMessage.class, 1);
+                Utils.rollMockClock(STALL_SECONDS);
+            }
+            assertThrows(ExecutionException.class, () -> downloader.future().get(10, TimeUnit.SECONDS));
+        } finally {
+            downloader.stop();
+        }
+        // The download peer takes over from here, the last peer was never asked.
+        assertEquals(0, peers.get(3).sent(GetHeadersMessage.class).size());
+    }
+
+    @Test
+    void filtersEndAtTheStopHash() throws Exception {
+        StandInPeer peer = connect(VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        List<CFilterMessage> filters = filters(0, blocks.size());
+        ListenableCompletableFuture<List<CFilterMessage>> first = peer.getFilters(1, blocks.get(2).getHash(), 3);
+        ListenableCompletableFuture<List<CFilterMessage>> second = peer.getFilters(4, blocks.get(4).getHash(), 2);
+        // The first answer misses a filter, so it ends with the filter of its stop hash.
+        peer.receive(filters.get(0));
+        peer.receive(filters.get(2));
+        assertTrue(first.isDone());
+        assertEquals(Arrays.asList(filters.get(0), filters.get(2)), first.get());
+        peer.receive(filters.get(3));
+        peer.receive(filters.get(4));
+        assertEquals(filters.subList(3, 5), second.get(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancelledFiltersRequestDoesNotTakeTheNextAnswer() throws Exception {
+        StandInPeer peer = connect(VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        Sha256Hash stopHash = blocks.get(blocks.size() - 1).getHash();
+        ListenableCompletableFuture<List<CFilterMessage>> first = peer.getFilters(1, stopHash, blocks.size());
+        ListenableCompletableFuture<CFHeadersMessage> firstHeaders = peer.getFilterHeaders(1, stopHash);
+        first.cancel(false);
+        firstHeaders.cancel(false);
+        ListenableCompletableFuture<List<CFilterMessage>> second = peer.getFilters(1, stopHash, blocks.size());
+        ListenableCompletableFuture<CFHeadersMessage> secondHeaders = peer.getFilterHeaders(1, stopHash);
+        List<CFilterMessage> filters = filters(0, blocks.size());
+        CFHeadersMessage filterHeaders = filterHeaders(filters);
+        peer.receive(filterHeaders);
+        for (CFilterMessage filter : filters)
+            peer.receive(filter);
+        assertSame(filterHeaders, secondHeaders.get(0, TimeUnit.SECONDS));
+        assertEquals(filters, second.get(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void downloadsOnlyBlocksMatchingTheFilters() throws Exception {
+        StandInPeer peer = connect(VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        Block wanted = blocks.get(2);
+        peerGroup.scripts.add(wanted.getTransactions().get(1).getOutput(0).getScriptBytes());
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, 0, true);
+        try {
+            downloader.start();
+            peer.awaitSent(GetHeadersMessage.class, 1);
+            peer.receive(new HeadersMessage(PARAMS, headers));
+            answerFilterRequests(peer, 1);
+            GetDataMessage getData = peer.awaitSent(GetDataMessage.class, 1);
+            assertEquals(1, getData.getItems().size());
+            assertEquals(wanted.getHash(), getData.getItems().get(0).hash);
+            peer.receive(wanted);
+            downloader.future().get(10, TimeUnit.SECONDS);
+        } finally {
+            downloader.stop();
+        }
+        assertEquals(headers.size(), chain.getBestChainHeight());
+        assertEquals(1, peer.sent(GetDataMessage.class).size());
+    }
+
+    @Test
+    void asksForFiltersAgainAfterAStall() throws Exception {
+        StandInPeer peer = connect(VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        Block wanted = blocks.get(3);
+        peerGroup.scripts.add(wanted.getTransactions().get(1).getOutput(0).getScriptBytes());
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, 0, true);
+        try {
+            downloader.start();
+            peer.awaitSent(GetHeadersMessage.class, 1);
+            peer.receive(new HeadersMessage(PARAMS, headers));
+            // The first request gets its filter headers but no filters. The filters sent for the second request must
+            // not end up in the first one.
+            peer.awaitSent(GetCFiltersMessage.class, 1);
+            peer.receive(filterHeaders(filters(0, blocks.size())));
+            Utils.rollMockClock(STALL_SECONDS);
+            answerFilterRequests(peer, 2);
+            GetDataMessage getData = peer.awaitSent(GetDataMessage.class, 1);
+            assertEquals(wanted.getHash(), getData.getItems().get(0).hash);
+            peer.receive(wanted);
+            downloader.future().get(10, TimeUnit.SECONDS);
+        } finally {
+            downloader.stop();
+        }
+        assertEquals(headers.size(), chain.getBestChainHeight());
+    }
+
+    @Test
+    void downloadsInFullWhenFilterHeadersDontChainToTheGenesisBlock() throws Exception {
+        StandInPeer peer = connect(VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, 0, true);
+        try {
+            downloader.start();
+            peer.awaitSent(GetHeadersMessage.class, 1);
+            peer.receive(new HeadersMessage(PARAMS, headers));
+            peer.awaitSent(GetCFiltersMessage.class, 1);
+            // Consistent with the filters, but not with the filter header before the genesis block.
+            List<CFilterMessage> filters = filters(0, blocks.size());
+            CFHeadersMessage filterHeaders = filterHeaders(filters);
+            peer.receive(new CFHeadersMessage(PARAMS, GolombCodedSet.BASIC_FILTER_TYPE, filterHeaders.getStopHash(),
+                    Sha256Hash.of(new byte[] {1}), filterHeaders.getFilterHashes()));
+            for (CFilterMessage filter : filters)
+                peer.receive(filter);
+            GetDataMessage getData = peer.awaitSent(GetDataMessage.class, 1);
+            assertEquals(blocks.size(), getData.getItems().size());
+            for (Block block : blocks)
+                peer.receive(block);
+            downloader.future().get(10, TimeUnit.SECONDS);
+        } finally {
+            downloader.stop();
+        }
+        assertEquals(headers.size(), chain.getBestChainHeight());
+    }
+
+    @Test
+    void chainsFilterHeadersOverBlocksBeforeTheFastCatchupTime() throws Exception {
+        StandInPeer peer = connect(VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        Block wanted = blocks.get(3);
+        peerGroup.scripts.add(wanted.getTransactions().get(1).getOutput(0).getScriptBytes());
+        // The first two blocks are added as headers only and need no filters.
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain,
+                blocks.get(2).getTimeSeconds(), true);
+        try {
+            downloader.start();
+            peer.awaitSent(GetHeadersMessage.class, 1);
+            peer.receive(new HeadersMessage(PARAMS, headers));
+            GetCFHeadersMessage getFilterHeaders = peer.awaitSent(GetCFHeadersMessage.class, 1);
+            GetCFiltersMessage getFilters = peer.awaitSent(GetCFiltersMessage.class, 1);
+            // The filter headers still start at the genesis block, so they can be checked.
+            assertEquals(0, getFilterHeaders.getStartHeight());
+            assertEquals(3, getFilters.getStartHeight());
+            List<CFilterMessage> filters = filters(0, blocks.size());
+            peer.receive(filterHeaders(filters));
+            for (CFilterMessage filter : filters.subList(2, filters.size()))
+                peer.receive(filter);
+            GetDataMessage getData = peer.awaitSent(GetDataMessage.class, 1);
+            assertEquals(1, getData.getItems().size());
+            assertEquals(wanted.getHash(), getData.getItems().get(0).hash);
+            peer.receive(wanted);
+            downloader.future().get(10, TimeUnit.SECONDS);
+        } finally {
+            downloader.stop();
+        }
+        assertEquals(headers.size(), chain.getBestChainHeight());
+    }
+
+    /** Answers the given request for filter headers and filters of the peer, which must be for all blocks. */
+    private void answerFilterRequests(StandInPeer peer, int request) throws Exception {
+        GetCFHeadersMessage getFilterHeaders = peer.awaitSent(GetCFHeadersMessage.class, request);
+        GetCFiltersMessage getFilters = peer.awaitSent(GetCFiltersMessage.class, request);
+        Sha256Hash stopHash = blocks.get(blocks.size() - 1).getHash();
+        // The filter headers chain to the one before the genesis block.
+        assertEquals(0, getFilterHeaders.getStartHeight());
+        assertEquals(stopHash, getFilterHeaders.getStopHash());
+        assertEquals(1, getFilters.getStartHeight());
+        assertEquals(stopHash, getFilters.getStopHash());
+        List<CFilterMessage> filters = filters(0, blocks.size());
+        peer.receive(filterHeaders(filters));
+        for (CFilterMessage filter : filters)
+            peer.receive(filter);
+    }
+
+    /** Returns the basic filters of the given blocks, built from their output scripts, as the test spends nothing. */
+    private List<CFilterMessage> filters(int from, int to) {
+        List<CFilterMessage> filters = new ArrayList<>();
+        for (Block block : blocks.subList(from, to))
+            filters.add(filter(block));
+        return filters;
+    }
+
+    private static CFilterMessage filter(Block block) {
+        List<byte[]> scripts = new ArrayList<>();
+        for (Transaction tx : block.getTransactions())
+            for (TransactionOutput output : tx.getOutputs())
+                scripts.add(output.getScriptBytes());
+        GolombCodedSet filter = GolombCodedSet.build(block.getHash(), scripts);
+        return new CFilterMessage(PARAMS, GolombCodedSet.BASIC_FILTER_TYPE, block.getHash(), filter.getFilter());
+    }
+
+    /** Returns the filter headers from the genesis block up to the last of the given filters. */
+    private CFHeadersMessage filterHeaders(List<CFilterMessage> filters) throws ProtocolException {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        hashes.add(filter(PARAMS.getGenesisBlock()).getFilter().getFilterHash());
+        for (CFilterMessage filter : filters)
+            hashes.add(filter.getFilter().getFilterHash());
+        return new CFHeadersMessage(PARAMS, GolombCodedSet.BASIC_FILTER_TYPE,
+                filters.get(filters.size() - 1).getBlockHash(), Sha256Hash.ZERO_HASH, hashes);
+    }
+
+    private StandInPeer connect() throws Exception {
+        return connect(VersionMessage.NODE_NETWORK);
+    }
+
+    private StandInPeer connect(long services) throws Exception {
+        StandInPeer peer = new StandInPeer(PARAMS, chain).handshake(headers.size(), services);
+        peerGroup.connected.add(peer);
+        return peer;
+    }
+
+    /** A peer group whose connected peers and wallet scripts are set by the test. */
+    private static class StandInPeerGroup extends PeerGroup {
+        final List<Peer> connected = new CopyOnWriteArrayList<>();
+        final List<byte[]> scripts = new CopyOnWriteArrayList<>();
+
+        StandInPeerGroup() {
+            super(PARAMS, null);
+        }
+
+        @Override
+        public List<Peer> getConnectedPeers() {
+            return connected;
+        }
+
+        @Override
+        List<byte[]> getCompactFilterScripts() {
+            return scripts;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.utils.ListenableCompletableFuture;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Peer} without a connection. The messages it sends are decoded and kept, the messages of the remote peer are
+ * handed to it by the test.
+ */
+class StandInPeer extends Peer {
+    private static final AtomicInteger ports = new AtomicInteger(10000);
+
+    private final NetworkParameters params;
+    private final List<Message> sent = new ArrayList<>();
+    private volatile boolean closed;
+
+    StandInPeer(NetworkParameters params, AbstractBlockChain chain) {
+        super(params, new VersionMessage(params, chain.getBestChainHeight()),
+                new PeerAddress(params, InetAddress.getLoopbackAddress(), ports.incrementAndGet()), chain);
+        this.params = params;
+        MessageSerializer serializer = params.getDefaultSerializer();
+        setWriteTarget(new MessageWriteTarget() {
+            @Override
+            public ListenableCompletableFuture<Void> writeBytes(byte[] message) {
+                try {
+                    Message m = serializer.deserialize(ByteBuffer.wrap(message));
+                    synchronized (sent) {
+                        sent.add(m);
+                        sent.notifyAll();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return ListenableCompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void closeConnection() {
+                closed = true;
+            }
+        });
+    }
+
+    /** Completes the version handshake, the remote peer claiming the given height and services. */
+    StandInPeer handshake(int bestHeight, long services) throws Exception {
+        VersionMessage version = new VersionMessage(params, bestHeight);
+        version.localServices = services;
+        receive(version);
+        receive(new VersionAck());
+        return this;
+    }
+
+    /** Hands the given message of the remote peer to this peer. */
+    void receive(Message m) throws Exception {
+        processMessage(m);
+    }
+
+    /** Returns the messages of exactly the given type sent so far, leaving out messages of subclasses. */
+    <T extends Message> List<T> sent(Class<T> type) {
+        List<T> messages = new ArrayList<>();
+        synchronized (sent) {
+            for (Message m : sent)
+                if (m.getClass() == type)
+                    messages.add(type.cast(m));
+        }
+        return messages;
+    }
+
+    /** Waits until this peer sent the given number of messages of the given type, and returns the last of them. */
+    <T extends Message> T awaitSent(Class<T> type, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        synchronized (sent) {
+            while (sent(type).size() < count) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0)
+                    throw new AssertionError("Peer sent " + sent(type).size() + " " + type.getSimpleName()
+                            + " messages, expected " + count);
+                sent.wait(left);
+            }
+            List<T> messages = sent(type);
+            return messages.get(count - 1);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.signers.LocalTransactionSigner;
+import org.bitcoinj.signers.TransactionSigner;
+import org.bitcoinj.wallet.KeyBag;
+import org.bitcoinj.wallet.RedeemData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the BIP143 intermediate hashes of a transaction are computed once when signing all of its inputs, and
+ * recomputed when the parts of the transaction they cover change.
+ */
+public class TransactionSigHashCacheTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int NUM_INPUTS = 20;
+
+    private List<ECKey> keys;
+    private Transaction tx;
+
+    @BeforeEach
+    void setUp() {
+        Context.propagate(new Context(PARAMS));
+        keys = new ArrayList<>();
+        Transaction funding = new Transaction(PARAMS);
+        funding.addInput(new TransactionInput(PARAMS, funding, new byte[] {0, 0}));
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            funding.addOutput(Coin.COIN, SegwitAddress.fromKey(PARAMS, key));
+        }
+        tx = new Transaction(PARAMS);
+        for (TransactionOutput output : funding.getOutputs())
+            tx.addInput(output);
+        tx.addOutput(Coin.COIN.multiply(NUM_INPUTS - 1), SegwitAddress.fromKey(PARAMS, new ECKey()));
+    }
+
+    @Test
+    void signingComputesDigestsOnce() throws Exception {
+        byte[] hashPrevouts = tx.getHashPrevouts();
+        byte[] hashSequence = tx.getHashSequence();
+        byte[] hashOutputs = tx.getHashOutputs();
+
+        sign();
+
+        // Setting the script and witness of every input must not have dropped the digests.
+        assertSame(hashPrevouts, tx.getHashPrevouts());
+        assertSame(hashSequence, tx.getHashSequence());
+        assertSame(hashOutputs, tx.getHashOutputs());
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            TransactionInput input = tx.getInput(i);
+            TransactionOutput spent = input.getConnectedOutput();
+            input.getScriptSig().correctlySpends(tx, i, input.getWitness(), spent.getValue(),
+                    spent.getScriptPubKey(), Script.ALL_VERIFY_FLAGS);
+        }
+        assertMatchesFreshCopy();
+    }
+
+    @Test
+    void changingSequenceNumberRecomputesDigest() throws Exception {
+        sign();
+        byte[] hashSequence = tx.getHashSequence();
+        tx.getInput(3).setSequenceNumber(0);
+        assertNotSame(hashSequence, tx.getHashSequence());
+        assertMatchesFreshCopy();
+    }
+
+    @Test
+    void changingOutputsRecomputesDigest() throws Exception {
+        sign();
+        byte[] hashOutputs = tx.getHashOutputs();
+        tx.getOutput(0).setValue(Coin.CENT);
+        assertNotSame(hashOutputs, tx.getHashOutputs());
+        assertMatchesFreshCopy();
+
+        hashOutputs = tx.getHashOutputs();
+        tx.addOutput(Coin.CENT, SegwitAddress.fromKey(PARAMS, new ECKey()));
+        assertNotSame(hashOutputs, tx.getHashOutputs());
+        assertMatchesFreshCopy();
+    }
+
+    @Test
+    void changingInputsRecomputesDigest() throws Exception {
+        sign();
+        byte[] hashPrevouts = tx.getHashPrevouts();
+        byte[] hashSequence = tx.getHashSequence();
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                new TransactionOutPoint(PARAMS, 7, Sha256Hash.of(new byte[] {1}))));
+        assertNotSame(hashPrevouts, tx.getHashPrevouts());
+        assertNotSame(hashSequence, tx.getHashSequence());
+        assertMatchesFreshCopy();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void changingOutpointRecomputesDigest() throws Exception {
+        sign();
+        // Only the outpoints of parsed transactions know their input.
+        tx = new Transaction(PARAMS, tx.bitcoinSerialize());
+        byte[] hashPrevouts = tx.getHashPrevouts();
+        tx.getInput(5).getOutpoint().setIndex(8);
+        assertNotSame(hashPrevouts, tx.getHashPrevouts());
+        assertMatchesFreshCopy();
+    }
+
+    private void sign() {
+        TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx);
+        assertTrue(new LocalTransactionSigner().signInputs(proposal, new TestKeyBag()));
+    }
+
+    /** Compares the signature hashes of all inputs with those of a parsed copy, which has nothing cached. */
+    private void assertMatchesFreshCopy() {
+        Transaction copy = new Transaction(PARAMS, tx.bitcoinSerialize());
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            ECKey key = keys.get(i);
+            Script scriptCode = ScriptBuilder.createP2PKHOutputScript(key);
+            for (Transaction.SigHash type : new Transaction.SigHash[] {Transaction.SigHash.ALL,
+                    Transaction.SigHash.NONE, Transaction.SigHash.SINGLE}) {
+                assertEquals(copy.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, false),
+                        tx.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, false));
+                assertEquals(copy.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, true),
+                        tx.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, true));
+            }
+        }
+        assertArrayEquals(copy.bitcoinSerialize(), tx.bitcoinSerialize());
+    }
+
+    private class TestKeyBag implements KeyBag {
+        @Nullable
+        @Override
+        public ECKey findKeyFromPubKeyHash(byte[] pubKeyHash, @Nullable Script.ScriptType scriptType) {
+            for (ECKey key : keys)
+                if (Arrays.equals(key.getPubKeyHash(), pubKeyHash))
+                    return key;
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public ECKey findKeyFromPubKey(byte[] pubKey) {
+            for (ECKey key : keys)
+                if (Arrays.equals(key.getPubKey(), pubKey))
+                    return key;
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the bounds of {@link TxConfidenceTable} hold over all segments and that the transaction being looked up
+ * or announced is never evicted
+ */
+public class TxConfidenceTableTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    // Strong references, so that nothing expires.
+    private final List<TransactionConfidence> confidences = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    @Test
+    void entryLimitHoldsOverAllSegments() {
+        TxConfidenceTable table = new TxConfidenceTable(10);
+        for (int i = 0; i < 1000; i++) {
+            confidences.add(table.getOrCreate(hash(i)));
+            assertTrue(table.size() <= 10, "size " + table.size() + " after " + (i + 1) + " insertions");
+        }
+        assertEquals(10, table.size());
+        assertEquals(990, table.getEvictions());
+        // The oldest transactions were evicted, whichever segment they were in.
+        for (int i = 0; i < 990; i++)
+            assertNull(table.get(hash(i)));
+        for (int i = 990; i < 1000; i++)
+            assertSame(confidences.get(i), table.get(hash(i)));
+    }
+
+    @Test
+    void evictsDownToNinetyPercent() {
+        TxConfidenceTable table = new TxConfidenceTable(100);
+        for (int i = 0; i <= 100; i++)
+            confidences.add(table.getOrCreate(hash(i)));
+        assertEquals(90, table.size());
+        assertEquals(11, table.getEvictions());
+        for (int i = 0; i < 11; i++)
+            assertNull(table.get(hash(i)));
+        // So the next insertions don't evict.
+        for (int i = 101; i <= 110; i++)
+            confidences.add(table.getOrCreate(hash(i)));
+        assertEquals(100, table.size());
+        assertEquals(11, table.getEvictions());
+    }
+
+    @Test
+    void byteLimitHoldsOverAllSegments() throws Exception {
+        int capacity = 20;
+        TxConfidenceTable table = new TxConfidenceTable(1000, capacity * TxConfidenceTable.ENTRY_BYTES);
+        for (int i = 0; i < 200; i++) {
+            confidences.add(table.seen(hash(i), peer(i)));
+            assertTrue(table.getEstimatedBytes() <= capacity * TxConfidenceTable.ENTRY_BYTES,
+                    table.getEstimatedBytes() + " bytes after " + (i + 1) + " announcements");
+        }
+    }
+
+    @Test
+    void announcedTransactionIsNotEvicted() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(1000, 4 * TxConfidenceTable.ENTRY_BYTES
+                + 10 * TxConfidenceTable.PEER_BYTES);
+        for (int i = 0; i < 4; i++)
+            confidences.add(table.getOrCreate(hash(i)));
+        // Announcing the oldest transaction by more and more peers pushes out the others, but not itself.
+        Sha256Hash oldest = hash(0);
+        for (int i = 0; i < 20; i++) {
+            TransactionConfidence confidence = table.seen(oldest, peer(i));
+            assertSame(confidences.get(0), confidence);
+            assertSame(confidence, table.get(oldest));
+            assertEquals(i + 1, table.numBroadcastPeers(oldest));
+        }
+        assertEquals(1, table.size());
+        for (int i = 1; i < 4; i++)
+            assertNull(table.get(hash(i)));
+    }
+
+    @Test
+    void lookedUpTransactionIsNotEvicted() {
+        TxConfidenceTable table = new TxConfidenceTable(1);
+        for (int i = 0; i < 50; i++) {
+            TransactionConfidence confidence = table.getOrCreate(hash(i));
+            confidences.add(confidence);
+            assertNotNull(table.get(hash(i)));
+            assertEquals(1, table.size());
+        }
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array());
+    }
+
+    private static PeerAddress peer(int i) throws UnknownHostException {
+        return new PeerAddress(PARAMS, InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(0x0a000000 + i).array()),
+                8333);
+    }
+}
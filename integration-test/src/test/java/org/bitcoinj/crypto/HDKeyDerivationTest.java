@@ -0,0 +1,103 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link HDKeyDerivation#deriveChildKeysFromPublic(DeterministicKey, int, int)} derives the same keys as
+ * deriving them one by one.
+ */
+public class HDKeyDerivationTest {
+    private DeterministicKey parent;
+    private DeterministicKey watchingParent;
+
+    @BeforeEach
+    void setUp() {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("bulk derivation test seed".getBytes());
+        parent = HDKeyDerivation.deriveChildKey(HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED),
+                ChildNumber.ZERO);
+        watchingParent = parent.dropPrivateBytes().dropParent();
+    }
+
+    @Test
+    void matchesOneByOneAcrossBatches() {
+        // More than three batches, the last one partial.
+        List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeysFromPublic(watchingParent, 0, 201);
+        assertEquals(201, keys.size());
+        for (int i = 0; i < keys.size(); i++)
+            assertSameKey(HDKeyDerivation.deriveChildKey(watchingParent, i), keys.get(i));
+        List<DeterministicKey> generated = HDKeyDerivation.generate(watchingParent, 0).limit(201)
+                .collect(Collectors.toList());
+        for (int i = 0; i < keys.size(); i++)
+            assertSameKey(generated.get(i), keys.get(i));
+    }
+
+    @Test
+    void matchesOneByOneFromNonZeroChild() {
+        // Starts in the middle of what would be a batch from zero.
+        List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeysFromPublic(watchingParent, 1000, 70);
+        assertEquals(70, keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertSameKey(HDKeyDerivation.deriveChildKey(watchingParent, 1000 + i), keys.get(i));
+            assertEquals(new ChildNumber(1000 + i), keys.get(i).getChildNumber());
+        }
+    }
+
+    @Test
+    void privateParentDerivesTheSameKeys() {
+        List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeysFromPublic(parent, 5, 3);
+        for (int i = 0; i < keys.size(); i++) {
+            DeterministicKey key = keys.get(i);
+            DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, 5 + i);
+            assertSameKey(expected, key);
+            // Derived from the parent on demand.
+            assertFalse(key.isPubKeyOnly());
+            assertEquals(expected.getPrivKey(), key.getPrivKey());
+        }
+    }
+
+    @Test
+    void zeroCount() {
+        assertTrue(HDKeyDerivation.deriveChildKeysFromPublic(watchingParent, 0, 0).isEmpty());
+        assertTrue(HDKeyDerivation.deriveChildKeysFromPublic(watchingParent, 77, 0).isEmpty());
+    }
+
+    @Test
+    void rejectsHardenedChildren() {
+        assertThrows(IllegalArgumentException.class,
+                () -> HDKeyDerivation.deriveChildKeysFromPublic(watchingParent, ChildNumber.HARDENED_BIT, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> HDKeyDerivation.deriveChildKeysFromPublic(watchingParent, 0, -1));
+    }
+
+    private static void assertSameKey(DeterministicKey expected, DeterministicKey actual) {
+        assertArrayEquals(expected.getPubKey(), actual.getPubKey());
+        assertArrayEquals(expected.getChainCode(), actual.getChainCode());
+        assertEquals(expected.getPath(), actual.getPath());
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.bitcoinj.script.ScriptOpCodes.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the script interpreter on standard scripts, conditionals and lock times, through
+ * {@link Script#correctlySpends(Transaction, long, Script, Set)} and the public {@link LinkedList} overloads of
+ * {@link Script#executeScript}.
+ */
+public class ScriptInterpreterTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    /**
+     * Vectors in the format of Bitcoin Core's script_tests.json: scriptSig, scriptPubKey, flags and the expected
+     * result, the name of a {@link ScriptError} without its prefix.
+     */
+    private static final String[][] VECTORS = {
+            { "1", "IF 1 ENDIF", "P2SH,STRICTENC", "OK" },
+            { "0", "IF 0 ELSE 1 ENDIF", "", "OK" },
+            { "0", "NOTIF 1 ENDIF", "", "OK" },
+            { "1", "NOTIF 0 ELSE 1 ENDIF", "", "OK" },
+            { "1 1", "IF IF 1 ELSE 0 ENDIF ENDIF", "", "OK" },
+            { "1 0", "IF IF 1 ELSE 0 ENDIF ENDIF", "", "OK" },
+            { "0 0", "IF IF 1 ELSE 0 ENDIF ELSE 1 ENDIF", "", "OK" },
+            { "0", "IF 0 ELSE 1 ELSE 0 ENDIF", "", "OK" },
+            { "1", "IF 1 ELSE 0 ELSE ENDIF", "", "OK" },
+            { "0", "IF RETURN ENDIF 1", "", "OK" },
+            { "0", "IF RESERVED ENDIF 1", "", "OK" },
+            { "1 2", "ADD 3 EQUAL", "", "OK" },
+            { "'abc'", "SIZE 3 EQUALVERIFY 'abc' EQUAL", "", "OK" },
+            { "", "CHECKLOCKTIMEVERIFY 1", "", "OK" },
+            { "", "0x05 0x0000008000 CHECKSEQUENCEVERIFY", "CHECKSEQUENCEVERIFY", "OK" },
+            { "1", "IF 1", "", "UNBALANCED_CONDITIONAL" },
+            { "1", "ENDIF 1", "", "UNBALANCED_CONDITIONAL" },
+            { "1", "ELSE 1 ENDIF", "", "UNBALANCED_CONDITIONAL" },
+            { "", "IF 1 ENDIF", "", "UNBALANCED_CONDITIONAL" },
+            { "", "NOTIF 1 ENDIF", "", "UNBALANCED_CONDITIONAL" },
+            { "1 IF 1", "ENDIF", "", "UNBALANCED_CONDITIONAL" },
+            { "0", "IF 1 ENDIF", "", "EVAL_FALSE" },
+            { "1", "VERIFY", "", "EVAL_FALSE" },
+            { "0", "VERIFY 1", "", "VERIFY" },
+            { "1", "RETURN", "", "OP_RETURN" },
+            { "1", "IF RESERVED ENDIF 1", "", "BAD_OPCODE" },
+            { "0", "IF VERIF ELSE 1 ENDIF", "", "BAD_OPCODE" },
+            { "0", "IF CAT ENDIF 1", "", "DISABLED_OPCODE" },
+            { "", "-1 CHECKLOCKTIMEVERIFY", "CHECKLOCKTIMEVERIFY", "NEGATIVE_LOCKTIME" },
+            { "", "CHECKLOCKTIMEVERIFY 1", "CHECKLOCKTIMEVERIFY", "INVALID_STACK_OPERATION" },
+            { "", "-1 CHECKSEQUENCEVERIFY", "CHECKSEQUENCEVERIFY", "NEGATIVE_LOCKTIME" },
+            { "", "CHECKSEQUENCEVERIFY 1", "CHECKSEQUENCEVERIFY", "INVALID_STACK_OPERATION" },
+            { "", "CHECKLOCKTIMEVERIFY 1", "DISCOURAGE_UPGRADABLE_NOPS", "DISCOURAGE_UPGRADABLE_NOPS" },
+    };
+
+    @BeforeEach
+    void setUp() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    @Test
+    void vectors() throws Exception {
+        for (String[] vector : VECTORS) {
+            Script scriptSig = parse(vector[0]);
+            Script scriptPubKey = parse(vector[1]);
+            Set<Script.VerifyFlag> flags = flags(vector[2]);
+            Transaction spend = spending(scriptSig);
+            String description = Arrays.toString(vector);
+            if (vector[3].equals("OK")) {
+                verify(scriptSig, spend, scriptPubKey, flags);
+            } else {
+                ScriptException e = assertThrows(ScriptException.class,
+                        () -> verify(scriptSig, spend, scriptPubKey, flags), description);
+                assertEquals(ScriptError.valueOf("SCRIPT_ERR_" + vector[3]), e.getError(), description);
+            }
+        }
+    }
+
+    @Test
+    void deeplyNestedConditionals() throws Exception {
+        // More levels than the condition stack starts with, alternating taken and skipped branches.
+        StringBuilder scriptPubKey = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+            scriptPubKey.append(i % 2 == 0 ? "1 IF " : "0 NOTIF ");
+        scriptPubKey.append("0 IF 0 ELSE 1 ENDIF");
+        for (int i = 0; i < 20; i++)
+            scriptPubKey.append(" ENDIF");
+        Script script = parse(scriptPubKey.toString());
+        verify(new Script(new byte[0]), spending(new Script(new byte[0])), script, flags(""));
+
+        // A false branch deep inside skips everything up to its ENDIF, including nested branches.
+        Script skipped = parse("1 IF 0 IF 1 IF RETURN ENDIF ELSE 1 ENDIF ENDIF");
+        verify(new Script(new byte[0]), spending(new Script(new byte[0])), skipped, flags(""));
+        Script unbalanced = parse("1 IF 0 IF 1 IF RETURN ENDIF ELSE 1 ENDIF");
+        ScriptException e = assertThrows(ScriptException.class,
+                () -> verify(new Script(new byte[0]), spending(new Script(new byte[0])), unbalanced, flags("")));
+        assertEquals(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, e.getError());
+    }
+
+    @Test
+    void p2pkh() {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        Transaction spend = spending(new Script(new byte[0]));
+        TransactionSignature signature = spend.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        Script scriptSig = ScriptBuilder.createInputScript(signature, key);
+        verify(scriptSig, spend, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+
+        // The right signature with another key doesn't match the hash.
+        ScriptException wrongKey = assertThrows(ScriptException.class, () -> verify(
+                ScriptBuilder.createInputScript(signature, new ECKey()), spend, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        assertEquals(ScriptError.SCRIPT_ERR_EQUALVERIFY, wrongKey.getError());
+        // A signature of another transaction fails the check.
+        Transaction other = spending(new Script(new byte[0]));
+        other.getInput(0).setSequenceNumber(0);
+        TransactionSignature otherSignature = other.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL,
+                false);
+        ScriptException wrongSignature = assertThrows(ScriptException.class, () -> verify(
+                ScriptBuilder.createInputScript(otherSignature, key), spend, scriptPubKey, Script.ALL_VERIFY_FLAGS));
+        assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, wrongSignature.getError());
+    }
+
+    @Test
+    void p2shMultiSig() {
+        List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey(), new ECKey());
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, keys);
+        Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        Transaction spend = spending(new Script(new byte[0]));
+        TransactionSignature[] signatures = new TransactionSignature[3];
+        for (int i = 0; i < 3; i++)
+            signatures[i] = spend.calculateSignature(0, keys.get(i), redeemScript, Transaction.SigHash.ALL, false);
+        Set<Script.VerifyFlag> flags = EnumSet.of(Script.VerifyFlag.P2SH, Script.VerifyFlag.NULLDUMMY);
+
+        // Any two signatures in the order of the keys.
+        verify(multiSigInput(0, redeemScript, signatures[0], signatures[1]), spend, scriptPubKey, flags);
+        verify(multiSigInput(0, redeemScript, signatures[0], signatures[2]), spend, scriptPubKey, flags);
+        verify(multiSigInput(0, redeemScript, signatures[1], signatures[2]), spend, scriptPubKey, flags);
+
+        // Out of order, the first signature uses up the keys the second one needed.
+        ScriptException reversed = assertThrows(ScriptException.class, () -> verify(
+                multiSigInput(0, redeemScript, signatures[2], signatures[0]), spend, scriptPubKey, flags));
+        assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, reversed.getError());
+        ScriptException sameTwice = assertThrows(ScriptException.class, () -> verify(
+                multiSigInput(0, redeemScript, signatures[1], signatures[1]), spend, scriptPubKey, flags));
+        assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, sameTwice.getError());
+        ScriptException tooFew = assertThrows(ScriptException.class, () -> verify(
+                multiSigInput(0, redeemScript, signatures[0]), spend, scriptPubKey, flags));
+        assertEquals(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, tooFew.getError());
+
+        // The extra element popped by CHECKMULTISIG must be empty with NULLDUMMY, and can be anything without it.
+        Script nonNullDummy = multiSigInput(1, redeemScript, signatures[0], signatures[1]);
+        ScriptException dummy = assertThrows(ScriptException.class,
+                () -> verify(nonNullDummy, spend, scriptPubKey, flags));
+        assertEquals(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, dummy.getError());
+        verify(nonNullDummy, spend, scriptPubKey, EnumSet.of(Script.VerifyFlag.P2SH));
+
+        // A redeem script that doesn't match the hash.
+        Script otherRedeemScript = ScriptBuilder.createMultiSigOutputScript(2, Arrays.asList(keys.get(2), keys.get(1),
+                keys.get(0)));
+        ScriptException wrongScript = assertThrows(ScriptException.class, () -> verify(
+                multiSigInput(0, otherRedeemScript, signatures[0], signatures[1]), spend, scriptPubKey, flags));
+        assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, wrongScript.getError());
+    }
+
+    @Test
+    void checkLockTimeVerify() {
+        Set<Script.VerifyFlag> flags = EnumSet.of(Script.VerifyFlag.CHECKLOCKTIMEVERIFY);
+        Transaction spend = spending(new Script(new byte[0]));
+        spend.getInput(0).setSequenceNumber(TransactionInput.NO_SEQUENCE - 1);
+        spend.setLockTime(500);
+
+        execute(lockTimeScript(OP_CHECKLOCKTIMEVERIFY, 499), spend, flags);
+        execute(lockTimeScript(OP_CHECKLOCKTIMEVERIFY, 500), spend, flags);
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, lockTimeScript(OP_CHECKLOCKTIMEVERIFY, 501), spend,
+                flags);
+        // A time can't satisfy a height, nor the other way around.
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME,
+                lockTimeScript(OP_CHECKLOCKTIMEVERIFY, Transaction.LOCKTIME_THRESHOLD), spend, flags);
+        spend.setLockTime(Transaction.LOCKTIME_THRESHOLD + 100);
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, lockTimeScript(OP_CHECKLOCKTIMEVERIFY, 100), spend,
+                flags);
+        execute(lockTimeScript(OP_CHECKLOCKTIMEVERIFY, Transaction.LOCKTIME_THRESHOLD + 100), spend, flags);
+        // A final input disables the lock time.
+        spend.getInput(0).setSequenceNumber(TransactionInput.NO_SEQUENCE);
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME,
+                lockTimeScript(OP_CHECKLOCKTIMEVERIFY, Transaction.LOCKTIME_THRESHOLD + 100), spend, flags);
+        // Without the flag, it's a NOP.
+        execute(lockTimeScript(OP_CHECKLOCKTIMEVERIFY, Transaction.LOCKTIME_THRESHOLD + 200), spend,
+                EnumSet.noneOf(Script.VerifyFlag.class));
+    }
+
+    @Test
+    void checkSequenceVerify() {
+        Set<Script.VerifyFlag> flags = EnumSet.of(Script.VerifyFlag.CHECKSEQUENCEVERIFY);
+        Transaction spend = spending(new Script(new byte[0]));
+        spend.setVersion(2);
+        spend.getInput(0).setSequenceNumber(10);
+
+        execute(lockTimeScript(OP_CHECKSEQUENCEVERIFY, 9), spend, flags);
+        execute(lockTimeScript(OP_CHECKSEQUENCEVERIFY, 10), spend, flags);
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, lockTimeScript(OP_CHECKSEQUENCEVERIFY, 11), spend,
+                flags);
+        // Blocks and time units don't compare.
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME,
+                lockTimeScript(OP_CHECKSEQUENCEVERIFY, TransactionInput.SEQUENCE_LOCKTIME_TYPE_FLAG | 5), spend, flags);
+        // The disable flag in the script makes it a NOP, in the input it fails.
+        execute(lockTimeScript(OP_CHECKSEQUENCEVERIFY, TransactionInput.SEQUENCE_LOCKTIME_DISABLE_FLAG | 1000), spend,
+                flags);
+        spend.getInput(0).setSequenceNumber(TransactionInput.SEQUENCE_LOCKTIME_DISABLE_FLAG | 10);
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, lockTimeScript(OP_CHECKSEQUENCEVERIFY, 5), spend,
+                flags);
+        // BIP 68 only applies from version 2.
+        spend.getInput(0).setSequenceNumber(10);
+        spend.setVersion(1);
+        assertError(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, lockTimeScript(OP_CHECKSEQUENCEVERIFY, 5), spend,
+                flags);
+    }
+
+    @Test
+    void linkedListAdapter() throws Exception {
+        LinkedList<byte[]> stack = new LinkedList<>();
+        stack.add(new byte[] { 7 });
+        stack.add(new byte[] { 2 });
+        Script.executeScript(null, 0, parse("3 ADD 0x01 0x09 SWAP"), stack, EnumSet.noneOf(Script.VerifyFlag.class));
+        // Bottom first, and the elements below those the script touched are kept.
+        assertEquals(3, stack.size());
+        assertArrayEquals(new byte[] { 7 }, stack.get(0));
+        assertArrayEquals(new byte[] { 9 }, stack.get(1));
+        assertArrayEquals(new byte[] { 5 }, stack.get(2));
+
+        // A failing script leaves the stack as it was when it failed.
+        LinkedList<byte[]> failing = new LinkedList<>();
+        failing.add(new byte[] { 1 });
+        assertThrows(ScriptException.class, () -> Script.executeScript(null, 0, parse("2 0 VERIFY 3"), failing,
+                EnumSet.noneOf(Script.VerifyFlag.class)));
+        assertEquals(2, failing.size());
+        assertArrayEquals(new byte[] { 1 }, failing.get(0));
+        assertArrayEquals(new byte[] { 2 }, failing.get(1));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void deprecatedNullDummyAdapter() {
+        List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey());
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(1, keys);
+        Transaction spend = spending(new Script(new byte[0]));
+        TransactionSignature signature = spend.calculateSignature(0, keys.get(1), redeemScript,
+                Transaction.SigHash.ALL, false);
+        for (boolean enforceNullDummy : new boolean[] { false, true }) {
+            LinkedList<byte[]> stack = new LinkedList<>();
+            stack.add(new byte[] { 1 });
+            stack.add(signature.encodeToBitcoin());
+            if (enforceNullDummy) {
+                assertThrows(ScriptException.class,
+                        () -> Script.executeScript(spend, 0, redeemScript, stack, true));
+            } else {
+                Script.executeScript(spend, 0, redeemScript, stack, false);
+                assertEquals(1, stack.size());
+                assertArrayEquals(new byte[] { 1 }, stack.getLast());
+            }
+        }
+    }
+
+    @Test
+    void scriptStack() {
+        ScriptStack stack = new ScriptStack();
+        // Beyond the initial capacity.
+        for (int i = 0; i < 40; i++)
+            stack.push(new byte[] { (byte) i });
+        assertEquals(40, stack.size());
+        assertArrayEquals(new byte[] { 39 }, stack.peek());
+        assertArrayEquals(new byte[] { 37 }, stack.peek(2));
+        assertArrayEquals(new byte[] { 37 }, stack.remove(2));
+        assertArrayEquals(new byte[] { 36 }, stack.peek(2));
+        assertArrayEquals(new byte[] { 38 }, stack.peek(1));
+        stack.drop(30);
+        assertEquals(9, stack.size());
+        assertArrayEquals(new byte[] { 8 }, stack.pop());
+
+        ScriptStack copy = new ScriptStack();
+        for (int i = 0; i < 20; i++)
+            copy.push(new byte[0]);
+        copy.copyFrom(stack);
+        assertEquals(8, copy.size());
+        List<byte[]> list = copy.toList();
+        for (int i = 0; i < 8; i++)
+            assertArrayEquals(new byte[] { (byte) i }, list.get(i));
+        copy.clear();
+        assertTrue(copy.isEmpty());
+        assertEquals(8, stack.size());
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void verify(Script scriptSig, Transaction spend, Script scriptPubKey, Set<Script.VerifyFlag> flags) {
+        spend.getInput(0).setScriptSig(scriptSig);
+        // Unlike the non-deprecated overload, this always runs the interpreter, also for P2PKH.
+        scriptSig.correctlySpends(spend, 0, scriptPubKey, flags);
+    }
+
+    private static void execute(Script script, Transaction spend, Set<Script.VerifyFlag> flags) {
+        ScriptStack stack = new ScriptStack();
+        Script.executeScript(spend, 0, script, stack, flags);
+    }
+
+    private static void assertError(ScriptError error, Script script, Transaction spend,
+                                    Set<Script.VerifyFlag> flags) {
+        ScriptException e = assertThrows(ScriptException.class, () -> execute(script, spend, flags));
+        assertEquals(error, e.getError());
+    }
+
+    private static Script lockTimeScript(int opcode, long value) {
+        return new ScriptBuilder().number(value).op(opcode).build();
+    }
+
+    private static Script multiSigInput(int dummy, Script redeemScript, TransactionSignature... signatures) {
+        ScriptBuilder builder = new ScriptBuilder().smallNum(dummy);
+        for (TransactionSignature signature : signatures)
+            builder.data(signature.encodeToBitcoin());
+        return builder.data(redeemScript.getProgram()).build();
+    }
+
+    /** A transaction spending an output of a made up transaction with the given scriptSig. */
+    private static Transaction spending(Script scriptSig) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, scriptSig.getProgram(),
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }))));
+        tx.addOutput(Coin.ZERO, new Script(new byte[0]));
+        return tx;
+    }
+
+    private static Set<Script.VerifyFlag> flags(String flags) {
+        Set<Script.VerifyFlag> set = EnumSet.noneOf(Script.VerifyFlag.class);
+        for (String flag : flags.split(","))
+            if (!flag.isEmpty())
+                set.add(Script.VerifyFlag.valueOf(flag));
+        return set;
+    }
+
+    /** Parses a script in the notation of Bitcoin Core's script tests. */
+    private static Script parse(String string) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String word : string.split(" ")) {
+            if (word.isEmpty())
+                continue;
+            if (word.matches("^-?[0-9]+$")) {
+                long value = Long.parseLong(word);
+                if (value >= -1 && value <= 16)
+                    out.write(Script.encodeToOpN((int) value));
+                else
+                    Script.writeBytes(out, Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false)));
+            } else if (word.startsWith("0x")) {
+                // Raw bytes, not pushed.
+                out.write(HEX.decode(word.substring(2).toLowerCase()));
+            } else if (word.length() >= 2 && word.startsWith("'") && word.endsWith("'")) {
+                Script.writeBytes(out, word.substring(1, word.length() - 1).getBytes(StandardCharsets.UTF_8));
+            } else if (ScriptOpCodes.getOpCode(word) != OP_INVALIDOPCODE) {
+                out.write(ScriptOpCodes.getOpCode(word));
+            } else {
+                throw new IllegalArgumentException("Invalid word: " + word);
+            }
+        }
+        return new Script(out.toByteArray());
+    }
+}
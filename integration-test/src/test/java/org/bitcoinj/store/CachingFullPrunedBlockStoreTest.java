@@ -0,0 +1,254 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the write-back cache of {@link CachingFullPrunedBlockStore} in front of a {@link MemoryFullPrunedBlockStore}.
+ */
+public class CachingFullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    // Matches the estimate of the cache.
+    private static final int OUTPUT_BYTES = 400;
+
+    private MemoryFullPrunedBlockStore store;
+
+    @BeforeEach
+    void setUp() {
+        Context.propagate(new Context(PARAMS));
+        store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+    }
+
+    @Test
+    void countsHitsAndMisses() throws Exception {
+        List<UTXO> outputs = createOutputs(Sha256Hash.of(new byte[] {1}), 3);
+        for (UTXO out : outputs)
+            store.addUnspentTransactionOutput(out);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(store, 1024 * 1024, 100);
+
+        assertNotNull(cache.getTransactionOutput(outputs.get(0).getHash(), 0));
+        assertNotNull(cache.getTransactionOutput(outputs.get(1).getHash(), 1));
+        assertNull(cache.getTransactionOutput(outputs.get(0).getHash(), 5));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertNotNull(cache.getTransactionOutput(outputs.get(0).getHash(), 0));
+        assertNotNull(cache.getTransactionOutput(outputs.get(1).getHash(), 1));
+        // Absent outputs aren't cached.
+        assertNull(cache.getTransactionOutput(outputs.get(0).getHash(), 5));
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(2 * OUTPUT_BYTES, cache.getCacheBytes());
+
+        // Outputs added through the cache are hits without ever reaching the underlying store.
+        UTXO added = createOutputs(Sha256Hash.of(new byte[] {2}), 1).get(0);
+        cache.addUnspentTransactionOutput(added);
+        assertSame(added, cache.getTransactionOutput(added.getHash(), 0));
+        assertNull(store.getTransactionOutput(added.getHash(), 0));
+        assertEquals(3, cache.getHits());
+    }
+
+    @Test
+    void abortRestoresOutputsAndBlocks() throws Exception {
+        List<UTXO> stored = createOutputs(Sha256Hash.of(new byte[] {1}), 2);
+        for (UTXO out : stored)
+            store.addUnspentTransactionOutput(out);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(store, 1024 * 1024, 100);
+        StoredBlock genesis = cache.getChainHead();
+        assertNotNull(cache.getTransactionOutput(stored.get(0).getHash(), 0));
+        long bytes = cache.getCacheBytes();
+
+        List<UTXO> created = createOutputs(Sha256Hash.of(new byte[] {2}), 3);
+        StoredBlock block = genesis.build(PARAMS.getGenesisBlock().createNextBlock(null).cloneAsHeader());
+        StoredUndoableBlock undoBlock = new StoredUndoableBlock(block.getHeader().getHash(),
+                new TransactionOutputChanges(created, new ArrayList<>(stored)));
+        cache.beginDatabaseBatchWrite();
+        for (UTXO out : created)
+            cache.addUnspentTransactionOutput(out);
+        cache.removeUnspentTransactionOutput(created.get(2));
+        cache.removeUnspentTransactionOutput(stored.get(0));
+        cache.removeUnspentTransactionOutput(stored.get(1));
+        cache.put(block, undoBlock);
+        cache.setVerifiedChainHead(block);
+        assertNull(cache.getTransactionOutput(stored.get(0).getHash(), 0));
+        assertSame(undoBlock, cache.getUndoBlock(block.getHeader().getHash()));
+        assertEquals(block, cache.getChainHead());
+        cache.abortDatabaseBatchWrite();
+
+        for (UTXO out : created)
+            assertNull(cache.getTransactionOutput(out.getHash(), out.getIndex()));
+        for (UTXO out : stored)
+            assertNotNull(cache.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNull(cache.get(block.getHeader().getHash()));
+        assertNull(cache.getUndoBlock(block.getHeader().getHash()));
+        assertEquals(genesis, cache.getChainHead());
+        assertEquals(genesis, cache.getVerifiedChainHead());
+        // The output of the underlying store that was loaded during the batch stays cached.
+        assertEquals(bytes + OUTPUT_BYTES, cache.getCacheBytes());
+
+        // Nothing of the aborted batch is flushed.
+        cache.flush();
+        for (UTXO out : stored)
+            assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNull(store.getTransactionOutput(created.get(0).getHash(), 0));
+        assertEquals(genesis, store.getChainHead());
+    }
+
+    @Test
+    void flushesAfterInterval() throws Exception {
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(store, 1024 * 1024, 2);
+        List<UTXO> outputs = createOutputs(Sha256Hash.of(new byte[] {1}), 2);
+        StoredBlock head = cache.getChainHead();
+        for (int i = 0; i < 2; i++) {
+            head = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+            cache.beginDatabaseBatchWrite();
+            cache.addUnspentTransactionOutput(outputs.get(i));
+            cache.put(head, new StoredUndoableBlock(head.getHeader().getHash(),
+                    new TransactionOutputChanges(Collections.singletonList(outputs.get(i)), new ArrayList<>())));
+            cache.setVerifiedChainHead(head);
+            cache.commitDatabaseBatchWrite();
+            // Batches that don't verify a block don't count.
+            cache.beginDatabaseBatchWrite();
+            cache.commitDatabaseBatchWrite();
+            if (i == 0) {
+                assertEquals(0, cache.getFlushes());
+                assertNull(store.getTransactionOutput(outputs.get(0).getHash(), 0));
+                assertNull(store.get(head.getHeader().getHash()));
+                assertEquals(PARAMS.getGenesisBlock().getHash(), store.getVerifiedChainHead().getHeader().getHash());
+            }
+        }
+        assertEquals(1, cache.getFlushes());
+        for (UTXO out : outputs)
+            assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNotNull(store.getUndoBlock(head.getHeader().getHash()));
+        assertEquals(head, store.getVerifiedChainHead());
+        // The flushed outputs stay cached, clean.
+        assertNotNull(cache.getTransactionOutput(outputs.get(0).getHash(), 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(2 * OUTPUT_BYTES, cache.getCacheBytes());
+    }
+
+    @Test
+    void flushesAndEvictsWhenOverBudget() throws Exception {
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(store, 5 * OUTPUT_BYTES, 100);
+        List<UTXO> stored = createOutputs(Sha256Hash.of(new byte[] {1}), 10);
+        for (UTXO out : stored)
+            store.addUnspentTransactionOutput(out);
+        // Clean outputs are evicted, least recently used first.
+        for (UTXO out : stored)
+            assertNotNull(cache.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertEquals(5 * OUTPUT_BYTES, cache.getCacheBytes());
+        assertNotNull(cache.getTransactionOutput(stored.get(9).getHash(), 9));
+        assertEquals(1, cache.getHits());
+        assertNotNull(cache.getTransactionOutput(stored.get(0).getHash(), 0));
+        assertEquals(11, cache.getMisses());
+
+        List<UTXO> created = createOutputs(Sha256Hash.of(new byte[] {2}), 8);
+        cache.beginDatabaseBatchWrite();
+        for (UTXO out : created)
+            cache.addUnspentTransactionOutput(out);
+        // Dirty outputs can't be evicted, and while they alone exceed the budget lookups aren't cached either.
+        assertEquals(8 * OUTPUT_BYTES, cache.getCacheBytes());
+        for (int i = 0; i < 2; i++)
+            assertNotNull(cache.getTransactionOutput(stored.get(3).getHash(), 3));
+        assertEquals(13, cache.getMisses());
+        assertEquals(8 * OUTPUT_BYTES, cache.getCacheBytes());
+        cache.commitDatabaseBatchWrite();
+
+        // Without a verified block, only the budget triggers the flush.
+        assertEquals(1, cache.getFlushes());
+        for (UTXO out : created)
+            assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertTrue(cache.getCacheBytes() <= 5 * OUTPUT_BYTES);
+    }
+
+    @Test
+    void reorgUsesPendingUndoBlocks() throws Exception {
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(store, 1024 * 1024, 100);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, cache);
+        // Different keys, so the coinbases of the two branches differ.
+        ECKey first = new ECKey();
+        ECKey second = new ECKey();
+
+        Block a1 = nextBlock(PARAMS.getGenesisBlock(), first, 1);
+        Block a2 = nextBlock(a1, first, 2);
+        assertTrue(chain.add(a1));
+        assertTrue(chain.add(a2));
+        assertNotNull(cache.getTransactionOutput(a2.getTransactions().get(0).getTxId(), 0));
+
+        Block b1 = nextBlock(PARAMS.getGenesisBlock(), second, 1);
+        Block b2 = nextBlock(b1, second, 2);
+        Block b3 = nextBlock(b2, second, 3);
+        chain.add(b1);
+        chain.add(b2);
+        chain.add(b3);
+        assertEquals(b3.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // The undo blocks of the old branch were never written to the underlying store.
+        assertEquals(0, cache.getFlushes());
+        assertNull(store.getUndoBlock(a2.getHash()));
+        assertNull(cache.getTransactionOutput(a1.getTransactions().get(0).getTxId(), 0));
+        assertNull(cache.getTransactionOutput(a2.getTransactions().get(0).getTxId(), 0));
+        assertNotNull(cache.getTransactionOutput(b3.getTransactions().get(0).getTxId(), 0));
+
+        cache.flush();
+        assertEquals(b3.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(a2.getTransactions().get(0).getTxId(), 0));
+        assertNotNull(store.getTransactionOutput(b1.getTransactions().get(0).getTxId(), 0));
+    }
+
+    // Below BIP 65, whose check doesn't expect the version tally to be empty as on such a short chain.
+    private static Block nextBlock(Block previous, ECKey key, int height) {
+        return previous.createNextBlockWithCoinbase(Block.BLOCK_VERSION_BIP66, key.getPubKey(), Coin.FIFTY_COINS,
+                height);
+    }
+
+    private static List<UTXO> createOutputs(Sha256Hash hash, int count) {
+        List<UTXO> outputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ECKey key = new ECKey();
+            outputs.add(new UTXO(hash, i, Coin.valueOf(1000 + i), 1, false, ScriptBuilder.createP2PKHOutputScript(key),
+                    LegacyAddress.fromKey(PARAMS, key).toString()));
+        }
+        return outputs;
+    }
+}
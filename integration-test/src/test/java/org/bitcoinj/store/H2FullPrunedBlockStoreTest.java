@@ -0,0 +1,163 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the buffered openoutputs writes of {@link DatabaseFullPrunedBlockStore} inside batch writes, against an H2
+ * database.
+ */
+public class H2FullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @TempDir File tempDir;
+    private H2FullPrunedBlockStore store;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        store = new H2FullPrunedBlockStore(PARAMS, new File(tempDir, "store").getAbsolutePath(), 10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void batchWriteIsVisibleBeforeAndAfterCommit() throws Exception {
+        List<UTXO> outputs = createOutputs(Sha256Hash.of(new byte[] {1}), 10);
+        store.beginDatabaseBatchWrite();
+        for (UTXO out : outputs)
+            store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(outputs.get(3));
+        assertNotNull(store.getTransactionOutput(outputs.get(0).getHash(), 0));
+        assertNull(store.getTransactionOutput(outputs.get(3).getHash(), 3));
+        assertTrue(store.hasUnspentOutputs(outputs.get(0).getHash(), 10));
+        store.commitDatabaseBatchWrite();
+
+        for (UTXO out : outputs) {
+            if (out.getIndex() == 3)
+                assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+            else
+                assertEquals(out.getValue(), store.getTransactionOutput(out.getHash(), out.getIndex()).getValue());
+        }
+    }
+
+    @Test
+    void abortedBatchWriteIsDropped() throws Exception {
+        List<UTXO> outputs = createOutputs(Sha256Hash.of(new byte[] {2}), 5);
+        store.beginDatabaseBatchWrite();
+        for (UTXO out : outputs)
+            store.addUnspentTransactionOutput(out);
+        store.abortDatabaseBatchWrite();
+        assertFalse(store.hasUnspentOutputs(outputs.get(0).getHash(), 5));
+    }
+
+    @Test
+    void duplicateInsertInBatchKeepsTheTransactionUsable() throws Exception {
+        List<UTXO> existing = createOutputs(Sha256Hash.of(new byte[] {3}), 3);
+        for (UTXO out : existing)
+            store.addUnspentTransactionOutput(out);
+
+        // The batch holds a delete, new outputs and an output the database has already. The failed insert batch is
+        // rolled back and redone one by one, which must neither lose the delete nor the other inserts.
+        List<UTXO> added = createOutputs(Sha256Hash.of(new byte[] {4}), 20);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(existing.get(0));
+        for (UTXO out : added.subList(0, 10))
+            store.addUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(existing.get(1));
+        for (UTXO out : added.subList(10, 20))
+            store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+
+        assertNull(store.getTransactionOutput(existing.get(0).getHash(), 0));
+        assertNotNull(store.getTransactionOutput(existing.get(1).getHash(), 1));
+        assertNotNull(store.getTransactionOutput(existing.get(2).getHash(), 2));
+        for (UTXO out : added)
+            assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+
+        // Later batches on the same connection still work.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(added.get(5));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(added.get(5).getHash(), 5));
+    }
+
+    @Test
+    void removingMissingOutputFailsTheBatch() throws Exception {
+        UTXO missing = createOutputs(Sha256Hash.of(new byte[] {5}), 1).get(0);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(missing);
+        assertThrows(BlockStoreException.class, () -> store.commitDatabaseBatchWrite());
+        store.abortDatabaseBatchWrite();
+    }
+
+    @Test
+    void storeIsUsableAfterItsConnectionWasReplaced() throws Exception {
+        List<UTXO> outputs = createOutputs(Sha256Hash.of(new byte[] {6}), 2);
+        store.addUnspentTransactionOutput(outputs.get(0));
+        assertNotNull(store.getTransactionOutput(outputs.get(0).getHash(), 0));
+        // Closing drops the connection and the cached statements, the next call connects again.
+        store.close();
+        store.addUnspentTransactionOutput(outputs.get(1));
+        assertNotNull(store.getTransactionOutput(outputs.get(0).getHash(), 0));
+        assertNotNull(store.getTransactionOutput(outputs.get(1).getHash(), 1));
+
+        // A connection closed behind the store's back is replaced as well.
+        store.conn.get().close();
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(outputs.get(0).getHash(), 0));
+    }
+
+    private static List<UTXO> createOutputs(Sha256Hash hash, int count) {
+        List<UTXO> outputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ECKey key = new ECKey();
+            outputs.add(new UTXO(hash, i, Coin.valueOf(1000 + i), 1, false, ScriptBuilder.createP2PKHOutputScript(key),
+                    LegacyAddress.fromKey(PARAMS, key).toString()));
+        }
+        return outputs;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.primitives.Ints;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the hash index file that {@link SPVBlockStore} keeps next to its ring buffer: deletion of overwritten records,
+ * lookups after reopening, and rebuilding the index when it can't be trusted.
+ */
+public class SPVBlockStoreIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int CAPACITY = 10;
+
+    @TempDir File tempDir;
+    private File file;
+    private File indexFile;
+
+    @BeforeEach
+    void setUp() {
+        Context.propagate(new Context(PARAMS));
+        file = new File(tempDir, "spv");
+        indexFile = new File(file.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX);
+    }
+
+    @Test
+    void dropsOverwrittenRecordsWhenTheRingWraps() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        int slots = (SPVBlockStore.getIndexFileSize(CAPACITY) - SPVBlockStore.INDEX_PROLOGUE_BYTES) / 4;
+        // Most blocks have their home slot in the last two slots of the index, so their probe sequences wrap around
+        // the end of the index and every deletion has to shift entries back across it.
+        List<StoredBlock> blocks = createBlocks(300, slots);
+        List<StoredBlock> stored = new ArrayList<>();
+        for (StoredBlock block : blocks) {
+            store.put(block);
+            stored.add(block);
+            // Bypass the caches, so lookups go to the index.
+            store.blockCache.clear();
+            store.notFoundCache.clear();
+            int kept = Math.min(stored.size(), CAPACITY);
+            for (int i = 0; i < stored.size(); i++) {
+                StoredBlock expected = stored.get(i);
+                StoredBlock found = store.get(expected.getHeader().getHash());
+                if (i >= stored.size() - kept)
+                    assertEquals(expected, found, "block " + i + " after " + stored.size());
+                else
+                    assertNull(found, "block " + i + " after " + stored.size());
+            }
+            if (stored.size() > 2 * CAPACITY)
+                stored.remove(0);
+        }
+        store.close();
+    }
+
+    @Test
+    void lookupsAfterReopening() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        List<StoredBlock> blocks = createBlocks(25, 0);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks.get(blocks.size() - 1));
+        store.close();
+        assertEquals(SPVBlockStore.getIndexFileSize(CAPACITY), indexFile.length());
+
+        store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        assertFound(store, blocks);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    void rebuildsIndexAfterUncleanShutdown() throws Exception {
+        List<StoredBlock> blocks = createBlocks(25, 0);
+        fill(blocks);
+        // An index that is clean and matches the ring is used as is, even with all slots emptied behind its back.
+        clearSlots();
+        SPVBlockStore store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        assertNull(store.get(blocks.get(blocks.size() - 1).getHeader().getHash()));
+        store.close();
+
+        // Not closed cleanly: the clean flag is cleared while the store is open.
+        clearSlots();
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+            index.seek(8);
+            index.writeInt(0);
+        }
+        store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        assertFound(store, blocks);
+        store.close();
+    }
+
+    @Test
+    void rebuildsIndexThatDoesNotMatchTheRing() throws Exception {
+        List<StoredBlock> blocks = createBlocks(25, 0);
+        fill(blocks);
+        // The ring was written to after the index was closed, so the cursors differ.
+        clearSlots();
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+            index.seek(4);
+            int cursor = index.readInt();
+            index.seek(4);
+            index.writeInt(cursor - 128);
+        }
+        SPVBlockStore store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        assertFound(store, blocks);
+        store.close();
+
+        // A missing index is rebuilt too.
+        assertTrue(indexFile.delete());
+        store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        assertFound(store, blocks);
+        store.close();
+        assertTrue(indexFile.exists());
+    }
+
+    private void fill(List<StoredBlock> blocks) throws Exception {
+        SPVBlockStore store = new SPVBlockStore(PARAMS, file, CAPACITY, false);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        store.close();
+    }
+
+    private void clearSlots() throws Exception {
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+            index.seek(SPVBlockStore.INDEX_PROLOGUE_BYTES);
+            index.write(new byte[(int) index.length() - SPVBlockStore.INDEX_PROLOGUE_BYTES]);
+        }
+    }
+
+    /** Checks that the blocks still in the ring are found and the overwritten ones aren't. */
+    private static void assertFound(SPVBlockStore store, List<StoredBlock> blocks) throws Exception {
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock found = store.get(blocks.get(i).getHeader().getHash());
+            if (i >= blocks.size() - CAPACITY)
+                assertEquals(blocks.get(i), found, "block " + i);
+            else
+                assertNull(found, "block " + i);
+        }
+    }
+
+    /**
+     * Creates headers with made up nonces. If slots is not zero, three out of four have their home slot in the last
+     * two slots of an index of that many slots.
+     */
+    private static List<StoredBlock> createBlocks(int count, int slots) {
+        List<StoredBlock> blocks = new ArrayList<>();
+        Block header = PARAMS.getGenesisBlock().cloneAsHeader();
+        long nonce = 0;
+        for (int i = 0; i < count; i++) {
+            Block block;
+            do {
+                block = header.cloneAsHeader();
+                block.setNonce(nonce++);
+            } while (slots != 0 && i % 4 != 0 && homeSlot(block, slots) < slots - 2);
+            blocks.add(new StoredBlock(block, BigInteger.valueOf(i + 1), i + 1));
+        }
+        return blocks;
+    }
+
+    private static int homeSlot(Block block, int slots) {
+        byte[] hash = block.getHash().getBytes();
+        return Ints.fromBytes(hash[28], hash[29], hash[30], hash[31]) & (slots - 1);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the running balance totals of the wallet against the balances calculated by coin selection as coinbases
+ * mature, with the depth counted on every block and derived from the chain height.
+ */
+public class WalletBalanceTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Coin COINBASE_VALUE = Coin.COIN.multiply(50);
+
+    private Wallet wallet;
+    private BlockChain chain;
+    private Block tip;
+    private int height;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        chain = new BlockChain(PARAMS, wallet, new MemoryBlockStore(PARAMS));
+        tip = PARAMS.getGenesisBlock();
+    }
+
+    @Test
+    void coinbaseMaturesWithCountedDepth() throws Exception {
+        mineCoinbaseToMaturity();
+    }
+
+    @Test
+    void coinbaseMaturesWithHeightDerivedDepth() throws Exception {
+        wallet.setHeightDerivedDepth(true);
+        mineCoinbaseToMaturity();
+    }
+
+    @Test
+    void coinbaseMaturesWithDepthWatchThresholdBelowMaturity() throws Exception {
+        wallet.setHeightDerivedDepth(true);
+        wallet.setDepthWatchThreshold(1);
+        mineCoinbaseToMaturity();
+    }
+
+    @Test
+    void coinbaseMaturesWithDepthWatchThresholdZero() throws Exception {
+        wallet.setHeightDerivedDepth(true);
+        wallet.setDepthWatchThreshold(0);
+        mineCoinbaseToMaturity();
+    }
+
+    private void mineCoinbaseToMaturity() throws Exception {
+        mine(wallet.freshReceiveKey());
+        for (int depth = 1; depth < PARAMS.getSpendableCoinbaseDepth(); depth++) {
+            assertBalances(Coin.ZERO, COINBASE_VALUE);
+            mine(new ECKey());
+        }
+        assertBalances(COINBASE_VALUE, COINBASE_VALUE);
+        mine(new ECKey());
+        assertBalances(COINBASE_VALUE, COINBASE_VALUE);
+    }
+
+    private void mine(ECKey coinbaseKey) throws Exception {
+        height++;
+        tip = tip.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, coinbaseKey.getPubKey(), COINBASE_VALUE,
+                height);
+        chain.add(tip);
+    }
+
+    private void assertBalances(Coin available, Coin estimated) {
+        assertEquals(available, wallet.getBalance(Wallet.BalanceType.AVAILABLE), "AVAILABLE at height " + height);
+        assertEquals(available, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE),
+                "AVAILABLE_SPENDABLE at height " + height);
+        assertEquals(estimated, wallet.getBalance(Wallet.BalanceType.ESTIMATED), "ESTIMATED at height " + height);
+        assertEquals(available, wallet.getBalance(wallet.getCoinSelector()), "coin selection at height " + height);
+    }
+}
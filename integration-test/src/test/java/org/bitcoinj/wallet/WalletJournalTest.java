@@ -0,0 +1,294 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Fiat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Saves wallets in journal mode and checks that loading them, with the journal replayed, gives the same wallet
+ */
+public class WalletJournalTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Coin COINBASE_VALUE = Coin.COIN.multiply(50);
+
+    @TempDir
+    File tempDir;
+
+    private File walletFile;
+    private File journalFile;
+    private Wallet wallet;
+    private WalletFiles walletFiles;
+    private BlockChain chain;
+    private Block tip;
+    private int height;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        walletFile = new File(tempDir, "test.wallet");
+        journalFile = WalletJournal.fileFor(walletFile);
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        chain = new BlockChain(PARAMS, wallet, new MemoryBlockStore(PARAMS));
+        tip = PARAMS.getGenesisBlock();
+        // Only save when told to.
+        walletFiles = wallet.autosaveToFile(walletFile, 1, TimeUnit.HOURS, null);
+        walletFiles.enableJournal(WalletFiles.DEFAULT_JOURNAL_COMPACTION_THRESHOLD);
+        walletFiles.saveNow();
+    }
+
+    @AfterEach
+    void tearDown() {
+        walletFiles.shutdownAndWait();
+    }
+
+    @Test
+    void appendsInsteadOfRewriting() throws Exception {
+        byte[] compacted = Files.readAllBytes(walletFile.toPath());
+        long emptyJournal = journalFile.length();
+
+        mine(wallet.freshReceiveKey());
+        walletFiles.saveNow();
+        Transaction pending = receivePending();
+        walletFiles.saveNow();
+
+        assertArrayEquals(compacted, Files.readAllBytes(walletFile.toPath()));
+        assertTrue(journalFile.length() > emptyJournal);
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertSameWallet(wallet, loaded);
+        assertNotNull(loaded.getTransaction(pending.getTxId()));
+    }
+
+    @Test
+    void replaysDepthsAndSettings() throws Exception {
+        mine(wallet.freshReceiveKey());
+        walletFiles.saveNow();
+        for (int i = 0; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            mine(new ECKey());
+            walletFiles.saveNow();
+        }
+        wallet.setDescription("journaled");
+        wallet.freshReceiveKey();
+        walletFiles.saveNow();
+
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertSameWallet(wallet, loaded);
+        assertEquals("journaled", loaded.getDescription());
+        assertEquals(height, loaded.getLastBlockSeenHeight());
+        assertEquals(COINBASE_VALUE, loaded.getBalance(Wallet.BalanceType.AVAILABLE));
+    }
+
+    @Test
+    void journalsMemoExchangeRateAndBroadcasts() throws Exception {
+        Transaction pending = receivePending();
+        walletFiles.saveNow();
+        long journalLength = journalFile.length();
+
+        // The broadcast doesn't tell the wallet, but is journaled with the next change of the transaction.
+        pending.setMemo("coffee");
+        pending.setExchangeRate(new ExchangeRate(Fiat.parseFiat("EUR", "30000")));
+        pending.getConfidence().markBroadcastBy(new PeerAddress(PARAMS, InetAddress.getLoopbackAddress(), 8333));
+        walletFiles.saveNow();
+
+        assertTrue(journalFile.length() > journalLength);
+        Transaction loaded = Wallet.loadFromFile(walletFile).getTransaction(pending.getTxId());
+        assertEquals("coffee", loaded.getMemo());
+        assertEquals(pending.getExchangeRate(), loaded.getExchangeRate());
+        assertEquals(1, loaded.getConfidence().numBroadcastPeers());
+    }
+
+    @Test
+    void appendsOnlyChangedKeys() throws Exception {
+        byte[] compacted = Files.readAllBytes(walletFile.toPath());
+        wallet.freshReceiveKey();
+        wallet.freshReceiveKey();
+        walletFiles.saveNow();
+        // The external and internal parent keys hold the issued counts.
+        Protos.Wallet issued = lastEntry();
+        assertEquals(2, issued.getKeyCount());
+        assertEquals(0, issued.getTransactionCount());
+
+        ECKey imported = new ECKey();
+        wallet.importKey(imported);
+        walletFiles.saveNow();
+        Protos.Wallet importedEntry = lastEntry();
+        assertEquals(1, importedEntry.getKeyCount());
+        assertArrayEquals(imported.getPubKey(), importedEntry.getKey(0).getPublicKey().toByteArray());
+
+        // Nothing changed.
+        long journalLength = journalFile.length();
+        walletFiles.saveNow();
+        assertEquals(journalLength, journalFile.length());
+
+        assertArrayEquals(compacted, Files.readAllBytes(walletFile.toPath()));
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertSameWallet(wallet, loaded);
+        assertEquals(2, loaded.getActiveKeyChain().getIssuedReceiveKeys().size());
+        assertNotNull(loaded.findKeyFromPubKey(imported.getPubKey()));
+    }
+
+    @Test
+    void compactsWhenKeysAreRemoved() throws Exception {
+        long emptyJournal = journalFile.length();
+        ECKey imported = new ECKey();
+        wallet.importKey(imported);
+        walletFiles.saveNow();
+        assertTrue(journalFile.length() > emptyJournal);
+
+        wallet.removeKey(imported);
+        walletFiles.saveNow();
+
+        assertEquals(emptyJournal, journalFile.length());
+        assertNull(Wallet.loadFromFile(walletFile).findKeyFromPubKey(imported.getPubKey()));
+    }
+
+    @Test
+    void ignoresTruncatedTail() throws Exception {
+        Transaction pending = receivePending();
+        walletFiles.saveNow();
+        long journalLength = journalFile.length();
+        pending.setMemo("lost");
+        walletFiles.saveNow();
+        walletFiles.shutdownAndWait();
+
+        // As if the last append was interrupted.
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            journal.setLength(journal.length() - 10);
+        }
+        assertTrue(journalFile.length() > journalLength);
+
+        Transaction loaded = Wallet.loadFromFile(walletFile).getTransaction(pending.getTxId());
+        assertNotNull(loaded);
+        assertNull(loaded.getMemo());
+    }
+
+    @Test
+    void ignoresJournalOfOtherWalletFile() throws Exception {
+        Transaction pending = receivePending();
+        walletFiles.saveNow();
+        walletFiles.shutdownAndWait();
+        Wallet other = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        other.saveToFile(walletFile);
+
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertNull(loaded.getTransaction(pending.getTxId()));
+        assertEquals(other.getKeyChainSeed(), loaded.getKeyChainSeed());
+    }
+
+    @Test
+    void streamsLargeJournaledWallet() throws Exception {
+        mine(wallet.freshReceiveKey());
+        for (int i = 0; i < 50; i++)
+            receivePending();
+        walletFiles.saveNow();
+        mine(new ECKey());
+        walletFiles.saveNow();
+
+        for (int threads : new int[] { 1, 4 }) {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setLoaderThreads(threads);
+            assertSameWallet(wallet, serializer.readWallet(walletFile, false, null));
+        }
+    }
+
+    /** Returns the last message of the journal. */
+    private Protos.Wallet lastEntry() throws Exception {
+        Protos.Wallet last = null;
+        try (InputStream journal = new FileInputStream(journalFile)) {
+            // The magic number and the hash of the wallet file.
+            journal.skip(4 + 32);
+            Protos.Wallet entry;
+            while ((entry = Protos.Wallet.parseDelimitedFrom(journal)) != null)
+                last = entry;
+        }
+        return checkNotNull(last);
+    }
+
+    private void mine(ECKey coinbaseKey) throws Exception {
+        height++;
+        tip = tip.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, coinbaseKey.getPubKey(), COINBASE_VALUE,
+                height);
+        chain.add(tip);
+    }
+
+    private Transaction receivePending() {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new ECKey().getPubKey()))));
+        tx.addOutput(Coin.COIN, wallet.freshReceiveAddress());
+        wallet.receivePending(tx, null);
+        // The wallet keeps a copy.
+        return wallet.getTransaction(tx.getTxId());
+    }
+
+    private static void assertSameWallet(Wallet expected, Wallet actual) {
+        assertEquals(expected.getTransactions(true).size(), actual.getTransactions(true).size());
+        assertEquals(expected.getBalance(Wallet.BalanceType.ESTIMATED), actual.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(expected.getBalance(Wallet.BalanceType.AVAILABLE), actual.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(expected.getActiveKeyChain().getIssuedReceiveKeys(),
+                actual.getActiveKeyChain().getIssuedReceiveKeys());
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        assertEquals(withoutKeys(serializer.walletToProto(expected)), withoutKeys(serializer.walletToProto(actual)));
+    }
+
+    /**
+     * Loading a wallet fills up the lookahead of its key chains, so leave out the keys. The wallet writes its
+     * transactions in no particular order, so sort them.
+     */
+    private static Protos.Wallet withoutKeys(Protos.Wallet walletProto) {
+        List<Protos.Transaction> transactions = new ArrayList<>(walletProto.getTransactionList());
+        transactions.sort(Comparator.comparing(txProto -> Sha256Hash.wrap(txProto.getHash().toByteArray())));
+        return walletProto.toBuilder().clearKey().clearTransaction().addAllTransaction(transactions).build();
+    }
+}
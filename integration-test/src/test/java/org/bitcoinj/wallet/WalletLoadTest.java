@@ -16,12 +16,26 @@
 
 package org.bitcoinj.wallet;
 
+import com.google.protobuf.CodedOutputStream;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.crypto.HDPath;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
 /**
  * Basic test of loading a wallet from a known test file
@@ -31,6 +45,12 @@ public class WalletLoadTest {
     private static final String testWalletMnemonic = "panda diary marriage suffer basic glare surge auto scissors describe sell unique";
     private static final long testWalletCreation = 1554102000;
 
+    @BeforeEach
+    void setUp() {
+        // Other tests may have left a context for a different network on this thread.
+        Context.propagate(new Context(TestNet3Params.get()));
+    }
+
     @Test
     void basicWalletLoadTest() throws UnreadableWalletException {
         Wallet wallet = Wallet.loadFromFile(walletFile);
@@ -44,4 +64,63 @@ public class WalletLoadTest {
         HDPath accountPath = wallet.getActiveKeyChain().getAccountPath();
         assertEquals(HDPath.parsePath("M/0H"), accountPath);
     }
+
+    @Test
+    void streamedLoadMatchesParsedLoad() throws Exception {
+        Protos.Wallet walletProto;
+        try (InputStream input = new FileInputStream(walletFile)) {
+            walletProto = Protos.Wallet.parseFrom(input);
+        }
+        assertFalse(walletProto.getTransactionList().isEmpty());
+        Wallet parsed = new WalletProtobufSerializer().readWallet(
+                NetworkParameters.fromID(walletProto.getNetworkIdentifier()), null, walletProto);
+
+        for (int threads : new int[] { 1, 4 }) {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setLoaderThreads(threads);
+            Wallet streamed;
+            try (InputStream input = new FileInputStream(walletFile)) {
+                streamed = serializer.readWallet(input, false, null);
+            }
+            assertSameWallet(parsed, streamed);
+        }
+    }
+
+    @Test
+    void streamedLoadWithTransactionsBeforeNetworkIdentifier() throws Exception {
+        Protos.Wallet walletProto;
+        try (InputStream input = new FileInputStream(walletFile)) {
+            walletProto = Protos.Wallet.parseFrom(input);
+        }
+        // Protobuf allows fields in any order, so write the transactions first.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        for (Protos.Transaction txProto : walletProto.getTransactionList())
+            output.writeMessage(Protos.Wallet.TRANSACTION_FIELD_NUMBER, txProto);
+        walletProto.toBuilder().clearTransaction().build().writeTo(output);
+        output.flush();
+
+        Wallet parsed = new WalletProtobufSerializer().readWallet(
+                NetworkParameters.fromID(walletProto.getNetworkIdentifier()), null, walletProto);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoaderThreads(4);
+        Wallet streamed = serializer.readWallet(new ByteArrayInputStream(bytes.toByteArray()), false, null);
+        assertSameWallet(parsed, streamed);
+    }
+
+    private static void assertSameWallet(Wallet expected, Wallet actual) {
+        assertEquals(expected.getTransactions(true).size(), actual.getTransactions(true).size());
+        assertEquals(expected.getBalance(Wallet.BalanceType.ESTIMATED), actual.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(expected.getBalance(Wallet.BalanceType.AVAILABLE), actual.getBalance(Wallet.BalanceType.AVAILABLE));
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        assertEquals(withSortedTransactions(serializer.walletToProto(expected)),
+                withSortedTransactions(serializer.walletToProto(actual)));
+    }
+
+    /** The wallet writes its transactions in no particular order. */
+    private static Protos.Wallet withSortedTransactions(Protos.Wallet walletProto) {
+        List<Protos.Transaction> transactions = new ArrayList<>(walletProto.getTransactionList());
+        transactions.sort(Comparator.comparing(txProto -> Sha256Hash.wrap(txProto.getHash().toByteArray())));
+        return walletProto.toBuilder().clearTransaction().addAllTransaction(transactions).build();
+    }
 }
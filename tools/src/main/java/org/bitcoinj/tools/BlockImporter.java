@@ -1,6 +1,6 @@
 /*
  * Copyright by the original author or authors.
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -16,58 +16,316 @@
 
 package org.bitcoinj.tools;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.bitcoinj.core.*;
-import org.bitcoinj.params.MainNetParams;
-import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.store.*;
 import org.bitcoinj.utils.BlockFileLoader;
-import com.google.common.base.Preconditions;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Network;
+import picocli.CommandLine;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Imports the block files of a Bitcoin Core data directory into a block store.</p>
+ *
+ * <p>The import is pipelined: a reader thread memory-maps the {@code blk*.dat} files and cuts them into raw blocks, a
+ * pool of threads deserializes and hashes them in parallel, and the main thread connects them to the chain in file
+ * order. The stages are connected by a bounded queue, so only a limited number of blocks is held in memory.</p>
+ *
+ * <p>Since headers-first sync, Bitcoin Core stores blocks in the order they arrived rather than in chain order.
+ * Blocks whose parent is not yet in the store are held back and connected right after their parent, which is much
+ * cheaper than leaving them to the orphan handling of {@link AbstractBlockChain}. At most {@code --max-waiting} blocks
+ * are held back, the oldest are dropped beyond that, as they are most likely of stale branches whose parent is not in
+ * the files at all. Blocks already in the store, like the genesis block, are skipped.</p>
+ */
+@CommandLine.Command(name = "block-importer", usageHelpAutoWidth = true, sortOptions = false, description = "Import Bitcoin Core block files into a block store. Does full verification if the store supports it.")
+public class BlockImporter implements Callable<Integer> {
+    @CommandLine.Option(names = "--net", description = "Which network the blocks are from. Valid values: ${COMPLETION-CANDIDATES}. Default: ${DEFAULT-VALUE}")
+    private Network net = Network.MAIN;
+    @CommandLine.Option(names = "--store", description = "Type of the block store. Valid values: H2, MemFull, Mem, SPV. Default: ${DEFAULT-VALUE}")
+    private String storeType = "SPV";
+    @CommandLine.Option(names = "--store-file", description = "File of the block store. Required unless the store is Mem or MemFull.")
+    private File storeFile = null;
+    @CommandLine.Option(names = "--blocks-dir", description = "Directory with the blk*.dat files. Default: the blocks directory of Bitcoin Core.")
+    private File blocksDir = null;
+    @CommandLine.Option(names = "--threads", description = "Number of threads deserializing blocks. Default: number of processors")
+    private int threads = Runtime.getRuntime().availableProcessors();
+    @CommandLine.Option(names = "--queue-size", description = "Maximum number of blocks between the pipeline stages. Default: ${DEFAULT-VALUE}")
+    private int queueSize = 1024;
+    @CommandLine.Option(names = "--max-waiting", description = "Maximum number of blocks held back until their parent is read. Default: ${DEFAULT-VALUE}")
+    private int maxWaiting = 1024;
+    @CommandLine.Option(names = "--help", usageHelp = true, description = "Displays program options.")
+    private boolean help;
+
+    // Witness data only counts for a quarter of the block size limit, so serialized blocks can be larger than it.
+    private static final int MAX_BLOCK_BYTES = 4 * Block.MAX_BLOCK_SIZE;
+    private static final long PROGRESS_INTERVAL_MILLIS = 10000;
+    // Marks the end of the block files in the queue.
+    private static final Future<RawBlock> END_OF_FILES = CompletableFuture.completedFuture(null);
+
+    private NetworkParameters params;
+
+    public BlockImporter() {
+    }
+
+    @VisibleForTesting
+    BlockImporter(NetworkParameters params, int threads, int queueSize, int maxWaiting) {
+        this.params = params;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.maxWaiting = maxWaiting;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        int exitCode = new CommandLine(new BlockImporter()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        params = net.networkParameters();
+        Context.propagate(new Context(params));
+        if (threads < 1 || queueSize < 1 || maxWaiting < 1) {
+            System.err.println("--threads, --queue-size and --max-waiting must be positive");
+            return 1;
+        }
 
-/** Very thin wrapper around {@link BlockFileLoader} */
-public class BlockImporter {
-    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
-        System.out.println("       blockStore is required unless type is Mem or MemFull");
-        System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
-        System.out.println("       Does full verification if the store supports it");
-        Preconditions.checkArgument(args.length == 2 || args.length == 3);
-        
-        NetworkParameters params;
-        if (args[0].equals("test"))
-            params = TestNet3Params.get();
-        else
-            params = MainNetParams.get();
-        new Context(params);
-        
         BlockStore store;
-        if (args[1].equals("H2")) {
-            Preconditions.checkArgument(args.length == 3);
-            store = new H2FullPrunedBlockStore(params, args[2], 100);
-        } else if (args[1].equals("MemFull")) {
-            Preconditions.checkArgument(args.length == 2);
+        if (storeType.equals("H2")) {
+            if (storeFile == null) {
+                System.err.println("--store-file is required for store " + storeType);
+                return 1;
+            }
+            store = new H2FullPrunedBlockStore(params, storeFile.getPath(), 100);
+        } else if (storeType.equals("MemFull")) {
             store = new MemoryFullPrunedBlockStore(params, 100);
-        } else if (args[1].equals("Mem")) {
-            Preconditions.checkArgument(args.length == 2);
+        } else if (storeType.equals("Mem")) {
             store = new MemoryBlockStore(params);
-        } else if (args[1].equals("SPV")) {
-            Preconditions.checkArgument(args.length == 3);
-            store = new SPVBlockStore(params, new File(args[2]));
+        } else if (storeType.equals("SPV")) {
+            if (storeFile == null) {
+                System.err.println("--store-file is required for store " + storeType);
+                return 1;
+            }
+            store = new SPVBlockStore(params, storeFile);
         } else {
-            System.err.println("Unknown store " + args[1]);
-            return;
+            System.err.println("Unknown store " + storeType);
+            return 1;
+        }
+
+        try {
+            AbstractBlockChain chain;
+            if (store instanceof FullPrunedBlockStore)
+                chain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store);
+            else
+                chain = new BlockChain(params, store);
+
+            List<File> files = BlockFileLoader.getReferenceClientBlockFileList(
+                    blocksDir != null ? blocksDir : BlockFileLoader.defaultBlocksDir());
+            importBlocks(chain, files);
+        } finally {
+            store.close();
+        }
+        return 0;
+    }
+
+    /** Imports the blocks of the given files into the chain, returning the final progress. */
+    @VisibleForTesting
+    Progress importBlocks(AbstractBlockChain chain, List<File> files)
+            throws BlockStoreException, VerificationException, PrunedException, InterruptedException {
+        ExecutorService parsers = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("Block parser"));
+        BlockingQueue<Future<RawBlock>> queue = new ArrayBlockingQueue<>(queueSize);
+        // The parser threads are created by the reader, so it needs the context to pass on.
+        Thread reader = new ContextPropagatingThreadFactory("Block file reader")
+                .newThread(() -> readBlockFiles(files, parsers, queue));
+        reader.start();
+        try {
+            return connectBlocks(chain, queue);
+        } finally {
+            reader.interrupt();
+            parsers.shutdownNow();
+        }
+    }
+
+    /** First stage: frames the block files and hands every block to the parsers, keeping the file order. */
+    private void readBlockFiles(List<File> files, ExecutorService parsers, BlockingQueue<Future<RawBlock>> queue) {
+        try {
+            try {
+                int magic = (int) params.getPacketMagic();
+                for (File file : files) {
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        // The magic is stored big endian, the size that follows it little endian.
+                        while (buffer.remaining() >= 8) {
+                            int position = buffer.position();
+                            if (buffer.getInt(position) != magic) {
+                                buffer.position(position + 1);
+                                continue;
+                            }
+                            int size = Integer.reverseBytes(buffer.getInt(position + 4));
+                            if (size < Block.HEADER_SIZE || size > MAX_BLOCK_BYTES || size > buffer.remaining() - 8) {
+                                buffer.position(position + 1);
+                                continue;
+                            }
+                            byte[] bytes = new byte[size];
+                            buffer.position(position + 8);
+                            buffer.get(bytes);
+                            queue.put(parsers.submit(() -> parseBlock(bytes)));
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                CompletableFuture<RawBlock> failure = new CompletableFuture<>();
+                failure.completeExceptionally(e);
+                queue.put(failure);
+            }
+            queue.put(END_OF_FILES);
+        } catch (InterruptedException e) {
+            // The import was aborted.
+        }
+    }
+
+    /** Second stage, run on the parser threads: deserializes the block and computes all hashes. */
+    private RawBlock parseBlock(byte[] bytes) {
+        Block block;
+        try {
+            block = params.getDefaultSerializer().makeBlock(bytes);
+        } catch (ProtocolException e) {
+            System.err.println("Skipping unparseable block: " + e.getMessage());
+            return new RawBlock(null, bytes.length);
+        }
+        block.getHash();
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions != null)
+            for (Transaction tx : transactions)
+                tx.getTxId();
+        return new RawBlock(block, bytes.length);
+    }
+
+    /** Last stage: connects the blocks to the chain, each block after its parent. */
+    private Progress connectBlocks(AbstractBlockChain chain, BlockingQueue<Future<RawBlock>> queue)
+            throws BlockStoreException, VerificationException, PrunedException, InterruptedException {
+        BlockStore store = chain.getBlockStore();
+        // Blocks whose parent is not in the store yet, in the order they were read, and their hashes by parent.
+        Map<Sha256Hash, Block> waiting = new LinkedHashMap<>();
+        Map<Sha256Hash, List<Sha256Hash>> waitingForParent = new HashMap<>();
+        Deque<Block> ready = new ArrayDeque<>();
+        Progress progress = new Progress();
+        while (true) {
+            RawBlock raw;
+            try {
+                raw = queue.take().get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to read block files", e.getCause());
+            }
+            if (raw == null)
+                break;
+            progress.bytes += raw.size;
+            if (raw.block == null)
+                continue;
+            Block block = raw.block;
+            if (store.get(block.getHash()) != null || waiting.containsKey(block.getHash())) {
+                progress.skipped++;
+                continue;
+            }
+            if (store.get(block.getPrevBlockHash()) == null) {
+                waiting.put(block.getHash(), block);
+                waitingForParent.computeIfAbsent(block.getPrevBlockHash(), k -> new ArrayList<>(1)).add(block.getHash());
+                if (waiting.size() > maxWaiting) {
+                    dropOldest(waiting, waitingForParent);
+                    progress.dropped++;
+                }
+                progress.waiting = waiting.size();
+                continue;
+            }
+            ready.add(block);
+            while ((block = ready.poll()) != null) {
+                chain.add(block);
+                progress.blocks++;
+                List<Sha256Hash> children = waitingForParent.remove(block.getHash());
+                if (children != null)
+                    for (Sha256Hash child : children)
+                        ready.add(waiting.remove(child));
+            }
+            progress.waiting = waiting.size();
+            progress.maybePrint(chain);
+        }
+        progress.print(chain);
+        if (progress.skipped > 0)
+            System.out.println(progress.skipped + " blocks were skipped because they were in the store already");
+        if (progress.dropped + progress.waiting > 0)
+            System.out.println((progress.dropped + progress.waiting) + " blocks were dropped because their parent is missing");
+        return progress;
+    }
+
+    /** Drops the block that waits for its parent the longest. */
+    private static void dropOldest(Map<Sha256Hash, Block> waiting, Map<Sha256Hash, List<Sha256Hash>> waitingForParent) {
+        Iterator<Block> iterator = waiting.values().iterator();
+        Block oldest = iterator.next();
+        iterator.remove();
+        List<Sha256Hash> siblings = waitingForParent.get(oldest.getPrevBlockHash());
+        siblings.remove(oldest.getHash());
+        if (siblings.isEmpty())
+            waitingForParent.remove(oldest.getPrevBlockHash());
+    }
+
+    private static class RawBlock {
+        final Block block;
+        final int size;
+
+        RawBlock(Block block, int size) {
+            this.block = block;
+            this.size = size;
+        }
+    }
+
+    @VisibleForTesting
+    static class Progress {
+        final long startTime = System.currentTimeMillis();
+        long lastPrintTime = startTime;
+        long blocks;
+        long bytes;
+        int waiting;
+        int dropped;
+        int skipped;
+
+        void maybePrint(AbstractBlockChain chain) {
+            if (System.currentTimeMillis() - lastPrintTime >= PROGRESS_INTERVAL_MILLIS)
+                print(chain);
+        }
+
+        void print(AbstractBlockChain chain) {
+            long now = System.currentTimeMillis();
+            double seconds = Math.max(now - startTime, 1) / 1000.0;
+            double megabytes = bytes / (1024.0 * 1024.0);
+            System.out.println(String.format(Locale.US,
+                    "Height %d: %d blocks (%.1f blocks/sec), %.1f MB read (%.2f MB/sec), %d waiting for parent",
+                    chain.getBestChainHeight(), blocks, blocks / seconds, megabytes, megabytes / seconds, waiting));
+            lastPrintTime = now;
         }
-        
-        AbstractBlockChain chain = null;
-        if (store instanceof FullPrunedBlockStore)
-            chain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store);
-        else
-            chain = new BlockChain(params, store);
-        
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of the ordering of blocks in {@link BlockImporter}
+ */
+public class BlockImporterTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @TempDir
+    File tempDir;
+
+    private BlockChain chain;
+    private Block genesis, b1, b2, b3, b4, fork2, orphan;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        Address to = Address.fromKey(PARAMS, new ECKey(), Script.ScriptType.P2PKH);
+        genesis = PARAMS.getGenesisBlock();
+        b1 = genesis.createNextBlock(to);
+        b2 = b1.createNextBlock(to);
+        b3 = b2.createNextBlock(to);
+        b4 = b3.createNextBlock(to);
+        fork2 = b1.createNextBlock(to, Coin.COIN);
+        // The parent of this block is not in any block file.
+        orphan = b4.createNextBlock(to).createNextBlock(to);
+    }
+
+    @Test
+    void connectsBlocksAfterTheirParent() throws Exception {
+        File file0 = writeBlockFile("blk00000.dat", genesis, b1, b3);
+        File file1 = writeBlockFile("blk00001.dat", b2, fork2, b4, b4);
+
+        BlockImporter.Progress progress = new BlockImporter(PARAMS, 2, 2, 10)
+                .importBlocks(chain, Arrays.asList(file0, file1));
+
+        assertEquals(b4.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(5, progress.blocks);
+        // The genesis block and the second copy of b4
+        assertEquals(2, progress.skipped);
+        assertEquals(0, progress.dropped);
+        assertEquals(0, progress.waiting);
+    }
+
+    @Test
+    void dropsOldestWaitingBlock() throws Exception {
+        File file = writeBlockFile("blk00000.dat", genesis, b1, orphan, b3, b2, b4);
+
+        BlockImporter.Progress progress = new BlockImporter(PARAMS, 2, 2, 1)
+                .importBlocks(chain, Collections.singletonList(file));
+
+        assertEquals(b4.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(4, progress.blocks);
+        assertEquals(1, progress.dropped);
+        assertEquals(0, progress.waiting);
+    }
+
+    @Test
+    void countsBlocksStillWaitingAtTheEnd() throws Exception {
+        File file = writeBlockFile("blk00000.dat", genesis, b1, b2, orphan, b3);
+
+        BlockImporter.Progress progress = new BlockImporter(PARAMS, 1, 1, 10)
+                .importBlocks(chain, Collections.singletonList(file));
+
+        assertEquals(b3.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(3, progress.blocks);
+        assertEquals(0, progress.dropped);
+        assertEquals(1, progress.waiting);
+    }
+
+    /** Writes the blocks the way Bitcoin Core does: magic, size and the serialized block. */
+    private File writeBlockFile(String name, Block... blocks) throws IOException {
+        File file = new File(tempDir, name);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            for (Block block : blocks) {
+                byte[] bytes = block.bitcoinSerialize();
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt((int) PARAMS.getPacketMagic());
+                header.order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length);
+                stream.write(header.array());
+                stream.write(bytes);
+            }
+        }
+        return file;
+    }
+}